@@ -0,0 +1,47 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.LocalDate;
+import java.time.LocalTime;
+
+import org.junit.jupiter.api.Test;
+
+class AdmissionControlTest {
+    private final Show show = new Show(LocalDate.of(2030, 3, 14), LocalTime.of(19, 30), Venue.uniform(100, 10));
+
+    @Test
+    void aCustomerWhoLeavesTheLineFreesTheirPlaceAtOnce() {
+        // one shopping, at most two waiting
+        AdmissionControl admission = new AdmissionControl(1, 2, 60_000, 60_000);
+        AdmissionControl.Ticket shopping = admission.join(show);
+        AdmissionControl.Ticket first = admission.join(show);
+        AdmissionControl.Ticket second = admission.join(show);
+        assertEquals(AdmissionControl.State.ADMITTED, shopping.state);
+        assertEquals(2, admission.waiting(show));
+        assertNull(admission.join(show));
+
+        admission.leave(first.id);
+        assertEquals(1, admission.waiting(show));
+        assertNotNull(admission.join(show));
+
+        // the next in line is the one still waiting, not the one who left
+        admission.leave(shopping.id);
+        assertEquals(AdmissionControl.State.ADMITTED, second.state);
+        assertNull(admission.status(first.id));
+    }
+
+    @Test
+    void ticketsAreFoundByTheirTokenOnly() {
+        AdmissionControl admission = new AdmissionControl(1, 10, 60_000, 60_000);
+        AdmissionControl.Ticket t = admission.join(show);
+        assertTrue(t.token.matches("[0-9a-f]{32}"));
+        assertSame(t, admission.find(t.token));
+        assertNull(admission.find(String.valueOf(t.id)));
+
+        admission.leave(t.id);
+        assertNull(admission.find(t.token));
+    }
+}
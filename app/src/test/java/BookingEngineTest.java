@@ -0,0 +1,166 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class BookingEngineTest {
+    @TempDir
+    Path dir;
+
+    private Show a;
+    private Show b;
+    private ReceiptStore store;
+    private ReceiptWriter receipts;
+    private BookingEngine engine;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        Musical musical = new Musical("Frozen", "", "");
+        a = new Show(LocalDate.of(2030, 3, 14), LocalTime.of(13, 0), Venue.uniform(100, 10));
+        b = new Show(LocalDate.of(2030, 3, 14), LocalTime.of(19, 30), Venue.uniform(100, 10));
+        musical.addShow(a);
+        musical.addShow(b);
+        store = ReceiptStore.open(dir.resolve("receipts"));
+        receipts = new ReceiptWriter(store, 16, 0, false);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        if (engine != null)
+            engine.shutdown();
+        receipts.close();
+        store.close();
+    }
+
+    private BookingEngine engine(BookingJournal journal) {
+        engine = new BookingEngine(new Pricing(List.of(a, b)), 2, journal, receipts);
+        return engine;
+    }
+
+    private BookingRequest request(Show show, SeatHold hold, int... seats) {
+        return new BookingRequest(show.musical, show, seats, seats.length, 0, 0, hold);
+    }
+
+    @Test
+    void aCartWhoseJournalWriteFailsPutsEverySeatBackOnSale() throws Exception {
+        Map<Integer, Show> shows = new HashMap<>();
+        shows.put(a.id, a);
+        shows.put(b.id, b);
+        BookingJournal journal = BookingJournal.open(dir.resolve("data"), shows);
+        // every append now fails
+        journal.close();
+        try (HoldManager holds = new HoldManager(60_000)) {
+            SeatHold held = holds.hold(b, new int[] { 7, 8 });
+            BookingEngine e = engine(journal);
+
+            ExecutionException failed = assertThrows(ExecutionException.class,
+                    () -> e.submitCart(List.of(request(a, null, 1, 2), request(b, held, 7, 8)))
+                            .get(10, TimeUnit.SECONDS));
+            BookingException cause = assertInstanceOf(BookingException.class, failed.getCause());
+            assertEquals(BookingException.Reason.IO, cause.reason);
+        }
+        assertEquals(100, a.availableSeats());
+        assertEquals(100, b.availableSeats());
+        assertEquals(0, a.soldSeats() + b.soldSeats());
+        assertEquals(0, engine.orderBook().ofShow(a, 10).size() + engine.orderBook().ofShow(b, 10).size());
+    }
+
+    @Test
+    void aCartIsSoldOnEveryShow() throws Exception {
+        BookingEngine e = engine(null);
+        CartOrder cart = e.submitCart(List.of(request(a, null, 1, 2), request(b, null, 3)))
+                .get(10, TimeUnit.SECONDS);
+        assertEquals(2, cart.parts.size());
+        assertTrue(a.isBooked(1) && a.isBooked(2) && b.isBooked(3));
+        assertEquals(3, a.soldSeats() + b.soldSeats());
+    }
+
+    @Test
+    void aRefundReleasesOnlySeatsOfItsOrder() throws Exception {
+        BookingEngine e = engine(null);
+        Order mine = e.submit(request(a, null, 1, 2)).get(10, TimeUnit.SECONDS);
+        e.submit(request(a, null, 3)).get(10, TimeUnit.SECONDS);
+
+        ExecutionException refused = assertThrows(ExecutionException.class,
+                () -> e.refund(mine.id, new int[] { 2, 3 }).get(10, TimeUnit.SECONDS));
+        assertEquals(BookingException.Reason.VALIDATION, ((BookingException) refused.getCause()).reason);
+        assertTrue(a.isBooked(2) && a.isBooked(3));
+
+        assertArrayEquals(new int[] { 2 }, e.refund(mine.id, new int[] { 2 }).get(10, TimeUnit.SECONDS));
+        assertFalse(a.isBooked(2));
+        assertThrows(ExecutionException.class, () -> e.refund(mine.id, new int[] { 2 }).get(10, TimeUnit.SECONDS));
+        assertArrayEquals(new int[] { 1 }, e.refundOrder(mine.id).get(10, TimeUnit.SECONDS));
+        assertEquals(1, a.soldSeats());
+    }
+
+    @Test
+    void aRefundWhoseJournalWriteFailsLeavesTheSeatsSold() throws Exception {
+        Map<Integer, Show> shows = new HashMap<>();
+        shows.put(a.id, a);
+        BookingJournal journal = BookingJournal.open(dir.resolve("data"), shows);
+        BookingEngine e = engine(journal);
+        Order order = e.submit(request(a, null, 4, 5)).get(10, TimeUnit.SECONDS);
+        journal.close();
+
+        ExecutionException failed = assertThrows(ExecutionException.class,
+                () -> e.refundOrder(order.id).get(10, TimeUnit.SECONDS));
+        assertEquals(BookingException.Reason.IO, ((BookingException) failed.getCause()).reason);
+        assertTrue(a.isBooked(4) && a.isBooked(5));
+        assertEquals(2, a.soldSeats());
+        assertEquals(98, a.availableSeats());
+    }
+
+    private BookingRequest keyed(Show show, String key, int... seats) {
+        return new BookingRequest(show.musical, show, seats, seats.length, 0, 0, null, key);
+    }
+
+    @Test
+    void aRetriedSubmissionGetsTheFirstOrderBack() throws Exception {
+        BookingEngine e = engine(null);
+        Order first = e.submit(keyed(a, "kiosk-7:42", 10, 11)).get(10, TimeUnit.SECONDS);
+        // the retry lists the seats in another order; it is still the same purchase
+        Order retry = e.submit(keyed(a, "kiosk-7:42", 11, 10)).get(10, TimeUnit.SECONDS);
+        assertSame(first, retry);
+        assertEquals(2, a.soldSeats());
+        assertEquals(1, e.orderBook().ofShow(a, 10).size());
+
+        ExecutionException other = assertThrows(ExecutionException.class,
+                () -> e.submit(keyed(a, "kiosk-7:42", 12)).get(10, TimeUnit.SECONDS));
+        assertEquals(BookingException.Reason.VALIDATION, ((BookingException) other.getCause()).reason);
+        assertTrue(a.isAvailable(12));
+        // one first submission and one true replay; the reused key is a rejection, not a hit
+        assertEquals(1, e.metrics().idempotentReplays());
+        assertEquals(50.0, e.metrics().idempotentHitPercent());
+        assertEquals(1, e.metrics().validationRejections());
+    }
+
+    @Test
+    void aFailedSubmissionCanBeRetriedWithTheSameKey() throws Exception {
+        BookingEngine e = engine(null);
+        assertTrue(a.tryBookAll(new int[] { 20 }));
+        assertThrows(ExecutionException.class,
+                () -> e.submit(keyed(a, "kiosk-7:43", 20)).get(10, TimeUnit.SECONDS));
+        a.releaseAll(new int[] { 20 });
+
+        Order order = e.submit(keyed(a, "kiosk-7:43", 20)).get(10, TimeUnit.SECONDS);
+        assertTrue(order.seatType.containsKey(20));
+        assertTrue(a.isBooked(20));
+    }
+}
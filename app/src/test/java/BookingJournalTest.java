@@ -0,0 +1,171 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class BookingJournalTest {
+    private static final LocalDate DAY = LocalDate.of(2030, 3, 14);
+
+    @TempDir
+    Path dir;
+
+    /** Shows as a later launch would build them: same performances, fresh objects. */
+    private static Map<Integer, Show> relaunch(Show... originals) {
+        Map<Integer, Show> shows = new HashMap<>();
+        for (Show s : originals)
+            shows.put(s.id, show(s.musical.name, s.date, s.time));
+        return shows;
+    }
+
+    private static Show show(String musical, LocalDate date, LocalTime time) {
+        Show s = new Show(date, time, Venue.uniform(100, 10));
+        new Musical(musical, "", "").addShow(s);
+        return s;
+    }
+
+    private static Map<Integer, Show> byId(Show... shows) {
+        Map<Integer, Show> map = new HashMap<>();
+        for (Show s : shows)
+            map.put(s.id, s);
+        return map;
+    }
+
+    @Test
+    void bookingsReleasesAndCartsSurviveAReopen() throws Exception {
+        Show a = show("Frozen", DAY, LocalTime.of(13, 0));
+        Show b = show("Frozen", DAY, LocalTime.of(19, 30));
+        try (BookingJournal j = BookingJournal.open(dir, byId(a, b))) {
+            assertTrue(a.tryBookAll(new int[] { 1, 2, 3 }));
+            j.appendBooking(a, new int[] { 1, 2, 3 });
+            a.releaseAll(new int[] { 2 });
+            j.appendRelease(a, new int[] { 2 });
+            assertTrue(a.tryBookAll(new int[] { 10 }) && b.tryBookAll(new int[] { 20, 21 }));
+            j.appendCart(List.of(a, b), List.of(new int[] { 10 }, new int[] { 20, 21 }));
+        }
+
+        Map<Integer, Show> later = relaunch(a, b);
+        try (BookingJournal j = BookingJournal.open(dir, later)) {
+            assertEquals(0, j.skipped());
+        }
+        Show a2 = later.get(a.id);
+        Show b2 = later.get(b.id);
+        assertTrue(a2.isBooked(1) && a2.isBooked(3) && a2.isBooked(10));
+        assertFalse(a2.isBooked(2));
+        assertEquals(3, a2.soldSeats());
+        assertTrue(b2.isBooked(20) && b2.isBooked(21));
+        assertEquals(2, b2.soldSeats());
+    }
+
+    @Test
+    void replayAfterACrashCoversRecordsOnBothSidesOfACheckpoint() throws Exception {
+        Show a = show("Frozen", DAY, LocalTime.of(13, 0));
+        // no close(): the last records are only in the journal, past the last snapshot
+        BookingJournal j = BookingJournal.open(dir, byId(a), 4);
+        for (int seat = 1; seat <= 10; seat++) {
+            assertTrue(a.tryBookAll(new int[] { seat }));
+            j.appendBooking(a, new int[] { seat });
+        }
+
+        Map<Integer, Show> later = relaunch(a);
+        try (BookingJournal reopened = BookingJournal.open(dir, later, 4)) {
+            assertEquals(0, reopened.skipped());
+        }
+        assertEquals(10, later.get(a.id).soldSeats());
+    }
+
+    @Test
+    void aCheckpointBetweenACartsRecordAndItsSaleKeepsTheCart() throws Exception {
+        Show a = show("Frozen", DAY, LocalTime.of(13, 0));
+        Show b = show("Frozen", DAY, LocalTime.of(19, 30));
+        // checkpoints inside every append, while the seats are only held
+        BookingJournal j = BookingJournal.open(dir, byId(a, b), 1);
+        assertTrue(a.tryHoldAll(new int[] { 5, 6 }) && b.tryHoldAll(new int[] { 7 }));
+        j.appendCart(List.of(a, b), List.of(new int[] { 5, 6 }, new int[] { 7 }));
+        a.confirmHeld(new int[] { 5, 6 });
+        b.confirmHeld(new int[] { 7 });
+
+        Map<Integer, Show> later = relaunch(a, b);
+        BookingJournal.open(dir, later, 1).close();
+        assertTrue(later.get(a.id).isBooked(5) && later.get(a.id).isBooked(6));
+        assertTrue(later.get(b.id).isBooked(7));
+    }
+
+    @Test
+    void aCheckpointBetweenASaleAndItsRecordDoesNotKeepIt() throws Exception {
+        Show a = show("Frozen", DAY, LocalTime.of(13, 0));
+        Show b = show("Frozen", DAY, LocalTime.of(19, 30));
+        BookingJournal j = BookingJournal.open(dir, byId(a, b), 1);
+        // sold on a, not journaled yet, when b's booking checkpoints; then the process dies
+        assertTrue(a.tryBookAll(new int[] { 1 }));
+        assertTrue(b.tryBookAll(new int[] { 2 }));
+        j.appendBooking(b, new int[] { 2 });
+
+        Map<Integer, Show> later = relaunch(a, b);
+        BookingJournal.open(dir, later, 1).close();
+        assertFalse(later.get(a.id).isBooked(1));
+        assertTrue(later.get(b.id).isBooked(2));
+    }
+
+    @Test
+    void seatsAreNotRestoredOntoAnotherPerformanceWithTheSameId() throws Exception {
+        Show a = show("Frozen", DAY, LocalTime.of(13, 0));
+        try (BookingJournal j = BookingJournal.open(dir, byId(a), 2)) {
+            for (int seat = 1; seat <= 3; seat++) {
+                assertTrue(a.tryBookAll(new int[] { seat }));
+                j.appendBooking(a, new int[] { seat });
+            }
+        }
+
+        // the next day's launch gives the same id to the following day's matinee
+        Map<Integer, Show> later = new HashMap<>();
+        later.put(a.id, show("Frozen", DAY.plusDays(1), LocalTime.of(13, 0)));
+        try (BookingJournal j = BookingJournal.open(dir, later)) {
+            assertEquals(1, j.skipped());
+        }
+        assertEquals(0, later.get(a.id).soldSeats());
+        assertTrue(Arrays.stream(new int[] { 1, 2, 3 }).noneMatch(later.get(a.id)::isBooked));
+    }
+
+    @Test
+    void seatsOfAnUnmatchedPerformanceSurviveCheckpointsUntilItComesBack() throws Exception {
+        Show a = show("Frozen", DAY, LocalTime.of(13, 0));
+        // one sale in the snapshot, one only in the journal; no close()
+        BookingJournal first = BookingJournal.open(dir, byId(a), 1000);
+        assertTrue(a.tryBookAll(new int[] { 1, 2 }));
+        first.appendBooking(a, new int[] { 1, 2 });
+        first.checkpoint();
+        assertTrue(a.tryBookAll(new int[] { 3 }));
+        first.appendBooking(a, new int[] { 3 });
+
+        // a launch whose venue layout is missing falls back to another capacity, sells, and checkpoints on close
+        Show other = new Show(a.date, a.time, Venue.uniform(200, 10));
+        new Musical("Frozen", "", "").addShow(other);
+        Map<Integer, Show> fallback = new HashMap<>();
+        fallback.put(a.id, other);
+        try (BookingJournal j = BookingJournal.open(dir, fallback)) {
+            assertEquals(2, j.skipped());
+            assertTrue(other.tryBookAll(new int[] { 150 }));
+            j.appendBooking(other, new int[] { 150 });
+        }
+        assertEquals(1, other.soldSeats());
+
+        Map<Integer, Show> later = relaunch(a);
+        try (BookingJournal j = BookingJournal.open(dir, later)) {
+            // now the fallback performance is the one kept aside
+            assertEquals(1, j.skipped());
+        }
+        Show back = later.get(a.id);
+        assertEquals(3, back.soldSeats());
+        assertTrue(back.isBooked(1) && back.isBooked(2) && back.isBooked(3));
+    }
+}
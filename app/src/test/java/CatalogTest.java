@@ -0,0 +1,66 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+
+class CatalogTest {
+    // a Friday
+    private static final LocalDate DAY = LocalDate.of(2030, 3, 15);
+
+    private final Musical lionKing = new Musical("The Lion King", "", "");
+    private final Musical wicked = new Musical("Wicked", "", "");
+    private final Show friEvening = show(lionKing, DAY, 19, 30);
+    private final Show satMatinee = show(wicked, DAY.plusDays(1), 14, 30);
+    private final Show satEvening = show(lionKing, DAY.plusDays(1), 19, 30);
+    private final Show monMatinee = show(wicked, DAY.plusDays(3), 13, 0);
+    private final Catalog catalog = new Catalog(List.of(lionKing, wicked));
+
+    private static Show show(Musical m, LocalDate date, int hour, int minute) {
+        Show s = new Show(date, LocalTime.of(hour, minute), Venue.uniform(100, 10));
+        m.addShow(s);
+        return s;
+    }
+
+    @Test
+    void dateRangesAreHalfOpenAndInStartTimeOrder() {
+        assertEquals(List.of(friEvening, satMatinee, satEvening),
+                catalog.between(DAY.atStartOfDay(), DAY.plusDays(1).atTime(19, 30).plusMinutes(1)));
+        assertEquals(List.of(friEvening, satMatinee),
+                catalog.between(DAY.atStartOfDay(), DAY.plusDays(1).atTime(19, 30)));
+        assertEquals(List.of(friEvening, satMatinee, satEvening), catalog.nextDays(DAY, 2));
+    }
+
+    @Test
+    void matineesStartBeforeTheCutoff() {
+        assertEquals(List.of(satMatinee, monMatinee), catalog.matinees(DAY, DAY.plusDays(7)));
+        assertEquals(List.of(satMatinee), catalog.weekendMatinees(DAY));
+    }
+
+    @Test
+    void freeSeatQueriesFollowSales() {
+        LocalDateTime from = DAY.atStartOfDay();
+        LocalDateTime to = DAY.plusDays(7).atStartOfDay();
+        assertEquals(4, catalog.withFreeSeats(from, to, 100).size());
+        satMatinee.bookSeat(1);
+        assertEquals(List.of(friEvening, satEvening, monMatinee), catalog.withFreeSeats(from, to, 100));
+        satMatinee.releaseAll(new int[] { 1 });
+        assertEquals(4, catalog.withFreeSeats(from, to, 100).size());
+    }
+
+    @Test
+    void titlesMatchAnyWordPrefixIgnoringCase() {
+        assertEquals(List.of("The Lion King"), names(catalog.titlesStartingWith("LION")));
+        assertEquals(List.of("The Lion King"), names(catalog.titlesStartingWith("ki")));
+        assertEquals(List.of("Wicked"), names(catalog.titlesStartingWith("wic")));
+        assertEquals(List.of(), names(catalog.titlesStartingWith("ing")));
+    }
+
+    private static List<String> names(List<Musical> musicals) {
+        return musicals.stream().map(m -> m.name).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,62 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.LocalDate;
+import java.time.LocalTime;
+
+import org.junit.jupiter.api.Test;
+
+class HoldManagerTest {
+    private final Show show = new Show(LocalDate.of(2030, 3, 14), LocalTime.of(19, 30), Venue.uniform(100, 10));
+
+    @Test
+    void anUnusedHoldExpiresAndPutsItsSeatsBackOnSale() throws Exception {
+        try (HoldManager holds = new HoldManager(100, 10, 16)) {
+            SeatHold hold = holds.hold(show, new int[] { 3, 4 });
+            assertNotNull(hold);
+            assertNull(holds.hold(show, new int[] { 4 }));
+            assertEquals(98, show.availableSeats());
+
+            long deadline = System.nanoTime() + 5_000_000_000L;
+            while (hold.isActive() && System.nanoTime() < deadline)
+                Thread.sleep(10);
+            assertFalse(hold.isActive());
+            assertEquals(100, show.availableSeats());
+            assertEquals(1, holds.expiredHolds());
+            assertEquals(0, holds.activeHolds());
+            assertNull(holds.find(hold.token));
+        }
+    }
+
+    @Test
+    void aConvertedHoldIsSoldAndNeverExpires() throws Exception {
+        try (HoldManager holds = new HoldManager(50, 10, 16)) {
+            SeatHold hold = holds.hold(show, new int[] { 7 });
+            assertTrue(hold.convert());
+            Thread.sleep(200);
+            assertTrue(show.isBooked(7));
+            assertEquals(0, holds.expiredHolds());
+            assertFalse(hold.expire());
+        }
+    }
+
+    @Test
+    void holdsAreFoundByTheirTokenOnly() {
+        try (HoldManager holds = new HoldManager(60_000)) {
+            SeatHold a = holds.hold(show, new int[] { 1 });
+            SeatHold b = holds.hold(show, new int[] { 2 });
+            assertTrue(a.token.matches("[0-9a-f]{32}"));
+            assertNotEquals(a.token, b.token);
+            assertSame(a, holds.find(a.token));
+            assertNull(holds.find(String.valueOf(a.id)));
+            a.release();
+            assertNull(holds.find(a.token));
+            assertTrue(show.isAvailable(1));
+        }
+    }
+}
@@ -0,0 +1,52 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.Test;
+
+class IdempotencyCacheTest {
+    private final Show show = new Show(LocalDate.of(2030, 3, 14), LocalTime.of(19, 30), Venue.uniform(100, 10));
+
+    private BookingRequest keyed(String key, int... seats) {
+        return new BookingRequest(null, show, seats, seats.length, 0, 0, null, key);
+    }
+
+    @Test
+    void pastCapacityTheOldestKeysAreDropped() {
+        IdempotencyCache cache = new IdempotencyCache(2, 60_000);
+        CompletableFuture<Order> first = new CompletableFuture<>();
+        assertNull(cache.putIfAbsent(keyed("a", 1), first));
+        assertSame(first, cache.putIfAbsent(keyed("a", 1), new CompletableFuture<>()).order);
+        assertNull(cache.putIfAbsent(keyed("b", 2), new CompletableFuture<>()));
+        assertNull(cache.putIfAbsent(keyed("c", 3), new CompletableFuture<>()));
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.evicted());
+        // "a" is gone, so it is a first submission again
+        assertNull(cache.putIfAbsent(keyed("a", 1), new CompletableFuture<>()));
+    }
+
+    @Test
+    void anExpiredKeyIsAFirstSubmissionAgain() throws Exception {
+        IdempotencyCache cache = new IdempotencyCache(10, 20);
+        assertNull(cache.putIfAbsent(keyed("a", 1), new CompletableFuture<>()));
+        Thread.sleep(50);
+        assertNull(cache.putIfAbsent(keyed("a", 1), new CompletableFuture<>()));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    void keysMustBeShortAndNonEmpty() {
+        assertThrows(IllegalArgumentException.class, () -> cache().putIfAbsent(keyed("", 1), null));
+        assertThrows(IllegalArgumentException.class,
+                () -> cache().putIfAbsent(keyed("k".repeat(IdempotencyCache.MAX_KEY_LENGTH + 1), 1), null));
+    }
+
+    private static IdempotencyCache cache() {
+        return new IdempotencyCache(10, 60_000);
+    }
+}
@@ -0,0 +1,62 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class OrderBookTest {
+    private final Show a = new Show(LocalDate.of(2030, 3, 14), LocalTime.of(13, 0), Venue.uniform(100, 10));
+    private final Show b = new Show(LocalDate.of(2030, 3, 14), LocalTime.of(19, 30), Venue.uniform(100, 10));
+    private final OrderBook book = new OrderBook();
+
+    @Test
+    void ticketsReadBackAsTheyWereAdded() {
+        book.add(7, a, new int[] { 12, 13, 14 },
+                new TicketType[] { TicketType.ADULT, TicketType.SENIOR, TicketType.STUDENT }, new int[] { 95, 80, 1 });
+        OrderBook.Entry e = book.find(OrderIds.format(7));
+        assertNotNull(e);
+        assertEquals(a, e.show);
+        assertArrayEquals(new int[] { 12, 13, 14 }, e.seats);
+        assertArrayEquals(new TicketType[] { TicketType.ADULT, TicketType.SENIOR, TicketType.STUDENT }, e.types);
+        assertArrayEquals(new int[] { 95, 80, 1 }, e.prices);
+        assertEquals(176, e.total);
+        assertNull(book.find(OrderIds.format(8)));
+        assertNull(book.find("not-an-order"));
+        assertThrows(IllegalArgumentException.class, () -> book.add(7, b, new int[] { 1 },
+                new TicketType[] { TicketType.ADULT }, new int[] { 50 }));
+    }
+
+    @Test
+    void ordersStayFindableAsTheArraysGrow() {
+        for (long id = 1; id <= 5000; id++)
+            book.add(id, id % 2 == 0 ? a : b, new int[] { (int) (id % 100) + 1 },
+                    new TicketType[] { TicketType.ADULT }, new int[] { (int) id });
+        assertEquals(5000, book.orders());
+        assertEquals(5000, book.tickets());
+        for (long id = 1; id <= 5000; id++)
+            assertEquals((int) id, book.find(OrderIds.format(id)).prices[0]);
+        List<OrderBook.Entry> newest = book.ofShow(a, 3);
+        assertEquals(List.of(5000L, 4998L, 4996L), List.of(newest.get(0).id, newest.get(1).id, newest.get(2).id));
+    }
+
+    @Test
+    void aRefundMarksOnlyTheSeatsCurrentTicket() {
+        TicketType[] one = { TicketType.ADULT };
+        book.add(1, a, new int[] { 5 }, one, new int[] { 50 });
+        book.refunded(a, new int[] { 5 });
+        // the seat is sold again
+        book.add(2, a, new int[] { 5 }, one, new int[] { 50 });
+        book.add(3, b, new int[] { 5 }, one, new int[] { 50 });
+        book.refunded(a, new int[] { 5 });
+
+        assertEquals(0, book.find(OrderIds.format(1)).openSeats().length);
+        assertEquals(0, book.find(OrderIds.format(2)).openSeats().length);
+        assertArrayEquals(new int[] { 5 }, book.find(OrderIds.format(3)).openSeats());
+    }
+}
@@ -0,0 +1,116 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Test;
+
+class PricingTest {
+    private static final LocalDate DAY = LocalDate.of(2030, 3, 14);
+
+    // five sections of four seats: seats 1-4 are tier 0, 5-8 tier 1, ... 17-20 tier 4
+    private static Venue venue() throws Exception {
+        return Venue.parse(List.of("venue Test Hall", "section Stalls", "row A 4", "section Dress Circle", "row B 4",
+                "section Grand Circle", "row C 4", "section Upper Circle", "row D 4", "section Balcony", "row E 4"),
+                "test");
+    }
+
+    private static int[] seats(int from, int to) {
+        return IntStream.rangeClosed(from, to).toArray();
+    }
+
+    private static void sell(Pricing pricing, Show show, int from, int to) {
+        assertTrue(show.tryBookAll(seats(from, to)));
+        pricing.seatsChanged(show);
+    }
+
+    private static void release(Pricing pricing, Show show, int from, int to) {
+        show.releaseAll(seats(from, to));
+        pricing.seatsChanged(show);
+    }
+
+    @Test
+    void eachOccupancyStepRaisesThePricesAndReleasesLowerThemAgain() throws Exception {
+        Show show = new Show(DAY, LocalTime.of(19, 30), venue());
+        Pricing pricing = new Pricing(List.of(show));
+        PriceTable t = pricing.table(show);
+        assertEquals(0, t.step);
+        assertEquals(10, t.stepUpAt);
+        assertEquals(Integer.MIN_VALUE, t.stepDownAt);
+        // base price, less 15% per section after the first, never below 55%
+        assertArrayEquals(new int[] { 50, 34, 25 }, pricing.prices(show, new int[] { 1, 5, 9 }, 1, 1));
+        assertEquals(28, t.price(TicketType.ADULT, 13));
+        assertEquals(28, t.price(TicketType.ADULT, 17));
+        assertEquals(19, t.price(TicketType.STUDENT, "Balcony"));
+
+        sell(pricing, show, 1, 9);
+        assertEquals(0, pricing.table(show).step);
+        sell(pricing, show, 10, 10);
+        t = pricing.table(show);
+        assertEquals(1, t.step);
+        assertEquals(15, t.stepUpAt);
+        assertEquals(10, t.stepDownAt);
+        // +10%: 55, 40 * 85% * 110% = 37.4, 35 * 55% * 110% = 21.2
+        assertArrayEquals(new int[] { 55, 37, 21 }, pricing.prices(show, new int[] { 1, 5, 17 }, 1, 1));
+
+        sell(pricing, show, 11, 15);
+        t = pricing.table(show);
+        assertEquals(2, t.step);
+        assertEquals(18, t.stepUpAt);
+        // +20%: 60, and 35 * 55% * 120% = 23.1
+        assertEquals(60, t.price(TicketType.ADULT, 1));
+        assertEquals(23, t.price(TicketType.STUDENT, 20));
+
+        sell(pricing, show, 16, 18);
+        t = pricing.table(show);
+        assertEquals(3, t.step);
+        assertEquals(Integer.MAX_VALUE, t.stepUpAt);
+        assertEquals(18, t.stepDownAt);
+        // +35%: 67.5 rounds up to 68
+        assertEquals(68, t.max(TicketType.ADULT));
+        // two seniors in the balcony: 40 * 55% * 135% = 29.7 each
+        assertEquals(60, pricing.quote(show, new int[] { 19, 20 }, 0, 2));
+
+        // one release drops a step; a big one drops straight back to the bottom
+        release(pricing, show, 18, 18);
+        assertEquals(2, pricing.table(show).step);
+        release(pricing, show, 10, 17);
+        t = pricing.table(show);
+        assertEquals(0, t.step);
+        assertEquals(50, t.price(TicketType.ADULT, 1));
+        sell(pricing, show, 10, 10);
+        assertEquals(1, pricing.table(show).step);
+    }
+
+    @Test
+    void matineesCostTenPercentLessBeforeTheSurcharge() throws Exception {
+        Show show = new Show(DAY, LocalTime.of(14, 30), venue());
+        Pricing pricing = new Pricing(List.of(show));
+        PriceTable t = pricing.table(show);
+        assertEquals(45, t.price(TicketType.ADULT, 1));
+        assertEquals(31, t.price(TicketType.SENIOR, 5)); // 40 * 85% * 90% = 30.6
+        assertEquals(17, t.min(TicketType.STUDENT)); // 35 * 55% * 90% = 17.3
+
+        sell(pricing, show, 1, 18);
+        t = pricing.table(show);
+        assertEquals(3, t.step);
+        assertEquals(61, t.price(TicketType.ADULT, 1)); // 45 * 135% = 60.75
+        assertEquals(23, t.price(TicketType.STUDENT, 19)); // 17.32 * 135% = 23.4
+        assertEquals(61 + 61 + 23, pricing.quote(show, new int[] { 1, 2, 19 }, 2, 0));
+    }
+
+    @Test
+    void stepsStartAtTheFirstSeatPastTheThreshold() {
+        Show show = new Show(DAY, LocalTime.of(19, 30), 21);
+        assertEquals(11, Pricing.seatsForStep(show, 1)); // 50% of 21 is 10.5
+        assertEquals(16, Pricing.seatsForStep(show, 2));
+        assertEquals(19, Pricing.seatsForStep(show, 3));
+        assertEquals(0, Pricing.stepFor(show, 10));
+        assertEquals(1, Pricing.stepFor(show, 11));
+        assertEquals(3, Pricing.stepFor(show, 21));
+    }
+}
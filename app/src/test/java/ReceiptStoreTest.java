@@ -0,0 +1,145 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ReceiptStoreTest {
+    private static final String NL = System.lineSeparator();
+    private static final LocalDate DAY = LocalDate.of(2030, 3, 14);
+
+    @TempDir
+    Path dir;
+
+    private static Order order(String musical, int... seats) {
+        Map<Integer, String> types = new LinkedHashMap<>();
+        int[] prices = new int[seats.length];
+        for (int i = 0; i < seats.length; i++) {
+            types.put(seats[i], i == 0 ? "Adult" : "Senior");
+            prices[i] = i == 0 ? 95 : 80;
+        }
+        return new Order(OrderIds.next(), musical, DAY, LocalTime.of(19, 30), types, prices);
+    }
+
+    private static List<Long> ids(ReceiptStore store) throws Exception {
+        List<Long> ids = new ArrayList<>();
+        store.forEach(r -> ids.add(r.orderId));
+        return ids;
+    }
+
+    @Test
+    void aReceiptRendersAsTheOldTextFileDid() throws Exception {
+        Order o = order("Wicked", 12, 13);
+        try (ReceiptStore store = ReceiptStore.open(dir)) {
+            store.append(o, o.prices);
+            assertEquals("London Musical Tickets - Receipt" + NL
+                    + "Order ID: " + o.id + NL
+                    + "Musical: Wicked" + NL
+                    + "Show: 2030-03-14 19:30" + NL
+                    + "----------------------------------------" + NL
+                    + "Seat     Type       Price   " + NL
+                    + "----------------------------------------" + NL
+                    + "12       Adult      $95" + NL
+                    + "13       Senior     $80" + NL
+                    + "----------------------------------------" + NL
+                    + "Total: $175" + NL
+                    + "Thank you for your purchase!" + NL, store.renderReceipt(o.id));
+            assertNull(store.renderReceipt(OrderIds.next()));
+        }
+    }
+
+    @Test
+    void aTornTailIsCutAndUnindexedRecordsAreIndexedAgain() throws Exception {
+        Order a = order("Wicked", 1);
+        Order b = order("Wicked", 2);
+        Order c = order("Wicked", 3);
+        try (ReceiptStore store = ReceiptStore.open(dir)) {
+            for (Order o : List.of(a, b, c))
+                store.append(o, o.prices);
+        }
+        // a crash: c's record written only in part, and the index never heard of b or c
+        Path segment = dir.resolve(ReceiptStore.segmentName(1));
+        try (FileChannel ch = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            ch.truncate(ch.size() - 5);
+        }
+        try (FileChannel ch = FileChannel.open(dir.resolve("orders.idx"), StandardOpenOption.WRITE)) {
+            ch.truncate(20 + 7);
+        }
+
+        Order d = order("Wicked", 4);
+        try (ReceiptStore store = ReceiptStore.open(dir)) {
+            assertEquals(2, store.size());
+            assertNotNull(store.find(b.id));
+            assertNull(store.find(c.id));
+            store.append(d, d.prices);
+            assertEquals(List.of(OrderIds.parse(a.id), OrderIds.parse(b.id), OrderIds.parse(d.id)), ids(store));
+        }
+        try (ReceiptStore store = ReceiptStore.open(dir)) {
+            assertArrayEquals(new int[] { 4 }, store.find(d.id).seats);
+        }
+    }
+
+    @Test
+    void segmentsRollOverAndStayReadable() throws Exception {
+        List<Order> orders = new ArrayList<>();
+        try (ReceiptStore store = ReceiptStore.open(dir, 200)) {
+            for (int i = 1; i <= 12; i++) {
+                Order o = order("The Lion King", i, i + 20);
+                store.append(o, o.prices);
+                orders.add(o);
+            }
+        }
+        long segments;
+        try (Stream<Path> files = Files.list(dir)) {
+            segments = files.filter(p -> p.getFileName().toString().startsWith("segment-")).count();
+        }
+        assertTrue(segments > 1, segments + " segments");
+
+        try (ReceiptStore store = ReceiptStore.open(dir, 200)) {
+            assertEquals(12, store.size());
+            for (Order o : orders)
+                assertArrayEquals(o.seatType.keySet().stream().mapToInt(Integer::intValue).toArray(),
+                        store.find(o.id).seats);
+            assertEquals(orders.stream().map(o -> OrderIds.parse(o.id)).toList(), ids(store));
+        }
+    }
+
+    @Test
+    void aCartIsFoundThroughItsFirstPart() throws Exception {
+        Order matinee = order("Wicked", 5);
+        Order evening = order("The Lion King", 6, 7);
+        Show a = new Show(DAY, LocalTime.of(14, 30));
+        Show b = new Show(DAY, LocalTime.of(19, 30));
+        CartOrder cart = new CartOrder(OrderIds.next(), List.of(matinee, evening), List.of(a, b));
+        try (ReceiptStore store = ReceiptStore.open(dir)) {
+            store.append(matinee, matinee.prices);
+            store.append(evening, evening.prices);
+        }
+        try (ReceiptStore store = ReceiptStore.open(dir)) {
+            ReceiptStore.Record first = store.find(cart.id);
+            assertEquals(OrderIds.parse(matinee.id), first.orderId);
+            assertEquals(OrderIds.parse(cart.id), first.cartId);
+            String text = store.renderReceipt(cart.id);
+            assertTrue(text.startsWith("London Musical Tickets - Receipt" + NL + "Order ID: " + cart.id + NL));
+            assertTrue(text.contains("Part: " + matinee.id + NL) && text.contains("Part: " + evening.id + NL));
+            assertTrue(text.endsWith("Total: $270" + NL + "Thank you for your purchase!" + NL));
+            // each part still renders on its own
+            assertTrue(store.renderReceipt(evening.id).contains("Total: $175" + NL));
+        }
+    }
+}
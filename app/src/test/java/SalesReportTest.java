@@ -0,0 +1,166 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneOffset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SalesReportTest {
+    private static final LocalDate DAY = LocalDate.of(2030, 3, 14);
+
+    @TempDir
+    Path dir;
+    // checkpoints and report output live outside the receipts directory
+    @TempDir
+    Path work;
+
+    private static Order order(String musical, LocalTime time, int... seats) {
+        Map<Integer, String> types = new LinkedHashMap<>();
+        int[] prices = new int[seats.length];
+        for (int i = 0; i < seats.length; i++) {
+            TicketType t = TicketType.ALL[i % TicketType.ALL.length];
+            types.put(seats[i], t.label);
+            prices[i] = t.basePrice + seats[i];
+        }
+        return new Order(OrderIds.next(), musical, DAY, time, types, prices);
+    }
+
+    private static String append(ReceiptStore store, int n, int firstSeat) throws IOException {
+        String last = null;
+        for (int i = 0; i < n; i++) {
+            Order o = order(i % 3 == 0 ? "Wicked" : "The Lion King", LocalTime.of(i % 2 == 0 ? 14 : 19, 30),
+                    firstSeat + 2 * i, firstSeat + 2 * i + 1);
+            last = store.append(o, o.prices);
+        }
+        return last;
+    }
+
+    private void legacy(String name, String musical, String... seatLines) throws IOException {
+        StringBuilder w = new StringBuilder();
+        w.append("London Musical Tickets - Receipt\n");
+        w.append("Order ID: ").append(name, 24, name.length() - 4).append('\n');
+        w.append("Musical: ").append(musical).append('\n');
+        w.append("Show: ").append(DAY).append(" 19:30\n");
+        w.append("----------------------------------------\n");
+        w.append(String.format("%-8s %-10s %-8s", "Seat", "Type", "Price")).append('\n');
+        w.append("----------------------------------------\n");
+        int total = 0;
+        for (String line : seatLines) {
+            w.append(line).append('\n');
+            total += Integer.parseInt(line.substring(line.indexOf('$') + 1));
+        }
+        w.append("----------------------------------------\n");
+        w.append("Total: $").append(total).append('\n');
+        w.append("Thank you for your purchase!\n");
+        Files.write(dir.resolve(name), w.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String csv(SalesReport report) throws IOException {
+        Path out = Files.createTempFile(work, "report", ".csv");
+        report.write(out);
+        String text = new String(Files.readAllBytes(out), StandardCharsets.UTF_8);
+        Files.delete(out);
+        return text;
+    }
+
+    private static String totalRow(String csv) {
+        return csv.lines().filter(l -> l.startsWith("total,")).findFirst().orElseThrow();
+    }
+
+    @Test
+    void aRunFromTheCheckpointMatchesOneFullRun() throws Exception {
+        Path checkpoint = work.resolve("report.checkpoint");
+        legacy("receipt_20300310_101500_A1.txt", "Wicked", "3        Adult      $95");
+        try (ReceiptStore store = ReceiptStore.open(dir, 600)) {
+            append(store, 10, 1);
+            SalesReport first = new SalesReport(dir, ZoneOffset.UTC);
+            assertEquals(11, first.update());
+            first.saveCheckpoint(checkpoint);
+
+            // more records in the segment the first run stopped part way through, and in new ones
+            append(store, 15, 40);
+        }
+        legacy("receipt_20300312_090000_B2.txt", "The Lion King", "7        Senior     $60",
+                "8        Student    $55");
+        // older than the checkpoint's last legacy file: treated as already counted
+        legacy("receipt_20300309_090000_C3.txt", "Wicked", "9        Adult      $90");
+
+        SalesReport resumed = new SalesReport(dir, ZoneOffset.UTC);
+        resumed.loadCheckpoint(checkpoint);
+        assertEquals(16, resumed.update());
+        assertEquals(0, resumed.update());
+
+        Files.delete(dir.resolve("receipt_20300309_090000_C3.txt"));
+        SalesReport full = new SalesReport(dir, ZoneOffset.UTC);
+        assertEquals(27, full.update());
+        assertEquals(csv(full), csv(resumed));
+        assertEquals(0, resumed.skipped());
+    }
+
+    @Test
+    void oldTextReceiptsAreCountedByTypeAndBadOnesSkipped() throws Exception {
+        legacy("receipt_20300310_101500_A1.txt", "Wicked", "3        Adult      $95", "4        Senior     $80",
+                "5        Student    $70", "6        Child      $20");
+        Files.write(dir.resolve("receipt_20300310_101600_A2.txt"),
+                "London Musical Tickets - Receipt\nnothing else\n".getBytes(StandardCharsets.UTF_8));
+        Files.write(dir.resolve("receipt_garbage.txt"), new byte[] { 1, 2, 3 });
+
+        SalesReport report = new SalesReport(dir, ZoneOffset.UTC);
+        assertEquals(1, report.update());
+        assertEquals(2, report.skipped());
+        String csv = csv(report);
+        // orders, seats, revenue, adult, senior, student, other
+        assertEquals("total,,,,,1,4,265,1,1,1,1", totalRow(csv));
+        assertEquals("day,,,,2030-03-10,1,4,265,1,1,1,1",
+                csv.lines().filter(l -> l.startsWith("day,")).findFirst().orElseThrow());
+        assertEquals("show,Wicked,2030-03-14,19:30,,1,4,265,1,1,1,1",
+                csv.lines().filter(l -> l.startsWith("show,")).findFirst().orElseThrow());
+    }
+
+    @Test
+    void aDamagedRecordStopsItsSegmentUntilItReadsAgain() throws Exception {
+        Path checkpoint = work.resolve("report.checkpoint");
+        String second;
+        try (ReceiptStore store = ReceiptStore.open(dir)) {
+            append(store, 1, 1);
+            second = append(store, 1, 3);
+            append(store, 2, 5);
+        }
+        Path segment = dir.resolve(second.substring(0, second.indexOf('@')));
+        long at = Long.parseLong(second.substring(second.indexOf('@') + 1));
+        ByteBuffer one = ByteBuffer.allocate(1);
+        try (FileChannel ch = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ch.read(one, at + 6);
+            one.put(0, (byte) ~one.get(0)).rewind();
+            ch.write(one, at + 6);
+        }
+
+        SalesReport report = new SalesReport(dir, ZoneOffset.UTC);
+        assertEquals(1, report.update());
+        assertEquals(0, report.update());
+        report.saveCheckpoint(checkpoint);
+
+        // put the byte back: the next run picks up at the damaged record, not after it
+        try (FileChannel ch = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            one.put(0, (byte) ~one.get(0)).rewind();
+            ch.write(one, at + 6);
+        }
+        SalesReport resumed = new SalesReport(dir, ZoneOffset.UTC);
+        resumed.loadCheckpoint(checkpoint);
+        assertEquals(3, resumed.update());
+        SalesReport full = new SalesReport(dir, ZoneOffset.UTC);
+        assertEquals(4, full.update());
+        assertEquals(csv(full), csv(resumed));
+    }
+}
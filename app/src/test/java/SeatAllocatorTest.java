@@ -0,0 +1,135 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Test;
+
+class SeatAllocatorTest {
+    // rows of different widths, so blocks must not run across a row boundary
+    private static Venue venue() throws Exception {
+        return Venue.parse(List.of("section Stalls", "rows A-D 9", "row E 14", "section Circle", "rows A-C 7",
+                "row D 3"), "test.venue");
+    }
+
+    /** What find should answer, from the bitmap alone: the leftmost run long enough, centred in its row. */
+    private static int[] scan(Show show, int count) {
+        for (Venue.Row row : show.venue.rows) {
+            int end = row.firstSeat + row.seats - 1;
+            for (int lo = row.firstSeat; lo <= end; lo++) {
+                if (!show.isAvailable(lo))
+                    continue;
+                int hi = lo;
+                while (hi < end && show.isAvailable(hi + 1))
+                    hi++;
+                if (hi - lo + 1 >= count) {
+                    int rowMid = row.firstSeat + (row.seats - 1) / 2;
+                    int first = Math.max(lo, Math.min(hi - count + 1, rowMid - (count - 1) / 2));
+                    int[] seats = new int[count];
+                    for (int i = 0; i < count; i++)
+                        seats[i] = first + i;
+                    return seats;
+                }
+                lo = hi;
+            }
+        }
+        return null;
+    }
+
+    private static void assertMatchesScan(Show show) {
+        for (int count = 1; count <= 15; count++) {
+            int[] expected = scan(show, count);
+            if (expected == null)
+                assertNull(show.bestAvailable(count), "count " + count);
+            else
+                assertArrayEquals(expected, show.bestAvailable(count), "count " + count);
+        }
+    }
+
+    @Test
+    void findMatchesABitmapScan() throws Exception {
+        Show show = new Show(LocalDate.of(2030, 3, 14), LocalTime.of(19, 30), venue());
+        assertMatchesScan(show);
+        SplittableRandom random = new SplittableRandom(7);
+        for (int i = 0; i < 2000; i++) {
+            int seat = 1 + random.nextInt(show.capacity);
+            if (show.isAvailable(seat))
+                show.tryHoldAll(new int[] { seat });
+            else
+                show.releaseHeld(new int[] { seat });
+            if (i % 50 == 0)
+                assertMatchesScan(show);
+        }
+        assertMatchesScan(show);
+    }
+
+    @Test
+    void racingClaimsAndReleasesLeaveTheTreeInStepWithTheBitmap() throws Exception {
+        Show show = new Show(LocalDate.of(2030, 3, 14), LocalTime.of(19, 30), venue());
+        // built before the race, so every claim and release goes through update
+        show.bestAvailable(1);
+        for (int round = 0; round < 20; round++) {
+            race(show, round);
+            assertMatchesScan(show);
+        }
+        show.releaseHeld(taken(show));
+        assertEquals(show.capacity, show.availableSeats());
+        assertMatchesScan(show);
+    }
+
+    @Test
+    void aReleaseBetweenAClaimAndItsTreeUpdateIsNotLost() throws Exception {
+        Show show = new Show(LocalDate.of(2030, 3, 14), LocalTime.of(19, 30), venue());
+        show.bestAvailable(1);
+        // listeners run after the claim's CAS and before its tree update: the narrowest race, every time
+        AtomicBoolean once = new AtomicBoolean();
+        show.subscribe(s -> {
+            if (!s.isAvailable(5) && once.compareAndSet(false, true))
+                s.releaseHeld(new int[] { 5 });
+        });
+        assertTrue(show.tryHoldAll(new int[] { 5 }));
+        assertTrue(show.isAvailable(5));
+        assertMatchesScan(show);
+    }
+
+    private static void race(Show show, int round) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> running = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            SplittableRandom random = new SplittableRandom(round * 31L + t);
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                for (int i = 0; i < 20_000; i++) {
+                    // two seats, so claims and releases of the same seat overlap all the time
+                    int seat = 1 + random.nextInt(2);
+                    if (random.nextBoolean())
+                        show.tryHoldAll(new int[] { seat });
+                    else
+                        show.releaseHeld(new int[] { seat });
+                }
+            });
+            thread.start();
+            running.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : running)
+            thread.join();
+    }
+
+    private static int[] taken(Show show) {
+        return IntStream.rangeClosed(1, show.capacity).filter(s -> !show.isAvailable(s)).toArray();
+    }
+}
@@ -0,0 +1,60 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SharedSeatsTest {
+    private static final LocalDate DAY = LocalDate.of(2030, 3, 14);
+
+    @TempDir
+    Path dir;
+
+    private static Show show(LocalDate date) {
+        Show s = new Show(date, LocalTime.of(19, 30), Venue.uniform(100, 10));
+        new Musical("Frozen", "", "").addShow(s);
+        return s;
+    }
+
+    private static void sell(SharedSeats seats, Show show, int seat) {
+        show.useCells(seats.cellsFor(show));
+        assertTrue(show.tryBookAll(new int[] { seat }));
+    }
+
+    @Test
+    void theSamePerformancesShareTheirSeatsAcrossLaunches() throws Exception {
+        Path file = dir.resolve("seats.map");
+        Show today = show(DAY);
+        try (SharedSeats seats = SharedSeats.open(file, List.of(today))) {
+            sell(seats, today, 5);
+        }
+        try (SharedSeats seats = SharedSeats.open(file, List.of(today))) {
+            assertTrue(seats.alone());
+            today.useCells(seats.cellsFor(today));
+            assertTrue(today.isBooked(5));
+            assertEquals(1, today.soldSeats());
+        }
+    }
+
+    @Test
+    void aFileForOtherPerformancesIsLaidOutAgain() throws Exception {
+        Path file = dir.resolve("seats.map");
+        Show today = show(DAY);
+        try (SharedSeats seats = SharedSeats.open(file, List.of(today))) {
+            sell(seats, today, 5);
+        }
+        // the next day's schedule: same size, different performance
+        Show tomorrow = show(DAY.plusDays(1));
+        try (SharedSeats seats = SharedSeats.open(file, List.of(tomorrow))) {
+            tomorrow.useCells(seats.cellsFor(tomorrow));
+            assertFalse(tomorrow.isBooked(5));
+            assertEquals(0, tomorrow.soldSeats());
+        }
+    }
+}
@@ -0,0 +1,27 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class VenueTest {
+    @Test
+    void rowsAreNumberedOnFromTheRowBefore() throws Exception {
+        Venue v = Venue.parse(List.of("venue Lyceum", "section Stalls", "rows A-B 10", "section Circle", "row A 6"),
+                "lyceum.venue");
+        assertEquals(26, v.capacity());
+        assertEquals(List.of(1, 11, 21), v.rows.stream().map(r -> r.firstSeat).toList());
+        assertEquals(10, v.widestRow());
+    }
+
+    @Test
+    void aRowWithoutSeatsIsABadLine() {
+        for (String line : new String[] { "row C 0", "row C -4", "rows C-D 0", "rows C-D -1" }) {
+            IOException ex = assertThrows(IOException.class,
+                    () -> Venue.parse(List.of("rows A-B 10", line), "lyceum.venue"));
+            assertEquals("lyceum.venue:2: bad line '" + line + "'", ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,434 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Stream;
+
+import bench.Hooks;
+
+/**
+ * Default-package adapters that give the JMH benchmarks in {@code bench} access
+ * to the package-private application classes. See {@link Hooks}.
+ */
+final class BenchHooks {
+    private BenchHooks() {
+    }
+
+    /** A venue of {@code capacity} seats in rows of 40, about an arena's row width. */
+    static Show show(int capacity) {
+        return new Show(LocalDate.now().plusDays(1), LocalTime.of(19, 30), Venue.uniform(capacity, 40));
+    }
+
+    static Order order(int seats) {
+        Map<Integer, String> seatType = new LinkedHashMap<>();
+        int[] prices = new int[seats];
+        for (int i = 1; i <= seats; i++) {
+            TicketType t = TicketType.ALL[i % 3];
+            seatType.put(i * 3, t.label);
+            prices[i - 1] = t.basePrice;
+        }
+        return new Order(OrderIds.next(), "Les Misérables", LocalDate.now().plusDays(3), LocalTime.of(19, 30),
+                seatType, prices);
+    }
+
+    static final class SeatInventory implements Hooks.SeatInventory {
+        private Show show;
+
+        @Override
+        public void init(int capacity) {
+            show = show(capacity);
+        }
+
+        @Override
+        public void initMapped(int capacity, Path dir) throws IOException {
+            show = show(capacity);
+            SharedSeats seats = SharedSeats.open(dir.resolve("seats.map"), Collections.singletonList(show));
+            show.useCells(seats.cellsFor(show));
+            // the mapping outlives the channel
+            seats.close();
+        }
+
+        @Override
+        public void bookSeat(int seat) {
+            show.bookSeat(seat);
+        }
+
+        @Override
+        public boolean tryBookAll(int[] seats) {
+            return show.tryBookAll(seats);
+        }
+
+        @Override
+        public void releaseAll(int[] seats) {
+            show.releaseAll(seats);
+        }
+
+        @Override
+        public boolean isBooked(int seat) {
+            return show.isBooked(seat);
+        }
+
+        @Override
+        public int availableSeats() {
+            return show.availableSeats();
+        }
+
+        @Override
+        public int[] tryBookBestAvailable(int count) {
+            return show.tryBookBestAvailable(count);
+        }
+    }
+
+    static final class SeatMap implements Hooks.SeatMap {
+        private Show show;
+        private final SeatMapPanel panel = new SeatMapPanel();
+        private final int[] one = new int[1];
+        private int next;
+
+        @Override
+        public void init(int capacity, int bookedPercent) {
+            show = show(capacity);
+            SplittableRandom rnd = new SplittableRandom(42);
+            for (int i = 1; i <= capacity; i++)
+                if (rnd.nextInt(100) < bookedPercent)
+                    show.bookSeat(i);
+            panel.setShow(show);
+        }
+
+        @Override
+        public int refresh(int changed) {
+            for (int i = 0; i < changed; i++) {
+                one[0] = next = next % show.capacity + 1;
+                if (show.isBooked(next))
+                    show.releaseAll(one);
+                else
+                    show.bookSeat(next);
+            }
+            return panel.refresh();
+        }
+    }
+
+    static final class Schedule implements Hooks.Schedule {
+        private final List<Show> shows = new ArrayList<>();
+        private final int[] one = new int[1];
+        private int nextShow;
+        private int nextSeat;
+
+        @Override
+        public void init(int count, int capacity) {
+            for (int i = 0; i < count; i++)
+                shows.add(new Show(LocalDate.now().plusDays(i % 365), LocalTime.of(14 + i % 6, 30),
+                        Venue.uniform(capacity, 40)));
+        }
+
+        @Override
+        public void touch(int count) {
+            for (int i = 0; i < count; i++) {
+                Show s = shows.get(nextShow = (nextShow + 1) % shows.size());
+                one[0] = nextSeat = nextSeat % s.capacity + 1;
+                if (s.isBooked(nextSeat))
+                    s.releaseAll(one);
+                else
+                    s.bookSeat(nextSeat);
+            }
+        }
+
+        @Override
+        public int rebuild() {
+            int chars = 0;
+            for (Show s : shows) {
+                DateTimeFormatter df = DateTimeFormatter.ofPattern("dd MMM uuuu");
+                DateTimeFormatter tf = DateTimeFormatter.ofPattern("HH:mm");
+                chars += String.format("%s   %s   Available: %d", s.date.format(df), s.time.format(tf),
+                        s.availableSeats()).length();
+            }
+            return chars;
+        }
+
+        @Override
+        public int cached() {
+            int chars = 0;
+            for (Show s : shows)
+                chars += s.summary().scheduleLine.length();
+            return chars;
+        }
+    }
+
+    static final class OrderTotal implements Hooks.OrderTotal {
+        private Pricing pricing;
+        private Show show;
+        private int[] seats;
+        private int adults;
+        private int seniors;
+
+        @Override
+        public void init(int count) {
+            // three sections so seats fall in different price tiers
+            show = new Show(LocalDate.now().plusDays(1), LocalTime.of(19, 30), venue(3, 40, 10));
+            pricing = new Pricing(Collections.singletonList(show));
+            seats = new int[count];
+            for (int i = 0; i < count; i++)
+                seats[i] = 1 + i * 7 % show.capacity;
+            adults = count / 2;
+            seniors = count / 4;
+        }
+
+        @Override
+        public int total() {
+            return pricing.quote(show, seats, adults, seniors);
+        }
+    }
+
+    static Venue venue(int sections, int rowsPerSection, int seatsPerRow) {
+        List<String> lines = new ArrayList<>();
+        for (int s = 0; s < sections; s++) {
+            lines.add("section Section " + (s + 1));
+            for (int r = 0; r < rowsPerSection; r++)
+                lines.add("row " + Venue.rowLabel(s * rowsPerSection + r) + " " + seatsPerRow);
+        }
+        try {
+            return Venue.parse(lines, "bench");
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    static final class Receipts implements Hooks.Receipts {
+        private Path dir;
+        private ReceiptStore store;
+        private ReceiptWriter writer;
+        private Order order;
+        private int[] prices;
+
+        @Override
+        public void init(Path dir, int seats, boolean fsync) throws IOException {
+            this.dir = dir;
+            store = ReceiptStore.open(dir);
+            writer = new ReceiptWriter(store, 1024, 0, fsync);
+            order = order(seats);
+            prices = order.prices;
+        }
+
+        @Override
+        public String format() {
+            int[] seats = order.seatType.keySet().stream().mapToInt(Integer::intValue).toArray();
+            String[] types = order.seatType.values().toArray(new String[0]);
+            return ReceiptStore.render(new ReceiptStore.Record(OrderIds.parse(order.id), order.musicalName,
+                    order.showDate, order.showTime, seats, types, prices, order.total));
+        }
+
+        @Override
+        public String append() throws IOException {
+            return store.append(fresh(), prices);
+        }
+
+        @Override
+        public String appendAndSync() throws IOException {
+            String location = store.append(fresh(), prices);
+            store.sync();
+            return location;
+        }
+
+        @Override
+        public String writeThroughWriter() throws Exception {
+            return writer.submit(fresh()).get();
+        }
+
+        @Override
+        public void close() throws IOException {
+            writer.close();
+            store.close();
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            }
+        }
+
+        // store ids must be unique, so every write gets its own copy of the order
+        private Order fresh() {
+            return new Order(OrderIds.next(), order.musicalName, order.showDate, order.showTime, order.seatType,
+                    order.prices);
+        }
+    }
+
+    static final class BoxOffice implements Hooks.BoxOffice {
+        private Musical musical;
+        private Catalog catalog;
+        private Pricing pricing;
+        private BookingJournal journal;
+        private ReceiptStore store;
+        private ReceiptWriter writer;
+        private HoldManager holds;
+        private BookingEngine engine;
+        private AdmissionControl admission;
+
+        @Override
+        public void init(Path dir, Path venue, int performances, long holdTtlMillis, boolean fsync, int admission,
+                int maxQueue) throws IOException {
+            if (admission > 0)
+                this.admission = new AdmissionControl(admission, maxQueue, holdTtlMillis, holdTtlMillis);
+            Venue v = venue != null ? Venue.load(venue) : Venue.uniform(1200, 30);
+            musical = new Musical("Phantom of the Opera", "On-sale rehearsal", null);
+            LocalDate opening = LocalDate.now().plusDays(30);
+            for (int i = 0; i < performances; i++)
+                musical.addShow(new Show(opening.plusDays(i), LocalTime.of(19, 30), v));
+            catalog = new Catalog(Collections.singletonList(musical));
+            Map<Integer, Show> byId = new LinkedHashMap<>();
+            for (Show s : musical.shows)
+                byId.put(s.id, s);
+            journal = BookingJournal.open(dir.resolve("data"), byId);
+            pricing = new Pricing(catalog.allShows());
+            store = ReceiptStore.open(dir.resolve("receipts"));
+            writer = new ReceiptWriter(store, 1024, 2, fsync);
+            holds = new HoldManager(holdTtlMillis);
+            engine = new BookingEngine(pricing, Runtime.getRuntime().availableProcessors(), journal, writer);
+        }
+
+        @Override
+        public int[] browse() {
+            Collection<Show> shows = catalog.allShows();
+            int[] ids = new int[shows.size()];
+            int i = 0;
+            for (Show s : shows) {
+                s.summary(); // the schedule line, as the dialog lists it
+                ids[i++] = s.id;
+            }
+            return ids;
+        }
+
+        @Override
+        public int[] pick(int id, Preference preference, int count, SplittableRandom random) {
+            Show show = catalog.show(id);
+            if (preference == Preference.BEST)
+                return show.bestAvailable(count);
+            List<Venue.Row> rows = show.venue.rows;
+            int n = rows.size();
+            int first = preference == Preference.RANDOM ? random.nextInt(n) : 0;
+            for (int k = 0; k < n; k++) {
+                int r = preference == Preference.CHEAP ? n - 1 - k : (first + k) % n;
+                int[] block = pickInRow(show, rows.get(r), count, preference == Preference.RANDOM ? random : null);
+                if (block != null)
+                    return block;
+            }
+            return null;
+        }
+
+        /** The leftmost block of {@code count} free seats in the row, or a random one if {@code random} is set. */
+        private static int[] pickInRow(Show show, Venue.Row row, int count, SplittableRandom random) {
+            int end = row.firstSeat + row.seats;
+            int chosen = -1;
+            int fits = 0;
+            for (int seat = row.firstSeat, run = 0; seat < end; seat++) {
+                run = show.isAvailable(seat) ? run + 1 : 0;
+                if (run < count)
+                    continue;
+                int start = seat - count + 1;
+                if (random == null)
+                    return block(start, count);
+                // reservoir sampling over every block that fits
+                if (random.nextInt(++fits) == 0)
+                    chosen = start;
+            }
+            return chosen < 0 ? null : block(chosen, count);
+        }
+
+        private static int[] block(int start, int count) {
+            int[] seats = new int[count];
+            for (int i = 0; i < count; i++)
+                seats[i] = start + i;
+            return seats;
+        }
+
+        @Override
+        public long join(int show) {
+            AdmissionControl.Ticket t = admission.join(catalog.show(show));
+            return t == null ? -1 : t.id;
+        }
+
+        @Override
+        public int position(long ticket) {
+            AdmissionControl.Ticket t = admission.status(ticket);
+            return t == null ? -1 : t.position;
+        }
+
+        @Override
+        public void leave(long ticket) {
+            admission.leave(ticket);
+        }
+
+        @Override
+        public long hold(int show, int[] seats) {
+            SeatHold h = holds.hold(catalog.show(show), seats);
+            return h == null ? -1 : h.id;
+        }
+
+        @Override
+        public long holdBest(int show, int count) {
+            SeatHold h = holds.holdBestAvailable(catalog.show(show), count);
+            return h == null ? -1 : h.id;
+        }
+
+        @Override
+        public int quote(long hold, int adults, int seniors) {
+            SeatHold h = holds.find(hold);
+            return h == null ? -1 : pricing.quote(h.show, h.seats, adults, seniors);
+        }
+
+        @Override
+        public Outcome confirm(long hold, int adults, int seniors, int students) throws InterruptedException {
+            SeatHold h = holds.find(hold);
+            if (h == null)
+                return Outcome.CONFLICT; // expired during checkout
+            try {
+                engine.submit(new BookingRequest(musical, h.show, h.seats, adults, seniors, students, h)).get();
+                return Outcome.BOOKED;
+            } catch (ExecutionException ex) {
+                if (!(ex.getCause() instanceof BookingException))
+                    return Outcome.ERROR;
+                switch (((BookingException) ex.getCause()).reason) {
+                    case SEAT_UNAVAILABLE:
+                        return Outcome.CONFLICT;
+                    case VALIDATION:
+                        // a customer who gets it wrong gives the seats back, as the dialog does on cancel
+                        h.release();
+                        return Outcome.INVALID;
+                    default:
+                        return Outcome.ERROR;
+                }
+            }
+        }
+
+        @Override
+        public long soldSeats() {
+            long sold = 0;
+            for (Show s : musical.shows)
+                sold += s.soldSeats();
+            return sold;
+        }
+
+        @Override
+        public int drainReceipts() {
+            writer.close();
+            return store.size();
+        }
+
+        @Override
+        public void close() throws IOException {
+            holds.close();
+            engine.shutdown();
+            writer.close();
+            store.close();
+            journal.close();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Best-available group allocation on a partly sold show: find and book the best
+ * block of {@code group} seats together, then release it again.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BestAvailableBenchmark {
+    @Param({ "100", "2000", "20000" })
+    public int capacity;
+
+    @Param({ "2", "8" })
+    public int group;
+
+    private Hooks.SeatInventory show;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        show = Hooks.create("SeatInventory", Hooks.SeatInventory.class);
+        show.init(capacity);
+        // sell the front 60% in ragged blocks so free runs are scattered
+        int[] block = new int[3];
+        for (int seat = 1; seat + 2 <= capacity * 6 / 10; seat += 5) {
+            block[0] = seat;
+            block[1] = seat + 1;
+            block[2] = seat + 2;
+            show.tryBookAll(block);
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public int[] single() {
+        return bookAndRelease();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public int[] contended() {
+        return bookAndRelease();
+    }
+
+    private int[] bookAndRelease() {
+        int[] seats = show.tryBookBestAvailable(group);
+        if (seats != null)
+            show.releaseAll(seats);
+        return seats;
+    }
+}
@@ -0,0 +1,169 @@
+package bench;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+
+/**
+ * What the benchmarks drive. The application classes live in the unnamed
+ * package, which a named package (and JMH insists on one) cannot reference, so
+ * each hook is implemented by a default-package adapter in BenchHooks.java and
+ * created by name. Only setup goes through reflection; the measured calls are
+ * plain interface calls.
+ */
+public final class Hooks {
+    private Hooks() {
+    }
+
+    /** One {@code Show}'s seat inventory. */
+    public interface SeatInventory {
+        void init(int capacity);
+
+        /** As {@link #init(int)}, with the seats in a memory-mapped file under {@code dir} (shared seats). */
+        void initMapped(int capacity, Path dir) throws IOException;
+
+        void bookSeat(int seat);
+
+        boolean tryBookAll(int[] seats);
+
+        void releaseAll(int[] seats);
+
+        boolean isBooked(int seat);
+
+        int availableSeats();
+
+        int[] tryBookBestAvailable(int count);
+    }
+
+    /** The seat map refresh behind {@code refreshSeatsForSelection}. */
+    public interface SeatMap {
+        void init(int capacity, int bookedPercent);
+
+        /**
+         * Flips {@code changed} seats on the show, then refreshes the map.
+         *
+         * @return number of seats the map repainted
+         */
+        int refresh(int changed);
+    }
+
+    /** Building the schedule list for many shows, as {@code refreshShowList} does. */
+    public interface Schedule {
+        void init(int shows, int capacity);
+
+        /** Sells or releases one seat on each of {@code shows} shows, round robin. */
+        void touch(int shows);
+
+        /** Formats every line from scratch. */
+        int rebuild();
+
+        /** Reads every line through {@code Show.summary()}. */
+        int cached();
+    }
+
+    /** Quoting one order against a show's price table. */
+    public interface OrderTotal {
+        void init(int seats);
+
+        int total();
+    }
+
+    /** Receipt formatting and the receipt store / writer I/O path. */
+    public interface Receipts {
+        void init(Path dir, int seats, boolean fsync) throws Exception;
+
+        String format();
+
+        String append() throws Exception;
+
+        String appendAndSync() throws Exception;
+
+        /** Submit through the async writer and wait for the group commit. */
+        String writeThroughWriter() throws Exception;
+
+        void close() throws Exception;
+    }
+
+    /**
+     * The path the booking dialog takes, for load simulation: schedule, seat
+     * map, hold, quote and confirm against a real engine, journal and receipt
+     * store. Shows are addressed by id and holds by hold id.
+     */
+    public interface BoxOffice {
+        /** How a customer picks seats off the map. */
+        enum Preference {
+            /** The "Best Available" button. */
+            BEST,
+            /** The first block that fits, from the front row back. */
+            FRONT,
+            /** The first block that fits, from the back row (cheapest section) forward. */
+            CHEAP,
+            /** Any block that fits, anywhere in the house. */
+            RANDOM
+        }
+
+        enum Outcome {
+            BOOKED, CONFLICT, INVALID, ERROR
+        }
+
+        /**
+         * A run of {@code performances} evening shows in the venue laid out in
+         * {@code venue} (a plain 1200-seat hall if null), with journal and
+         * receipts under {@code dir}. With {@code admission} above 0, each show
+         * has a waiting room letting that many customers shop at once and
+         * {@code maxQueue} wait.
+         */
+        void init(Path dir, Path venue, int performances, long holdTtlMillis, boolean fsync, int admission,
+                int maxQueue) throws IOException;
+
+        /** Joins the show's waiting room; returns the ticket, or -1 if turned away. */
+        long join(int show);
+
+        /** 0 once the ticket is admitted, its place in line while waiting, -1 if it has lapsed. */
+        int position(long ticket);
+
+        /** Gives up the ticket's place or turn. */
+        void leave(long ticket);
+
+        /** Reads every schedule line, as the schedule dialog does; returns the show ids in date order. */
+        int[] browse();
+
+        /**
+         * Reads the seat map and picks a block of {@code count} free seats in
+         * one row the way {@code preference} does, without holding them.
+         *
+         * @return the seats, or null if no row has that many free together
+         */
+        int[] pick(int show, Preference preference, int count, SplittableRandom random);
+
+        /** Holds the seats, as Preview Order does; -1 if any was taken since they were picked. */
+        long hold(int show, int[] seats);
+
+        /** Holds the best block available, as the "Best Available" button does; -1 if none is left. */
+        long holdBest(int show, int count);
+
+        /** The order total Preview Order shows for a hold. */
+        int quote(long hold, int adults, int seniors);
+
+        /** Confirm Purchase with the hold, returning once the seats are sold (or refused). */
+        Outcome confirm(long hold, int adults, int seniors, int students) throws InterruptedException;
+
+        long soldSeats();
+
+        /** Waits for every queued receipt to be written and returns how many the store holds. */
+        int drainReceipts();
+
+        void close() throws IOException;
+    }
+
+    static <T> T create(String adapter, Class<T> type) {
+        try {
+            Constructor<?> ctor = Class.forName("BenchHooks$" + adapter).getDeclaredConstructor();
+            ctor.setAccessible(true); // adapters are package-private like everything they wrap
+            return type.cast(ctor.newInstance());
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalStateException("Benchmark adapter BenchHooks$" + adapter + " not found", ex);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package bench;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Load-test client for {@code java Main --server}. Keeps {@code connections}
+ * requests in flight against the server for the given time, mixing
+ * availability reads with single-seat bookings on random shows, and prints
+ * throughput, status counts and latency percentiles.
+ *
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar bench.HttpLoad [baseUrl] [connections] [seconds] [bookRatio]
+ * java -cp benchmarks/target/benchmarks.jar bench.HttpLoad http://localhost:8080 2000 30 0.1
+ * </pre>
+ */
+public final class HttpLoad {
+    private static final Pattern SHOW = Pattern.compile("\\{\"id\":(\\d+),\"musical\"[^}]*?\"capacity\":(\\d+)");
+
+    private final HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(10)).build();
+    private final ConcurrentHashMap<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+    private final LongAdder failures = new LongAdder();
+    private long[] latencies = new long[1 << 16];
+    private int count;
+
+    private HttpLoad() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        String base = args.length > 0 ? args[0] : "http://localhost:8080";
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+        double bookRatio = args.length > 3 ? Double.parseDouble(args[3]) : 0.1;
+        new HttpLoad().run(base, connections, seconds, bookRatio);
+    }
+
+    private void run(String base, int connections, int seconds, double bookRatio) throws Exception {
+        String catalog = client.send(HttpRequest.newBuilder(URI.create(base + "/musicals")).build(),
+                HttpResponse.BodyHandlers.ofString()).body();
+        List<int[]> shows = new ArrayList<>();
+        for (Matcher m = SHOW.matcher(catalog); m.find();)
+            shows.add(new int[] { Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2)) });
+        if (shows.isEmpty())
+            throw new IllegalStateException("No shows in catalog: " + catalog);
+        System.out.printf("%d shows, %d connections, %ds, %.0f%% bookings%n", shows.size(), connections, seconds,
+                bookRatio * 100);
+
+        Random random = new Random(42);
+        Semaphore inFlight = new Semaphore(connections);
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        while (System.nanoTime() < end) {
+            inFlight.acquire();
+            int[] show = shows.get(random.nextInt(shows.size()));
+            HttpRequest request;
+            if (random.nextDouble() < bookRatio) {
+                int seat = 1 + random.nextInt(show[1]);
+                request = HttpRequest.newBuilder(URI.create(base + "/shows/" + show[0] + "/bookings"))
+                        .header("Content-Type", "application/json")
+                        .POST(HttpRequest.BodyPublishers.ofString("{\"seats\":[" + seat + "],\"adults\":1}")).build();
+            } else {
+                request = HttpRequest.newBuilder(URI.create(base + "/shows/" + show[0])).build();
+            }
+            long sent = System.nanoTime();
+            client.sendAsync(request, HttpResponse.BodyHandlers.discarding()).whenComplete((resp, err) -> {
+                if (err != null)
+                    failures.increment();
+                else
+                    statuses.computeIfAbsent(resp.statusCode(), k -> new LongAdder()).increment();
+                record(System.nanoTime() - sent);
+                inFlight.release();
+            });
+        }
+        inFlight.acquire(connections);
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        long[] sorted;
+        synchronized (this) {
+            sorted = Arrays.copyOf(latencies, count);
+        }
+        Arrays.sort(sorted);
+        System.out.printf("%d requests in %.1fs: %.0f req/s%n", sorted.length, elapsed, sorted.length / elapsed);
+        System.out.println("status " + statuses + ", transport failures " + failures.sum());
+        System.out.printf("latency ms  p50 %.2f  p99 %.2f  p99.9 %.2f  max %.2f%n", pct(sorted, 0.50),
+                pct(sorted, 0.99), pct(sorted, 0.999), sorted.length == 0 ? 0 : sorted[sorted.length - 1] / 1e6);
+    }
+
+    private synchronized void record(long nanos) {
+        if (count == latencies.length)
+            latencies = Arrays.copyOf(latencies, count * 2);
+        latencies[count++] = nanos;
+    }
+
+    private static double pct(long[] sorted, double p) {
+        if (sorted.length == 0)
+            return 0;
+        return sorted[Math.min(sorted.length - 1, (int) (p * sorted.length))] / 1e6;
+    }
+}
@@ -0,0 +1,360 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+import bench.Hooks.BoxOffice.Outcome;
+import bench.Hooks.BoxOffice.Preference;
+
+/**
+ * Rehearses an on-sale rush: simulated customers arrive at a Poisson rate, one
+ * virtual thread each (JDK 21+; a cached pool of platform threads otherwise),
+ * and go through the booking dialog's steps against a real engine, journal
+ * and receipt store: read the schedule, think, pick seats off the map (or press
+ * Best Available), hold them, think through checkout, check the quote and
+ * confirm. A customer whose seats are taken first tries again, up to
+ * {@code onsale.retries} times, and one who finds no block left for their party
+ * moves on to the next performance; a customer who runs out of either is a
+ * lost sale. The early performances are the most wanted. With
+ * {@code onsale.admission}, each performance has a waiting room: customers
+ * join its line before picking seats, poll it until admitted, and are turned
+ * away (a lost sale) when the line is full.
+ *
+ * <p>Every arrival time and every customer's choices (party, ticket mix,
+ * performance, seat preference, think times) come from {@code onsale.seed}, so
+ * two runs present the same crowd; only who wins a contested seat depends on
+ * thread timing. Prints throughput, hold and booking latency percentiles,
+ * conflict and retry rates and lost sales by cause.
+ *
+ * <pre>
+ * java -Donsale.customers=50000 -Donsale.rate=5000 -cp benchmarks/target/benchmarks.jar bench.OnSale
+ * </pre>
+ *
+ * Settings ({@code -D}): {@code onsale.customers} (20000), {@code onsale.rate}
+ * arrivals per second (2000), {@code onsale.thinkMillis} mean think time per
+ * step (2000), {@code onsale.prefs} seat preference mix
+ * ({@code best:40,front:25,cheap:20,random:15}), {@code onsale.retries} (3),
+ * {@code onsale.performances} (8), {@code onsale.venue} layout file
+ * ({@code venues/his-majestys.layout} if present, else a 1200-seat hall),
+ * {@code onsale.holdSeconds} (300), {@code onsale.fsync} (true),
+ * {@code onsale.seed} (42), {@code onsale.dir} for the journal and receipts
+ * (a temporary directory, deleted afterwards, if unset), and for the waiting
+ * room {@code onsale.admission} customers shopping per show (0, no waiting
+ * room), {@code onsale.maxQueue} (10000) and {@code onsale.pollMillis} (500).
+ */
+public final class OnSale {
+    // party sizes 1..6; pairs and families of four dominate
+    private static final int[] PARTY_WEIGHTS = { 15, 40, 10, 25, 5, 5 };
+
+    private final Hooks.BoxOffice office = Hooks.create("BoxOffice", Hooks.BoxOffice.class);
+    private final long thinkMillis;
+    private final int retries;
+    private final boolean admission;
+    private final long pollMillis;
+    private final Preference[] preferences;
+    private final int[] preferenceWeights;
+
+    private final LongAdder orders = new LongAdder();
+    private final LongAdder seats = new LongAdder();
+    private final LongAdder holdAttempts = new LongAdder();
+    private final LongAdder conflicts = new LongAdder();
+    private final LongAdder retried = new LongAdder();
+    private final LongAdder movedOn = new LongAdder();
+    private final LongAdder soldOut = new LongAdder();
+    private final LongAdder gaveUp = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder turnedAway = new LongAdder();
+    private final Map<Preference, LongAdder> booked = new EnumMap<>(Preference.class);
+    private final Latencies holdLatency = new Latencies();
+    private final Latencies bookLatency = new Latencies();
+    private final Latencies timeToTicket = new Latencies();
+    private final Latencies queueWait = new Latencies();
+    private int[] shows;
+
+    private OnSale(long thinkMillis, int retries, String prefs, boolean admission, long pollMillis) {
+        this.thinkMillis = thinkMillis;
+        this.retries = retries;
+        this.admission = admission;
+        this.pollMillis = pollMillis;
+        String[] parts = prefs.split(",");
+        preferences = new Preference[parts.length];
+        preferenceWeights = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            String[] kv = parts[i].trim().split(":");
+            preferences[i] = Preference.valueOf(kv[0].trim().toUpperCase(Locale.ROOT));
+            preferenceWeights[i] = kv.length > 1 ? Integer.parseInt(kv[1].trim()) : 1;
+        }
+        for (Preference p : Preference.values())
+            booked.put(p, new LongAdder());
+    }
+
+    public static void main(String[] args) throws Exception {
+        int customers = Integer.getInteger("onsale.customers", 20_000);
+        double rate = Double.parseDouble(System.getProperty("onsale.rate", "2000"));
+        long seed = Long.getLong("onsale.seed", 42);
+        int performances = Integer.getInteger("onsale.performances", 8);
+        String venueName = System.getProperty("onsale.venue", "venues/his-majestys.layout");
+        Path venue = Files.isRegularFile(Paths.get(venueName)) ? Paths.get(venueName) : null;
+        long holdMillis = TimeUnit.SECONDS.toMillis(Long.getLong("onsale.holdSeconds", 300));
+        boolean fsync = Boolean.parseBoolean(System.getProperty("onsale.fsync", "true"));
+        String dirName = System.getProperty("onsale.dir");
+        Path dir = dirName != null ? Paths.get(dirName) : Files.createTempDirectory("onsale");
+
+        int admission = Integer.getInteger("onsale.admission", 0);
+        OnSale sim = new OnSale(Long.getLong("onsale.thinkMillis", 2000), Integer.getInteger("onsale.retries", 3),
+                System.getProperty("onsale.prefs", "best:40,front:25,cheap:20,random:15"), admission > 0,
+                Long.getLong("onsale.pollMillis", 500));
+        sim.office.init(dir, venue, performances, holdMillis, fsync, admission,
+                Integer.getInteger("onsale.maxQueue", 10_000));
+        if (admission > 0)
+            System.out.println("waiting room: " + admission + " shopping per show");
+        try {
+            sim.run(customers, rate, seed, venue == null ? "1200-seat hall" : venue.getFileName().toString());
+        } finally {
+            sim.office.close();
+            if (dirName == null)
+                delete(dir);
+        }
+    }
+
+    private void run(int customers, double rate, long seed, String venue) throws InterruptedException {
+        shows = office.browse();
+        ExecutorService executor = virtualThreadExecutor();
+        String kind = executor != null ? "virtual threads" : "platform threads";
+        if (executor == null)
+            executor = Executors.newCachedThreadPool();
+        System.out.printf("%d customers at %.0f/s on %s, %d performances in %s, think %d ms, seed %d%n", customers,
+                rate, kind, shows.length, venue, thinkMillis, seed);
+
+        SplittableRandom arrivals = new SplittableRandom(seed);
+        long start = System.nanoTime();
+        long due = start;
+        for (int i = 0; i < customers; i++) {
+            due += (long) (exponential(arrivals, 1e9 / rate));
+            long wait = due - System.nanoTime();
+            if (wait > 0)
+                LockSupport.parkNanos(wait);
+            // split in arrival order, so customer i makes the same choices on every run
+            SplittableRandom random = arrivals.split();
+            executor.execute(() -> customer(random));
+        }
+        long arrived = System.nanoTime();
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.DAYS);
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        int receipts = office.drainReceipts();
+
+        long sold = seats.sum();
+        long lost = soldOut.sum() + gaveUp.sum() + failed.sum() + turnedAway.sum();
+        System.out.printf("arrivals over %.1fs, last customer done after %.1fs%n", (arrived - start) / 1e9, elapsed);
+        System.out.printf("%d orders, %d seats (%d sold in all): %.0f orders/s, %.0f seats/s%n", orders.sum(), sold,
+                office.soldSeats(), orders.sum() / elapsed, sold / elapsed);
+        System.out.printf("hold attempts %d, conflicts %d (%.1f%%); customers retrying %d (%.1f%%), moving to"
+                + " another performance %d%n", holdAttempts.sum(), conflicts.sum(),
+                pct(conflicts.sum(), holdAttempts.sum()), retried.sum(), pct(retried.sum(), customers), movedOn.sum());
+        System.out.printf("lost sales %d (%.1f%%): no block left %d, gave up after %d retries %d, turned away %d,"
+                + " errors %d%n", lost, pct(lost, customers), soldOut.sum(), retries, gaveUp.sum(), turnedAway.sum(),
+                failed.sum());
+        System.out.println("orders by seat preference " + booked + ", receipts written " + receipts);
+        holdLatency.print("hold latency ms     ");
+        bookLatency.print("booking latency ms  ");
+        timeToTicket.print("arrival to ticket ms");
+        if (admission)
+            queueWait.print("waiting room ms     ");
+    }
+
+    /** One customer, start to finish. */
+    private void customer(SplittableRandom random) {
+        long arrived = System.nanoTime();
+        long ticket = -1;
+        try {
+            office.browse();
+            int party = weighted(random, PARTY_WEIGHTS) + 1;
+            int seniors = 0;
+            int students = 0;
+            for (int k = 1; k < party; k++) {
+                int r = random.nextInt(100);
+                if (r < 15)
+                    seniors++;
+                else if (r < 30)
+                    students++;
+            }
+            int adults = party - seniors - students;
+            Preference preference = preferences[weighted(random, preferenceWeights)];
+            // opening night is the most wanted, then interest falls off
+            int wanted = (int) (Math.pow(random.nextDouble(), 2) * shows.length);
+            think(random, thinkMillis);
+
+            int tried = 1;
+            int conflicted = 0;
+            int ticketFor = -1;
+            while (true) {
+                int show = shows[wanted];
+                if (admission && ticketFor != show) {
+                    if (ticket >= 0)
+                        office.leave(ticket);
+                    long joined = System.nanoTime();
+                    ticket = office.join(show);
+                    if (ticket < 0) {
+                        turnedAway.increment();
+                        return;
+                    }
+                    int position;
+                    while ((position = office.position(ticket)) > 0)
+                        TimeUnit.MILLISECONDS.sleep(pollMillis);
+                    if (position < 0) {
+                        failed.increment();
+                        return;
+                    }
+                    queueWait.record(System.nanoTime() - joined);
+                    ticketFor = show;
+                }
+                long t0 = System.nanoTime();
+                long hold = -1;
+                boolean noBlock;
+                if (preference == Preference.BEST) {
+                    hold = office.holdBest(show, party);
+                    noBlock = hold < 0;
+                } else {
+                    int[] pick = office.pick(show, preference, party, random);
+                    noBlock = pick == null;
+                    if (!noBlock)
+                        hold = office.hold(show, pick);
+                }
+                if (noBlock) {
+                    // no block for the party here: try the next performance, if any is left to try
+                    if (tried++ == shows.length) {
+                        soldOut.increment();
+                        return;
+                    }
+                    movedOn.increment();
+                    wanted = (wanted + 1) % shows.length;
+                    continue;
+                }
+                holdAttempts.increment();
+                Outcome outcome = Outcome.CONFLICT;
+                if (hold >= 0) {
+                    holdLatency.record(System.nanoTime() - t0);
+                    think(random, thinkMillis);
+                    office.quote(hold, adults, seniors);
+                    long t1 = System.nanoTime();
+                    outcome = office.confirm(hold, adults, seniors, students);
+                    bookLatency.record(System.nanoTime() - t1);
+                }
+                switch (outcome) {
+                    case BOOKED:
+                        orders.increment();
+                        seats.add(party);
+                        booked.get(preference).increment();
+                        timeToTicket.record(System.nanoTime() - arrived);
+                        return;
+                    case CONFLICT:
+                        conflicts.increment();
+                        if (conflicted++ == 0)
+                            retried.increment();
+                        if (conflicted > retries) {
+                            gaveUp.increment();
+                            return;
+                        }
+                        // a quick look at the refreshed map before picking again
+                        think(random, thinkMillis / 4);
+                        break;
+                    default:
+                        failed.increment();
+                        return;
+                }
+            }
+        } catch (InterruptedException ex) {
+            failed.increment();
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException ex) {
+            failed.increment();
+            System.err.println("Customer failed: " + ex);
+        } finally {
+            if (ticket >= 0)
+                office.leave(ticket);
+        }
+    }
+
+    private static void think(SplittableRandom random, long meanMillis) throws InterruptedException {
+        if (meanMillis > 0)
+            TimeUnit.NANOSECONDS.sleep((long) exponential(random, meanMillis * 1e6));
+    }
+
+    private static double exponential(SplittableRandom random, double mean) {
+        return -mean * Math.log(1 - random.nextDouble());
+    }
+
+    private static int weighted(SplittableRandom random, int[] weights) {
+        int sum = 0;
+        for (int w : weights)
+            sum += w;
+        int r = random.nextInt(sum);
+        for (int i = 0; i < weights.length; i++)
+            if ((r -= weights[i]) < 0)
+                return i;
+        return weights.length - 1;
+    }
+
+    private static double pct(long part, long whole) {
+        return whole == 0 ? 0 : 100.0 * part / whole;
+    }
+
+    /** {@code Executors.newVirtualThreadPerTaskExecutor()} when the running JDK has it, else null. */
+    private static ExecutorService virtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            return null;
+        }
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    /** Latency samples in nanoseconds, kept whole so percentiles are exact. */
+    private static final class Latencies {
+        private long[] samples = new long[1 << 12];
+        private int count;
+
+        synchronized void record(long nanos) {
+            if (count == samples.length)
+                samples = Arrays.copyOf(samples, count * 2);
+            samples[count++] = nanos;
+        }
+
+        void print(String label) {
+            long[] sorted;
+            synchronized (this) {
+                sorted = Arrays.copyOf(samples, count);
+            }
+            Arrays.sort(sorted);
+            System.out.printf("%s  p50 %.2f  p99 %.2f  p99.9 %.2f  max %.2f  (%d)%n", label, at(sorted, 0.50),
+                    at(sorted, 0.99), at(sorted, 0.999), sorted.length == 0 ? 0 : sorted[sorted.length - 1] / 1e6,
+                    sorted.length);
+        }
+
+        private static double at(long[] sorted, double p) {
+            if (sorted.length == 0)
+                return 0;
+            return sorted[Math.min(sorted.length - 1, (int) (p * sorted.length))] / 1e6;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/** Quoting one order: ticket type by position, price by type and seat tier from the show's table. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OrderTotalBenchmark {
+    /** Couple, family, school group. */
+    @Param({ "2", "6", "50" })
+    public int seats;
+
+    private Hooks.OrderTotal order;
+
+    @Setup
+    public void setUp() {
+        order = Hooks.create("OrderTotal", Hooks.OrderTotal.class);
+        order.init(seats);
+    }
+
+    @Benchmark
+    public int total() {
+        return order.total();
+    }
+}
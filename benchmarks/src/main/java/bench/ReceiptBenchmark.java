@@ -0,0 +1,57 @@
+package bench;
+
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Receipt formatting and I/O: rendering the text, appending to the segment
+ * store with and without fsync, and the full async writer round trip.
+ * Files go to a temp directory that is removed afterwards.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReceiptBenchmark {
+    @Param({ "2", "10" })
+    public int seats;
+
+    private Hooks.Receipts receipts;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        receipts = Hooks.create("Receipts", Hooks.Receipts.class);
+        receipts.init(Files.createTempDirectory("receipt-bench"), seats, true);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        receipts.close();
+    }
+
+    @Benchmark
+    public String format() {
+        return receipts.format();
+    }
+
+    @Benchmark
+    public String append() throws Exception {
+        return receipts.append();
+    }
+
+    @Benchmark
+    public String appendAndSync() throws Exception {
+        return receipts.appendAndSync();
+    }
+
+    /** Many threads submitting at once share group commits. */
+    @Benchmark
+    @Threads(8)
+    public String writeThroughWriter() throws Exception {
+        return receipts.writeThroughWriter();
+    }
+}
@@ -0,0 +1,44 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * One schedule refresh over {@code shows} shows, with {@code changed} of them
+ * booked since the previous refresh: every line formatted from scratch versus
+ * the per-show versioned summaries.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScheduleBenchmark {
+    @Param({ "500" })
+    public int shows;
+
+    @Param({ "0", "10" })
+    public int changed;
+
+    private Hooks.Schedule schedule;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        schedule = Hooks.create("Schedule", Hooks.Schedule.class);
+        schedule.init(shows, 2000);
+    }
+
+    @Benchmark
+    public int rebuild() {
+        schedule.touch(changed);
+        return schedule.rebuild();
+    }
+
+    @Benchmark
+    public int cached() {
+        schedule.touch(changed);
+        return schedule.cached();
+    }
+}
@@ -0,0 +1,102 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * {@code Show.bookSeat}/{@code tryBookAll}/{@code isBooked}/{@code availableSeats}
+ * with writers and readers hitting the same show at once. Bookers claim a random
+ * seat (or a block of four) and release it again, so the show never fills up.
+ * Thread counts are set per group; override with e.g. {@code -tg 15,4,1}.
+ * {@code store=mapped} keeps the seats in a shared memory-mapped file
+ * ({@code -Dseats.shared}) instead of on the heap.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SeatInventoryBenchmark {
+    /** Studio, West End house, arena. */
+    @Param({ "100", "2000", "20000" })
+    public int capacity;
+
+    @Param({ "heap", "mapped" })
+    public String store;
+
+    private Hooks.SeatInventory show;
+    private Path dir;
+
+    @State(Scope.Thread)
+    public static class Picker {
+        final SplittableRandom rnd = new SplittableRandom();
+        final int[] one = new int[1];
+        final int[] block = new int[4];
+    }
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException {
+        show = Hooks.create("SeatInventory", Hooks.SeatInventory.class);
+        if (store.equals("mapped")) {
+            dir = Files.createTempDirectory("bench-seats");
+            show.initMapped(capacity, dir);
+        } else {
+            show.init(capacity);
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        if (dir != null) {
+            Files.deleteIfExists(dir.resolve("seats.map"));
+            Files.delete(dir);
+            dir = null;
+        }
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(3)
+    public boolean bookSeat(Picker p) {
+        int seat = 1 + p.rnd.nextInt(capacity);
+        if (show.isBooked(seat))
+            return false;
+        show.bookSeat(seat);
+        p.one[0] = seat;
+        show.releaseAll(p.one);
+        return true;
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public boolean tryBookBlock(Picker p) {
+        int first = 1 + p.rnd.nextInt(capacity - p.block.length + 1);
+        for (int i = 0; i < p.block.length; i++)
+            p.block[i] = first + i;
+        if (!show.tryBookAll(p.block))
+            return false;
+        show.releaseAll(p.block);
+        return true;
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(4)
+    public boolean isBooked(Picker p) {
+        return show.isBooked(1 + p.rnd.nextInt(capacity));
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public int availableSeats() {
+        return show.availableSeats();
+    }
+}
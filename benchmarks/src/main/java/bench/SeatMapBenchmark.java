@@ -0,0 +1,41 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Refreshing the booking dialog's seat map after {@code changed} seats were sold
+ * or released elsewhere, as every seat refresh does (single EDT thread).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SeatMapBenchmark {
+    @Param({ "100", "2000", "20000" })
+    public int capacity;
+
+    /** On-sale, half sold, nearly sold out. */
+    @Param({ "0", "50", "95" })
+    public int bookedPercent;
+
+    /** Seats that changed since the last refresh. */
+    @Param({ "0", "1", "50" })
+    public int changed;
+
+    private Hooks.SeatMap map;
+
+    @Setup
+    public void setUp() {
+        map = Hooks.create("SeatMap", Hooks.SeatMap.class);
+        map.init(capacity, bookedPercent);
+    }
+
+    @Benchmark
+    public int refresh() {
+        return map.refresh(changed);
+    }
+}
@@ -0,0 +1,48 @@
+package bench;
+
+import java.io.File;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the whole suite and writes one JSON result file per run into the given
+ * directory (default {@code bench-results}). The contended seat benchmark is
+ * repeated for several booking thread counts, each with a quarter as many readers.
+ *
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar bench.Sweep [resultsDir] [threads,...]
+ * </pre>
+ */
+public final class Sweep {
+    private Sweep() {
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        File out = new File(args.length > 0 ? args[0] : "bench-results");
+        out.mkdirs();
+        String[] threads = (args.length > 1 ? args[1] : "1,4,16").split(",");
+
+        for (String t : threads) {
+            int bookers = Integer.parseInt(t.trim());
+            int readers = Math.max(1, bookers / 4);
+            run(new OptionsBuilder().include(SeatInventoryBenchmark.class.getSimpleName())
+                    .threadGroups(bookers, 1, readers, 1)
+                    .result(new File(out, "seat-inventory-" + bookers + "t.json").getPath()));
+        }
+        for (Class<?> single : new Class<?>[] { SeatMapBenchmark.class, BestAvailableBenchmark.class,
+                OrderTotalBenchmark.class, ReceiptBenchmark.class, ScheduleBenchmark.class }) {
+            run(new OptionsBuilder().include(single.getSimpleName())
+                    .result(new File(out, single.getSimpleName() + ".json").getPath()));
+        }
+    }
+
+    private static void run(ChainedOptionsBuilder options) throws RunnerException {
+        Options opts = options.resultFormat(ResultFormatType.JSON).build();
+        new Runner(opts).run();
+    }
+}
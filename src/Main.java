@@ -1,15 +1,61 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
 import javax.swing.*;
 import javax.swing.border.Border;
 import javax.swing.border.CompoundBorder;
 import javax.swing.border.EmptyBorder;
 import java.awt.*;
 import java.awt.event.*;
+import java.awt.image.BufferedImage;
+import java.awt.print.PrinterException;
 import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.SecureRandom;
 import java.time.*;
 import java.time.format.DateTimeFormatter;
+import java.time.temporal.TemporalAdjusters;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
 
 /**
  * Full single-file Swing app: London Musical Ticket System
@@ -17,57 +63,422 @@ import java.util.List;
  * - Splash screen (plain) shown for 2 seconds
  * - Welcome main window with buttons
  * - In-memory sample data (4 musicals) with multiple shows
- * - 100 seats per show (S1..S100)
- * - Ticket types: Adult=50, Senior=40, Student=35
+ * - Venue seating plans (sections, rows, seats) loaded from venues/*.layout
+ * - Ticket types: Adult=50, Senior=40, Student=35 at best, priced per show by section, matinee and demand
  * - Book tickets with multi-seat selection, preview and confirm
- * - Receipts saved as plain text files in receipts/
+ * - Previewed seats are held for 5 minutes (-Dholds.ttlSeconds) while the customer checks out
+ * - Open seat maps and schedules follow sales, holds and refunds live, repainted at most once per frame
+ * - Receipts appended to indexed segment files in receipts/, rendered as text on demand
+ * - Sold seats journaled to data/ and restored on the next launch
+ * - Every order kept in memory in compact primitive arrays, for lookups and refunds by order id
+ * - Instances on one host can sell from one seat inventory in a memory-mapped file (-Dseats.shared=file)
+ *
+ * - Headless HTTP/JSON booking API: java -cp src Main --server (-Dserver.port=8080)
+ * - Bulk group-booking import from CSV/JSON lines: java -cp src Main --import orders.csv [results.csv]
+ * - Sales report from the receipts: java -cp src Main --report sales.csv|sales.json [--checkpoint file]
+ * - Faster startup from an AppCDS archive: train once with
+ *   java -XX:ArchiveClassesAtExit=lms.jsa -jar app.jar --cds-training, then run with -XX:SharedArchiveFile=lms.jsa
+ * - Dialogs are built on first use and reused; time to first frame and dialog opening are logged and in JMX
  *
  * Compile:
  * javac src/Main.java
  * Run:
  * java -cp src Main
+ * Maven (app + JMH benchmarks): mvn package
  */
 public class Main {
+    // startup and dialog timings, at FINE; the same numbers are always in BookingMetrics over JMX
+    private static final Logger LOG = Logger.getLogger(Main.class.getName());
+
     private JFrame frame;
     private final List<Musical> musicals = new ArrayList<>();
-    private final Map<String, Integer> ticketPrices = new HashMap<>();
+    private Catalog catalog;
+    private Pricing pricing;
+    private BookingEngine bookingEngine;
+    private BookingJournal journal;
+    private ReceiptStore receiptStore;
+    private ReceiptWriter receiptWriter;
+    private SharedSeats sharedSeats;
+    // the server's waiting room, with -Dadmission.concurrency; null lets everyone straight in
+    private AdmissionControl admission;
+    private final HoldManager holds = new HoldManager(
+            TimeUnit.SECONDS.toMillis(Long.getLong("holds.ttlSeconds", 300)));
+    // UI built on first use and reused afterwards, so startup only pays for the main window
+    private PosterCache posters;
+    private List<JPanel> musicalCards;
+    private JFileChooser importChooser;
+    private ScheduleDialog scheduleDialog;
+    private SeatsDialog seatsDialog;
+    private BookingDialog bookingDialog;
+    /** JVM start to the main window first showing, in ms; 0 until then. */
+    private volatile long firstFrameMillis;
+    /** Click to dialog on screen, for every dialog opened from the main window. */
+    private final LatencyHistogram dialogOpen = new LatencyHistogram();
 
     public Main() {
+        this(true);
+    }
+
+    private Main(boolean withUi) {
         // Sample Musical Show Data Seedings
         initSampleData();
-        initTicketPrices();
+        openSharedSeats();
+        catalog = new Catalog(musicals);
+        openJournal();
+        // after the journal replay, so each show starts at the step its sales put it on
+        pricing = new Pricing(catalog.allShows());
+        receiptStore = openReceiptStore();
+        receiptWriter = new ReceiptWriter(receiptStore,
+                Integer.getInteger("receipts.queueCapacity", 1024),
+                Integer.getInteger("receipts.groupCommitMillis", 2),
+                Boolean.parseBoolean(System.getProperty("receipts.fsync", "true")));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            // drain queued receipts before the store goes away
+            receiptWriter.close();
+            try {
+                receiptStore.close();
+            } catch (IOException ignored) {
+            }
+        }, "receipt-drain"));
+        bookingEngine = new BookingEngine(pricing, Runtime.getRuntime().availableProcessors(), journal,
+                receiptWriter, new IdempotencyCache(
+                        Integer.getInteger("bookings.idempotencyKeys", IdempotencyCache.DEFAULT_CAPACITY),
+                        TimeUnit.MINUTES.toMillis(Long.getLong("bookings.idempotencyMinutes", 60))));
+        try {
+            bookingEngine.orderBook().load(receiptStore, catalog);
+        } catch (IOException ex) {
+            System.err.println("Past orders not loaded, refunds by order id cover new sales only: " + ex.getMessage());
+        }
+        int admitting = Integer.getInteger("admission.concurrency", 0);
+        if (admitting > 0)
+            admission = new AdmissionControl(admitting, Integer.getInteger("admission.maxQueue", 10_000),
+                    TimeUnit.SECONDS.toMillis(Long.getLong("admission.sessionSeconds", 120)),
+                    TimeUnit.SECONDS.toMillis(Long.getLong("admission.pollTimeoutSeconds", 30)));
+        registerMetrics(withUi ? EdtWatchdog.install(Long.getLong("edt.stallMillis", 250)) : null);
 
         // Function that builds main GUI
-        buildMainUI();
+        if (withUi)
+            buildMainUI();
+    }
+
+    /** Headless mode: the same catalog and booking engine behind the HTTP/JSON API. */
+    private static void runServer() {
+        Main app = new Main(false);
+        int port = Integer.getInteger("server.port", 8080);
+        try {
+            BookingServer server = new BookingServer(new InetSocketAddress(port),
+                    Integer.getInteger("server.backlog", 4096), app.catalog, app.pricing, app.bookingEngine,
+                    app.holds, app.receiptStore, app.admission);
+            server.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(server::close, "server-stop"));
+            System.out.println("Booking server listening on port " + port + " (" + server.executorKind() + ")");
+        } catch (IOException ex) {
+            System.err.println("Cannot start booking server on port " + port + ": " + ex.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Training run for an AppCDS archive: starts up as usual, builds the
+     * dialogs a clerk opens first, and exits once the main window is up, so
+     * that -XX:ArchiveClassesAtExit captures the classes a normal start and
+     * the first clicks load. Without a display it covers the headless start.
+     */
+    private static void runCdsTraining() {
+        if (GraphicsEnvironment.isHeadless()) {
+            new Main(false);
+            System.exit(0);
+        }
+        SwingUtilities.invokeLater(() -> {
+            Main app = new Main();
+            app.scheduleDialog = app.new ScheduleDialog();
+            app.scheduleDialog.reset();
+            app.bookingDialog = app.new BookingDialog();
+            app.bookingDialog.reset();
+            app.seatsDialog = app.new SeatsDialog();
+            app.frame.addWindowListener(new WindowAdapter() {
+                @Override
+                public void windowOpened(WindowEvent e) {
+                    // the archive is written as the JVM exits
+                    System.exit(0);
+                }
+            });
+        });
+    }
+
+    /** Headless mode: sales totals from receipts/, see {@link SalesReport}. */
+    private static void runReport(Path out, Path checkpoint) {
+        long started = System.nanoTime();
+        SalesReport report = new SalesReport(Paths.get("receipts"), ZoneId.systemDefault());
+        try {
+            if (checkpoint != null)
+                report.loadCheckpoint(checkpoint);
+            long read = report.update();
+            report.write(out);
+            // only once the report is out, so a failed run is simply repeated
+            if (checkpoint != null)
+                report.saveCheckpoint(checkpoint);
+            System.out.printf("Read %d receipts in %.1fs%s; report in %s%n", read,
+                    (System.nanoTime() - started) / 1e9,
+                    report.skipped() > 0 ? " (" + report.skipped() + " unreadable text receipts skipped)" : "", out);
+        } catch (IOException ex) {
+            System.err.println("Sales report failed: " + ex.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /** Headless mode: books every line of a group-booking file, see {@link BulkImport}. */
+    private static void runImport(Path in, Path out) {
+        Main app = new Main(false);
+        try {
+            BulkImport.Summary summary = app.importBookings(in, out);
+            System.out.println("Imported " + summary + "; results in " + out);
+        } catch (IOException ex) {
+            System.err.println("Import of " + in + " failed: " + ex.getMessage());
+            System.exit(1);
+        }
+        // the shutdown hooks drain queued receipts and checkpoint the journal
+        System.exit(0);
+    }
+
+    private BulkImport.Summary importBookings(Path in, Path out) throws IOException {
+        return new BulkImport(catalog, bookingEngine,
+                Integer.getInteger("import.threads", Runtime.getRuntime().availableProcessors())).run(in, out);
+    }
+
+    /** Results go next to the input: orders.csv gives orders.results.csv. */
+    static Path importResultsFor(Path in) {
+        String name = in.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return in.resolveSibling((dot > 0 ? name.substring(0, dot) : name) + ".results.csv");
+    }
+
+    private void importBookingsDialog() {
+        // slow to build, so only on first use; it then remembers the last folder
+        if (importChooser == null) {
+            importChooser = new JFileChooser(".");
+            importChooser.setDialogTitle("Import group bookings (CSV or JSON lines)");
+        }
+        if (importChooser.showOpenDialog(frame) != JFileChooser.APPROVE_OPTION)
+            return;
+        Path in = importChooser.getSelectedFile().toPath();
+        Path out = importResultsFor(in);
+        frame.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+        // off the EDT; the clerk gets one summary, not a dialog per order
+        CompletableFuture.supplyAsync(() -> {
+            try {
+                return importBookings(in, out);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }).whenComplete((summary, err) -> SwingUtilities.invokeLater(() -> {
+            frame.setCursor(Cursor.getDefaultCursor());
+            if (err != null) {
+                Throwable cause = err instanceof CompletionException ? err.getCause() : err;
+                JOptionPane.showMessageDialog(frame, "Import failed: " + cause.getMessage(), "Import",
+                        JOptionPane.ERROR_MESSAGE);
+            } else {
+                JOptionPane.showMessageDialog(frame, "Imported " + summary + ".\nResults: " + out, "Import",
+                        JOptionPane.INFORMATION_MESSAGE);
+            }
+        }));
+    }
+
+    /**
+     * With -Dseats.shared=file, moves every show's seats into that file so all
+     * box-office instances on the host sell from the same inventory. Each
+     * instance still needs its own working directory for data/ and receipts/.
+     */
+    private void openSharedSeats() {
+        String file = System.getProperty("seats.shared");
+        if (file == null || file.isEmpty())
+            return;
+        List<Show> shows = new ArrayList<>();
+        for (Musical m : musicals)
+            shows.addAll(m.shows);
+        try {
+            sharedSeats = SharedSeats.open(Paths.get(file), shows);
+        } catch (IOException ex) {
+            // selling from a private copy would double-sell seats the other instances sell
+            throw new UncheckedIOException("Cannot map shared seats " + file, ex);
+        }
+        for (Show s : shows)
+            s.useCells(sharedSeats.cellsFor(s));
+        // other instances' sales only show up when polled; this carries them to open seat views and streams
+        long every = Long.getLong("seats.pollMillis", 200);
+        ScheduledExecutorService poller = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "shared-seats-poll");
+            t.setDaemon(true);
+            return t;
+        });
+        poller.scheduleWithFixedDelay(() -> shows.forEach(Show::pollShared), every, every, TimeUnit.MILLISECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                sharedSeats.close();
+            } catch (IOException ignored) {
+            }
+        }, "shared-seats-close"));
+    }
+
+    private void openJournal() {
+        Map<Integer, Show> shows = new HashMap<>();
+        for (Show s : catalog.allShows())
+            shows.put(s.id, s);
+        try {
+            journal = BookingJournal.open(Paths.get("data"), shows);
+            if (journal.skipped() > 0)
+                System.err.println("Booking journal: " + journal.skipped()
+                        + " entries were for performances not on sale now; their seats were not restored"
+                        + " but are kept in the journal");
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    journal.close();
+                } catch (IOException ignored) {
+                }
+            }, "journal-checkpoint"));
+        } catch (IOException ex) {
+            // keep selling from memory rather than refusing to start
+            System.err.println("Booking journal unavailable, sales will not survive a restart: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Publishes the booking metrics over JMX (londonMusicSystem:type=Booking and
+     * one type=Show bean per show) and, with -Dmetrics.dumpSeconds=n, appends a
+     * JSON snapshot of all of them to -Dmetrics.file every n seconds.
+     */
+    private void registerMetrics(EdtWatchdog edt) {
+        BookingMetrics m = bookingEngine.metrics();
+        MetricsBean booking = new MetricsBean("Booking flow")
+                .addHistogram("Confirm", "Confirm to booked", m.confirmToBooked)
+                .addHistogram("Receipt", "Receipt saved", receiptWriter.latency)
+                .add("ReceiptQueueDepth", Integer.class, "Receipts waiting to be written", receiptWriter::queueDepth)
+                .add("SeatConflicts", Long.class, "Bookings refused because a seat was just taken", m::conflicts)
+                .add("ValidationRejections", Long.class, "Bookings refused as invalid", m::validationRejections)
+                .add("RefundedSeats", Long.class, "Sold seats put back on sale", m::refundedSeats)
+                .add("Carts", Long.class, "Multi-show carts booked", m::carts)
+                .add("CartConflicts", Long.class, "Carts refused because a seat in one of their shows was taken",
+                        m::cartConflicts)
+                .add("IdempotentReplays", Long.class, "Retried bookings answered with the original order",
+                        m::idempotentReplays)
+                .add("IdempotentHitPercent", Double.class, "Share of keyed bookings that were retries",
+                        m::idempotentHitPercent)
+                .add("IdempotencyKeys", Integer.class, "Idempotency keys remembered",
+                        bookingEngine.idempotency()::size)
+                .add("IdempotencyEvictions", Long.class, "Idempotency keys dropped before expiry to stay bounded",
+                        bookingEngine.idempotency()::evicted)
+                .add("BookedOrders", Integer.class, "Orders in the in-memory order book",
+                        bookingEngine.orderBook()::orders)
+                .add("BookedTickets", Integer.class, "Tickets in the in-memory order book",
+                        bookingEngine.orderBook()::tickets)
+                .add("OrderBookBytes", Long.class, "Heap taken by the order book's arrays",
+                        bookingEngine.orderBook()::bytes)
+                .add("ActiveHolds", Integer.class, "Seat holds in place", holds::activeHolds)
+                .add("ExpiredHolds", Long.class, "Seat holds that timed out", holds::expiredHolds);
+        if (admission != null) {
+            booking.add("Admitted", Long.class, "Customers let in from the waiting rooms", admission::admittedTotal)
+                    .add("TurnedAway", Long.class, "Customers turned away because a waiting room was full",
+                            admission::shed)
+                    .add("AbandonedTickets", Long.class, "Waiting customers who stopped polling",
+                            admission::abandoned);
+        }
+        if (edt != null) {
+            booking.addHistogram("EdtDispatch", "EDT event dispatch", edt.dispatch)
+                    .add("EdtStalls", Long.class, "Events that blocked the EDT past -Dedt.stallMillis", edt::stalls)
+                    .add("RecentEdtStalls", String[].class, "Latest EDT stall reports with stacks", edt::recentStalls)
+                    .add("FirstFrameMillis", Long.class, "JVM start to the main window showing, ms",
+                            () -> firstFrameMillis)
+                    .addHistogram("DialogOpen", "Click to dialog on screen", dialogOpen);
+        }
+        booking.register("londonMusicSystem:type=Booking");
+
+        Map<Integer, MetricsBean> shows = new LinkedHashMap<>();
+        for (Show s : catalog.allShows()) {
+            BookingMetrics.ShowCounters c = m.counters(s);
+            MetricsBean bean = new MetricsBean("Show " + s.id)
+                    .add("Musical", String.class, "Musical", () -> s.musical.name)
+                    .add("Start", String.class, "Start time", () -> s.startsAt().toString())
+                    .add("Capacity", Integer.class, "Seats", () -> s.capacity)
+                    .add("SoldSeats", Integer.class, "Seats sold", s::soldSeats)
+                    .add("AvailableSeats", Integer.class, "Seats neither sold nor held", s::availableSeats)
+                    .add("SellThroughPercent", Double.class, "Share of seats sold",
+                            () -> s.capacity == 0 ? 0.0 : 100.0 * s.soldSeats() / s.capacity)
+                    .add("Orders", Long.class, "Orders booked", c.orders::sum)
+                    .add("SeatConflicts", Long.class, "Bookings refused because a seat was just taken",
+                            c.conflicts::sum)
+                    .add("ValidationRejections", Long.class, "Bookings refused as invalid",
+                            c.validationRejections::sum)
+                    .add("RefundedSeats", Long.class, "Sold seats put back on sale", c.refundedSeats::sum);
+            if (admission != null)
+                bean.add("Waiting", Integer.class, "Customers in the waiting room", () -> admission.waiting(s))
+                        .add("Shopping", Integer.class, "Customers admitted and shopping", () -> admission.shopping(s));
+            shows.put(s.id, bean.register("londonMusicSystem:type=Show,id=" + s.id));
+        }
+
+        long every = Long.getLong("metrics.dumpSeconds", 0);
+        if (every <= 0)
+            return;
+        Path file = Paths.get(System.getProperty("metrics.file", "metrics/metrics.jsonl"));
+        ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-dump");
+            t.setDaemon(true);
+            return t;
+        });
+        dumper.scheduleAtFixedRate(() -> {
+            StringBuilder line = new StringBuilder("{\"time\":\"").append(Instant.now()).append("\",\"booking\":")
+                    .append(booking.toJson()).append(",\"shows\":{");
+            boolean first = true;
+            for (Map.Entry<Integer, MetricsBean> e : shows.entrySet()) {
+                if (!first)
+                    line.append(',');
+                first = false;
+                line.append('"').append(e.getKey()).append("\":").append(e.getValue().toJson());
+            }
+            line.append("}}").append(System.lineSeparator());
+            try {
+                if (file.getParent() != null)
+                    Files.createDirectories(file.getParent());
+                Files.write(file, line.toString().getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE,
+                        StandardOpenOption.APPEND);
+            } catch (IOException ex) {
+                System.err.println("Cannot write metrics to " + file + ": " + ex.getMessage());
+            }
+        }, every, every, TimeUnit.SECONDS);
     }
 
-    private void initTicketPrices() {
-        ticketPrices.put("Adult", 50);
-        ticketPrices.put("Senior", 40);
-        ticketPrices.put("Student", 35);
+    private ReceiptStore openReceiptStore() {
+        try {
+            return ReceiptStore.open(Paths.get("receipts"));
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Cannot open receipt store in receipts/", ex);
+        }
     }
 
     private void initSampleData() {
         LocalDate start = LocalDate.now().plusDays(1);
+        Venue lyceum = loadVenue("venues/lyceum.layout");
+        Venue druryLane = loadVenue("venues/drury-lane.layout");
+        Venue sondheim = loadVenue("venues/sondheim.layout");
+        Venue hisMajestys = loadVenue("venues/his-majestys.layout");
 
         Musical m1 = new Musical("The Lion King", "A Disney classic - family musical.", "assets/lionKing.png");
-        m1.addShow(new Show(start.plusDays(1), LocalTime.of(19, 0)));
-        m1.addShow(new Show(start.plusDays(4), LocalTime.of(14, 30)));
-        m1.addShow(new Show(start.plusDays(9), LocalTime.of(20, 0)));
+        m1.addShow(new Show(start.plusDays(1), LocalTime.of(19, 0), lyceum));
+        m1.addShow(new Show(start.plusDays(4), LocalTime.of(14, 30), lyceum));
+        m1.addShow(new Show(start.plusDays(9), LocalTime.of(20, 0), lyceum));
 
         Musical m2 = new Musical("Frozen", "A magical musical for children.", "assets/frozen.jpeg");
-        m2.addShow(new Show(start.plusDays(2), LocalTime.of(13, 0)));
-        m2.addShow(new Show(start.plusDays(6), LocalTime.of(19, 30)));
-        m2.addShow(new Show(start.plusDays(12), LocalTime.of(18, 0)));
+        m2.addShow(new Show(start.plusDays(2), LocalTime.of(13, 0), druryLane));
+        m2.addShow(new Show(start.plusDays(6), LocalTime.of(19, 30), druryLane));
+        m2.addShow(new Show(start.plusDays(12), LocalTime.of(18, 0), druryLane));
 
         Musical m3 = new Musical("Les Misérables", "Epic tale of revolution & love.", "assets/les.png");
-        m3.addShow(new Show(start.plusDays(3), LocalTime.of(19, 30)));
-        m3.addShow(new Show(start.plusDays(10), LocalTime.of(19, 30)));
+        m3.addShow(new Show(start.plusDays(3), LocalTime.of(19, 30), sondheim));
+        m3.addShow(new Show(start.plusDays(10), LocalTime.of(19, 30), sondheim));
 
         Musical m4 = new Musical("Phantom of the Opera", "Haunting romance and mystery.", "assets/pha.jpg");
-        m4.addShow(new Show(start.plusDays(5), LocalTime.of(19, 0)));
-        m4.addShow(new Show(start.plusDays(11), LocalTime.of(14, 0)));
-        m4.addShow(new Show(start.plusDays(17), LocalTime.of(20, 0)));
+        m4.addShow(new Show(start.plusDays(5), LocalTime.of(19, 0), hisMajestys));
+        m4.addShow(new Show(start.plusDays(11), LocalTime.of(14, 0), hisMajestys));
+        m4.addShow(new Show(start.plusDays(17), LocalTime.of(20, 0), hisMajestys));
 
         musicals.add(m1);
         musicals.add(m2);
@@ -75,12 +486,31 @@ public class Main {
         musicals.add(m4);
     }
 
+    /** Loads a venue layout, falling back to a plain 100-seat hall so the app still starts. */
+    private static Venue loadVenue(String path) {
+        try {
+            return Venue.load(Paths.get(path));
+        } catch (IOException ex) {
+            System.err.println("Cannot load venue " + path + ", using a default hall: " + ex.getMessage());
+            return Venue.uniform(Show.SEAT_CAPACITY, 10);
+        }
+    }
+
     private void buildMainUI() {
         frame = new JFrame("London Musical Tickets");
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         frame.setSize(920, 540);
         frame.setLocationRelativeTo(null);
         frame.setLayout(new BorderLayout());
+        frame.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowOpened(WindowEvent e) {
+                firstFrameMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+                String archive = classDataArchive();
+                LOG.fine(() -> "First frame " + firstFrameMillis + " ms after JVM start"
+                        + (archive != null ? " (class data archive " + archive + ")" : ""));
+            }
+        });
 
         // Top title
         JPanel header = new JPanel(new BorderLayout());
@@ -97,10 +527,11 @@ public class Main {
         JButton btnList = new JButton("Musical List");
         JButton btnSchedule = new JButton("Show Schedule");
         JButton btnBook = new JButton("Book Tickets");
+        JButton btnImport = new JButton("Import Bookings");
         JButton btnExit = new JButton("Exit");
 
         Dimension btnSize = new Dimension(160, 40);
-        for (JButton b : Arrays.asList(btnList, btnSchedule, btnBook, btnExit)) {
+        for (JButton b : Arrays.asList(btnList, btnSchedule, btnBook, btnImport, btnExit)) {
             b.setMaximumSize(btnSize);
             b.setAlignmentX(Component.CENTER_ALIGNMENT);
             left.add(b);
@@ -125,10 +556,11 @@ public class Main {
         centerScroll.setBorder(new EmptyBorder(10, 10, 10, 10));
         frame.add(centerScroll, BorderLayout.CENTER);
 
-        // Attach actions
+        // Attach actions; everything behind them is built on first use
         btnList.addActionListener(e -> showMusicalList(mainPanel));
         btnSchedule.addActionListener(e -> showScheduleDialog());
         btnBook.addActionListener(e -> bookTicketsDialog());
+        btnImport.addActionListener(e -> importBookingsDialog());
         btnExit.addActionListener(e -> {
             int confirm = JOptionPane.showConfirmDialog(frame, "Exit application?", "Confirm",
                     JOptionPane.YES_NO_OPTION);
@@ -139,11 +571,51 @@ public class Main {
         frame.setVisible(true);
     }
 
+    /** The -XX:SharedArchiveFile this JVM was started with, or null. */
+    private static String classDataArchive() {
+        for (String arg : ManagementFactory.getRuntimeMXBean().getInputArguments())
+            if (arg.startsWith("-XX:SharedArchiveFile="))
+                return arg.substring("-XX:SharedArchiveFile=".length());
+        return null;
+    }
+
+    /**
+     * Shows a modal dialog and records the time from {@code requested} (the
+     * click) until it is on screen and pumping events. The first opening of
+     * each dialog includes building it, and is also logged at FINE.
+     */
+    private void showTimed(JDialog dlg, String name, long requested, boolean built) {
+        dlg.setLocationRelativeTo(frame);
+        // queued ahead of setVisible, so it runs from the dialog's own modal loop
+        SwingUtilities.invokeLater(() -> {
+            long nanos = System.nanoTime() - requested;
+            dialogOpen.record(nanos);
+            if (built)
+                LOG.fine(() -> String.format("%s dialog built and opened in %.1f ms", name, nanos / 1e6));
+        });
+        dlg.setVisible(true);
+    }
+
     private void showMusicalList(JPanel mainPanel) {
         mainPanel.removeAll(); // Clear previous content
         mainPanel.setLayout(new BoxLayout(mainPanel, BoxLayout.Y_AXIS)); // Stack items vertically
         mainPanel.setBorder(BorderFactory.createEmptyBorder(0, 0, 0, 10));
         mainPanel.setBorder(BorderFactory.createLineBorder(Color.BLACK, 1));
+        if (musicalCards == null)
+            musicalCards = buildMusicalCards(mainPanel.getBackground());
+        for (JPanel card : musicalCards)
+            mainPanel.add(card);
+
+        mainPanel.revalidate();
+        mainPanel.repaint();
+    }
+
+    /** One panel per musical, built on the first visit to the list; posters fill in as they decode. */
+    private List<JPanel> buildMusicalCards(Color background) {
+        if (posters == null)
+            posters = new PosterCache(120, 120, Integer.getInteger("posters.cacheSize", 64),
+                    Paths.get(".cache", "thumbnails"));
+        List<JPanel> cards = new ArrayList<>();
         for (Musical m : musicals) {
             JPanel musicalPanel = new JPanel(new BorderLayout());
             musicalPanel.setAlignmentX(Component.LEFT_ALIGNMENT);
@@ -157,15 +629,15 @@ public class Main {
 
             musicalPanel.setBorder(fullBorder);
 
-            // This is for spacing between the shows.
-            JPanel emptyPanel = new JPanel(new BorderLayout());
-            emptyPanel.setBorder(BorderFactory.createEmptyBorder(10, 0, 0, 0));
-
-            // Image
-            ImageIcon icon = new ImageIcon(m.getImagePath());
-            Image scaledImg = icon.getImage().getScaledInstance(120, 120, Image.SCALE_SMOOTH);
-            JLabel imgLabel = new JLabel(new ImageIcon(scaledImg));
+            // Image: placeholder now, the thumbnail once the background decode finishes
+            JLabel imgLabel = new JLabel(posters.placeholder());
             imgLabel.setPreferredSize(new Dimension(120, 120)); // Reserve space to prevent resizing issues
+            ImageIcon cached = posters.cached(m.getImagePath());
+            if (cached != null)
+                imgLabel.setIcon(cached);
+            else
+                posters.load(m.getImagePath()).thenAccept(
+                        thumb -> SwingUtilities.invokeLater(() -> imgLabel.setIcon(thumb)));
 
             // Text info
             JTextArea infoArea = new JTextArea();
@@ -177,206 +649,413 @@ public class Main {
             infoArea.setFont(new Font("Arial", Font.PLAIN, 14));
             infoArea.setWrapStyleWord(true);
             infoArea.setLineWrap(true);
-            infoArea.setBackground(mainPanel.getBackground());
+            infoArea.setBackground(background);
             infoArea.setBorder(BorderFactory.createEmptyBorder(0, 10, 0, 0));
 
             musicalPanel.add(imgLabel, BorderLayout.WEST);
             musicalPanel.add(infoArea, BorderLayout.CENTER);
-
-            // mainPanel.add(emptyPanel);
-            mainPanel.add(musicalPanel);
+            cards.add(musicalPanel);
         }
-
-        mainPanel.revalidate();
-        mainPanel.repaint();
+        return cards;
     }
 
     private void showScheduleDialog() {
-        JDialog dlg = new JDialog(frame, "Show Schedule", true);
-        dlg.setSize(700, 420);
-        dlg.setLocationRelativeTo(frame);
-        dlg.setLayout(new BorderLayout(10, 10));
+        long requested = System.nanoTime();
+        boolean built = scheduleDialog == null;
+        if (built)
+            scheduleDialog = new ScheduleDialog();
+        scheduleDialog.reset();
+        showTimed(scheduleDialog.dlg, "Show Schedule", requested, built);
+    }
 
-        JPanel top = new JPanel(new FlowLayout(FlowLayout.LEFT, 10, 10));
-        top.add(new JLabel("Select Musical:"));
-        JComboBox<String> cbMusicals = new JComboBox<>();
-        for (Musical m : musicals)
-            cbMusicals.addItem(m.name);
-        top.add(cbMusicals);
+    /** The "Show Schedule" dialog; built once, then reset each time it opens. */
+    private final class ScheduleDialog {
+        final JDialog dlg = new JDialog(frame, "Show Schedule", true);
+        private final JComboBox<String> cbMusicals = new JComboBox<>();
+        private final JComboBox<String> cbWhen = new JComboBox<>(
+                new String[] { "All dates", "Next 7 days", "Weekend matinees" });
+        // shows behind the list rows, in row order
+        private final List<Show> listed = new ArrayList<>();
+        private final DefaultListModel<String> listModel = new DefaultListModel<>();
+        private final JList<String> list = new JList<>(listModel);
+        // rewrites the rows of shows whose seats changed while the dialog is open
+        private final SeatChangeBatcher live = new SeatChangeBatcher(this::showChanged);
+        // set while reset() refills the combos, so their listeners stay quiet
+        private boolean rebinding;
 
-        dlg.add(top, BorderLayout.NORTH);
+        ScheduleDialog() {
+            dlg.setDefaultCloseOperation(WindowConstants.HIDE_ON_CLOSE);
+            dlg.addComponentListener(new ComponentAdapter() {
+                @Override
+                public void componentHidden(ComponentEvent e) {
+                    live.unwatchAll();
+                }
+            });
+            dlg.setSize(700, 420);
+            dlg.setLayout(new BorderLayout(10, 10));
 
-        DefaultListModel<String> listModel = new DefaultListModel<>();
-        JList<String> list = new JList<>(listModel);
-        list.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
-        JScrollPane listScroll = new JScrollPane(list);
-        dlg.add(listScroll, BorderLayout.CENTER);
+            JPanel top = new JPanel(new FlowLayout(FlowLayout.LEFT, 10, 10));
+            top.add(new JLabel("Select Musical:"));
+            top.add(cbMusicals);
+            top.add(new JLabel("When:"));
+            top.add(cbWhen);
+            dlg.add(top, BorderLayout.NORTH);
 
-        cbMusicals.addActionListener(e -> refreshShowList(cbMusicals.getSelectedIndex(), listModel));
-        refreshShowList(0, listModel);
+            list.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+            JScrollPane listScroll = new JScrollPane(list);
+            dlg.add(listScroll, BorderLayout.CENTER);
 
-        JPanel bottom = new JPanel(new FlowLayout(FlowLayout.RIGHT, 10, 10));
-        JButton viewSeats = new JButton("View Seats");
-        JButton close = new JButton("Close");
-        bottom.add(viewSeats);
-        bottom.add(close);
-        dlg.add(bottom, BorderLayout.SOUTH);
+            cbMusicals.addActionListener(e -> refresh());
+            cbWhen.addActionListener(e -> refresh());
 
-        viewSeats.addActionListener(e -> {
-            int mi = cbMusicals.getSelectedIndex();
-            int sel = list.getSelectedIndex();
-            if (mi < 0 || sel < 0) {
-                JOptionPane.showMessageDialog(dlg, "Please select a show from the list.", "Validation",
-                        JOptionPane.WARNING_MESSAGE);
-                return;
+            JPanel bottom = new JPanel(new FlowLayout(FlowLayout.RIGHT, 10, 10));
+            JButton viewSeats = new JButton("View Seats");
+            JButton close = new JButton("Close");
+            bottom.add(viewSeats);
+            bottom.add(close);
+            dlg.add(bottom, BorderLayout.SOUTH);
+
+            viewSeats.addActionListener(e -> {
+                int mi = cbMusicals.getSelectedIndex();
+                int sel = list.getSelectedIndex();
+                if (mi < 0 || sel < 0) {
+                    JOptionPane.showMessageDialog(dlg, "Please select a show from the list.", "Validation",
+                            JOptionPane.WARNING_MESSAGE);
+                    return;
+                }
+                Show s = listed.get(sel);
+                showSeatsDialog(s.musical, s);
+            });
+
+            close.addActionListener(e -> dlg.setVisible(false));
+        }
+
+        /** Back to the first musical and all dates, listing availability as it is now. */
+        void reset() {
+            rebinding = true;
+            try {
+                cbMusicals.removeAllItems();
+                for (Musical m : musicals)
+                    cbMusicals.addItem(m.name);
+                cbWhen.setSelectedIndex(0);
+            } finally {
+                rebinding = false;
             }
-            Show s = musicals.get(mi).shows.get(sel);
-            showSeatsDialog(musicals.get(mi), s);
-        });
+            refresh();
+            list.clearSelection();
+        }
 
-        close.addActionListener(e -> dlg.dispose());
-        dlg.setVisible(true);
+        private void refresh() {
+            if (rebinding)
+                return;
+            refreshShowList(cbMusicals.getSelectedIndex(), cbWhen.getSelectedIndex(), listModel, listed);
+            live.watch(listed);
+        }
+
+        private void showChanged(Show s) {
+            int i = listed.indexOf(s);
+            if (i < 0)
+                return;
+            String line = s.summary().scheduleLine;
+            if (!line.equals(listModel.get(i)))
+                listModel.set(i, line);
+        }
     }
 
-    private void refreshShowList(int musicalIndex, DefaultListModel<String> listModel) {
+    private void refreshShowList(int musicalIndex, int when, DefaultListModel<String> listModel, List<Show> listed) {
         listModel.clear();
+        listed.clear();
         if (musicalIndex < 0)
             return;
         Musical m = musicals.get(musicalIndex);
-        DateTimeFormatter df = DateTimeFormatter.ofPattern("dd MMM uuuu");
-        DateTimeFormatter tf = DateTimeFormatter.ofPattern("HH:mm");
-        for (Show s : m.shows) {
-            listModel.addElement(
-                    String.format("%s   %s   Available: %d", s.date.format(df), s.time.format(tf), s.availableSeats()));
+        LocalDate today = LocalDate.now();
+        Collection<Show> shows = when == 1 ? catalog.nextDays(today, 7)
+                : when == 2 ? catalog.weekendMatinees(today) : m.shows;
+        for (Show s : shows) {
+            if (s.musical != m)
+                continue;
+            listed.add(s);
+            listModel.addElement(s.summary().scheduleLine);
         }
     }
 
     private void showSeatsDialog(Musical musical, Show show) {
-        JDialog dlg = new JDialog(frame, "Seats for " + musical.name + " - " + show.date + " " + show.time, true);
-        dlg.setSize(600, 420);
-        dlg.setLocationRelativeTo(frame);
-        dlg.setLayout(new BorderLayout(10, 10));
+        long requested = System.nanoTime();
+        boolean built = seatsDialog == null;
+        if (built)
+            seatsDialog = new SeatsDialog();
+        seatsDialog.bind(musical, show);
+        showTimed(seatsDialog.dlg, "Seats", requested, built);
+    }
+
+    /** Read-only seat map of one show, opened from the schedule; rebound to the show each time. */
+    private final class SeatsDialog {
+        final JDialog dlg = new JDialog(frame, "Seats", true);
+        private final SeatMapPanel seatMap = new SeatMapPanel();
+        private final SeatChangeBatcher live = new SeatChangeBatcher(s -> seatMap.refresh());
 
-        DefaultListModel<String> seatModel = new DefaultListModel<>();
-        for (int i = 1; i <= Show.SEAT_CAPACITY; i++)
-            if (!show.isBooked(i))
-                seatModel.addElement("S" + i);
+        SeatsDialog() {
+            dlg.setDefaultCloseOperation(WindowConstants.HIDE_ON_CLOSE);
+            dlg.addComponentListener(new ComponentAdapter() {
+                @Override
+                public void componentHidden(ComponentEvent e) {
+                    live.unwatchAll();
+                }
+            });
+            dlg.setSize(600, 420);
+            dlg.setLayout(new BorderLayout(10, 10));
 
-        JList<String> seatList = new JList<>(seatModel);
-        seatList.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
-        JScrollPane scroll = new JScrollPane(seatList);
-        dlg.add(scroll, BorderLayout.CENTER);
+            seatMap.setSelectable(false);
+            JScrollPane scroll = new JScrollPane(seatMap);
+            dlg.add(scroll, BorderLayout.CENTER);
 
-        JPanel bottom = new JPanel(new FlowLayout(FlowLayout.RIGHT, 10, 10));
-        JButton close = new JButton("Close");
-        bottom.add(close);
-        dlg.add(bottom, BorderLayout.SOUTH);
+            JPanel bottom = new JPanel(new FlowLayout(FlowLayout.RIGHT, 10, 10));
+            JButton close = new JButton("Close");
+            bottom.add(close);
+            dlg.add(bottom, BorderLayout.SOUTH);
 
-        close.addActionListener(e -> dlg.dispose());
-        dlg.setVisible(true);
+            close.addActionListener(e -> dlg.setVisible(false));
+        }
+
+        void bind(Musical musical, Show show) {
+            dlg.setTitle("Seats for " + musical.name + " - " + show.date + " " + show.time);
+            if (seatMap.getShow() == show)
+                seatMap.refresh(); // same show: repaint only seats that changed
+            else
+                seatMap.setShow(show);
+            live.watch(Collections.singleton(show));
+        }
     }
 
     private void bookTicketsDialog() {
-        JDialog dlg = new JDialog(frame, "Book Tickets", true);
-        dlg.setSize(980, 620);
-        dlg.setLocationRelativeTo(frame);
-        dlg.setLayout(new BorderLayout(10, 10));
+        long requested = System.nanoTime();
+        boolean built = bookingDialog == null;
+        if (built)
+            bookingDialog = new BookingDialog();
+        bookingDialog.reset();
+        showTimed(bookingDialog.dlg, "Book Tickets", requested, built);
+    }
 
-        // Top: musical + show selection
-        JPanel top = new JPanel(new FlowLayout(FlowLayout.LEFT, 10, 10));
-        top.add(new JLabel("Select Musical:"));
-        JComboBox<String> cbMusicals = new JComboBox<>();
-        for (Musical m : musicals)
-            cbMusicals.addItem(m.name);
-        top.add(cbMusicals);
-
-        top.add(new JLabel("Select Show:"));
-        JComboBox<String> cbShows = new JComboBox<>();
-        top.add(cbShows);
-
-        dlg.add(top, BorderLayout.NORTH);
-
-        // Center left: seats list (multi-select)
-        DefaultListModel<String> seatModel = new DefaultListModel<>();
-        JList<String> seatList = new JList<>(seatModel);
-        seatList.setVisibleRowCount(15);
-        seatList.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
-        JScrollPane seatScroll = new JScrollPane(seatList);
-
-        // Center right: ticket counts and summary
-        JPanel ticketPanel = new JPanel(new GridBagLayout());
-        ticketPanel.setBorder(BorderFactory.createTitledBorder("Ticket types (must equal number of seats selected)"));
-        GridBagConstraints gbc = new GridBagConstraints();
-        gbc.insets = new Insets(6, 6, 6, 6);
-        gbc.gridx = 0;
-        gbc.gridy = 0;
-        gbc.anchor = GridBagConstraints.WEST;
-        ticketPanel.add(new JLabel("Adult ($50):"), gbc);
-        gbc.gridx = 1;
-        JSpinner spAdult = new JSpinner(new SpinnerNumberModel(0, 0, 100, 1));
-        ticketPanel.add(spAdult, gbc);
-        gbc.gridx = 0;
-        gbc.gridy = 1;
-        ticketPanel.add(new JLabel("Senior ($40):"), gbc);
-        gbc.gridx = 1;
-        JSpinner spSenior = new JSpinner(new SpinnerNumberModel(0, 0, 100, 1));
-        ticketPanel.add(spSenior, gbc);
-        gbc.gridx = 0;
-        gbc.gridy = 2;
-        ticketPanel.add(new JLabel("Student ($35):"), gbc);
-        gbc.gridx = 1;
-        JSpinner spStudent = new JSpinner(new SpinnerNumberModel(0, 0, 100, 1));
-        ticketPanel.add(spStudent, gbc);
-
-        JTextArea summary = new JTextArea(12, 36);
-        summary.setEditable(false);
-        summary.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
-        JScrollPane summaryScroll = new JScrollPane(summary);
-
-        JPanel right = new JPanel(new BorderLayout(8, 8));
-        right.add(ticketPanel, BorderLayout.NORTH);
-        right.add(summaryScroll, BorderLayout.CENTER);
-
-        // Buttons
-        JButton btnRefreshSeats = new JButton("Refresh Seats");
-        JButton btnPreview = new JButton("Preview Order");
-        JButton btnConfirm = new JButton("Confirm Purchase");
-        JButton btnCancel = new JButton("Cancel");
-
-        JPanel actions = new JPanel(new FlowLayout(FlowLayout.RIGHT, 10, 10));
-        actions.add(btnRefreshSeats);
-        actions.add(btnPreview);
-        actions.add(btnConfirm);
-        actions.add(btnCancel);
-
-        // Compose center
-        JPanel center = new JPanel(new GridLayout(1, 2, 10, 10));
-        center.add(seatScroll);
-        center.add(right);
-        dlg.add(center, BorderLayout.CENTER);
-        dlg.add(actions, BorderLayout.SOUTH);
-
-        // Populate shows when musical selected
-        cbMusicals.addActionListener(e -> {
-            int mi = cbMusicals.getSelectedIndex();
-            cbShows.removeAllItems();
-            if (mi >= 0) {
-                Musical m = musicals.get(mi);
-                for (Show s : m.shows) {
-                    cbShows.addItem(s.date.format(DateTimeFormatter.ofPattern("dd MMM uuuu")) + "  "
-                            + s.time.format(DateTimeFormatter.ofPattern("HH:mm")));
+    /**
+     * The "Book Tickets" dialog. Built once; each opening starts a new session
+     * on the first musical with nothing selected. Bookings still in flight
+     * when it closes report back, but leave the next session's fields alone.
+     */
+    private final class BookingDialog {
+        final JDialog dlg = new JDialog(frame, "Book Tickets", true);
+        private final JComboBox<String> cbMusicals = new JComboBox<>();
+        private final JComboBox<String> cbShows = new JComboBox<>();
+        // Center left: seat map (click seats to select)
+        private final SeatMapPanel seatMap = new SeatMapPanel();
+        // one label per ticket type, showing the selected show's price range
+        private final JLabel[] priceLabels = new JLabel[TicketType.ALL.length];
+        // each capped at the selected show's capacity in showSelected
+        private final JSpinner spAdult = new JSpinner(new SpinnerNumberModel(0, 0, Show.SEAT_CAPACITY, 1));
+        private final JSpinner spSenior = new JSpinner(new SpinnerNumberModel(0, 0, Show.SEAT_CAPACITY, 1));
+        private final JSpinner spStudent = new JSpinner(new SpinnerNumberModel(0, 0, Show.SEAT_CAPACITY, 1));
+        private final JTextArea summary = new JTextArea(12, 36);
+        private final JButton btnConfirm = new JButton("Confirm Purchase");
+        // repaints seats sold or held elsewhere as it happens, dropping them from the selection
+        private final SeatChangeBatcher live = new SeatChangeBatcher(s -> {
+            seatMap.refresh();
+            updatePriceLabels();
+        });
+        // seats this dialog has taken out of sale while the customer checks out
+        private SeatHold hold;
+        // bumped on every opening; callbacks from an earlier one must not touch the fields
+        private int session;
+        // set while the combos are refilled, so their listeners stay quiet
+        private boolean rebinding;
+
+        BookingDialog() {
+            dlg.setDefaultCloseOperation(WindowConstants.HIDE_ON_CLOSE);
+            dlg.setSize(980, 620);
+            dlg.setLayout(new BorderLayout(10, 10));
+
+            // Top: musical + show selection
+            JPanel top = new JPanel(new FlowLayout(FlowLayout.LEFT, 10, 10));
+            top.add(new JLabel("Select Musical:"));
+            top.add(cbMusicals);
+            top.add(new JLabel("Select Show:"));
+            top.add(cbShows);
+            dlg.add(top, BorderLayout.NORTH);
+
+            JScrollPane seatScroll = new JScrollPane(seatMap);
+
+            // Center right: ticket counts and summary
+            JPanel ticketPanel = new JPanel(new GridBagLayout());
+            ticketPanel.setBorder(
+                    BorderFactory.createTitledBorder("Ticket types (must equal number of seats selected)"));
+            GridBagConstraints gbc = new GridBagConstraints();
+            gbc.insets = new Insets(6, 6, 6, 6);
+            gbc.anchor = GridBagConstraints.WEST;
+            JSpinner[] spinners = { spAdult, spSenior, spStudent };
+            for (TicketType t : TicketType.ALL) {
+                priceLabels[t.ordinal()] = new JLabel(t.label + " ($" + t.basePrice + "):");
+                gbc.gridx = 0;
+                gbc.gridy = t.ordinal();
+                ticketPanel.add(priceLabels[t.ordinal()], gbc);
+                gbc.gridx = 1;
+                ticketPanel.add(spinners[t.ordinal()], gbc);
+            }
+
+            summary.setEditable(false);
+            summary.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+            JScrollPane summaryScroll = new JScrollPane(summary);
+
+            JPanel right = new JPanel(new BorderLayout(8, 8));
+            right.add(ticketPanel, BorderLayout.NORTH);
+            right.add(summaryScroll, BorderLayout.CENTER);
+
+            // Buttons
+            JButton btnRefreshSeats = new JButton("Refresh Seats");
+            JButton btnBest = new JButton("Best Available");
+            JButton btnPreview = new JButton("Preview Order");
+            JButton btnCancel = new JButton("Cancel");
+
+            JPanel actions = new JPanel(new FlowLayout(FlowLayout.RIGHT, 10, 10));
+            actions.add(btnRefreshSeats);
+            actions.add(btnBest);
+            actions.add(btnPreview);
+            actions.add(btnConfirm);
+            actions.add(btnCancel);
+
+            // Compose center
+            JPanel center = new JPanel(new GridLayout(1, 2, 10, 10));
+            center.add(seatScroll);
+            center.add(right);
+            dlg.add(center, BorderLayout.CENTER);
+            dlg.add(actions, BorderLayout.SOUTH);
+
+            // Populate shows when musical selected
+            cbMusicals.addActionListener(e -> {
+                if (!rebinding)
+                    showMusical();
+            });
+            cbShows.addActionListener(e -> {
+                if (!rebinding)
+                    showSelected();
+            });
+            btnRefreshSeats.addActionListener(e -> {
+                refreshSeatsForSelection(cbMusicals.getSelectedIndex(), cbShows.getSelectedIndex(), seatMap);
+                updatePriceLabels();
+            });
+            btnBest.addActionListener(e -> bestAvailable());
+            btnPreview.addActionListener(e -> preview());
+            btnConfirm.addActionListener(e -> confirm());
+            btnCancel.addActionListener(e -> {
+                releaseHold();
+                dlg.setVisible(false);
+            });
+            dlg.addWindowListener(new WindowAdapter() {
+                @Override
+                public void windowClosing(WindowEvent e) {
+                    releaseHold();
+                }
+            });
+            dlg.addComponentListener(new ComponentAdapter() {
+                @Override
+                public void componentHidden(ComponentEvent e) {
+                    live.unwatchAll();
                 }
+            });
+        }
+
+        /** Starts a new session: first musical and show, no seats, no tickets, fresh availability. */
+        void reset() {
+            releaseHold();
+            session++;
+            rebinding = true;
+            try {
+                cbMusicals.removeAllItems();
+                for (Musical m : musicals)
+                    cbMusicals.addItem(m.name);
+            } finally {
+                rebinding = false;
             }
-            refreshSeatsForSelection(cbMusicals.getSelectedIndex(), cbShows.getSelectedIndex(), seatModel);
-        });
+            showMusical();
+            seatMap.clearSelection();
+            spAdult.setValue(0);
+            spSenior.setValue(0);
+            spStudent.setValue(0);
+            summary.setText("");
+        }
+
+        private void releaseHold() {
+            if (hold != null) {
+                hold.release();
+                hold = null;
+                seatMap.setOwnHold(null);
+            }
+        }
+
+        private void showMusical() {
+            releaseHold();
+            int mi = cbMusicals.getSelectedIndex();
+            rebinding = true;
+            try {
+                cbShows.removeAllItems();
+                if (mi >= 0)
+                    for (Show s : musicals.get(mi).shows)
+                        cbShows.addItem(s.summary().label);
+            } finally {
+                rebinding = false;
+            }
+            showSelected();
+        }
+
+        private void showSelected() {
+            releaseHold();
+            refreshSeatsForSelection(cbMusicals.getSelectedIndex(), cbShows.getSelectedIndex(), seatMap);
+            live.watch(Collections.singleton(seatMap.getShow()));
+            Show s = seatMap.getShow();
+            int max = s != null ? s.capacity : Show.SEAT_CAPACITY;
+            for (JSpinner sp : new JSpinner[] { spAdult, spSenior, spStudent }) {
+                SpinnerNumberModel model = (SpinnerNumberModel) sp.getModel();
+                model.setMaximum(max);
+                if ((int) model.getValue() > max)
+                    model.setValue(max);
+            }
+            updatePriceLabels();
+        }
 
-        cbShows.addActionListener(
-                e -> refreshSeatsForSelection(cbMusicals.getSelectedIndex(), cbShows.getSelectedIndex(), seatModel));
+        private void updatePriceLabels() {
+            Show s = seatMap.getShow();
+            for (TicketType t : TicketType.ALL) {
+                if (s == null) {
+                    priceLabels[t.ordinal()].setText(t.label + ":");
+                    continue;
+                }
+                PriceTable table = pricing.table(s);
+                int lo = table.min(t);
+                int hi = table.max(t);
+                priceLabels[t.ordinal()].setText(t.label + " ($" + (lo == hi ? lo : lo + "-$" + hi) + "):");
+            }
+        }
 
-        btnRefreshSeats.addActionListener(
-                e -> refreshSeatsForSelection(cbMusicals.getSelectedIndex(), cbShows.getSelectedIndex(), seatModel));
+        // select the best block of seats together for the ticket count entered
+        private void bestAvailable() {
+            Show s = seatMap.getShow();
+            int count = (int) spAdult.getValue() + (int) spSenior.getValue() + (int) spStudent.getValue();
+            if (s == null || count == 0) {
+                JOptionPane.showMessageDialog(dlg, "Please select a show and enter ticket counts first.",
+                        "Validation", JOptionPane.WARNING_MESSAGE);
+                return;
+            }
+            releaseHold();
+            SeatHold h = holds.holdBestAvailable(s, count);
+            seatMap.refresh();
+            if (h == null) {
+                JOptionPane.showMessageDialog(dlg, "No " + count + " seats together are left for this show.",
+                        "Seat unavailable", JOptionPane.INFORMATION_MESSAGE);
+                return;
+            }
+            hold = h;
+            seatMap.setOwnHold(h);
+            seatMap.setSelection(h.seats);
+        }
 
-        btnPreview.addActionListener(e -> {
+        private void preview() {
             int mi = cbMusicals.getSelectedIndex();
             int si = cbShows.getSelectedIndex();
             if (mi < 0 || si < 0) {
@@ -384,8 +1063,8 @@ public class Main {
                         JOptionPane.WARNING_MESSAGE);
                 return;
             }
-            List<String> selectedSeats = seatList.getSelectedValuesList();
-            if (selectedSeats.isEmpty()) {
+            int[] selectedSeats = seatMap.selectedSeats();
+            if (selectedSeats.length == 0) {
                 JOptionPane.showMessageDialog(dlg, "Please select at least one seat.", "Validation",
                         JOptionPane.WARNING_MESSAGE);
                 return;
@@ -394,42 +1073,55 @@ public class Main {
             int seniors = (int) spSenior.getValue();
             int students = (int) spStudent.getValue();
             int totalCount = adults + seniors + students;
-            if (totalCount != selectedSeats.size()) {
+            if (totalCount != selectedSeats.length) {
                 JOptionPane.showMessageDialog(dlg,
                         "Number of ticket types must equal number of seats selected.\nSelected seats: "
-                                + selectedSeats.size() + ", ticket count: " + totalCount,
+                                + selectedSeats.length + ", ticket count: " + totalCount,
                         "Validation", JOptionPane.WARNING_MESSAGE);
                 return;
             }
 
-            // assign types in order
-            List<String> types = new ArrayList<>();
-            for (int i = 0; i < adults; i++)
-                types.add("Adult");
-            for (int i = 0; i < seniors; i++)
-                types.add("Senior");
-            for (int i = 0; i < students; i++)
-                types.add("Student");
+            // hold the previewed seats so nobody else can buy them before Confirm
+            Show show = musicals.get(mi).shows.get(si);
+            if (hold == null || !hold.isActive() || hold.show != show || !hold.covers(selectedSeats)) {
+                releaseHold();
+                SeatHold h = holds.hold(show, selectedSeats);
+                if (h == null) {
+                    seatMap.refresh();
+                    JOptionPane.showMessageDialog(dlg,
+                            "Some of the selected seats were just taken by another customer.\nPlease choose again.",
+                            "Seat unavailable", JOptionPane.WARNING_MESSAGE);
+                    return;
+                }
+                hold = h;
+                seatMap.setOwnHold(h);
+            }
+
+            // types go in order (adults, seniors, students), priced from the show's current table
+            int[] prices = pricing.prices(show, selectedSeats, adults, seniors);
 
             StringBuilder sb = new StringBuilder();
-            sb.append("Musical: ").append(musicals.get(mi).name).append("\n");
-            sb.append("Show: ").append(musicals.get(mi).shows.get(si).date).append(" ")
-                    .append(musicals.get(mi).shows.get(si).time).append("\n\n");
-            sb.append(String.format("%-8s %-10s %-8s\n", "Seat", "Type", "Price"));
-            sb.append("--------------------------------\n");
+            sb.append("Musical: ").append(show.musical.name).append("\n");
+            sb.append("Show: ").append(show.date).append(" ").append(show.time).append("\n\n");
+            sb.append(String.format("%-20s %-10s %-8s\n", "Seat", "Type", "Price"));
+            sb.append("--------------------------------------------\n");
             int total = 0;
-            for (int k = 0; k < selectedSeats.size(); k++) {
-                String seat = selectedSeats.get(k);
-                String type = types.get(k);
-                int price = ticketPrices.get(type);
+            for (int k = 0; k < selectedSeats.length; k++) {
+                String seat = show.venue.seatLabel(selectedSeats[k]);
+                String type = TicketType.at(k, adults, seniors).label;
+                int price = prices[k];
                 total += price;
-                sb.append(String.format("%-8s %-10s $%-8d\n", seat, type, price));
+                sb.append(String.format("%-20s %-10s $%-8d\n", seat, type, price));
             }
             sb.append("\nTotal: $").append(total).append("\n");
+            sb.append("\nSeats held for you until ")
+                    .append(LocalTime.ofInstant(Instant.ofEpochMilli(hold.expiresAtMillis), ZoneId.systemDefault())
+                            .format(DateTimeFormatter.ofPattern("HH:mm:ss")))
+                    .append("\n");
             summary.setText(sb.toString());
-        });
+        }
 
-        btnConfirm.addActionListener(e -> {
+        private void confirm() {
             int mi = cbMusicals.getSelectedIndex();
             int si = cbShows.getSelectedIndex();
             if (mi < 0 || si < 0) {
@@ -437,142 +1129,152 @@ public class Main {
                         JOptionPane.WARNING_MESSAGE);
                 return;
             }
-            List<String> selectedSeats = seatList.getSelectedValuesList();
-            if (selectedSeats.isEmpty()) {
-                JOptionPane.showMessageDialog(dlg, "Please select seats to book.", "Validation",
-                        JOptionPane.WARNING_MESSAGE);
-                return;
-            }
-            int adults = (int) spAdult.getValue();
-            int seniors = (int) spSenior.getValue();
-            int students = (int) spStudent.getValue();
-            int totalCount = adults + seniors + students;
-            if (totalCount != selectedSeats.size()) {
-                JOptionPane.showMessageDialog(dlg,
-                        "Number of ticket types must equal number of seats selected.\nSelected seats: "
-                                + selectedSeats.size() + ", ticket count: " + totalCount,
-                        "Validation", JOptionPane.WARNING_MESSAGE);
-                return;
+            int[] seatIds = seatMap.selectedSeats();
+            Show show = musicals.get(mi).shows.get(si);
+
+            // use the hold if it still covers the selection; otherwise book the seats outright
+            SeatHold h = hold;
+            if (h != null && (!h.isActive() || h.show != show || !h.covers(seatIds))) {
+                releaseHold();
+                h = null;
             }
+            hold = null;
+            BookingRequest request = new BookingRequest(musicals.get(mi), show, seatIds,
+                    (int) spAdult.getValue(), (int) spSenior.getValue(), (int) spStudent.getValue(), h);
+            SeatHold submitted = h;
+            int submittedIn = session;
 
-            Show s = musicals.get(mi).shows.get(si);
-            // concurrency check: ensure all still available
-            for (String seatStr : selectedSeats) {
-                int seatId = Integer.parseInt(seatStr.substring(1)); // "S12" -> 12
-                if (s.isBooked(seatId)) {
-                    JOptionPane.showMessageDialog(dlg, "Seat " + seatId + " was just booked. Please refresh seats.",
-                            "Seat unavailable", JOptionPane.ERROR_MESSAGE);
+            // the engine books off the EDT; report back here once it is done
+            btnConfirm.setEnabled(false);
+            bookingEngine.submit(request).whenComplete((order, err) -> SwingUtilities.invokeLater(() -> {
+                btnConfirm.setEnabled(true);
+                boolean current = submittedIn == session;
+                if (!current) {
+                    // the customer has gone; nobody will retry on this hold
+                    if (submitted != null && submitted.isActive())
+                        submitted.release();
+                } else if (err != null && submitted != null && hold == null && submitted.isActive()) {
+                    // rejected before the hold was used (e.g. ticket counts); keep it for the retry
+                    hold = submitted;
+                } else if (submitted != null && !submitted.isActive()) {
+                    seatMap.setOwnHold(null);
+                }
+                if (err != null) {
+                    Throwable cause = err instanceof CompletionException && err.getCause() != null ? err.getCause()
+                            : err;
+                    if (cause instanceof BookingException) {
+                        BookingException be = (BookingException) cause;
+                        JOptionPane.showMessageDialog(dlg, be.getMessage(), be.title(),
+                                be.reason == BookingException.Reason.VALIDATION ? JOptionPane.WARNING_MESSAGE
+                                        : JOptionPane.ERROR_MESSAGE);
+                        if (be.reason == BookingException.Reason.VALIDATION)
+                            return;
+                    } else {
+                        JOptionPane.showMessageDialog(dlg, "Booking failed: " + cause, "Error",
+                                JOptionPane.ERROR_MESSAGE);
+                    }
+                    if (current)
+                        refreshSeatsForSelection(mi, si, seatMap);
                     return;
                 }
-            }
-
-            // assign types in order
-            List<String> types = new ArrayList<>();
-            for (int i = 0; i < adults; i++)
-                types.add("Adult");
-            for (int i = 0; i < seniors; i++)
-                types.add("Senior");
-            for (int i = 0; i < students; i++)
-                types.add("Student");
-
-            Map<Integer, String> seatTypeMap = new LinkedHashMap<>();
-            int idx = 0;
-            int total = 0;
-            for (String seatStr : selectedSeats) {
-                int seatId = Integer.parseInt(seatStr.substring(1));
-                String type = types.get(idx++);
-                seatTypeMap.put(seatId, type);
-                total += ticketPrices.get(type);
-            }
+                // seats are sold; the receipt lands on disk in the background
+                order.receipt.whenComplete((path, ioErr) -> SwingUtilities.invokeLater(() -> {
+                    if (ioErr != null) {
+                        Throwable c = ioErr instanceof CompletionException && ioErr.getCause() != null
+                                ? ioErr.getCause()
+                                : ioErr;
+                        JOptionPane.showMessageDialog(dlg, "Failed to save receipt: " + c.getMessage(), "IO Error",
+                                JOptionPane.ERROR_MESSAGE);
+                        return;
+                    }
+                    Object[] options = { "View receipt", "OK" };
+                    int choice = JOptionPane.showOptionDialog(dlg, "Purchase confirmed!\nOrder ID: " + order.id,
+                            "Success", JOptionPane.DEFAULT_OPTION, JOptionPane.INFORMATION_MESSAGE, null, options,
+                            options[1]);
+                    if (choice == 0)
+                        showReceipt(dlg, order.id);
+                }));
 
-            // book seats
-            for (Integer seatId : seatTypeMap.keySet())
-                s.bookSeat(seatId);
+                // refresh seats and clear fields
+                if (!current)
+                    return;
+                refreshSeatsForSelection(mi, si, seatMap);
+                spAdult.setValue(0);
+                spSenior.setValue(0);
+                spStudent.setValue(0);
+                summary.setText("");
+            }));
+        }
+    }
 
-            // save receipt
-            Order order = new Order(UUID.randomUUID().toString(), musicals.get(mi).name, s.date, s.time, seatTypeMap,
-                    total);
+    /** Renders an order's receipt off the EDT, then shows it with a button to print it. */
+    private void showReceipt(Component parent, String orderId) {
+        CompletableFuture.supplyAsync(() -> {
             try {
-                String path = saveReceipt(order);
-                JOptionPane.showMessageDialog(dlg, "Purchase confirmed! Receipt saved to:\n" + path, "Success",
-                        JOptionPane.INFORMATION_MESSAGE);
+                return receiptStore.renderReceipt(orderId);
             } catch (IOException ex) {
-                JOptionPane.showMessageDialog(dlg, "Failed to save receipt: " + ex.getMessage(), "IO Error",
+                throw new UncheckedIOException(ex);
+            }
+        }).whenComplete((text, err) -> SwingUtilities.invokeLater(() -> {
+            if (err != null || text == null) {
+                Throwable c = err instanceof CompletionException && err.getCause() != null ? err.getCause() : err;
+                JOptionPane.showMessageDialog(parent, c == null ? "No receipt for order " + orderId
+                        : "Failed to read receipt: " + c.getMessage(), "IO Error", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            JTextArea area = new JTextArea(text);
+            area.setEditable(false);
+            area.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+            JScrollPane scroll = new JScrollPane(area);
+            scroll.setPreferredSize(new Dimension(420, 360));
+            Object[] options = { "Print", "Close" };
+            int choice = JOptionPane.showOptionDialog(parent, scroll, "Receipt " + orderId, JOptionPane.DEFAULT_OPTION,
+                    JOptionPane.PLAIN_MESSAGE, null, options, options[1]);
+            if (choice != 0)
+                return;
+            try {
+                area.print();
+            } catch (PrinterException ex) {
+                JOptionPane.showMessageDialog(parent, "Printing failed: " + ex.getMessage(), "Print Error",
                         JOptionPane.ERROR_MESSAGE);
             }
-
-            // refresh seats and clear fields
-            refreshSeatsForSelection(mi, si, seatModel);
-            spAdult.setValue(0);
-            spSenior.setValue(0);
-            spStudent.setValue(0);
-            summary.setText("");
-        });
-
-        btnCancel.addActionListener(e -> dlg.dispose());
-
-        // initialize selection
-        if (cbMusicals.getItemCount() > 0) {
-            cbMusicals.setSelectedIndex(0);
-            cbMusicals.dispatchEvent(new ActionEvent(cbMusicals, ActionEvent.ACTION_PERFORMED, ""));
-        }
-
-        dlg.setVisible(true);
+        }));
     }
 
-    private void refreshSeatsForSelection(int musicalIndex, int showIndex, DefaultListModel<String> seatModel) {
-        seatModel.clear();
-        if (musicalIndex < 0 || showIndex < 0)
+    private void refreshSeatsForSelection(int musicalIndex, int showIndex, SeatMapPanel seatMap) {
+        if (musicalIndex < 0 || showIndex < 0) {
+            seatMap.setShow(null);
             return;
+        }
         Musical m = musicals.get(musicalIndex);
-        if (showIndex >= m.shows.size())
+        if (showIndex >= m.shows.size()) {
+            seatMap.setShow(null);
             return;
+        }
         Show s = m.shows.get(showIndex);
-        for (int i = 1; i <= Show.SEAT_CAPACITY; i++) {
-            if (!s.isBooked(i))
-                seatModel.addElement("S" + i);
-        }
-    }
-
-    private String saveReceipt(Order order) throws IOException {
-        Path receiptsDir = Paths.get("receipts");
-        if (!Files.exists(receiptsDir))
-            Files.createDirectories(receiptsDir);
-        String timestamp = DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss").format(LocalDateTime.now());
-        String filename = "receipt_" + timestamp + "_" + order.id.substring(0, 8) + ".txt";
-        Path file = receiptsDir.resolve(filename);
-        try (BufferedWriter w = Files.newBufferedWriter(file)) {
-            w.write("London Musical Tickets - Receipt");
-            w.newLine();
-            w.write("Order ID: " + order.id);
-            w.newLine();
-            w.write("Musical: " + order.musicalName);
-            w.newLine();
-            w.write("Show: " + order.showDate + " " + order.showTime);
-            w.newLine();
-            w.write("----------------------------------------");
-            w.newLine();
-            w.write(String.format("%-8s %-10s %-8s", "Seat", "Type", "Price"));
-            w.newLine();
-            w.write("----------------------------------------");
-            w.newLine();
-            for (Map.Entry<Integer, String> e : order.seatType.entrySet()) {
-                int price = ticketPrices.get(e.getValue());
-                w.write(String.format("%-8d %-10s $%d", e.getKey(), e.getValue(), price));
-                w.newLine();
-            }
-            w.write("----------------------------------------");
-            w.newLine();
-            w.write("Total: $" + order.total);
-            w.newLine();
-            w.write("Thank you for your purchase!");
-            w.newLine();
-        }
-        return file.toAbsolutePath().toString();
+        if (seatMap.getShow() == s)
+            seatMap.refresh(); // same show: repaint only seats that changed
+        else
+            seatMap.setShow(s);
     }
 
     public static void main(String[] args) {
-        SwingUtilities.invokeLater(Main::new);
+        List<String> argList = Arrays.asList(args);
+        int imp = argList.indexOf("--import");
+        int rep = argList.indexOf("--report");
+        int cp = argList.indexOf("--checkpoint");
+        if (rep >= 0 && rep + 1 < args.length) {
+            runReport(Paths.get(args[rep + 1]), cp >= 0 && cp + 1 < args.length ? Paths.get(args[cp + 1]) : null);
+        } else if (imp >= 0 && imp + 1 < args.length) {
+            Path in = Paths.get(args[imp + 1]);
+            runImport(in, imp + 2 < args.length ? Paths.get(args[imp + 2]) : importResultsFor(in));
+        } else if (argList.contains("--server")) {
+            runServer();
+        } else if (argList.contains("--cds-training")) {
+            runCdsTraining();
+        } else {
+            SwingUtilities.invokeLater(Main::new);
+        }
     }
 }
 
@@ -591,6 +1293,7 @@ class Musical {
     }
 
     public void addShow(Show s) {
+        s.musical = this;
         shows.add(s);
     }
 
@@ -601,44 +1304,7004 @@ class Musical {
 
 class Show {
     public static final int SEAT_CAPACITY = 100;
+    private static final AtomicInteger NEXT_ID = new AtomicInteger(1);
+    private static final SeatListener[] NO_LISTENERS = new SeatListener[0];
+    // assigned in creation order, so the same seeding yields the same ids on every launch
+    final int id = NEXT_ID.getAndIncrement();
     final LocalDate date;
     final LocalTime time;
-    private final Set<Integer> booked = new HashSet<>();
+    final Venue venue;
+    final int capacity;
+    // set when the show is added to a musical
+    Musical musical;
+    // Seat n is bit (n - 1). A seat is "taken" while it is held or sold; "sold" is the subset that was paid for.
+    // Cells: the taken words, the sold words, then the taken count, sold count and version.
+    private final int words;
+    private final int takenCount;
+    private final int soldCount;
+    // bumped on every seat state change; summaries built at an older version are stale
+    private final int version;
+    // on the heap, or in a file other processes map too; replaced only before the first sale
+    private SeatCells cells;
+    // last version this process has caught up with; only read for shared cells
+    private volatile long seenVersion;
+    private volatile ShowSummary summary;
+    // the catalog indexing this show, told about seat changes; null until indexed
+    private volatile Catalog catalog;
+    private int catalogSlot;
+    // built on the first best-available query, then kept in step with every claim/release
+    private volatile SeatAllocator allocator;
+    // told after every seat change; copy-on-write, so publishing is a volatile read and takes no lock
+    private final AtomicReference<SeatListener[]> listeners = new AtomicReference<>(NO_LISTENERS);
 
     public Show(LocalDate date, LocalTime time) {
+        this(date, time, SEAT_CAPACITY);
+    }
+
+    public Show(LocalDate date, LocalTime time, int capacity) {
+        this(date, time, Venue.uniform(capacity, 10));
+    }
+
+    public Show(LocalDate date, LocalTime time, Venue venue) {
         this.date = date;
         this.time = time;
+        this.venue = venue;
+        this.capacity = venue.capacity();
+        this.words = (capacity + 63) >>> 6;
+        this.takenCount = 2 * words;
+        this.soldCount = takenCount + 1;
+        this.version = soldCount + 1;
+        this.cells = new SeatCells.Heap(cellCount(capacity));
+    }
+
+    /** Cells a show of {@code capacity} seats needs: two bitmaps and three counters. */
+    static int cellCount(int capacity) {
+        return 2 * ((capacity + 63) >>> 6) + 3;
+    }
+
+    /**
+     * Moves this show's seats to {@code shared}, typically a region of a
+     * {@link SharedSeats} file. Must happen before any seat is held or sold.
+     */
+    void useCells(SeatCells shared) {
+        if (shared.length() != cellCount(capacity))
+            throw new IllegalArgumentException("Show " + id + " needs " + cellCount(capacity) + " cells");
+        cells = shared;
+        seenVersion = shared.get(version);
+        allocator = null;
+    }
+
+    boolean isShared() {
+        return cells.isShared();
+    }
+
+    /**
+     * Picks up seat changes other processes made to shared cells since this
+     * process last looked: the catalog re-reads the count and best-available
+     * starts from the bitmap again. A no-op for cells on the heap.
+     */
+    void pollShared() {
+        if (!cells.isShared())
+            return;
+        long v = cells.get(version);
+        if (v == seenVersion)
+            return;
+        seenVersion = v;
+        allocator = null;
+        Catalog c = catalog;
+        if (c != null)
+            c.markDirty(catalogSlot);
+        publish();
+    }
+
+    /**
+     * Subscribes to this show's seat changes: every hold, sale, release and
+     * refund, and (once polled) changes other processes made to shared seats.
+     * Lock-free on both sides; the listener runs on the changing thread.
+     */
+    void subscribe(SeatListener l) {
+        SeatListener[] cur;
+        SeatListener[] next;
+        do {
+            cur = listeners.get();
+            next = Arrays.copyOf(cur, cur.length + 1);
+            next[cur.length] = l;
+        } while (!listeners.compareAndSet(cur, next));
+    }
+
+    void unsubscribe(SeatListener l) {
+        SeatListener[] cur;
+        SeatListener[] next;
+        do {
+            cur = listeners.get();
+            int i = Arrays.asList(cur).indexOf(l);
+            if (i < 0)
+                return;
+            next = new SeatListener[cur.length - 1];
+            System.arraycopy(cur, 0, next, 0, i);
+            System.arraycopy(cur, i + 1, next, i, next.length - i);
+        } while (!listeners.compareAndSet(cur, next));
     }
 
+    /** Whether the seat has been sold. */
     public boolean isBooked(int seatId) {
-        return booked.contains(seatId);
+        if (seatId < 1 || seatId > capacity)
+            return false;
+        int bit = seatId - 1;
+        return (cells.get(words + (bit >>> 6)) & (1L << bit)) != 0;
+    }
+
+    /** Whether the seat can be held or booked right now (neither sold nor held). */
+    public boolean isAvailable(int seatId) {
+        if (seatId < 1 || seatId > capacity)
+            return false;
+        int bit = seatId - 1;
+        return (cells.get(bit >>> 6) & (1L << bit)) == 0;
     }
 
     public void bookSeat(int seatId) {
-        if (seatId >= 1 && seatId <= SEAT_CAPACITY)
-            booked.add(seatId);
+        if (seatId >= 1 && seatId <= capacity && claim(seatId - 1))
+            markSold(seatId - 1);
+    }
+
+    /**
+     * Books every seat in {@code seats} or none of them. Each seat is claimed
+     * with a CAS on its word; if any seat is already sold or held (or out of
+     * range, or listed twice) the seats claimed so far are released again.
+     *
+     * @return true if all seats were booked by this call
+     */
+    public boolean tryBookAll(int[] seats) {
+        if (!tryHoldAll(seats))
+            return false;
+        confirmHeld(seats);
+        return true;
+    }
+
+    /**
+     * Takes every seat in {@code seats} out of sale without selling it, all or
+     * nothing, like {@link #tryBookAll}. Used by {@link SeatHold}.
+     */
+    boolean tryHoldAll(int[] seats) {
+        for (int i = 0; i < seats.length; i++) {
+            int seatId = seats[i];
+            if (seatId < 1 || seatId > capacity || !claim(seatId - 1)) {
+                for (int j = 0; j < i; j++)
+                    release(seats[j] - 1);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Turns seats this caller holds into sold seats. */
+    void confirmHeld(int[] seats) {
+        for (int seatId : seats)
+            markSold(seatId - 1);
     }
 
+    /** Puts seats this caller holds (but has not sold) back on sale. */
+    void releaseHeld(int[] seats) {
+        for (int seatId : seats) {
+            int bit = seatId - 1;
+            if ((cells.get(words + (bit >>> 6)) & (1L << bit)) == 0)
+                release(bit);
+        }
+    }
+
+    /** Seats neither sold nor held. */
     public int availableSeats() {
-        return SEAT_CAPACITY - booked.size();
+        return capacity - (int) cells.get(takenCount);
     }
-}
 
-class Order {
-    final String id;
-    final String musicalName;
-    final LocalDate showDate;
-    final LocalTime showTime;
-    final LinkedHashMap<Integer, String> seatType;
-    final int total;
+    /** Seats paid for. */
+    public int soldSeats() {
+        return (int) cells.get(soldCount);
+    }
 
-    public Order(String id, String musicalName, LocalDate showDate, LocalTime showTime, Map<Integer, String> seatType,
-            int total) {
-        this.id = id;
-        this.musicalName = musicalName;
-        this.showDate = showDate;
-        this.showTime = showTime;
-        this.seatType = new LinkedHashMap<>(seatType);
-        this.total = total;
+    /** Changes whenever a seat is held, sold or released. */
+    public long version() {
+        return cells.get(version);
+    }
+
+    /**
+     * The schedule line for this show. Rebuilt only after the show's seats
+     * have changed; otherwise every caller gets the same immutable snapshot.
+     */
+    public ShowSummary summary() {
+        ShowSummary cur = summary;
+        long v = cells.get(version);
+        if (cur != null && cur.version == v)
+            return cur;
+        // racing rebuilds are harmless: each is a complete snapshot at least as new as v
+        ShowSummary next = new ShowSummary(this, v, cur);
+        summary = next;
+        return next;
+    }
+
+    /**
+     * The best block of {@code count} adjacent free seats in one row: the first
+     * row (in the venue's preference order) with room, centred in its free run.
+     *
+     * @return seat numbers, or null if no row has that many seats together
+     */
+    public int[] bestAvailable(int count) {
+        return allocator().find(count);
+    }
+
+    /**
+     * Finds and books the best block of {@code count} seats together. The
+     * allocator's index is only a hint; the bitmap decides, so a block lost to a
+     * concurrent sale is re-checked and the search retried.
+     *
+     * @return the booked seats, or null if no block is left
+     */
+    public int[] tryBookBestAvailable(int count) {
+        int[] seats = tryHoldBestAvailable(count);
+        if (seats != null)
+            confirmHeld(seats);
+        return seats;
+    }
+
+    int[] tryHoldBestAvailable(int count) {
+        SeatAllocator a = allocator();
+        for (int attempt = 0; attempt < 8; attempt++) {
+            int[] seats = a.find(count);
+            if (seats == null)
+                return null;
+            if (tryHoldAll(seats))
+                return seats;
+            a.resync(seats);
+        }
+        return null;
+    }
+
+    /**
+     * Puts sold seats back on sale, e.g. when the booking can't be made durable.
+     * Seats that aren't sold are left alone, so a seat under someone's hold stays held.
+     */
+    public void releaseAll(int[] seats) {
+        for (int seatId : seats) {
+            if (seatId < 1 || seatId > capacity)
+                continue;
+            int bit = seatId - 1;
+            if ((cells.getAndUpdate(words + (bit >>> 6), w -> w & ~(1L << bit)) & (1L << bit)) == 0)
+                continue;
+            cells.getAndAdd(soldCount, -1);
+            changed();
+            release(bit);
+        }
+    }
+
+    /**
+     * Turns sold seats back into held ones, keeping them off sale, e.g. while a
+     * refund is journaled; {@link #releaseHeld} then frees them, or
+     * {@link #confirmHeld} sells them again. Seats that aren't sold are left alone.
+     */
+    void unsell(int[] seats) {
+        for (int seatId : seats) {
+            if (seatId < 1 || seatId > capacity)
+                continue;
+            int bit = seatId - 1;
+            if ((cells.getAndUpdate(words + (bit >>> 6), w -> w & ~(1L << bit)) & (1L << bit)) == 0)
+                continue;
+            cells.getAndAdd(soldCount, -1);
+            changed();
+        }
+    }
+
+    int seatWordCount() {
+        return words;
+    }
+
+    /** Seats 64w+1 .. 64w+64 as bits 0..63; a set bit means sold or held. */
+    long takenWord(int word) {
+        return cells.get(word);
+    }
+
+    /** Seats 64w+1 .. 64w+64 as bits 0..63; a set bit means sold. */
+    long soldWord(int word) {
+        return cells.get(words + word);
+    }
+
+    /** Copy of the sold-seat bitmap, word by word; used for journal snapshots. Holds are not included. */
+    long[] soldWords() {
+        long[] out = new long[words];
+        for (int i = 0; i < out.length; i++)
+            out[i] = cells.get(words + i);
+        return out;
+    }
+
+    /**
+     * Marks every seat sold in a snapshot taken by {@link #soldWords()} as sold,
+     * keeping seats that are already sold or held. At startup this is the
+     * snapshot itself; with shared cells, sales other processes made are kept.
+     */
+    void restoreSoldWords(long[] snapshot) {
+        for (int i = 0; i < words && i < snapshot.length; i++) {
+            long w = snapshot[i];
+            long before = cells.getAndUpdate(i, cur -> cur | w);
+            cells.getAndAdd(takenCount, Long.bitCount((before | w) ^ before));
+            before = cells.getAndUpdate(words + i, cur -> cur | w);
+            cells.getAndAdd(soldCount, Long.bitCount((before | w) ^ before));
+        }
+        changed();
+        allocator = null;
+    }
+
+    public LocalDateTime startsAt() {
+        return LocalDateTime.of(date, time);
+    }
+
+    void attach(Catalog catalog, int slot) {
+        this.catalogSlot = slot;
+        this.catalog = catalog;
+    }
+
+    private void changed() {
+        long v = cells.getAndAdd(version, 1) + 1;
+        // our own change: no need for pollShared to rebuild anything for it
+        if (cells.isShared() && v == seenVersion + 1)
+            seenVersion = v;
+        Catalog c = catalog;
+        if (c != null)
+            c.markDirty(catalogSlot);
+        publish();
+    }
+
+    private void publish() {
+        for (SeatListener l : listeners.get()) {
+            try {
+                l.seatsChanged(this);
+            } catch (RuntimeException ex) {
+                // the seat change itself has happened; one broken view must not undo the caller's sale
+                System.err.println("Seat listener failed for show " + id + ": " + ex);
+            }
+        }
+    }
+
+    private SeatAllocator allocator() {
+        pollShared();
+        SeatAllocator a = allocator;
+        if (a == null) {
+            synchronized (this) {
+                a = allocator;
+                if (a == null)
+                    allocator = a = new SeatAllocator(this);
+            }
+        }
+        return a;
+    }
+
+    private void markSold(int bit) {
+        if ((cells.getAndUpdate(words + (bit >>> 6), w -> w | (1L << bit)) & (1L << bit)) == 0)
+            cells.getAndAdd(soldCount, 1);
+        changed();
+    }
+
+    private boolean claim(int bit) {
+        int word = bit >>> 6;
+        long mask = 1L << bit;
+        while (true) {
+            long cur = cells.get(word);
+            if ((cur & mask) != 0)
+                return false;
+            if (cells.compareAndSet(word, cur, cur | mask)) {
+                cells.getAndAdd(takenCount, 1);
+                changed();
+                SeatAllocator a = allocator;
+                if (a != null)
+                    a.update(bit + 1);
+                return true;
+            }
+        }
+    }
+
+    private void release(int bit) {
+        int word = bit >>> 6;
+        long mask = 1L << bit;
+        while (true) {
+            long cur = cells.get(word);
+            if ((cur & mask) == 0)
+                return;
+            if (cells.compareAndSet(word, cur, cur & ~mask)) {
+                cells.getAndAdd(takenCount, -1);
+                changed();
+                SeatAllocator a = allocator;
+                if (a != null)
+                    a.update(bit + 1);
+                return;
+            }
+        }
+    }
+}
+
+/**
+ * Told when a show's seats change. Runs on whichever thread changed them,
+ * often while a booking is in progress, so it should only take note of the
+ * show and leave the work (reading the seats, repainting) for later.
+ */
+interface SeatListener {
+    void seatsChanged(Show show);
+}
+
+/**
+ * Feeds seat changes to Swing views a frame at a time. Events from any
+ * thread only mark their show pending; at most once per frame the EDT gets
+ * one callback per pending show it watches, however many seats changed in
+ * between. A burst of 500 sales thus costs a handful of callbacks, and each
+ * view repaints only what differs from what it last painted.
+ */
+class SeatChangeBatcher implements SeatListener {
+    static final int FRAME_MILLIS = 16;
+
+    private final Consumer<Show> onEdt;
+    private final javax.swing.Timer frame;
+    private final Set<Show> pending = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    // EDT only
+    private final Set<Show> watched = new HashSet<>();
+    private final LongAdder events = new LongAdder();
+    private final LongAdder flushes = new LongAdder();
+
+    SeatChangeBatcher(Consumer<Show> onEdt) {
+        this.onEdt = onEdt;
+        this.frame = new javax.swing.Timer(FRAME_MILLIS, e -> flush());
+        frame.setRepeats(false);
+    }
+
+    @Override
+    public void seatsChanged(Show show) {
+        events.increment();
+        pending.add(show);
+        if (scheduled.compareAndSet(false, true))
+            SwingUtilities.invokeLater(frame::restart);
+    }
+
+    /** Watches exactly these shows from now on (EDT only). */
+    void watch(Collection<Show> shows) {
+        for (Iterator<Show> it = watched.iterator(); it.hasNext();) {
+            Show s = it.next();
+            if (!shows.contains(s)) {
+                s.unsubscribe(this);
+                it.remove();
+            }
+        }
+        for (Show s : shows)
+            if (s != null && watched.add(s))
+                s.subscribe(this);
+    }
+
+    /** Stops watching, e.g. when the view is hidden (EDT only). */
+    void unwatchAll() {
+        watch(Collections.emptySet());
+        pending.clear();
+    }
+
+    /** Seat changes seen, and EDT callbacks they were folded into. */
+    long events() {
+        return events.sum();
+    }
+
+    long flushes() {
+        return flushes.sum();
+    }
+
+    private void flush() {
+        // reset first: an event from here on schedules another frame
+        scheduled.set(false);
+        for (Iterator<Show> it = pending.iterator(); it.hasNext();) {
+            Show s = it.next();
+            it.remove();
+            if (watched.contains(s)) {
+                flushes.increment();
+                onEdt.accept(s);
+            }
+        }
+    }
+}
+
+/**
+ * The longs a {@link Show} keeps its seat state in: bitmap words and counters,
+ * each updated atomically. {@link Heap} is private to this process;
+ * {@link Mapped} is a region of a {@link SharedSeats} file, so its compare-and-set
+ * is atomic across every process that maps the file.
+ */
+abstract class SeatCells {
+    abstract int length();
+
+    abstract long get(int i);
+
+    abstract boolean compareAndSet(int i, long expect, long update);
+
+    abstract long getAndAdd(int i, long delta);
+
+    /** Whether other processes see these cells. */
+    boolean isShared() {
+        return false;
+    }
+
+    long getAndUpdate(int i, java.util.function.LongUnaryOperator f) {
+        while (true) {
+            long cur = get(i);
+            if (compareAndSet(i, cur, f.applyAsLong(cur)))
+                return cur;
+        }
+    }
+
+    static final class Heap extends SeatCells {
+        private final AtomicLongArray cells;
+
+        Heap(int length) {
+            this.cells = new AtomicLongArray(length);
+        }
+
+        @Override
+        int length() {
+            return cells.length();
+        }
+
+        @Override
+        long get(int i) {
+            return cells.get(i);
+        }
+
+        @Override
+        boolean compareAndSet(int i, long expect, long update) {
+            return cells.compareAndSet(i, expect, update);
+        }
+
+        @Override
+        long getAndAdd(int i, long delta) {
+            return cells.getAndAdd(i, delta);
+        }
+
+        @Override
+        long getAndUpdate(int i, java.util.function.LongUnaryOperator f) {
+            return cells.getAndUpdate(i, f);
+        }
+    }
+
+    /** Cells at an 8-byte aligned offset of a mapped file, accessed with volatile semantics. */
+    static final class Mapped extends SeatCells {
+        private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class,
+                ByteOrder.nativeOrder());
+
+        private final MappedByteBuffer map;
+        private final int offset;
+        private final int length;
+
+        Mapped(MappedByteBuffer map, int offset, int length) {
+            if ((offset & 7) != 0)
+                throw new IllegalArgumentException("Cells must be 8-byte aligned");
+            this.map = map;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        int length() {
+            return length;
+        }
+
+        @Override
+        boolean isShared() {
+            return true;
+        }
+
+        @Override
+        long get(int i) {
+            return (long) LONGS.getVolatile(map, at(i));
+        }
+
+        @Override
+        boolean compareAndSet(int i, long expect, long update) {
+            return LONGS.compareAndSet(map, at(i), expect, update);
+        }
+
+        @Override
+        long getAndAdd(int i, long delta) {
+            return (long) LONGS.getAndAdd(map, at(i), delta);
+        }
+
+        void set(int i, long value) {
+            LONGS.setVolatile(map, at(i), value);
+        }
+
+        // Show computes every index; the VarHandle still bounds-checks against the whole mapping
+        private int at(int i) {
+            return offset + 8 * i;
+        }
+    }
+}
+
+/**
+ * Seat state for every show in one memory-mapped file that all box-office
+ * processes on the host map together ({@code -Dseats.shared=path}). Claims are
+ * compare-and-set on the mapped words, so a seat sold by one process is taken
+ * for all of them at once; reads go straight to the shared pages.
+ *
+ * Layout: [magic:long][format:long][shows:long][reserved:long], then per show
+ * [id:long][musical:long][epochDay:long][secondOfDay:long][capacity:long][offset:long],
+ * then each show's {@link SeatCells} starting on a 64-byte line. A show is
+ * named as {@link BookingJournal} names it, since ids are only creation order
+ * and the same id can be another performance on a later day. The first process
+ * to open the file lays it out; later ones check it was made for the same
+ * performances. A file made for others is laid out afresh if no other process
+ * has it open (each instance's journal restores its own sales), and refused
+ * otherwise. Every process holds a
+ * shared lock on a byte far past the end of the file while it has it open, so
+ * one that finds no other holder knows any held seat was left by a process
+ * that has exited, and puts it back on sale.
+ */
+final class SharedSeats implements Closeable {
+    private static final long MAGIC = 0x4C4D53_5345415453L; // "LMSSEATS"
+    // format 1 named shows by id and capacity alone
+    private static final long FORMAT = 2;
+    private static final int HEADER = 32;
+    private static final int ENTRY = 48;
+    // lock positions beyond any real file size, so they never cover seat data
+    private static final long LAYOUT_LOCK = Long.MAX_VALUE - 2;
+    private static final long LIVE_LOCK = Long.MAX_VALUE - 1;
+
+    private final FileChannel channel;
+    private final FileLock live;
+    private final Map<Integer, SeatCells.Mapped> cells = new HashMap<>();
+    private final boolean alone;
+
+    private SharedSeats(FileChannel channel, FileLock live, boolean alone) {
+        this.channel = channel;
+        this.live = live;
+        this.alone = alone;
+    }
+
+    /** Maps {@code file}, laying it out for {@code shows} if it is new. */
+    static SharedSeats open(Path file, Collection<Show> shows) throws IOException {
+        List<Show> ordered = new ArrayList<>(shows);
+        ordered.sort(Comparator.comparingInt(s -> s.id));
+        int[] offsets = new int[ordered.size()];
+        long size = HEADER + (long) ENTRY * ordered.size();
+        for (int i = 0; i < offsets.length; i++) {
+            size = (size + 63) & ~63L;
+            offsets[i] = (int) size;
+            size += 8L * Show.cellCount(ordered.get(i).capacity);
+        }
+        if (size > Integer.MAX_VALUE)
+            throw new IOException("Too many seats to map in one file");
+
+        if (file.getParent() != null)
+            Files.createDirectories(file.getParent());
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        // held while the file is laid out or checked, so two first launches can't both lay it out
+        FileLock layout = null;
+        try {
+            layout = channel.lock(LAYOUT_LOCK, 1, false);
+            String stale = channel.size() == 0 ? null : stale(channel, ordered, offsets, size);
+            if (stale != null) {
+                FileLock exclusive = channel.tryLock(LIVE_LOCK, 1, false);
+                if (exclusive == null)
+                    throw new IOException(file + " " + stale + ", and other instances are still using it");
+                exclusive.release();
+                // nobody else has it mapped; their sales are in their own journals
+                System.err.println("Shared seats: " + file + " " + stale + "; laying it out again");
+                channel.truncate(0);
+            }
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            map.order(ByteOrder.nativeOrder());
+            // no magic: new, or a layout cut short before anyone could use it
+            if (map.getLong(0) == 0) {
+                map.putLong(8, FORMAT);
+                map.putLong(16, ordered.size());
+                for (int i = 0; i < offsets.length; i++) {
+                    int e = HEADER + ENTRY * i;
+                    Show s = ordered.get(i);
+                    map.putLong(e, s.id);
+                    map.putLong(e + 8, BookingJournal.musicalHash(s));
+                    map.putLong(e + 16, s.date.toEpochDay());
+                    map.putLong(e + 24, s.time.toSecondOfDay());
+                    map.putLong(e + 32, s.capacity);
+                    map.putLong(e + 40, offsets[i]);
+                }
+                // magic last: a file without it was never finished
+                map.putLong(0, MAGIC);
+                map.force();
+            }
+
+            // nobody else holding the live lock means nobody else is running
+            FileLock exclusive = channel.tryLock(LIVE_LOCK, 1, false);
+            boolean alone = exclusive != null;
+            if (alone)
+                exclusive.release();
+            SharedSeats seats = new SharedSeats(channel, channel.lock(LIVE_LOCK, 1, true), alone);
+            for (int i = 0; i < offsets.length; i++) {
+                Show s = ordered.get(i);
+                SeatCells.Mapped c = new SeatCells.Mapped(map, offsets[i], Show.cellCount(s.capacity));
+                if (alone)
+                    dropStaleHolds(c, (s.capacity + 63) >>> 6);
+                seats.cells.put(s.id, c);
+            }
+            return seats;
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        } finally {
+            // closing the channel on failure already let it go
+            if (layout != null && layout.isValid())
+                layout.release();
+        }
+    }
+
+    /** Why the laid-out file doesn't fit {@code shows}, or null if it does (or was never finished). */
+    private static String stale(FileChannel channel, List<Show> shows, int[] offsets, long size) throws IOException {
+        if (channel.size() != size)
+            return "was laid out for other shows (" + channel.size() + " bytes, expected " + size + ")";
+        ByteBuffer head = ByteBuffer.allocate(HEADER + ENTRY * shows.size()).order(ByteOrder.nativeOrder());
+        while (head.hasRemaining())
+            if (channel.read(head, head.position()) < 0)
+                return "is cut short";
+        if (head.getLong(0) == 0)
+            return null;
+        if (head.getLong(0) != MAGIC || head.getLong(8) != FORMAT || head.getLong(16) != shows.size())
+            return "is not a seat file for this catalog";
+        for (int i = 0; i < offsets.length; i++) {
+            int e = HEADER + ENTRY * i;
+            Show s = shows.get(i);
+            if (head.getLong(e) != s.id || head.getLong(e + 8) != BookingJournal.musicalHash(s)
+                    || head.getLong(e + 16) != s.date.toEpochDay() || head.getLong(e + 24) != s.time.toSecondOfDay()
+                    || head.getLong(e + 32) != s.capacity || head.getLong(e + 40) != offsets[i])
+                return "was laid out for other performances (show " + s.id + " differs)";
+        }
+        return null;
+    }
+
+    // taken := sold, counts from the bitmaps; only while no other process has the file open
+    private static void dropStaleHolds(SeatCells.Mapped c, int words) {
+        long taken = 0;
+        for (int w = 0; w < words; w++) {
+            long sold = c.get(words + w);
+            c.set(w, sold);
+            taken += Long.bitCount(sold);
+        }
+        c.set(2 * words, taken);
+        c.set(2 * words + 1, taken);
+        c.getAndAdd(2 * words + 2, 1);
+    }
+
+    /** Whether no other process had the file open when this one did. */
+    boolean alone() {
+        return alone;
+    }
+
+    /** The cells for {@code show}, or null if the file has none for it. */
+    SeatCells cellsFor(Show show) {
+        return cells.get(show.id);
+    }
+
+    /** Leaves the mapping to the garbage collector; other processes keep theirs. */
+    @Override
+    public void close() throws IOException {
+        try {
+            live.release();
+        } finally {
+            channel.close();
+        }
+    }
+}
+
+/**
+ * Immutable availability line for one show at one {@link Show#version()}.
+ * The date and time text never change, so a rebuild carries them over from
+ * the previous summary and only redoes the seat count.
+ */
+final class ShowSummary {
+    static final DateTimeFormatter DATE = DateTimeFormatter.ofPattern("dd MMM uuuu");
+    static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm");
+
+    final Show show;
+    final long version;
+    final int available;
+    /** "dd MMM uuuu  HH:mm", as the show pickers list it. */
+    final String label;
+    /** "dd MMM uuuu   HH:mm   Available: n", as the schedule lists it. */
+    final String scheduleLine;
+    private final String dateText;
+    private final String timeText;
+
+    ShowSummary(Show show, long version, ShowSummary previous) {
+        this.show = show;
+        this.version = version;
+        this.available = show.availableSeats();
+        this.dateText = previous != null ? previous.dateText : show.date.format(DATE);
+        this.timeText = previous != null ? previous.timeText : show.time.format(TIME);
+        this.label = previous != null ? previous.label : dateText + "  " + timeText;
+        this.scheduleLine = dateText + "   " + timeText + "   Available: " + available;
+    }
+}
+
+/**
+ * Read-side index over every musical and show, built once at startup.
+ * Shows are kept in start-time order with a {@link NavigableMap} from start
+ * time to position, so date-range queries are two map lookups and a sub-list.
+ * Title search goes through a sorted map of every word-suffix of every title
+ * ("the lion king", "lion king", "king"). Free-seat queries descend a max
+ * tree over the same time order, skipping whole ranges that have no show
+ * with enough seats; shows mark their slot dirty when their seats change and
+ * the tree catches up on the next query.
+ */
+class Catalog {
+    /** Performances starting before this are matinees. */
+    static final LocalTime MATINEE_CUTOFF = LocalTime.of(17, 0);
+
+    private final List<Musical> musicals;
+    private final Map<Integer, Show> byId = new HashMap<>();
+    private final Show[] byTime;
+    private final NavigableMap<LocalDateTime, Integer> firstSlotAt = new TreeMap<>();
+    private final NavigableMap<String, List<Musical>> titleWords = new TreeMap<>();
+    private final int leaves;
+    private final int[] maxFree;
+    private final AtomicLongArray dirty;
+    // seats live in a file other processes write too; their sales mark nothing dirty here
+    private final boolean sharedSeats;
+
+    public Catalog(List<Musical> musicals) {
+        this.musicals = Collections.unmodifiableList(new ArrayList<>(musicals));
+        List<Show> shows = new ArrayList<>();
+        for (Musical m : musicals) {
+            for (Show s : m.shows) {
+                if (byId.put(s.id, s) != null)
+                    throw new IllegalArgumentException("Show " + s.id + " listed twice");
+                shows.add(s);
+            }
+            String title = m.name.toLowerCase(Locale.ROOT);
+            for (int i = 0; i < title.length(); i++)
+                if (i == 0 || (title.charAt(i - 1) == ' ' && title.charAt(i) != ' '))
+                    titleWords.computeIfAbsent(title.substring(i), k -> new ArrayList<>()).add(m);
+        }
+        shows.sort(Comparator.comparing(Show::startsAt).thenComparingInt(s -> s.id));
+        byTime = shows.toArray(new Show[0]);
+        for (int i = byTime.length - 1; i >= 0; i--)
+            firstSlotAt.put(byTime[i].startsAt(), i);
+
+        leaves = Integer.highestOneBit(Math.max(1, byTime.length - 1)) << 1;
+        maxFree = new int[2 * leaves];
+        Arrays.fill(maxFree, -1);
+        dirty = new AtomicLongArray((byTime.length + 63) >>> 6);
+        for (int i = 0; i < byTime.length; i++) {
+            maxFree[leaves + i] = byTime[i].availableSeats();
+            byTime[i].attach(this, i);
+        }
+        for (int n = leaves - 1; n >= 1; n--)
+            maxFree[n] = Math.max(maxFree[2 * n], maxFree[2 * n + 1]);
+        sharedSeats = shows.stream().anyMatch(Show::isShared);
+    }
+
+    public List<Musical> musicals() {
+        return musicals;
+    }
+
+    /** The show with this id, or null. */
+    public Show show(int id) {
+        return byId.get(id);
+    }
+
+    public Collection<Show> allShows() {
+        return Collections.unmodifiableList(Arrays.asList(byTime));
+    }
+
+    /** Shows starting in [from, to), in start-time order. */
+    public List<Show> between(LocalDateTime from, LocalDateTime to) {
+        int lo = slot(from);
+        int hi = Math.max(lo, slot(to));
+        return Collections.unmodifiableList(Arrays.asList(byTime).subList(lo, hi));
+    }
+
+    /** Shows from the start of {@code today} through the end of day {@code today + days - 1}. */
+    public List<Show> nextDays(LocalDate today, int days) {
+        return between(today.atStartOfDay(), today.plusDays(days).atStartOfDay());
+    }
+
+    /** Performances starting before {@link #MATINEE_CUTOFF} on any day from {@code from} to {@code to}, inclusive. */
+    public List<Show> matinees(LocalDate from, LocalDate to) {
+        List<Show> out = new ArrayList<>();
+        for (LocalDate d = from; !d.isAfter(to); d = d.plusDays(1))
+            out.addAll(between(d.atStartOfDay(), d.atTime(MATINEE_CUTOFF)));
+        return out;
+    }
+
+    /** Matinees on the coming weekend, or on the rest of this one if {@code today} is Saturday or Sunday. */
+    public List<Show> weekendMatinees(LocalDate today) {
+        LocalDate saturday = today.getDayOfWeek() == DayOfWeek.SUNDAY ? today
+                : today.with(TemporalAdjusters.nextOrSame(DayOfWeek.SATURDAY));
+        LocalDate sunday = today.getDayOfWeek() == DayOfWeek.SUNDAY ? today : saturday.plusDays(1);
+        return matinees(saturday, sunday);
+    }
+
+    /** Shows starting in [from, to) with at least {@code minFree} seats neither sold nor held. */
+    public synchronized List<Show> withFreeSeats(LocalDateTime from, LocalDateTime to, int minFree) {
+        catchUp();
+        List<Show> out = new ArrayList<>();
+        collect(1, 0, leaves, slot(from), slot(to), minFree, out);
+        return out;
+    }
+
+    /** Musicals with a title word starting with {@code prefix}, ignoring case. */
+    public List<Musical> titlesStartingWith(String prefix) {
+        String p = prefix.trim().toLowerCase(Locale.ROOT);
+        Set<Musical> out = new LinkedHashSet<>();
+        for (List<Musical> ms : titleWords.subMap(p, true, p + Character.MAX_VALUE, false).values())
+            out.addAll(ms);
+        return new ArrayList<>(out);
+    }
+
+    /** Called by a show whenever its seats change; cheap when the slot is already dirty. */
+    void markDirty(int slot) {
+        int word = slot >>> 6;
+        long bit = 1L << slot;
+        if ((dirty.get(word) & bit) == 0)
+            dirty.getAndUpdate(word, w -> w | bit);
+    }
+
+    private int slot(LocalDateTime t) {
+        Map.Entry<LocalDateTime, Integer> e = firstSlotAt.ceilingEntry(t);
+        return e == null ? byTime.length : e.getValue();
+    }
+
+    // caller holds the lock
+    private void catchUp() {
+        if (sharedSeats)
+            for (Show s : byTime)
+                s.pollShared();
+        for (int w = 0; w < dirty.length(); w++) {
+            if (dirty.get(w) == 0)
+                continue;
+            // clear first: a change after we read the count marks the slot again
+            long bits = dirty.getAndSet(w, 0);
+            while (bits != 0) {
+                int slot = (w << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                int n = leaves + slot;
+                maxFree[n] = byTime[slot].availableSeats();
+                for (n >>>= 1; n >= 1; n >>>= 1)
+                    maxFree[n] = Math.max(maxFree[2 * n], maxFree[2 * n + 1]);
+            }
+        }
+    }
+
+    private void collect(int node, int lo, int hi, int from, int to, int minFree, List<Show> out) {
+        if (hi <= from || lo >= to || maxFree[node] < minFree)
+            return;
+        if (hi - lo == 1) {
+            out.add(byTime[lo]);
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        collect(2 * node, lo, mid, from, to, minFree, out);
+        collect(2 * node + 1, mid, hi, from, to, minFree, out);
+    }
+}
+
+enum TicketType {
+    ADULT("Adult", 50), SENIOR("Senior", 40), STUDENT("Student", 35);
+
+    static final TicketType[] ALL = values();
+
+    /** The name receipts and the journal have always used. */
+    final String label;
+    /** Best seat, evening performance, nothing sold yet. */
+    final int basePrice;
+
+    TicketType(String label, int basePrice) {
+        this.label = label;
+        this.basePrice = basePrice;
+    }
+
+    /** The type of the k-th seat in an order: adults first, then seniors, then students. */
+    static TicketType at(int k, int adults, int seniors) {
+        return k < adults ? ADULT : k < adults + seniors ? SENIOR : STUDENT;
+    }
+
+    static TicketType of(String label) {
+        for (TicketType t : ALL)
+            if (t.label.equals(label))
+                return t;
+        throw new IllegalArgumentException("Unknown ticket type: " + label);
+    }
+}
+
+/**
+ * Demand-based pricing. Each show has a compiled {@link PriceTable}: a flat
+ * int array indexed by ticket type and seat tier (the venue's sections, best
+ * first), already adjusted for matinee and for how full the show is. Quoting
+ * is array reads against one table snapshot, so it allocates nothing and
+ * never sees half an update. Tables are only rebuilt when a sale or release
+ * moves a show across one of the occupancy steps.
+ */
+class Pricing {
+    /** Share of seats sold (percent) at which each surcharge step starts. */
+    static final int[] OCCUPANCY_STEPS = { 0, 50, 75, 90 };
+    /** Surcharge (percent) for each step in {@link #OCCUPANCY_STEPS}. */
+    static final int[] SURCHARGE_PERCENT = { 0, 10, 20, 35 };
+    /** Each section after the first costs this much (percent) less, down to {@link #MIN_TIER_PERCENT}. */
+    static final int TIER_STEP_PERCENT = 15;
+    static final int MIN_TIER_PERCENT = 55;
+    /** Performances before {@link Catalog#MATINEE_CUTOFF}. */
+    static final int MATINEE_PERCENT = 90;
+
+    private final AtomicReferenceArray<PriceTable> tables;
+
+    public Pricing(Collection<Show> shows) {
+        int maxId = 0;
+        for (Show s : shows)
+            maxId = Math.max(maxId, s.id);
+        tables = new AtomicReferenceArray<>(maxId + 1);
+        for (Show s : shows)
+            tables.set(s.id, PriceTable.build(s, stepFor(s, s.soldSeats())));
+    }
+
+    public PriceTable table(Show show) {
+        // another process's sales never reach seatsChanged here
+        if (show.isShared())
+            seatsChanged(show);
+        return current(show);
+    }
+
+    private PriceTable current(Show show) {
+        PriceTable t = show.id < tables.length() ? tables.get(show.id) : null;
+        if (t == null)
+            throw new IllegalArgumentException("Show " + show.id + " is not priced");
+        return t;
+    }
+
+    /** Total for seats typed in order (adults, then seniors, then students). Allocation-free. */
+    public int quote(Show show, int[] seats, int adults, int seniors) {
+        PriceTable t = table(show);
+        int total = 0;
+        for (int k = 0; k < seats.length; k++)
+            total += t.price(TicketType.at(k, adults, seniors), seats[k]);
+        return total;
+    }
+
+    /** Per-seat prices, aligned with {@code seats}, all from the same table snapshot. */
+    public int[] prices(Show show, int[] seats, int adults, int seniors) {
+        PriceTable t = table(show);
+        int[] out = new int[seats.length];
+        for (int k = 0; k < seats.length; k++)
+            out[k] = t.price(TicketType.at(k, adults, seniors), seats[k]);
+        return out;
+    }
+
+    /**
+     * Call after seats were sold or released. Costs two int compares unless
+     * the show just crossed an occupancy step, in which case only that show's
+     * table is rebuilt.
+     */
+    public void seatsChanged(Show show) {
+        PriceTable t = current(show);
+        int sold = show.soldSeats();
+        if (sold >= t.stepUpAt || sold < t.stepDownAt) {
+            PriceTable next = PriceTable.build(show, stepFor(show, sold));
+            // a concurrent rebuild for another count may win; the next change corrects it
+            tables.compareAndSet(show.id, t, next);
+        }
+    }
+
+    static int stepFor(Show show, int sold) {
+        int step = 0;
+        while (step + 1 < OCCUPANCY_STEPS.length && sold >= seatsForStep(show, step + 1))
+            step++;
+        return step;
+    }
+
+    static int seatsForStep(Show show, int step) {
+        return (int) (((long) show.capacity * OCCUPANCY_STEPS[step] + 99) / 100);
+    }
+}
+
+/** One show's prices at one occupancy step. Immutable. */
+final class PriceTable {
+    final Show show;
+    final int step;
+    final int tiers;
+    /** Sold-seat counts at which the show moves to the next or previous step. */
+    final int stepUpAt;
+    final int stepDownAt;
+    private final int[] prices; // [type.ordinal() * tiers + tier]
+    // rendered once by whoever first needs it (the server's price list)
+    volatile String json;
+
+    private PriceTable(Show show, int step, int[] prices) {
+        this.show = show;
+        this.step = step;
+        this.tiers = show.venue.sections().size();
+        this.prices = prices;
+        this.stepUpAt = step + 1 < Pricing.OCCUPANCY_STEPS.length ? Pricing.seatsForStep(show, step + 1)
+                : Integer.MAX_VALUE;
+        this.stepDownAt = step == 0 ? Integer.MIN_VALUE : Pricing.seatsForStep(show, step);
+    }
+
+    static PriceTable build(Show show, int step) {
+        int tiers = show.venue.sections().size();
+        boolean matinee = show.time.isBefore(Catalog.MATINEE_CUTOFF);
+        int[] prices = new int[TicketType.ALL.length * tiers];
+        for (TicketType type : TicketType.ALL) {
+            for (int tier = 0; tier < tiers; tier++) {
+                long p = (long) type.basePrice * Math.max(Pricing.MIN_TIER_PERCENT,
+                        100 - tier * Pricing.TIER_STEP_PERCENT);
+                if (matinee)
+                    p = p * Pricing.MATINEE_PERCENT / 100;
+                p = p * (100 + Pricing.SURCHARGE_PERCENT[step]);
+                prices[type.ordinal() * tiers + tier] = (int) ((p + 5_000) / 10_000); // round to whole dollars
+            }
+        }
+        return new PriceTable(show, step, prices);
+    }
+
+    int price(TicketType type, int seat) {
+        return prices[type.ordinal() * tiers + show.venue.tierOf(seat)];
+    }
+
+    int price(TicketType type, String section) {
+        return prices[type.ordinal() * tiers + show.venue.sections().indexOf(section)];
+    }
+
+    int min(TicketType type) {
+        int m = Integer.MAX_VALUE;
+        for (int tier = 0; tier < tiers; tier++)
+            m = Math.min(m, prices[type.ordinal() * tiers + tier]);
+        return m;
+    }
+
+    int max(TicketType type) {
+        int m = 0;
+        for (int tier = 0; tier < tiers; tier++)
+            m = Math.max(m, prices[type.ordinal() * tiers + tier]);
+        return m;
+    }
+}
+
+/**
+ * A venue's seating plan: sections made of rows, listed best first. Seats are
+ * numbered 1..capacity in that order, so a seat number is all a {@link Show}
+ * needs to store; the venue turns it back into "Stalls C14".
+ *
+ * Layout files are plain text:
+ *
+ * <pre>
+ * venue Lyceum Theatre
+ * section Stalls
+ * rows A-T 28        # rows A to T, 28 seats each
+ * section Royal Circle
+ * row AA 20          # a single row
+ * rows 1-60 80       # numbered rows work too
+ * </pre>
+ */
+class Venue {
+    final String name;
+    final List<Row> rows;
+    private final int[] rowStarts;
+    private final int capacity;
+    private final int widestRow;
+    private final List<String> sections;
+    // seat n's index into sections (its price tier), at [n]
+    private final byte[] seatTier;
+
+    static final class Row {
+        final String section;
+        final String label;
+        final int firstSeat;
+        final int seats;
+
+        Row(String section, String label, int firstSeat, int seats) {
+            this.section = section;
+            this.label = label;
+            this.firstSeat = firstSeat;
+            this.seats = seats;
+        }
+    }
+
+    private Venue(String name, List<Row> rows) {
+        this.name = name;
+        this.rows = Collections.unmodifiableList(rows);
+        this.rowStarts = new int[rows.size()];
+        int widest = 0;
+        for (int i = 0; i < rows.size(); i++) {
+            rowStarts[i] = rows.get(i).firstSeat;
+            widest = Math.max(widest, rows.get(i).seats);
+        }
+        Row last = rows.isEmpty() ? null : rows.get(rows.size() - 1);
+        this.capacity = last == null ? 0 : last.firstSeat + last.seats - 1;
+        this.widestRow = widest;
+        List<String> names = new ArrayList<>();
+        this.seatTier = new byte[capacity + 1];
+        for (Row r : rows) {
+            int tier = names.indexOf(r.section);
+            if (tier < 0) {
+                tier = names.size();
+                names.add(r.section);
+            }
+            Arrays.fill(seatTier, r.firstSeat, r.firstSeat + r.seats, (byte) tier);
+        }
+        this.sections = Collections.unmodifiableList(names);
+    }
+
+    /** Section names in layout order, best first; a section's index is its price tier. */
+    List<String> sections() {
+        return sections;
+    }
+
+    int tierOf(int seat) {
+        return seatTier[seat] & 0xFF;
+    }
+
+    /** A plain hall of {@code capacity} seats in rows of {@code perRow}, rows lettered A, B, ... */
+    static Venue uniform(int capacity, int perRow) {
+        List<Row> rows = new ArrayList<>();
+        for (int first = 1, r = 0; first <= capacity; first += perRow, r++)
+            rows.add(new Row("Hall", rowLabel(r), first, Math.min(perRow, capacity - first + 1)));
+        return new Venue("Hall", rows);
+    }
+
+    static Venue load(Path file) throws IOException {
+        return parse(Files.readAllLines(file, StandardCharsets.UTF_8), file.getFileName().toString());
+    }
+
+    static Venue parse(List<String> lines, String source) throws IOException {
+        String name = source;
+        String section = "Hall";
+        List<Row> rows = new ArrayList<>();
+        int next = 1;
+        for (int n = 0; n < lines.size(); n++) {
+            String line = lines.get(n);
+            int hash = line.indexOf('#');
+            line = (hash >= 0 ? line.substring(0, hash) : line).trim();
+            if (line.isEmpty())
+                continue;
+            String[] parts = line.split("\\s+", 2);
+            String arg = parts.length > 1 ? parts[1].trim() : "";
+            try {
+                switch (parts[0]) {
+                    case "venue":
+                        name = arg;
+                        break;
+                    case "section":
+                        section = arg;
+                        break;
+                    case "row": {
+                        String[] rs = arg.split("\\s+");
+                        int seats = seatCount(rs[1]);
+                        rows.add(new Row(section, rs[0], next, seats));
+                        next += seats;
+                        break;
+                    }
+                    case "rows": {
+                        String[] rs = arg.split("\\s+");
+                        String[] range = rs[0].split("-");
+                        int seats = seatCount(rs[1]);
+                        for (String label : labelRange(range[0], range[1])) {
+                            rows.add(new Row(section, label, next, seats));
+                            next += seats;
+                        }
+                        break;
+                    }
+                    default:
+                        throw new IOException("unknown keyword '" + parts[0] + "'");
+                }
+            } catch (RuntimeException ex) {
+                throw new IOException(source + ":" + (n + 1) + ": bad line '" + lines.get(n) + "'", ex);
+            } catch (IOException ex) {
+                throw new IOException(source + ":" + (n + 1) + ": " + ex.getMessage());
+            }
+        }
+        if (rows.isEmpty())
+            throw new IOException(source + ": no rows defined");
+        if (rows.stream().map(r -> r.section).distinct().count() > 256)
+            throw new IOException(source + ": more than 256 sections");
+        return new Venue(name, rows);
+    }
+
+    // a row's seat count; reported like any other bad line
+    private static int seatCount(String text) {
+        int seats = Integer.parseInt(text);
+        if (seats < 1)
+            throw new IllegalArgumentException("a row needs at least one seat");
+        return seats;
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    int widestRow() {
+        return widestRow;
+    }
+
+    /** Index into {@link #rows} of the row holding {@code seat}. */
+    int rowIndexOf(int seat) {
+        int i = Arrays.binarySearch(rowStarts, seat);
+        return i >= 0 ? i : -i - 2;
+    }
+
+    /** "Stalls C14" for a seat number. */
+    String seatLabel(int seat) {
+        Row r = rows.get(rowIndexOf(seat));
+        return r.section + " " + r.label + (seat - r.firstSeat + 1);
+    }
+
+    /** A, B, ..., Z, AA, AB, ... */
+    static String rowLabel(int index) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = index + 1; i > 0; i = (i - 1) / 26)
+            sb.insert(0, (char) ('A' + (i - 1) % 26));
+        return sb.toString();
+    }
+
+    private static List<String> labelRange(String from, String to) {
+        List<String> labels = new ArrayList<>();
+        if (Character.isDigit(from.charAt(0))) {
+            for (int i = Integer.parseInt(from); i <= Integer.parseInt(to); i++)
+                labels.add(Integer.toString(i));
+        } else {
+            for (int i = labelIndex(from); i <= labelIndex(to); i++)
+                labels.add(rowLabel(i));
+        }
+        if (labels.isEmpty())
+            throw new IllegalArgumentException("empty row range " + from + "-" + to);
+        return labels;
+    }
+
+    private static int labelIndex(String label) {
+        int i = 0;
+        for (char c : label.toUpperCase(Locale.ROOT).toCharArray())
+            i = i * 26 + (c - 'A' + 1);
+        return i - 1;
+    }
+}
+
+/**
+ * Index of free seats for best-available requests: a segment tree over the
+ * show's seats keeping, per node, the free run touching its left edge, the one
+ * touching its right edge and the longest run inside it. Runs never join across
+ * a row boundary. Updates and "leftmost block of N together" are O(log seats).
+ * Since seats are numbered best row first, leftmost is also best row first.
+ *
+ * The tree trails the seat bitmap by a moment (Show updates it after each CAS),
+ * so callers must treat an answer as a hint and confirm it with tryBookAll.
+ * An update re-reads the seat from the bitmap under the tree's lock rather than
+ * taking the new state from its caller, so whichever update for a seat runs
+ * last leaves the tree in step with the bitmap, however a racing claim and
+ * release interleave.
+ */
+class SeatAllocator {
+    private final Show show;
+    private final int size; // leaves, power of two
+    private final int[] pre;
+    private final int[] suf;
+    private final int[] best;
+    private final BitSet rowStart = new BitSet(); // seat numbers that begin a row
+
+    SeatAllocator(Show show) {
+        this.show = show;
+        int n = 1;
+        while (n < show.capacity)
+            n <<= 1;
+        this.size = n;
+        pre = new int[2 * n];
+        suf = new int[2 * n];
+        best = new int[2 * n];
+        for (Venue.Row r : show.venue.rows)
+            rowStart.set(r.firstSeat);
+        rowStart.set(show.capacity + 1);
+        synchronized (this) {
+            for (int seat = 1; seat <= show.capacity; seat++) {
+                int v = show.isAvailable(seat) ? 1 : 0;
+                pre[n + seat - 1] = suf[n + seat - 1] = best[n + seat - 1] = v;
+            }
+            for (int node = n - 1; node >= 1; node--)
+                pull(node);
+        }
+    }
+
+    /** Brings {@code seat} in line with the bitmap. */
+    synchronized void update(int seat) {
+        int node = size + seat - 1;
+        int v = show.isAvailable(seat) ? 1 : 0;
+        if (best[node] == v)
+            return;
+        pre[node] = suf[node] = best[node] = v;
+        for (node >>= 1; node >= 1; node >>= 1)
+            pull(node);
+    }
+
+    /** Re-reads {@code seats} from the bitmap, after a hint turned out stale. */
+    void resync(int[] seats) {
+        for (int seat : seats)
+            if (seat >= 1 && seat <= show.capacity)
+                update(seat);
+    }
+
+    synchronized int[] find(int count) {
+        if (count <= 0 || best[1] < count)
+            return null;
+        int start = leftmost(1, 0, size, count);
+        if (start < 0)
+            return null;
+        // widen to the whole free run within the row and centre the block in it;
+        // bounded by the row's width, not the venue's size
+        Venue.Row row = show.venue.rows.get(show.venue.rowIndexOf(start));
+        int lo = start;
+        while (lo > row.firstSeat && best[size + lo - 2] == 1)
+            lo--;
+        int hi = start + count - 1;
+        int rowEnd = row.firstSeat + row.seats - 1;
+        while (hi < rowEnd && best[size + hi] == 1)
+            hi++;
+        int rowMid = row.firstSeat + (row.seats - 1) / 2;
+        int first = Math.max(lo, Math.min(hi - count + 1, rowMid - (count - 1) / 2));
+        int[] seats = new int[count];
+        for (int i = 0; i < count; i++)
+            seats[i] = first + i;
+        return seats;
+    }
+
+    /** First seat of the leftmost free block of {@code count} within node [lo, hi) (0-based), or -1. */
+    private int leftmost(int node, int lo, int hi, int count) {
+        if (best[node] < count)
+            return -1;
+        if (hi - lo == 1)
+            return lo + 1;
+        int mid = (lo + hi) >>> 1;
+        int l = 2 * node, r = l + 1;
+        if (best[l] >= count)
+            return leftmost(l, lo, mid, count);
+        if (joins(mid) && suf[l] + pre[r] >= count)
+            return mid - suf[l] + 1;
+        return leftmost(r, mid, hi, count);
+    }
+
+    /** Whether a run may continue from seat {@code boundary} (0-based, last of left) into the next. */
+    private boolean joins(int boundary) {
+        return !rowStart.get(boundary + 1);
+    }
+
+    private void pull(int node) {
+        int l = 2 * node, r = l + 1;
+        // node's range: width = leaves under it; mid = first leaf of the right child
+        int width = Integer.highestOneBit(size) >> (31 - Integer.numberOfLeadingZeros(node));
+        int half = width >> 1;
+        int lo = node * width - size;
+        int mid = lo + half;
+        boolean join = joins(mid);
+        pre[node] = pre[l] == half && join ? half + pre[r] : pre[l];
+        suf[node] = suf[r] == half && join ? half + suf[l] : suf[r];
+        best[node] = Math.max(Math.max(best[l], best[r]), join ? suf[l] + pre[r] : 0);
+    }
+}
+
+class Order {
+    final String id;
+    final String musicalName;
+    final LocalDate showDate;
+    final LocalTime showTime;
+    final LinkedHashMap<Integer, String> seatType;
+    /** Price paid for each seat, in {@link #seatType} order. */
+    final int[] prices;
+    final int total;
+    // completed by the ReceiptWriter with the receipt's path once it is on disk
+    final CompletableFuture<String> receipt = new CompletableFuture<>();
+    // the package this order is one show of, or null; set before the receipt is queued
+    CartOrder cart;
+
+    public Order(String id, String musicalName, LocalDate showDate, LocalTime showTime, Map<Integer, String> seatType,
+            int[] prices) {
+        if (prices.length != seatType.size())
+            throw new IllegalArgumentException("One price per seat expected");
+        this.id = id;
+        this.musicalName = musicalName;
+        this.showDate = showDate;
+        this.showTime = showTime;
+        this.seatType = new LinkedHashMap<>(seatType);
+        this.prices = prices.clone();
+        int sum = 0;
+        for (int p : prices)
+            sum += p;
+        this.total = sum;
+    }
+}
+
+/**
+ * A package of several shows bought together: one {@link Order} per show,
+ * booked all or nothing, under one order id and one receipt. Each part keeps
+ * its own id and receipt record, so per-show sales reports see ordinary orders.
+ */
+class CartOrder {
+    final String id;
+    final List<Order> parts;
+    /** The show each part is for, in {@link #parts} order (ascending show id). */
+    final List<Show> shows;
+    final int total;
+    // completed with the first part's location once every part's receipt is on disk
+    final CompletableFuture<String> receipt = new CompletableFuture<>();
+
+    CartOrder(String id, List<Order> parts, List<Show> shows) {
+        this.id = id;
+        this.parts = Collections.unmodifiableList(new ArrayList<>(parts));
+        this.shows = Collections.unmodifiableList(new ArrayList<>(shows));
+        int sum = 0;
+        for (Order o : parts) {
+            o.cart = this;
+            sum += o.total;
+        }
+        this.total = sum;
+        CompletableFuture.allOf(parts.stream().map(o -> o.receipt).toArray(CompletableFuture[]::new))
+                .whenComplete((v, err) -> {
+                    if (err != null)
+                        receipt.completeExceptionally(err instanceof CompletionException ? err.getCause() : err);
+                    else
+                        receipt.complete(parts.get(0).receipt.join());
+                });
+    }
+}
+
+/**
+ * Seat grid painted straight from a {@link Show}'s seat bitmap, replacing the
+ * list of "S&lt;n&gt;" strings. Seats are addressed by number; clicking (or
+ * dragging over) free seats toggles their selection. {@link #refresh()} diffs the
+ * show's bitmap against what was last painted and repaints only the cells that
+ * changed, and painting covers only the clip, so cost doesn't grow with venue size.
+ */
+class SeatMapPanel extends JComponent implements Scrollable {
+    private static final long serialVersionUID = 1L;
+    static final int CELL_W = 26;
+    static final int CELL_H = 22;
+    static final int GAP = 3;
+    static final int LABEL_W = 110;
+    private static final Color FREE = new Color(200, 230, 200);
+    private static final Color BOOKED = new Color(190, 190, 190);
+    private static final Color SELECTED = new Color(70, 130, 220);
+    private static final Color HELD = new Color(240, 200, 110);
+
+    private Show show;
+    private long[] paintedTaken = new long[0];
+    private long[] paintedSold = new long[0];
+    private SeatHold ownHold;
+    private final BitSet selected = new BitSet();
+    private boolean selectable = true;
+    private Boolean dragSelects;
+
+    public SeatMapPanel() {
+        setOpaque(true);
+        setBackground(Color.WHITE);
+        setFont(new Font(Font.SANS_SERIF, Font.PLAIN, 10));
+        MouseAdapter mouse = new MouseAdapter() {
+            @Override
+            public void mousePressed(MouseEvent e) {
+                int seat = seatAt(e.getX(), e.getY());
+                if (seat > 0 && selectable && isPickable(seat)) {
+                    dragSelects = !selected.get(seat);
+                    setSelected(seat, dragSelects);
+                }
+            }
+
+            @Override
+            public void mouseDragged(MouseEvent e) {
+                int seat = seatAt(e.getX(), e.getY());
+                if (seat > 0 && dragSelects != null && isPickable(seat))
+                    setSelected(seat, dragSelects);
+            }
+
+            @Override
+            public void mouseReleased(MouseEvent e) {
+                dragSelects = null;
+            }
+        };
+        addMouseListener(mouse);
+        addMouseMotionListener(mouse);
+    }
+
+    public void setSelectable(boolean selectable) {
+        this.selectable = selectable;
+    }
+
+    public Show getShow() {
+        return show;
+    }
+
+    /** Binds the map to another show (or none), clearing the selection. */
+    public void setShow(Show show) {
+        this.show = show;
+        this.ownHold = null;
+        selected.clear();
+        int words = show == null ? 0 : show.seatWordCount();
+        paintedTaken = new long[words];
+        paintedSold = new long[words];
+        for (int w = 0; w < words; w++) {
+            paintedTaken[w] = show.takenWord(w);
+            paintedSold[w] = show.soldWord(w);
+        }
+        revalidate();
+        repaint();
+    }
+
+    /**
+     * Marks the seats of the dialog's own hold so they paint as selected rather
+     * than as held by someone else. Pass {@code null} once the hold is gone.
+     */
+    public void setOwnHold(SeatHold hold) {
+        SeatHold previous = ownHold;
+        ownHold = hold;
+        if (previous != null)
+            for (int seat : previous.seats)
+                repaintSeat(seat);
+        if (hold != null)
+            for (int seat : hold.seats)
+                repaintSeat(seat);
+    }
+
+    /**
+     * Picks up seat changes since the last paint. Seats newly sold or held by
+     * someone else are dropped from the selection.
+     *
+     * @return number of seats repainted
+     */
+    public int refresh() {
+        if (show == null)
+            return 0;
+        int dirty = 0;
+        for (int w = 0; w < paintedTaken.length; w++) {
+            long taken = show.takenWord(w);
+            long sold = show.soldWord(w);
+            long changed = (taken ^ paintedTaken[w]) | (sold ^ paintedSold[w]);
+            if (changed == 0)
+                continue;
+            paintedTaken[w] = taken;
+            paintedSold[w] = sold;
+            while (changed != 0) {
+                int seat = (w << 6) + Long.numberOfTrailingZeros(changed) + 1;
+                changed &= changed - 1;
+                if (!isPickable(seat))
+                    selected.clear(seat);
+                repaintSeat(seat);
+                dirty++;
+            }
+        }
+        return dirty;
+    }
+
+    /** Selected seat numbers, ascending. */
+    public int[] selectedSeats() {
+        return selected.stream().toArray();
+    }
+
+    /** Replaces the selection, e.g. with a best-available block, and scrolls it into view. */
+    public void setSelection(int[] seats) {
+        clearSelection();
+        for (int seat : seats)
+            if (seat >= 1 && show != null && seat <= show.capacity && isPickable(seat))
+                setSelected(seat, true);
+        if (seats.length > 0 && show != null)
+            scrollRectToVisible(cellBounds(seats[0]).union(cellBounds(seats[seats.length - 1])));
+    }
+
+    public void clearSelection() {
+        for (int seat = selected.nextSetBit(0); seat >= 0; seat = selected.nextSetBit(seat + 1))
+            repaintSeat(seat);
+        selected.clear();
+    }
+
+    private void setSelected(int seat, boolean on) {
+        if (selected.get(seat) == on)
+            return;
+        selected.set(seat, on);
+        repaintSeat(seat);
+    }
+
+    private boolean isSold(int seat) {
+        int bit = seat - 1;
+        return (paintedSold[bit >>> 6] & (1L << bit)) != 0;
+    }
+
+    private boolean isTaken(int seat) {
+        int bit = seat - 1;
+        return (paintedTaken[bit >>> 6] & (1L << bit)) != 0;
+    }
+
+    private boolean isOwnHold(int seat) {
+        SeatHold hold = ownHold;
+        return hold != null && hold.isActive() && hold.contains(seat);
+    }
+
+    /** Free seats, plus seats this dialog is already holding. */
+    private boolean isPickable(int seat) {
+        return !isTaken(seat) || (!isSold(seat) && isOwnHold(seat));
+    }
+
+    private int seatAt(int x, int y) {
+        if (show == null || x < LABEL_W + GAP || y < GAP)
+            return -1;
+        int col = (x - LABEL_W - GAP) / (CELL_W + GAP);
+        int row = (y - GAP) / (CELL_H + GAP);
+        if (row >= show.venue.rows.size())
+            return -1;
+        Venue.Row r = show.venue.rows.get(row);
+        return col < r.seats ? r.firstSeat + col : -1;
+    }
+
+    private Rectangle cellBounds(int seat) {
+        int row = show.venue.rowIndexOf(seat);
+        int col = seat - show.venue.rows.get(row).firstSeat;
+        return new Rectangle(LABEL_W + GAP + col * (CELL_W + GAP), GAP + row * (CELL_H + GAP), CELL_W, CELL_H);
+    }
+
+    private void repaintSeat(int seat) {
+        repaint(cellBounds(seat));
+    }
+
+    @Override
+    public Dimension getPreferredSize() {
+        if (show == null)
+            return new Dimension(LABEL_W, GAP);
+        Venue v = show.venue;
+        return new Dimension(LABEL_W + GAP + v.widestRow() * (CELL_W + GAP), GAP + v.rows.size() * (CELL_H + GAP));
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        Rectangle clip = g.getClipBounds();
+        if (clip == null)
+            clip = new Rectangle(0, 0, getWidth(), getHeight());
+        g.setColor(getBackground());
+        g.fillRect(clip.x, clip.y, clip.width, clip.height);
+        if (show == null)
+            return;
+        List<Venue.Row> rows = show.venue.rows;
+        FontMetrics fm = g.getFontMetrics();
+        int textDy = (CELL_H + fm.getAscent() - fm.getDescent()) / 2;
+        int firstRow = Math.max(0, (clip.y - GAP) / (CELL_H + GAP));
+        int lastRow = Math.min(rows.size() - 1, (clip.y + clip.height) / (CELL_H + GAP));
+        int firstCol = Math.max(0, (clip.x - LABEL_W - GAP) / (CELL_W + GAP));
+        int lastCol = (clip.x + clip.width - LABEL_W) / (CELL_W + GAP);
+        for (int row = firstRow; row <= lastRow; row++) {
+            Venue.Row r = rows.get(row);
+            int y = GAP + row * (CELL_H + GAP);
+            if (clip.x < LABEL_W) {
+                g.setColor(Color.DARK_GRAY);
+                g.drawString(r.section + " " + r.label, GAP, y + textDy);
+            }
+            for (int col = firstCol; col <= Math.min(lastCol, r.seats - 1); col++) {
+                int seat = r.firstSeat + col;
+                int x = LABEL_W + GAP + col * (CELL_W + GAP);
+                boolean sold = isSold(seat);
+                boolean heldElsewhere = !sold && isTaken(seat) && !isOwnHold(seat);
+                g.setColor(sold ? BOOKED : heldElsewhere ? HELD : selected.get(seat) ? SELECTED : FREE);
+                g.fillRect(x, y, CELL_W, CELL_H);
+                g.setColor(sold ? Color.GRAY : Color.DARK_GRAY);
+                g.drawRect(x, y, CELL_W - 1, CELL_H - 1);
+                String label = Integer.toString(col + 1);
+                g.setColor(selected.get(seat) ? Color.WHITE : sold ? Color.GRAY : Color.BLACK);
+                g.drawString(label, x + (CELL_W - fm.stringWidth(label)) / 2, y + textDy);
+            }
+        }
+    }
+
+    @Override
+    public Dimension getPreferredScrollableViewportSize() {
+        Dimension d = getPreferredSize();
+        return new Dimension(d.width, Math.min(d.height, 15 * (CELL_H + GAP)));
+    }
+
+    @Override
+    public int getScrollableUnitIncrement(Rectangle visible, int orientation, int direction) {
+        return orientation == SwingConstants.VERTICAL ? CELL_H + GAP : CELL_W + GAP;
+    }
+
+    @Override
+    public int getScrollableBlockIncrement(Rectangle visible, int orientation, int direction) {
+        return orientation == SwingConstants.VERTICAL ? visible.height : visible.width;
+    }
+
+    @Override
+    public boolean getScrollableTracksViewportWidth() {
+        return false;
+    }
+
+    @Override
+    public boolean getScrollableTracksViewportHeight() {
+        return false;
+    }
+}
+
+/**
+ * Poster thumbnails for the musical list. Posters are decoded and downsampled
+ * on a small background pool, never on the EDT. Finished thumbnails are kept in
+ * a bounded in-memory LRU and written to an on-disk cache keyed by the poster's
+ * path hash, modification time and size, so a restart skips the full-size decode
+ * too. Until a thumbnail arrives callers show {@link #placeholder()}.
+ */
+class PosterCache {
+    private final int width;
+    private final int height;
+    private final int maxEntries;
+    private final Path diskDir;
+    private final ImageIcon placeholder;
+    private final ExecutorService loaders;
+    private final Map<String, ImageIcon> lru;
+    private final ConcurrentHashMap<String, CompletableFuture<ImageIcon>> inFlight = new ConcurrentHashMap<>();
+
+    public PosterCache(int width, int height, int maxEntries, Path diskDir) {
+        this.width = width;
+        this.height = height;
+        this.maxEntries = maxEntries;
+        this.diskDir = diskDir;
+        this.placeholder = new ImageIcon(placeholderImage(width, height));
+        this.lru = new LinkedHashMap<String, ImageIcon>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ImageIcon> eldest) {
+                return size() > PosterCache.this.maxEntries;
+            }
+        };
+        AtomicInteger n = new AtomicInteger();
+        this.loaders = Executors.newFixedThreadPool(Math.min(4, Runtime.getRuntime().availableProcessors()), r -> {
+            Thread t = new Thread(r, "poster-loader-" + n.incrementAndGet());
+            t.setDaemon(true);
+            t.setPriority(Thread.NORM_PRIORITY - 1);
+            return t;
+        });
+    }
+
+    public ImageIcon placeholder() {
+        return placeholder;
+    }
+
+    /** The thumbnail if it is already in memory, else null. */
+    public ImageIcon cached(String imagePath) {
+        synchronized (lru) {
+            return lru.get(imagePath);
+        }
+    }
+
+    /**
+     * Loads the thumbnail in the background. Concurrent requests for the same
+     * poster share one decode. Completes with the placeholder if the poster
+     * can't be read.
+     */
+    public CompletableFuture<ImageIcon> load(String imagePath) {
+        ImageIcon hit = cached(imagePath);
+        if (hit != null)
+            return CompletableFuture.completedFuture(hit);
+        return inFlight.computeIfAbsent(imagePath, p -> {
+            CompletableFuture<ImageIcon> f = CompletableFuture.supplyAsync(() -> decode(p), loaders);
+            f.whenComplete((icon, err) -> inFlight.remove(p));
+            return f;
+        });
+    }
+
+    private ImageIcon decode(String imagePath) {
+        Path source = Paths.get(imagePath);
+        BufferedImage thumb = null;
+        Path diskFile = null;
+        try {
+            diskFile = diskDir.resolve(diskKey(source));
+            if (Files.exists(diskFile))
+                thumb = ImageIO.read(diskFile.toFile());
+        } catch (IOException ignored) {
+            // no disk cache entry to use; fall through to the full decode
+        }
+        if (thumb == null) {
+            try {
+                thumb = downsample(source);
+            } catch (IOException ex) {
+                thumb = null;
+            }
+            if (thumb == null)
+                return placeholder;
+            if (diskFile != null) {
+                try {
+                    Files.createDirectories(diskDir);
+                    Path tmp = Files.createTempFile(diskDir, "thumb", ".tmp");
+                    ImageIO.write(thumb, "png", tmp.toFile());
+                    Files.move(tmp, diskFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException ignored) {
+                    // the disk cache is an optimisation only
+                }
+            }
+        }
+        ImageIcon icon = new ImageIcon(thumb);
+        synchronized (lru) {
+            lru.put(imagePath, icon);
+        }
+        return icon;
+    }
+
+    /** Cache file name: path hash, mtime and size of the poster, plus the thumbnail size. */
+    private String diskKey(Path source) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(source, BasicFileAttributes.class);
+        String h = Integer.toHexString(source.toAbsolutePath().normalize().toString().hashCode());
+        return h + "_" + attrs.lastModifiedTime().toMillis() + "_" + attrs.size() + "_" + width + "x" + height
+                + ".png";
+    }
+
+    /**
+     * Decodes with source subsampling so a large poster is never fully
+     * materialised, then scales to the thumbnail size.
+     */
+    private BufferedImage downsample(Path source) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(source.toFile())) {
+            if (in == null)
+                return null;
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext())
+                return null;
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                int step = Math.max(1,
+                        Math.min(reader.getWidth(0) / (width * 2), reader.getHeight(0) / (height * 2)));
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(step, step, 0, 0);
+                BufferedImage src = reader.read(0, param);
+                BufferedImage out = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+                Graphics2D g = out.createGraphics();
+                g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+                g.drawImage(src, 0, 0, width, height, null);
+                g.dispose();
+                return out;
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private static BufferedImage placeholderImage(int width, int height) {
+        BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = img.createGraphics();
+        g.setColor(new Color(230, 230, 230));
+        g.fillRect(0, 0, width, height);
+        g.setColor(Color.GRAY);
+        g.drawRect(0, 0, width - 1, height - 1);
+        g.dispose();
+        return img;
+    }
+}
+
+/**
+ * Seats taken out of sale for one customer while they check out. A hold ends
+ * exactly once: converted into a booking, released, or expired by the
+ * {@link HoldManager}'s timing wheel; whichever gets there first wins.
+ */
+class SeatHold {
+    enum State { ACTIVE, CONVERTED, RELEASED, EXPIRED }
+
+    final long id;
+    /** What HTTP clients know the hold by: random, so one customer can't guess another's. */
+    final String token;
+    final Show show;
+    final int[] seats; // ascending
+    final long expiresAtMillis;
+    private final AtomicReference<State> state = new AtomicReference<>(State.ACTIVE);
+    private final HoldManager owner;
+    // timing-wheel bookkeeping, only touched by the expiry thread
+    long deadlineTick;
+    long remainingRounds;
+
+    SeatHold(long id, String token, Show show, int[] seats, long expiresAtMillis, HoldManager owner) {
+        this.id = id;
+        this.token = token;
+        this.show = show;
+        this.seats = seats;
+        this.expiresAtMillis = expiresAtMillis;
+        this.owner = owner;
+    }
+
+    public State state() {
+        return state.get();
+    }
+
+    public boolean isActive() {
+        return state.get() == State.ACTIVE;
+    }
+
+    public boolean contains(int seat) {
+        return Arrays.binarySearch(seats, seat) >= 0;
+    }
+
+    /** Whether this hold covers exactly {@code selection} (in any order). */
+    public boolean covers(int[] selection) {
+        if (selection.length != seats.length)
+            return false;
+        int[] sorted = selection.clone();
+        Arrays.sort(sorted);
+        return Arrays.equals(sorted, seats);
+    }
+
+    /**
+     * Turns the held seats into sold seats.
+     *
+     * @return false if the hold had already expired or been released
+     */
+    boolean convert() {
+        if (!finish(State.CONVERTED))
+            return false;
+        show.confirmHeld(seats);
+        return true;
+    }
+
+    /** Puts the seats back on sale; a no-op once the hold has ended. */
+    public void release() {
+        if (finish(State.RELEASED))
+            show.releaseHeld(seats);
+    }
+
+    boolean expire() {
+        if (!finish(State.EXPIRED))
+            return false;
+        show.releaseHeld(seats);
+        return true;
+    }
+
+    private boolean finish(State to) {
+        if (!state.compareAndSet(State.ACTIVE, to))
+            return false;
+        owner.ended(this);
+        return true;
+    }
+}
+
+/**
+ * Places seat holds and expires them on a hashed timing wheel. New holds are
+ * handed to the expiry thread through a lock-free queue; each tick it files
+ * them into the slot their deadline falls in and expires whatever is due in
+ * the current slot, so the cost per tick depends on that slot alone, not on
+ * how many holds or shows there are. Holds that end early are dropped from
+ * their slot lazily when the wheel next passes it.
+ */
+class HoldManager implements Closeable {
+    private static final AtomicLong NEXT_ID = new AtomicLong(1);
+
+    private final long ttlMillis;
+    private final long tickNanos;
+    private final int mask;
+    private final ArrayDeque<SeatHold>[] wheel;
+    private final ConcurrentLinkedQueue<SeatHold> incoming = new ConcurrentLinkedQueue<>();
+    private final long startNanos = System.nanoTime();
+    private final Thread ticker;
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong expired = new AtomicLong();
+    // live holds by id, for in-process callers, and by token, for clients that refer to a hold across requests
+    private final ConcurrentHashMap<Long, SeatHold> byId = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, SeatHold> byToken = new ConcurrentHashMap<>();
+    private volatile boolean closed;
+
+    /**
+     * @param ttlMillis  how long a hold lasts
+     * @param tickMillis wheel resolution; holds expire up to one tick late
+     * @param slots      wheel size, rounded up to a power of two
+     */
+    @SuppressWarnings("unchecked")
+    public HoldManager(long ttlMillis, long tickMillis, int slots) {
+        this.ttlMillis = ttlMillis;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        int size = Integer.highestOneBit(Math.max(1, slots - 1)) << 1;
+        this.mask = size - 1;
+        this.wheel = (ArrayDeque<SeatHold>[]) new ArrayDeque<?>[size];
+        for (int i = 0; i < size; i++)
+            wheel[i] = new ArrayDeque<>();
+        this.ticker = new Thread(this::run, "hold-expiry");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    public HoldManager(long ttlMillis) {
+        this(ttlMillis, 100, 512);
+    }
+
+    /**
+     * Holds exactly these seats, all or nothing.
+     *
+     * @return the hold, or null if any seat is already sold or held
+     */
+    public SeatHold hold(Show show, int[] seats) {
+        int[] sorted = seats.clone();
+        Arrays.sort(sorted);
+        return show.tryHoldAll(sorted) ? track(show, sorted) : null;
+    }
+
+    /**
+     * Holds the best block of {@code count} seats together.
+     *
+     * @return the hold, or null if no row has that many free seats side by side
+     */
+    public SeatHold holdBestAvailable(Show show, int count) {
+        int[] seats = show.tryHoldBestAvailable(count);
+        return seats == null ? null : track(show, seats);
+    }
+
+    public long ttlMillis() {
+        return ttlMillis;
+    }
+
+    /** A hold that is still active, or null. */
+    public SeatHold find(long id) {
+        return byId.get(id);
+    }
+
+    /** The active hold with this {@link SeatHold#token}, or null. */
+    public SeatHold find(String token) {
+        return token == null ? null : byToken.get(token);
+    }
+
+    public int activeHolds() {
+        return active.get();
+    }
+
+    public long expiredHolds() {
+        return expired.get();
+    }
+
+    /** Stops the wheel. Outstanding holds stay in place until released or the process exits. */
+    @Override
+    public void close() {
+        closed = true;
+        ticker.interrupt();
+    }
+
+    void ended(SeatHold hold) {
+        byId.remove(hold.id);
+        byToken.remove(hold.token);
+        active.decrementAndGet();
+    }
+
+    private SeatHold track(Show show, int[] seats) {
+        SeatHold hold = new SeatHold(NEXT_ID.getAndIncrement(), Tokens.next(), show, seats,
+                System.currentTimeMillis() + ttlMillis, this);
+        long deadline = System.nanoTime() - startNanos + TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        hold.deadlineTick = (deadline + tickNanos - 1) / tickNanos;
+        active.incrementAndGet();
+        byId.put(hold.id, hold);
+        byToken.put(hold.token, hold);
+        incoming.add(hold);
+        return hold;
+    }
+
+    private void run() {
+        long tick = 0;
+        while (!closed) {
+            long sleep = startNanos + (tick + 1) * tickNanos - System.nanoTime();
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            for (SeatHold h; (h = incoming.poll()) != null;) {
+                if (!h.isActive())
+                    continue;
+                long due = Math.max(h.deadlineTick, tick);
+                h.remainingRounds = (due - tick) / wheel.length;
+                wheel[(int) (due & mask)].add(h);
+            }
+            Iterator<SeatHold> it = wheel[(int) (tick & mask)].iterator();
+            while (it.hasNext()) {
+                SeatHold h = it.next();
+                if (!h.isActive()) {
+                    it.remove();
+                } else if (h.remainingRounds <= 0) {
+                    it.remove();
+                    if (h.expire())
+                        expired.incrementAndGet();
+                } else {
+                    h.remainingRounds--;
+                }
+            }
+            tick++;
+        }
+    }
+}
+
+/**
+ * Waiting room in front of booking for on-sale bursts. Each show lets at most
+ * {@code concurrency} customers shop at once (hold seats, check out); everyone
+ * else joins that show's FIFO line with a ticket, polls it for their position
+ * and estimated wait, and is admitted in arrival order as shoppers finish.
+ * When the line is already {@code maxQueue} long, a newcomer is turned away
+ * at once, before any seat work. Fewer customers picking from the same seat
+ * map means fewer of them losing their seats to each other.
+ *
+ * Every show has its own line and lock, so a rush on one show never queues or
+ * blocks customers of another. Nobody waits inside a call: customers poll, so
+ * a full line costs no threads. An admitted customer's turn ends when they
+ * book, leave, or after {@code sessionMillis}; a waiting customer who stops
+ * polling for {@code pollTimeoutMillis} loses their place when it comes up.
+ */
+class AdmissionControl {
+    enum State { WAITING, ADMITTED, DONE }
+
+    static final class Ticket {
+        final long id;
+        // what HTTP clients are given; unguessable, so nobody can take another customer's place
+        final String token;
+        final Show show;
+        final long seq; // place in the show's line
+        volatile State state = State.WAITING;
+        volatile long lastSeenNanos;
+        long admittedAtNanos; // guarded by the gate
+        long expiresAtNanos;
+        // snapshot for status replies, refreshed under the gate's lock
+        volatile int position;
+        volatile long etaMillis;
+
+        Ticket(long id, String token, Show show, long seq, long now) {
+            this.id = id;
+            this.token = token;
+            this.show = show;
+            this.seq = seq;
+            this.lastSeenNanos = now;
+        }
+    }
+
+    // one show's line; every field is guarded by the gate's monitor
+    private static final class Gate {
+        final ArrayDeque<Ticket> waiting = new ArrayDeque<>();
+        // in admission order, which with one session length is also expiry order
+        final ArrayDeque<Ticket> admitted = new ArrayDeque<>();
+        int active;
+        long nextSeq;
+        long admittedSeq; // seq of the last ticket admitted
+        double avgSessionNanos;
+    }
+
+    private static final AtomicLong NEXT_ID = new AtomicLong(1);
+    private static final double EWMA = 0.1;
+
+    private final int concurrency;
+    private final int maxQueue;
+    private final long sessionNanos;
+    private final long pollTimeoutNanos;
+    private final ConcurrentHashMap<Show, Gate> gates = new ConcurrentHashMap<>();
+    // live tickets by id, for in-process callers, and by token, for clients polling over HTTP
+    private final ConcurrentHashMap<Long, Ticket> byId = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Ticket> byToken = new ConcurrentHashMap<>();
+    private final LongAdder admittedTotal = new LongAdder();
+    private final LongAdder shed = new LongAdder();
+    private final LongAdder abandoned = new LongAdder();
+
+    /**
+     * @param concurrency       customers per show shopping at once
+     * @param maxQueue          customers per show allowed to wait; more are turned away
+     * @param sessionMillis     longest an admitted customer keeps their turn
+     * @param pollTimeoutMillis a waiting customer silent this long is dropped when their turn comes
+     */
+    AdmissionControl(int concurrency, int maxQueue, long sessionMillis, long pollTimeoutMillis) {
+        this.concurrency = Math.max(1, concurrency);
+        this.maxQueue = Math.max(0, maxQueue);
+        this.sessionNanos = TimeUnit.MILLISECONDS.toNanos(sessionMillis);
+        this.pollTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(pollTimeoutMillis);
+    }
+
+    /**
+     * Joins {@code show}'s line, or walks straight in if there is room.
+     *
+     * @return the ticket, admitted or waiting; null if the line is full or the show sold out
+     */
+    Ticket join(Show show) {
+        // nothing left to queue for
+        if (show.soldSeats() >= show.capacity) {
+            shed.increment();
+            return null;
+        }
+        Gate g = gates.computeIfAbsent(show, k -> new Gate());
+        long now = System.nanoTime();
+        Ticket t;
+        synchronized (g) {
+            expire(g, now);
+            if (g.waiting.size() >= maxQueue && !(g.waiting.isEmpty() && g.active < concurrency)) {
+                shed.increment();
+                return null;
+            }
+            t = new Ticket(NEXT_ID.getAndIncrement(), Tokens.next(), show, g.nextSeq++, now);
+            byId.put(t.id, t);
+            byToken.put(t.token, t);
+            g.waiting.add(t);
+            promote(g, now);
+            describe(g, t);
+        }
+        return t;
+    }
+
+    /** The live ticket with this {@link Ticket#token}, or null. */
+    Ticket find(String token) {
+        return token == null ? null : byToken.get(token);
+    }
+
+    /** The ticket with its position and wait brought up to date; null if unknown or over. */
+    Ticket status(long id) {
+        Ticket t = byId.get(id);
+        if (t == null)
+            return null;
+        long now = System.nanoTime();
+        t.lastSeenNanos = now;
+        Gate g = gates.get(t.show);
+        synchronized (g) {
+            expire(g, now);
+            promote(g, now);
+            describe(g, t);
+        }
+        return t.state == State.DONE ? null : t;
+    }
+
+    /** Whether ticket {@code id} is admitted to shop for {@code show} right now. */
+    boolean admitted(long id, Show show) {
+        Ticket t = byId.get(id);
+        if (t == null || t.show != show || t.state != State.ADMITTED)
+            return false;
+        t.lastSeenNanos = System.nanoTime();
+        return t.lastSeenNanos - t.expiresAtNanos < 0;
+    }
+
+    /** Ends the customer's turn (or place in line) and lets the next one in. */
+    void leave(long id) {
+        Ticket t = byId.get(id);
+        if (t == null)
+            return;
+        Gate g = gates.get(t.show);
+        long now = System.nanoTime();
+        synchronized (g) {
+            if (t.state == State.ADMITTED) {
+                g.active--;
+                g.avgSessionNanos += EWMA * ((now - t.admittedAtNanos) - g.avgSessionNanos);
+            } else if (t.state == State.WAITING) {
+                // out of the line at once, so maxQueue counts only customers still waiting
+                g.waiting.remove(t);
+            } else {
+                return;
+            }
+            t.state = State.DONE;
+            forget(t);
+            expire(g, now);
+            promote(g, now);
+        }
+    }
+
+    int waiting(Show show) {
+        Gate g = gates.get(show);
+        if (g == null)
+            return 0;
+        synchronized (g) {
+            return g.waiting.size();
+        }
+    }
+
+    int shopping(Show show) {
+        Gate g = gates.get(show);
+        if (g == null)
+            return 0;
+        synchronized (g) {
+            return g.active;
+        }
+    }
+
+    long admittedTotal() {
+        return admittedTotal.sum();
+    }
+
+    long shed() {
+        return shed.sum();
+    }
+
+    long abandoned() {
+        return abandoned.sum();
+    }
+
+    private void forget(Ticket t) {
+        byId.remove(t.id);
+        byToken.remove(t.token);
+    }
+
+    // caller holds g: ends turns that ran out of time
+    private void expire(Gate g, long now) {
+        for (Ticket t; (t = g.admitted.peek()) != null;) {
+            if (t.state == State.ADMITTED) {
+                if (t.expiresAtNanos - now > 0)
+                    return;
+                t.state = State.DONE;
+                forget(t);
+                g.active--;
+                g.avgSessionNanos += EWMA * (sessionNanos - g.avgSessionNanos);
+            }
+            g.admitted.poll();
+        }
+    }
+
+    // caller holds g: admits from the head of the line while there is room
+    private void promote(Gate g, long now) {
+        while (g.active < concurrency) {
+            Ticket t = g.waiting.poll();
+            if (t == null)
+                return;
+            if (now - t.lastSeenNanos > pollTimeoutNanos) {
+                t.state = State.DONE;
+                forget(t);
+                abandoned.increment();
+                continue;
+            }
+            t.admittedAtNanos = now;
+            t.expiresAtNanos = now + sessionNanos;
+            t.state = State.ADMITTED; // volatile: publishes the times above to admitted()
+            g.admitted.add(t);
+            g.active++;
+            g.admittedSeq = t.seq;
+            admittedTotal.increment();
+        }
+    }
+
+    // caller holds g
+    private void describe(Gate g, Ticket t) {
+        if (t.state != State.WAITING) {
+            t.position = 0;
+            t.etaMillis = 0;
+            return;
+        }
+        // counts tickets dropped for not polling too, so it may run a little high
+        int position = (int) Math.max(1, t.seq - g.admittedSeq);
+        double session = g.avgSessionNanos > 0 ? g.avgSessionNanos : sessionNanos / 4.0;
+        t.position = position;
+        t.etaMillis = (long) (Math.ceil((double) position / concurrency) * session / 1e6);
+    }
+}
+
+/**
+ * Headless booking core. Validates a request, assigns ticket types, totals the
+ * order, books the seats atomically and queues the receipt. Requests for the
+ * same show run one after another in submission order; requests for different
+ * shows run in parallel on the worker pool. The Swing dialog is just one client.
+ */
+class BookingEngine {
+    private final Pricing pricing;
+    private final ExecutorService workers;
+    // last queued task per show; each new request for that show chains onto it
+    private final ConcurrentHashMap<Show, CompletableFuture<Void>> tails = new ConcurrentHashMap<>();
+    private final BookingJournal journal;
+    private final ReceiptWriter receipts;
+    private final BookingMetrics metrics = new BookingMetrics();
+    // orders of recent keyed requests, so a retried submission gets the first attempt's order back
+    private final IdempotencyCache idempotency;
+    // every order sold, for lookups and refunds by order id
+    private final OrderBook orderBook = new OrderBook();
+
+    public BookingEngine(Pricing pricing, int threads, BookingJournal journal, ReceiptWriter receipts) {
+        this(pricing, threads, journal, receipts,
+                new IdempotencyCache(IdempotencyCache.DEFAULT_CAPACITY, IdempotencyCache.DEFAULT_TTL_MILLIS));
+    }
+
+    /**
+     * @param journal     where bookings are made durable, or null to keep them in memory only
+     * @param receipts    writer every confirmed order's receipt is queued on
+     * @param idempotency remembers the orders of requests that carry an idempotency key
+     */
+    public BookingEngine(Pricing pricing, int threads, BookingJournal journal, ReceiptWriter receipts,
+            IdempotencyCache idempotency) {
+        this.pricing = pricing;
+        this.journal = journal;
+        this.receipts = receipts;
+        this.idempotency = idempotency;
+        AtomicInteger n = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "booking-worker-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public BookingMetrics metrics() {
+        return metrics;
+    }
+
+    public IdempotencyCache idempotency() {
+        return idempotency;
+    }
+
+    public OrderBook orderBook() {
+        return orderBook;
+    }
+
+    /**
+     * Queues one request. A request with an idempotency key that was already
+     * submitted (and did not fail) gets the first submission's result, still
+     * pending or already booked, without touching seats or writing a receipt.
+     */
+    public CompletableFuture<Order> submit(BookingRequest request) {
+        if (request.idempotencyKey == null)
+            return submitBatch(Collections.singletonList(request)).get(0);
+        CompletableFuture<Order> mine = new CompletableFuture<>();
+        IdempotencyCache.Entry first = idempotency.putIfAbsent(request, mine);
+        if (first != null) {
+            if (first.show != request.show || !Arrays.equals(first.seats, sortedSeats(request.seats))) {
+                // a key reused for another purchase: refused, and not a hit
+                metrics.rejected(request.show, BookingException.Reason.VALIDATION);
+                CompletableFuture<Order> refused = new CompletableFuture<>();
+                refused.completeExceptionally(new BookingException(BookingException.Reason.VALIDATION,
+                        "This purchase was already submitted for other seats."));
+                return refused;
+            }
+            metrics.idempotentReplay();
+            return first.order;
+        }
+        metrics.idempotentMiss();
+        submitBatch(Collections.singletonList(request)).get(0).whenComplete((order, err) -> {
+            if (err != null) {
+                // nothing was sold, so a retry with the same key should really try again
+                idempotency.remove(request.idempotencyKey, mine);
+                mine.completeExceptionally(err);
+            } else {
+                mine.complete(order);
+            }
+        });
+        return mine;
+    }
+
+    static int[] sortedSeats(int[] seats) {
+        int[] sorted = seats.clone();
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * Queues all requests at once. Requests are grouped per show so that each
+     * show gets a single task that works through its group in list order.
+     */
+    public List<CompletableFuture<Order>> submitBatch(List<BookingRequest> requests) {
+        long submitted = System.nanoTime();
+        List<CompletableFuture<Order>> results = new ArrayList<>(requests.size());
+        Map<Show, List<Integer>> byShow = new LinkedHashMap<>();
+        for (int i = 0; i < requests.size(); i++) {
+            results.add(new CompletableFuture<>());
+            byShow.computeIfAbsent(requests.get(i).show, k -> new ArrayList<>()).add(i);
+        }
+        for (Map.Entry<Show, List<Integer>> e : byShow.entrySet()) {
+            List<Integer> group = e.getValue();
+            Runnable task = () -> {
+                for (int i : group)
+                    complete(requests.get(i), results.get(i), submitted);
+            };
+            enqueue(e.getKey(), task);
+        }
+        return results;
+    }
+
+    public void shutdown() {
+        workers.shutdown();
+    }
+
+    private void enqueue(Show show, Runnable task) {
+        CompletableFuture<Void> next = tails.compute(show,
+                (k, tail) -> tail == null ? CompletableFuture.runAsync(task, workers)
+                        : tail.handleAsync((v, t) -> {
+                            task.run();
+                            return null;
+                        }, workers));
+        // drop the chain once it drains so idle shows don't pin futures
+        next.whenComplete((v, t) -> tails.remove(show, next));
+    }
+
+    private void complete(BookingRequest request, CompletableFuture<Order> result, long submitted) {
+        try {
+            Order order = book(request);
+            metrics.booked(request.show, System.nanoTime() - submitted);
+            result.complete(order);
+        } catch (BookingException e) {
+            metrics.rejected(request.show, e.reason);
+            result.completeExceptionally(e);
+        } catch (Throwable t) {
+            result.completeExceptionally(t);
+        }
+    }
+
+    /** Runs one request to completion on the calling thread. */
+    Order book(BookingRequest request) throws BookingException {
+        Order order = claim(request);
+        commit(request.show, Collections.singletonList(order));
+        return order;
+    }
+
+    /**
+     * Validates and prices the request and takes its seats. The seats are off
+     * sale from here on, but the sale is not final until {@link #commit}.
+     */
+    Order claim(BookingRequest request) throws BookingException {
+        int[] seats = request.seats;
+        Map<Integer, String> seatTypeMap = validate(request);
+        // priced before the sale, from one table, so the whole order sees the same step
+        int[] prices = pricing.prices(request.show, seats, request.adults, request.seniors);
+
+        Show s = request.show;
+        SeatHold hold = request.hold;
+        if (hold != null) {
+            // the seats are already ours; just make sure the hold outlived checkout
+            if (hold.show != s || !hold.covers(seats))
+                throw new BookingException(BookingException.Reason.VALIDATION,
+                        "Selected seats don't match the seats on hold.");
+            if (!hold.convert())
+                throw new BookingException(BookingException.Reason.SEAT_UNAVAILABLE,
+                        "Your hold on these seats has expired. Please select them again.");
+        } else if (!s.tryBookAll(seats)) {
+            // book seats: all-or-nothing, so a concurrent sale can't leave us half booked
+            String taken = "One of the selected seats was just booked.";
+            for (int seatId : seats) {
+                if (s.isBooked(seatId)) {
+                    taken = "Seat " + seatId + " was just booked.";
+                    break;
+                }
+                if (!s.isAvailable(seatId)) {
+                    taken = "Seat " + seatId + " is being held by another customer.";
+                    break;
+                }
+            }
+            throw new BookingException(BookingException.Reason.SEAT_UNAVAILABLE,
+                    taken + " Please refresh seats.");
+        }
+        // the next claim on this show is priced at the step this one leaves it on
+        pricing.seatsChanged(s);
+        return new Order(OrderIds.next(), request.musical.name, s.date, s.time, seatTypeMap, prices);
+    }
+
+    /**
+     * Makes claimed orders of one show final: journals them with a single sync
+     * and queues their receipts as one batch. If the journal write fails every
+     * order's seats go back on sale.
+     */
+    void commit(Show show, List<Order> orders) throws BookingException {
+        if (orders.isEmpty())
+            return;
+        List<int[]> seats = new ArrayList<>(orders.size());
+        for (Order o : orders)
+            seats.add(o.seatType.keySet().stream().mapToInt(Integer::intValue).toArray());
+        // not sold until it's in the journal
+        if (journal != null) {
+            try {
+                journal.appendBookings(show, seats);
+            } catch (IOException ex) {
+                for (int[] sold : seats)
+                    show.releaseAll(sold);
+                pricing.seatsChanged(show);
+                throw new BookingException(BookingException.Reason.IO, "Failed to record booking: " + ex.getMessage());
+            }
+        }
+        for (Order o : orders)
+            orderBook.add(show, o);
+        // queue the receipts; blocks here (not on the EDT) if the writer is backed up
+        receipts.submitAll(orders);
+    }
+
+    /**
+     * Books a package of shows, one request per show, all or nothing, with one
+     * combined order and receipt. Runs on the worker pool beside the per-show
+     * queues rather than in them, so a cart never waits on several queues at
+     * once; see {@link #bookCart} for why that is safe.
+     */
+    public CompletableFuture<CartOrder> submitCart(List<BookingRequest> items) {
+        long submitted = System.nanoTime();
+        List<BookingRequest> copy = new ArrayList<>(items);
+        CompletableFuture<CartOrder> result = new CompletableFuture<>();
+        workers.execute(() -> {
+            try {
+                CartOrder cart = bookCart(copy);
+                long nanos = System.nanoTime() - submitted;
+                for (BookingRequest r : copy)
+                    metrics.booked(r.show, nanos);
+                metrics.cartBooked();
+                result.complete(cart);
+            } catch (BookingException e) {
+                metrics.cartRejected(e.reason);
+                result.completeExceptionally(e);
+            } catch (Throwable t) {
+                result.completeExceptionally(t);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Runs one cart on the calling thread, in two phases.
+     *
+     * Reserve: every show's seats are taken in ascending show id, the one
+     * order all carts use. A show's seats are taken with a single
+     * all-or-nothing compare-and-set that never waits, as holds (or through the
+     * customer's own hold). The first show whose seats are gone fails the cart
+     * and the shows reserved before it are let go. Since nothing blocks there is
+     * no deadlock, and since everyone goes in the same order two carts
+     * wanting the same seats collide at the first show they share, before
+     * either reserves anything further; the loser has wasted at most the
+     * shows before it.
+     *
+     * Commit: the reserved seats turn sold, then one journal record covers
+     * every show, written and synced at once, so after a crash either the whole
+     * cart replays or none of it. If the write fails every show's seats go back
+     * on sale; otherwise the receipts get queued.
+     */
+    CartOrder bookCart(List<BookingRequest> items) throws BookingException {
+        if (items.isEmpty())
+            throw new BookingException(BookingException.Reason.VALIDATION, "The cart is empty.");
+        List<BookingRequest> ordered = new ArrayList<>(items);
+        ordered.sort(Comparator.comparingInt(r -> r.show.id));
+        List<Map<Integer, String>> types = new ArrayList<>(ordered.size());
+        List<int[]> sorted = new ArrayList<>(ordered.size());
+        for (int i = 0; i < ordered.size(); i++) {
+            BookingRequest r = ordered.get(i);
+            if (i > 0 && ordered.get(i - 1).show == r.show)
+                throw new BookingException(BookingException.Reason.VALIDATION,
+                        "Show " + r.show.id + " is in the cart twice.");
+            types.add(validate(r));
+            sorted.add(sortedSeats(r.seats));
+            if (r.hold != null && (r.hold.show != r.show || !r.hold.covers(r.seats)))
+                throw new BookingException(BookingException.Reason.VALIDATION,
+                        "Selected seats don't match the seats on hold for show " + r.show.id + ".");
+        }
+
+        // phase 1: reserve, in show id order
+        int reserved = 0;
+        for (; reserved < ordered.size(); reserved++) {
+            BookingRequest r = ordered.get(reserved);
+            boolean ok = r.hold != null ? r.hold.isActive() : r.show.tryHoldAll(sorted.get(reserved));
+            if (!ok) {
+                unreserve(ordered, sorted, reserved, 0);
+                throw new BookingException(BookingException.Reason.SEAT_UNAVAILABLE, "Seats for "
+                        + r.musical.name + " on " + r.show.date + " were just taken. Please refresh seats.");
+            }
+        }
+        // customers' own holds may still expire; make them ours before anything is written
+        for (int i = 0; i < ordered.size(); i++) {
+            SeatHold h = ordered.get(i).hold;
+            if (h != null && !h.convert()) {
+                unreserve(ordered, sorted, ordered.size(), i);
+                throw new BookingException(BookingException.Reason.SEAT_UNAVAILABLE,
+                        "Your hold on seats for show " + h.show.id + " has expired. Please select them again.");
+            }
+        }
+
+        // phase 2: commit
+        List<Order> parts = new ArrayList<>(ordered.size());
+        List<Show> shows = new ArrayList<>(ordered.size());
+        for (int i = 0; i < ordered.size(); i++) {
+            BookingRequest r = ordered.get(i);
+            int[] prices = pricing.prices(r.show, r.seats, r.adults, r.seniors);
+            parts.add(new Order(OrderIds.next(), r.musical.name, r.show.date, r.show.time, types.get(i), prices));
+            shows.add(r.show);
+        }
+        for (int i = 0; i < ordered.size(); i++)
+            if (ordered.get(i).hold == null)
+                shows.get(i).confirmHeld(sorted.get(i));
+        if (journal != null) {
+            try {
+                journal.appendCart(shows, sorted);
+            } catch (IOException ex) {
+                // every item is sold by now, the customers' holds included
+                for (int i = 0; i < ordered.size(); i++)
+                    shows.get(i).releaseAll(sorted.get(i));
+                for (Show show : shows)
+                    pricing.seatsChanged(show);
+                throw new BookingException(BookingException.Reason.IO, "Failed to record booking: " + ex.getMessage());
+            }
+        }
+        for (int i = 0; i < ordered.size(); i++) {
+            pricing.seatsChanged(shows.get(i));
+            orderBook.add(shows.get(i), parts.get(i));
+        }
+        CartOrder cart = new CartOrder(OrderIds.next(), parts, shows);
+        receipts.submitAll(parts);
+        return cart;
+    }
+
+    /**
+     * Undoes phase 1 for the first {@code reserved} items: seats this engine
+     * holds go back on sale, and so do the first {@code converted} customer
+     * holds, which are sold by then.
+     */
+    private void unreserve(List<BookingRequest> ordered, List<int[]> sorted, int reserved, int converted) {
+        for (int i = 0; i < reserved; i++) {
+            BookingRequest r = ordered.get(i);
+            if (r.hold == null)
+                r.show.releaseHeld(sorted.get(i));
+            else if (i < converted)
+                r.show.releaseAll(sorted.get(i));
+        }
+        for (int i = 0; i < reserved; i++)
+            pricing.seatsChanged(ordered.get(i).show);
+    }
+
+    /**
+     * Puts some seats of an order back on sale, for a cancellation or refund.
+     * Only seats the order still holds can be released. Runs in the show's
+     * queue like a booking, so it can't interleave with one, and is journaled
+     * so the seats stay free after a restart. Open seat views hear about it
+     * through the same change events as a sale.
+     *
+     * @return the seats released
+     */
+    public CompletableFuture<int[]> refund(String orderId, int[] seats) {
+        return refundSeats(orderId, seats.clone());
+    }
+
+    /**
+     * Refunds whatever of an order isn't refunded yet, through the same path as
+     * {@link #refund}.
+     *
+     * @return the seats released
+     */
+    public CompletableFuture<int[]> refundOrder(String orderId) {
+        return refundSeats(orderId, null);
+    }
+
+    // seats null for all the order's open seats
+    private CompletableFuture<int[]> refundSeats(String orderId, int[] seats) {
+        CompletableFuture<int[]> result = new CompletableFuture<>();
+        OrderBook.Entry order = orderBook.find(orderId);
+        if (order == null) {
+            result.completeExceptionally(
+                    new BookingException(BookingException.Reason.VALIDATION, "No order " + orderId + "."));
+            return result;
+        }
+        enqueue(order.show, () -> {
+            try {
+                // read again in the show's queue, so two refunds of one order can't both release a seat
+                int[] open = orderBook.find(order.id).openSeats();
+                if (open.length == 0)
+                    throw new BookingException(BookingException.Reason.VALIDATION,
+                            "Order " + orderId + " is already refunded.");
+                int[] released = seats == null ? open : seats;
+                Arrays.sort(open);
+                for (int seatId : released)
+                    if (Arrays.binarySearch(open, seatId) < 0)
+                        throw new BookingException(BookingException.Reason.VALIDATION,
+                                "Seat " + seatId + " is not on order " + orderId + " or is already refunded.");
+                release(order.show, released);
+                metrics.refunded(order.show, released.length);
+                result.complete(released);
+            } catch (Throwable t) {
+                result.completeExceptionally(t);
+            }
+        });
+        return result;
+    }
+
+    /** Runs one refund on the calling thread; every seat must be sold, or nothing is released. */
+    void release(Show show, int[] seats) throws BookingException {
+        if (seats.length == 0)
+            throw new BookingException(BookingException.Reason.VALIDATION, "Please select seats to refund.");
+        BitSet seen = new BitSet();
+        for (int seatId : seats) {
+            if (seatId < 1 || seatId > show.capacity)
+                throw new BookingException(BookingException.Reason.VALIDATION, "Seat " + seatId + " does not exist.");
+            if (seen.get(seatId))
+                throw new BookingException(BookingException.Reason.VALIDATION, "Seat " + seatId + " selected twice.");
+            seen.set(seatId);
+            if (!show.isBooked(seatId))
+                throw new BookingException(BookingException.Reason.VALIDATION, "Seat " + seatId + " is not sold.");
+        }
+        // unsold before it's journaled, like a sale, but kept off sale until the record is down:
+        // if the write fails the seats are simply sold again
+        show.unsell(seats);
+        if (journal != null) {
+            try {
+                journal.appendRelease(show, seats);
+            } catch (IOException ex) {
+                show.confirmHeld(seats);
+                throw new BookingException(BookingException.Reason.IO, "Failed to record refund: " + ex.getMessage());
+            }
+        }
+        show.releaseHeld(seats);
+        orderBook.refunded(show, seats);
+        pricing.seatsChanged(show);
+    }
+
+    /** Checks seats and ticket counts; returns the ticket type of each seat. */
+    static Map<Integer, String> validate(BookingRequest request) throws BookingException {
+        int[] seats = request.seats;
+        if (seats.length == 0)
+            throw new BookingException(BookingException.Reason.VALIDATION, "Please select seats to book.");
+        int totalCount = request.adults + request.seniors + request.students;
+        if (request.adults < 0 || request.seniors < 0 || request.students < 0 || totalCount != seats.length)
+            throw new BookingException(BookingException.Reason.VALIDATION,
+                    "Number of ticket types must equal number of seats selected.\nSelected seats: "
+                            + seats.length + ", ticket count: " + totalCount);
+        for (int seatId : seats)
+            if (seatId < 1 || seatId > request.show.capacity)
+                throw new BookingException(BookingException.Reason.VALIDATION, "Seat " + seatId + " does not exist.");
+        return assignTypes(request);
+    }
+
+    /** Assigns ticket types to seats in order: adults first, then seniors, then students. */
+    static Map<Integer, String> assignTypes(BookingRequest request) throws BookingException {
+        int[] seats = request.seats;
+        Map<Integer, String> seatTypeMap = new LinkedHashMap<>();
+        for (int k = 0; k < seats.length; k++) {
+            String type = TicketType.at(k, request.adults, request.seniors).label;
+            if (seatTypeMap.put(seats[k], type) != null)
+                throw new BookingException(BookingException.Reason.VALIDATION, "Seat " + seats[k] + " selected twice.");
+        }
+        return seatTypeMap;
+    }
+}
+
+class BookingRequest {
+    final Musical musical;
+    final Show show;
+    final int[] seats;
+    final int adults;
+    final int seniors;
+    final int students;
+    // seats already held for this customer, or null to claim them at booking time
+    final SeatHold hold;
+    // chosen by the client and repeated on retries of the same purchase, or null
+    final String idempotencyKey;
+
+    public BookingRequest(Musical musical, Show show, int[] seats, int adults, int seniors, int students) {
+        this(musical, show, seats, adults, seniors, students, null);
+    }
+
+    public BookingRequest(Musical musical, Show show, int[] seats, int adults, int seniors, int students,
+            SeatHold hold) {
+        this(musical, show, seats, adults, seniors, students, hold, null);
+    }
+
+    public BookingRequest(Musical musical, Show show, int[] seats, int adults, int seniors, int students,
+            SeatHold hold, String idempotencyKey) {
+        this.musical = musical;
+        this.show = show;
+        this.seats = seats.clone();
+        this.adults = adults;
+        this.seniors = seniors;
+        this.students = students;
+        this.hold = hold;
+        this.idempotencyKey = idempotencyKey;
+    }
+}
+
+/**
+ * Orders of recently submitted bookings by the client's idempotency key, so
+ * that a kiosk retrying a purchase it timed out on gets the original order
+ * back instead of a second one. Entries are the booking's future, so a retry
+ * that arrives while the first attempt is still queued waits for that attempt.
+ *
+ * Bounded and time-limited: every entry lives {@code ttlMillis}, and past
+ * {@code capacity} entries the oldest are dropped early. Entries go into a
+ * FIFO as they are added, which with one TTL for all is also expiry order, so
+ * eviction is a poll from its head. Lookups and inserts are O(1) and lock-free.
+ */
+class IdempotencyCache {
+    static final int DEFAULT_CAPACITY = 100_000;
+    static final long DEFAULT_TTL_MILLIS = TimeUnit.HOURS.toMillis(1);
+    static final int MAX_KEY_LENGTH = 128;
+
+    static final class Entry {
+        final String key;
+        final Show show;
+        final int[] seats; // sorted
+        final CompletableFuture<Order> order;
+        final long expiresAtNanos;
+
+        Entry(String key, Show show, int[] seats, CompletableFuture<Order> order, long expiresAtNanos) {
+            this.key = key;
+            this.show = show;
+            this.seats = seats;
+            this.order = order;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+    }
+
+    private final int capacity;
+    private final long ttlNanos;
+    private final ConcurrentHashMap<String, Entry> byKey = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Entry> byAge = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final LongAdder evicted = new LongAdder();
+
+    IdempotencyCache(int capacity, long ttlMillis) {
+        this.capacity = Math.max(1, capacity);
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    }
+
+    /**
+     * Remembers {@code order} as the result of {@code request}, unless its key
+     * is already known and not expired.
+     *
+     * @return the earlier entry for the key, or null if this request is the first
+     */
+    Entry putIfAbsent(BookingRequest request, CompletableFuture<Order> order) {
+        String key = request.idempotencyKey;
+        if (key.isEmpty() || key.length() > MAX_KEY_LENGTH)
+            throw new IllegalArgumentException("Idempotency key must be 1 to " + MAX_KEY_LENGTH + " characters");
+        long now = System.nanoTime();
+        Entry mine = new Entry(key, request.show, BookingEngine.sortedSeats(request.seats), order, now + ttlNanos);
+        while (true) {
+            Entry cur = byKey.putIfAbsent(key, mine);
+            if (cur == null)
+                break;
+            if (cur.expiresAtNanos - now > 0)
+                return cur;
+            // expired but not yet evicted: take its place
+            if (byKey.replace(key, cur, mine)) {
+                size.decrementAndGet();
+                break;
+            }
+        }
+        size.incrementAndGet();
+        byAge.add(mine);
+        evict(now);
+        return null;
+    }
+
+    /** Forgets the key if it still maps to {@code order}, e.g. because that booking failed. */
+    void remove(String key, CompletableFuture<Order> order) {
+        Entry cur = byKey.get(key);
+        if (cur != null && cur.order == order && byKey.remove(key, cur))
+            size.decrementAndGet();
+    }
+
+    int size() {
+        return size.get();
+    }
+
+    long evicted() {
+        return evicted.sum();
+    }
+
+    private void evict(long now) {
+        for (Entry head; (head = byAge.peek()) != null;) {
+            boolean expired = head.expiresAtNanos - now <= 0;
+            if (!expired && size.get() <= capacity)
+                return;
+            if (!byAge.remove(head))
+                continue; // another thread got it
+            if (byKey.remove(head.key, head)) {
+                size.decrementAndGet();
+                if (!expired)
+                    evicted.increment();
+            }
+        }
+    }
+}
+
+class BookingException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    enum Reason {
+        VALIDATION, SEAT_UNAVAILABLE, IO
+    }
+
+    final Reason reason;
+
+    public BookingException(Reason reason, String message) {
+        super(message);
+        this.reason = reason;
+    }
+
+    /** Dialog title the UI has always used for this kind of failure. */
+    String title() {
+        switch (reason) {
+            case VALIDATION:
+                return "Validation";
+            case SEAT_UNAVAILABLE:
+                return "Seat unavailable";
+            default:
+                return "IO Error";
+        }
+    }
+}
+
+/**
+ * Bulk import of group bookings (schools, tour operators) from a CSV or JSON
+ * Lines file, one booking per line. The file is read as a stream and each line
+ * queued on its show's lane; a lane is drained by one fork-join task at a time,
+ * so different shows book in parallel while one show's bookings keep their file
+ * order. Each run of up to {@link #RUN} bookings from a lane is committed with
+ * one journal sync and one receipt batch.
+ *
+ * <p>CSV files start with a header row. Columns: {@code show} (id), or
+ * {@code musical}, {@code date} (yyyy-MM-dd) and {@code time} (HH:mm);
+ * {@code seats} as seat numbers separated by {@code ;} or spaces, or empty for
+ * the best block available; {@code adults}, {@code seniors}, {@code students};
+ * and an optional {@code ref} echoed into the results. JSON lines use the same
+ * names, with {@code seats} as an array.
+ *
+ * <p>The result file has one CSV row per booking line, in input order:
+ * {@code line,ref,status,show,order,seats,total,message}, where status is
+ * BOOKED, CONFLICT (seats already gone), INVALID (bad line) or ERROR (the sale
+ * could not be recorded).
+ */
+class BulkImport {
+    /** Bookings per journal sync and receipt batch. */
+    static final int RUN = 256;
+    // lines read ahead of the oldest result not yet written
+    private static final int WINDOW = 1 << 16;
+    // best-available picks retried when a concurrent sale takes the block first
+    private static final int PICK_ATTEMPTS = 3;
+
+    enum Status {
+        BOOKED, CONFLICT, INVALID, ERROR
+    }
+
+    private final Catalog catalog;
+    private final BookingEngine engine;
+    private final ForkJoinPool pool;
+    private final Map<String, Show> byStart = new HashMap<>();
+    private final Map<Show, Lane> lanes = new HashMap<>();
+    private final Object resultReady = new Object();
+    private final EnumMap<Status, LongAdder> counts = new EnumMap<>(Status.class);
+    private final LongAdder seatsBooked = new LongAdder();
+
+    /** One import per instance; {@code parallelism} shows are booked at once. */
+    BulkImport(Catalog catalog, BookingEngine engine, int parallelism) {
+        this.catalog = catalog;
+        this.engine = engine;
+        // FIFO: lanes are event-style tasks, never joined
+        this.pool = new ForkJoinPool(parallelism, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+        for (Show s : catalog.allShows())
+            byStart.put(startKey(s.musical.name, s.date, s.time), s);
+        for (Status st : Status.values())
+            counts.put(st, new LongAdder());
+    }
+
+    /** Books every line of {@code in} and writes the per-line results to {@code out}. */
+    Summary run(Path in, Path out) throws IOException {
+        long started = System.nanoTime();
+        Line[] window = new Line[WINDOW];
+        long read = 0;
+        long written = 0;
+        try (BufferedReader reader = Files.newBufferedReader(in, StandardCharsets.UTF_8);
+                BufferedWriter writer = Files.newBufferedWriter(out, StandardCharsets.UTF_8)) {
+            writer.write("line,ref,status,show,order,seats,total,message");
+            writer.newLine();
+            String name = in.getFileName().toString().toLowerCase(Locale.ROOT);
+            boolean json = name.endsWith(".jsonl") || name.endsWith(".ndjson") || name.endsWith(".json");
+            List<String> header = null;
+            long lineNo = 0;
+            String text;
+            while ((text = reader.readLine()) != null) {
+                lineNo++;
+                String trimmed = text.trim();
+                if (trimmed.isEmpty() || trimmed.startsWith("#"))
+                    continue;
+                if (!json && header == null) {
+                    if (trimmed.startsWith("{")) {
+                        json = true;
+                    } else {
+                        header = new ArrayList<>();
+                        for (String col : csvFields(trimmed))
+                            header.add(col.toLowerCase(Locale.ROOT));
+                        continue;
+                    }
+                }
+                while (read - written >= WINDOW)
+                    written = flush(window, written, read, writer, true);
+                Line line = json ? fromJson(lineNo, trimmed) : fromCsv(lineNo, header, trimmed);
+                window[(int) (read++ % WINDOW)] = line;
+                if (line.status == null)
+                    lanes.computeIfAbsent(line.show, Lane::new).offer(line);
+                else
+                    counts.get(line.status).increment();
+                if ((read & 1023) == 0)
+                    written = flush(window, written, read, writer, false);
+            }
+            while (written < read)
+                written = flush(window, written, read, writer, true);
+        } finally {
+            pool.shutdown();
+        }
+        return new Summary(read, counts, seatsBooked.sum(), System.nanoTime() - started);
+    }
+
+    /** Writes results from {@code from} on until one isn't ready; with {@code wait}, waits for at least one. */
+    private long flush(Line[] window, long from, long to, BufferedWriter writer, boolean wait) throws IOException {
+        long next = from;
+        while (next < to) {
+            Line line = window[(int) (next % WINDOW)];
+            if (line.status == null) {
+                if (!wait || next > from)
+                    break;
+                synchronized (resultReady) {
+                    while (line.status == null) {
+                        try {
+                            resultReady.wait();
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException("Import interrupted");
+                        }
+                    }
+                }
+            }
+            writer.write(line.resultRow());
+            writer.newLine();
+            window[(int) (next % WINDOW)] = null;
+            next++;
+        }
+        return next;
+    }
+
+    /** The bookings for one show, drained in order by at most one task at a time. */
+    private final class Lane implements Runnable {
+        final Show show;
+        final ConcurrentLinkedQueue<Line> queue = new ConcurrentLinkedQueue<>();
+        final AtomicBoolean scheduled = new AtomicBoolean();
+
+        Lane(Show show) {
+            this.show = show;
+        }
+
+        void offer(Line line) {
+            queue.add(line);
+            if (scheduled.compareAndSet(false, true))
+                pool.execute(this);
+        }
+
+        @Override
+        public void run() {
+            try {
+                bookRun();
+            } finally {
+                scheduled.set(false);
+                // a line offered while we were finishing found us still scheduled
+                if (!queue.isEmpty() && scheduled.compareAndSet(false, true))
+                    pool.execute(this);
+            }
+        }
+
+        private void bookRun() {
+            List<Line> lines = new ArrayList<>(RUN);
+            List<Line> claimed = new ArrayList<>(RUN);
+            List<Order> orders = new ArrayList<>(RUN);
+            long started = System.nanoTime();
+            try {
+                Line line;
+                while (lines.size() < RUN && (line = queue.poll()) != null) {
+                    lines.add(line);
+                    try {
+                        line.order = claim(line);
+                        claimed.add(line);
+                        orders.add(line.order);
+                    } catch (BookingException ex) {
+                        engine.metrics().rejected(show, ex.reason);
+                        line.refuse(ex);
+                    } catch (RuntimeException ex) {
+                        line.finish(Status.ERROR, String.valueOf(ex));
+                    }
+                }
+                try {
+                    engine.commit(show, orders);
+                    for (Line l : claimed) {
+                        engine.metrics().booked(show, System.nanoTime() - started);
+                        seatsBooked.add(l.seats.length);
+                        l.finish(Status.BOOKED, "");
+                    }
+                } catch (BookingException ex) {
+                    for (Line l : claimed)
+                        l.refuse(ex);
+                }
+            } catch (RuntimeException | Error ex) {
+                // every line must get a result, or the reader waits for it forever
+                for (Line l : lines)
+                    if (l.status == null)
+                        l.finish(Status.ERROR, String.valueOf(ex));
+            } finally {
+                for (Line l : lines)
+                    counts.get(l.status).increment();
+                synchronized (resultReady) {
+                    resultReady.notifyAll();
+                }
+            }
+        }
+
+        private Order claim(Line line) throws BookingException {
+            if (line.seats.length > 0)
+                return engine.claim(line.request());
+            int count = line.adults + line.seniors + line.students;
+            for (int attempt = 1;; attempt++) {
+                int[] best = show.bestAvailable(count);
+                if (best == null)
+                    throw new BookingException(BookingException.Reason.SEAT_UNAVAILABLE,
+                            "No block of " + count + " seats together is left.");
+                line.seats = best;
+                try {
+                    return engine.claim(line.request());
+                } catch (BookingException ex) {
+                    if (ex.reason != BookingException.Reason.SEAT_UNAVAILABLE || attempt == PICK_ATTEMPTS)
+                        throw ex;
+                    line.seats = new int[0];
+                }
+            }
+        }
+    }
+
+    /** One booking line and, once decided, its outcome. */
+    private static final class Line {
+        final long no;
+        String ref = "";
+        Show show;
+        int[] seats = new int[0];
+        int adults;
+        int seniors;
+        int students;
+        Order order;
+        String message;
+        // set last, by the lane that decided the line; the reader polls it
+        volatile Status status;
+
+        Line(long no) {
+            this.no = no;
+        }
+
+        BookingRequest request() {
+            return new BookingRequest(show.musical, show, seats, adults, seniors, students);
+        }
+
+        void refuse(BookingException ex) {
+            switch (ex.reason) {
+                case VALIDATION:
+                    finish(Status.INVALID, ex.getMessage());
+                    break;
+                case SEAT_UNAVAILABLE:
+                    finish(Status.CONFLICT, ex.getMessage());
+                    break;
+                default:
+                    finish(Status.ERROR, ex.getMessage());
+            }
+        }
+
+        void finish(Status status, String message) {
+            this.message = message;
+            this.status = status;
+        }
+
+        String resultRow() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(no).append(',').append(csv(ref)).append(',').append(status).append(',');
+            if (show != null)
+                sb.append(show.id);
+            sb.append(',');
+            if (status == Status.BOOKED) {
+                sb.append(order.id).append(',');
+                for (int i = 0; i < seats.length; i++)
+                    sb.append(i == 0 ? "" : ";").append(seats[i]);
+                sb.append(',').append(order.total);
+            } else {
+                sb.append(",,");
+            }
+            return sb.append(',').append(csv(message.replace('\n', ' '))).toString();
+        }
+    }
+
+    /** Counts of a finished import. */
+    static final class Summary {
+        final long lines;
+        final long booked;
+        final long conflicts;
+        final long invalid;
+        final long errors;
+        final long seats;
+        final long elapsedNanos;
+
+        Summary(long lines, Map<Status, LongAdder> counts, long seats, long elapsedNanos) {
+            this.lines = lines;
+            this.booked = counts.get(Status.BOOKED).sum();
+            this.conflicts = counts.get(Status.CONFLICT).sum();
+            this.invalid = counts.get(Status.INVALID).sum();
+            this.errors = counts.get(Status.ERROR).sum();
+            this.seats = seats;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d lines in %.1fs: %d booked (%d seats), %d conflicts, %d invalid, %d errors",
+                    lines, elapsedNanos / 1e9, booked, seats, conflicts, invalid, errors);
+        }
+    }
+
+    private Line fromCsv(long no, List<String> header, String text) {
+        List<String> values = csvFields(text);
+        Map<String, String> fields = new HashMap<>();
+        for (int i = 0; i < header.size() && i < values.size(); i++)
+            fields.put(header.get(i), values.get(i));
+        return parse(no, fields);
+    }
+
+    private Line fromJson(long no, String text) {
+        Map<String, String> fields = new HashMap<>();
+        try {
+            for (Map.Entry<String, Object> e : Json.parseObject(text).entrySet()) {
+                Object v = e.getValue();
+                if (v instanceof List) {
+                    StringBuilder seats = new StringBuilder();
+                    for (Object seat : (List<?>) v)
+                        seats.append(seat).append(';');
+                    v = seats;
+                }
+                fields.put(e.getKey().toLowerCase(Locale.ROOT), v == null ? "" : v.toString());
+            }
+        } catch (IllegalArgumentException ex) {
+            Line line = new Line(no);
+            line.finish(Status.INVALID, "Not a JSON object: " + ex.getMessage());
+            return line;
+        }
+        return parse(no, fields);
+    }
+
+    private Line parse(long no, Map<String, String> fields) {
+        Line line = new Line(no);
+        line.ref = fields.getOrDefault("ref", "");
+        try {
+            String id = fields.getOrDefault("show", "");
+            if (!id.isEmpty()) {
+                line.show = catalog.show(Integer.parseInt(id));
+                if (line.show == null)
+                    throw new IllegalArgumentException("No show with id " + id + ".");
+            } else {
+                String musical = fields.getOrDefault("musical", "");
+                LocalDate date = LocalDate.parse(fields.getOrDefault("date", ""));
+                LocalTime time = LocalTime.parse(fields.getOrDefault("time", ""));
+                line.show = byStart.get(startKey(musical, date, time));
+                if (line.show == null)
+                    throw new IllegalArgumentException("No " + musical + " show at " + date + " " + time + ".");
+            }
+            String seats = fields.getOrDefault("seats", "").trim();
+            line.seats = seats.isEmpty() ? new int[0]
+                    : Arrays.stream(seats.split("[;\\s]+")).filter(t -> !t.isEmpty()).mapToInt(Integer::parseInt)
+                            .toArray();
+            line.adults = count(fields, "adults");
+            line.seniors = count(fields, "seniors");
+            line.students = count(fields, "students");
+            if (line.seats.length == 0 && line.adults + line.seniors + line.students == 0)
+                throw new IllegalArgumentException("No seats or tickets given.");
+        } catch (DateTimeException | IllegalArgumentException ex) {
+            line.finish(Status.INVALID, ex instanceof NumberFormatException ? "Not a number: " + ex.getMessage()
+                    : ex instanceof DateTimeException ? "Bad date or time: " + ex.getMessage() : ex.getMessage());
+        }
+        return line;
+    }
+
+    private static int count(Map<String, String> fields, String name) {
+        String v = fields.getOrDefault(name, "").trim();
+        return v.isEmpty() ? 0 : Integer.parseInt(v);
+    }
+
+    private static String startKey(String musical, LocalDate date, LocalTime time) {
+        return musical.trim().toLowerCase(Locale.ROOT) + '|' + date + '|' + time;
+    }
+
+    /** Splits one CSV row; fields may be quoted, with "" for a quote inside. */
+    static List<String> csvFields(String row) {
+        List<String> out = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < row.length(); i++) {
+            char c = row.charAt(i);
+            if (quoted) {
+                if (c != '"')
+                    field.append(c);
+                else if (i + 1 < row.length() && row.charAt(i + 1) == '"')
+                    field.append(row.charAt(++i));
+                else
+                    quoted = false;
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                out.add(field.toString().trim());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        out.add(field.toString().trim());
+        return out;
+    }
+
+    private static String csv(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0)
+            return value;
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+}
+
+/**
+ * Headless HTTP/JSON front end over the same catalog, {@link BookingEngine} and
+ * {@link HoldManager} the Swing UI uses. Each request runs on its own virtual
+ * thread where the JDK has them (21+), so a request blocked on a booking or a
+ * disk read costs no platform thread; older JDKs fall back to a bounded pool.
+ * Seat-change streams don't hold a request thread on either, see
+ * {@link #openStream}; at most {@code -Dserver.maxStreams} are open at once.
+ *
+ * <pre>
+ * GET    /musicals[?q=prefix]       catalog with show schedules, optionally by title prefix
+ * GET    /musicals/{i}              one musical
+ * GET    /shows?from=&amp;days=&amp;minFree=&amp;matinee=   shows in a date range, in start-time order
+ * GET    /shows/{id}                schedule entry and availability counts
+ * GET    /shows/{id}/seats          seat states per row: '.' free, 'h' held, 'x' sold
+ * GET    /shows/{id}/prices         current price per section and ticket type
+ * GET    /shows/{id}/events         server-sent events: a seat snapshot, then every change
+ * POST   /shows/{id}/quote          {"seats":[..],"adults":n,"seniors":n,"students":n}
+ * POST   /shows/{id}/holds          {"seats":[..]} or {"count":n}
+ * DELETE /holds/{holdId}
+ * POST   /shows/{id}/bookings       {"seats":[..],"adults":n,"seniors":n,"students":n[,"holdId":holdId]}
+ *                                   [,"idempotencyKey":k] or header Idempotency-Key: k
+ * POST   /carts                     {"items":[{"show":id,"seats":[..],"adults":n,..[,"holdId":holdId]},..]}
+ *                                   several shows booked all or nothing, as one order
+ * POST   /shows/{id}/queue          join the show's waiting room (with -Dadmission.concurrency)
+ * GET    /queue/{ticket}            position and estimated wait, or admitted
+ * DELETE /queue/{ticket}            leave the line, or end the turn
+ * GET    /orders/{id}               an order and which of its tickets were refunded
+ * POST   /shows/{id}/refunds        {"orderId":id,"seats":[..]} refund some tickets of one of the show's orders
+ * POST   /orders/{id}/refunds       refund every ticket of the order not refunded yet
+ * GET    /shows/{id}/orders[?limit=n]   the show's orders, newest first (default 100)
+ * GET    /orders/{id}/receipt       plain-text receipt
+ * </pre>
+ *
+ * With a waiting room, holds, bookings and carts for a show need the
+ * {@code Admission-Ticket} header with an admitted ticket for that show (for a
+ * cart, one per show, comma separated). Booking ends the ticket's turn.
+ */
+class BookingServer implements Closeable {
+    private static final Logger LOG = Logger.getLogger(BookingServer.class.getName());
+    private static final String JSON = "application/json; charset=utf-8";
+    static final int STREAM_COALESCE_MILLIS = 50;
+    static final int STREAM_KEEPALIVE_SECONDS = 15;
+
+    private final Catalog catalog;
+    private final List<Musical> musicals;
+    private final Pricing pricing;
+    private final BookingEngine engine;
+    private final HoldManager holds;
+    private final ReceiptStore receipts;
+    private final AdmissionControl admission;
+    private final HttpServer http;
+    private final ExecutorService executor;
+    private final String executorKind;
+    // open /events streams, checked for changes every STREAM_COALESCE_MILLIS by one ticker thread
+    private final Set<SeatStream> streams = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger openStreams = new AtomicInteger();
+    private final int maxStreams = Integer.getInteger("server.maxStreams", 10_000);
+    private final ScheduledExecutorService streamTicker;
+    private final ExecutorService streamWriters;
+
+    /** One client's /events stream and the seat state it was last sent. */
+    private static final class SeatStream {
+        final HttpExchange ex;
+        final Show show;
+        final long[] taken;
+        final long[] sold;
+        final AtomicBoolean changed = new AtomicBoolean();
+        // set while a write is queued or running, so a slow client never ties up two writers
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final SeatListener listener = s -> changed.set(true);
+        volatile long lastWriteNanos = System.nanoTime();
+
+        SeatStream(HttpExchange ex, Show show) {
+            this.ex = ex;
+            this.show = show;
+            this.taken = new long[show.seatWordCount()];
+            this.sold = new long[show.seatWordCount()];
+        }
+    }
+
+    public BookingServer(InetSocketAddress address, int backlog, Catalog catalog,
+            Pricing pricing, BookingEngine engine, HoldManager holds, ReceiptStore receipts) throws IOException {
+        this(address, backlog, catalog, pricing, engine, holds, receipts, null);
+    }
+
+    /** @param admission waiting room in front of holds and bookings, or null for none */
+    public BookingServer(InetSocketAddress address, int backlog, Catalog catalog, Pricing pricing,
+            BookingEngine engine, HoldManager holds, ReceiptStore receipts, AdmissionControl admission)
+            throws IOException {
+        this.admission = admission;
+        this.catalog = catalog;
+        this.musicals = catalog.musicals();
+        this.pricing = pricing;
+        this.engine = engine;
+        this.holds = holds;
+        this.receipts = receipts;
+        ExecutorService virtual = virtualThreadExecutor();
+        if (virtual != null) {
+            executor = virtual;
+            executorKind = "virtual threads";
+        } else {
+            int threads = Integer.getInteger("server.threads", 256);
+            AtomicInteger n = new AtomicInteger();
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), r -> {
+                        Thread t = new Thread(r, "http-worker-" + n.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    });
+            pool.allowCoreThreadTimeOut(true);
+            executor = pool;
+            executorKind = threads + " platform threads";
+        }
+        AtomicInteger w = new AtomicInteger();
+        streamWriters = Executors.newFixedThreadPool(Integer.getInteger("server.streamWriters", 4), r -> {
+            Thread t = new Thread(r, "stream-writer-" + w.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        streamTicker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "stream-ticker");
+            t.setDaemon(true);
+            return t;
+        });
+        streamTicker.scheduleWithFixedDelay(this::tickStreams, STREAM_COALESCE_MILLIS, STREAM_COALESCE_MILLIS,
+                TimeUnit.MILLISECONDS);
+        http = HttpServer.create(address, backlog);
+        http.setExecutor(executor);
+        http.createContext("/", this::handle);
+    }
+
+    public void start() {
+        http.start();
+    }
+
+    public int port() {
+        return http.getAddress().getPort();
+    }
+
+    String executorKind() {
+        return executorKind;
+    }
+
+    @Override
+    public void close() {
+        streamTicker.shutdownNow();
+        for (SeatStream st : streams)
+            closeStream(st);
+        streamWriters.shutdownNow();
+        http.stop(1);
+        executor.shutdown();
+    }
+
+    /** {@code Executors.newVirtualThreadPerTaskExecutor()} when the running JDK has it, else null. */
+    static ExecutorService virtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException ex) {
+            return null;
+        }
+    }
+
+    private void handle(HttpExchange ex) throws IOException {
+        // a stream outlives this call; its exchange is closed when the stream ends
+        boolean streaming = false;
+        try {
+            String method = ex.getRequestMethod();
+            String[] path = ex.getRequestURI().getPath().replaceAll("^/+|/+$", "").split("/+");
+            Map<String, String> query = query(ex.getRequestURI().getRawQuery());
+            if (path.length == 1 && path[0].equals("musicals")) {
+                requireMethod(method, "GET");
+                String q = query.get("q");
+                List<Musical> found = q == null ? musicals : catalog.titlesStartingWith(q);
+                StringBuilder sb = new StringBuilder("[");
+                for (int i = 0; i < found.size(); i++) {
+                    if (i > 0)
+                        sb.append(',');
+                    musicalJson(sb, musicals.indexOf(found.get(i)));
+                }
+                send(ex, 200, JSON, sb.append(']').toString());
+            } else if (path.length == 1 && path[0].equals("shows")) {
+                requireMethod(method, "GET");
+                StringBuilder sb = new StringBuilder("[");
+                List<Show> shows = findShows(query);
+                for (int i = 0; i < shows.size(); i++) {
+                    if (i > 0)
+                        sb.append(',');
+                    showJson(sb, shows.get(i));
+                }
+                send(ex, 200, JSON, sb.append(']').toString());
+            } else if (path.length == 2 && path[0].equals("musicals")) {
+                requireMethod(method, "GET");
+                int i = parseId(path[1]);
+                if (i < 0 || i >= musicals.size())
+                    throw new HttpError(404, "No such musical: " + path[1]);
+                StringBuilder sb = new StringBuilder();
+                musicalJson(sb, i);
+                send(ex, 200, JSON, sb.toString());
+            } else if (path.length == 2 && path[0].equals("shows")) {
+                requireMethod(method, "GET");
+                StringBuilder sb = new StringBuilder();
+                showJson(sb, show(path[1]));
+                send(ex, 200, JSON, sb.toString());
+            } else if (path.length == 3 && path[0].equals("shows") && path[2].equals("seats")) {
+                requireMethod(method, "GET");
+                send(ex, 200, JSON, seatsJson(show(path[1])));
+            } else if (path.length == 3 && path[0].equals("shows") && path[2].equals("prices")) {
+                requireMethod(method, "GET");
+                send(ex, 200, JSON, pricesJson(pricing.table(show(path[1]))));
+            } else if (path.length == 3 && path[0].equals("shows") && path[2].equals("quote")) {
+                requireMethod(method, "POST");
+                quote(ex, show(path[1]));
+            } else if (path.length == 3 && path[0].equals("shows") && path[2].equals("queue")) {
+                requireMethod(method, "POST");
+                joinQueue(ex, show(path[1]));
+            } else if (path.length == 2 && path[0].equals("queue")) {
+                queueTicket(ex, method, path[1]);
+            } else if (path.length == 3 && path[0].equals("shows") && path[2].equals("holds")) {
+                requireMethod(method, "POST");
+                Show show = show(path[1]);
+                requireAdmitted(ex, show);
+                placeHold(ex, show);
+            } else if (path.length == 2 && path[0].equals("holds")) {
+                requireMethod(method, "DELETE");
+                SeatHold hold = holds.find(path[1]);
+                if (hold == null)
+                    throw new HttpError(404, "No active hold " + path[1]);
+                hold.release();
+                send(ex, 204, null, null);
+            } else if (path.length == 3 && path[0].equals("shows") && path[2].equals("bookings")) {
+                requireMethod(method, "POST");
+                Show show = show(path[1]);
+                long ticket = requireAdmitted(ex, show);
+                book(ex, show);
+                if (ticket > 0)
+                    admission.leave(ticket);
+            } else if (path.length == 1 && path[0].equals("carts")) {
+                requireMethod(method, "POST");
+                bookCart(ex);
+            } else if (path.length == 3 && path[0].equals("shows") && path[2].equals("refunds")) {
+                requireMethod(method, "POST");
+                refund(ex, show(path[1]));
+            } else if (path.length == 3 && path[0].equals("shows") && path[2].equals("events")) {
+                requireMethod(method, "GET");
+                openStream(ex, show(path[1]));
+                streaming = true;
+            } else if (path.length == 3 && path[0].equals("shows") && path[2].equals("orders")) {
+                requireMethod(method, "GET");
+                int limit = query.containsKey("limit") ? parseId(query.get("limit")) : 100;
+                if (limit < 0)
+                    throw new HttpError(400, "limit must be a number");
+                List<OrderBook.Entry> found = engine.orderBook().ofShow(show(path[1]), limit);
+                StringBuilder sb = new StringBuilder(64 + 256 * found.size()).append('[');
+                for (int i = 0; i < found.size(); i++) {
+                    if (i > 0)
+                        sb.append(',');
+                    bookedJson(sb, found.get(i));
+                }
+                send(ex, 200, JSON, sb.append(']').toString());
+            } else if (path.length == 2 && path[0].equals("orders")) {
+                requireMethod(method, "GET");
+                OrderBook.Entry order = engine.orderBook().find(path[1]);
+                if (order == null)
+                    throw new HttpError(404, "No order " + path[1]);
+                StringBuilder sb = new StringBuilder(256);
+                bookedJson(sb, order);
+                send(ex, 200, JSON, sb.toString());
+            } else if (path.length == 3 && path[0].equals("orders") && path[2].equals("refunds")) {
+                requireMethod(method, "POST");
+                refundOrder(ex, path[1]);
+            } else if (path.length == 3 && path[0].equals("orders") && path[2].equals("receipt")) {
+                requireMethod(method, "GET");
+                String receipt = receipts.renderReceipt(path[1]);
+                if (receipt == null)
+                    throw new HttpError(404, "No receipt for order " + path[1]);
+                send(ex, 200, "text/plain; charset=utf-8", receipt);
+            } else {
+                throw new HttpError(404, "Not found");
+            }
+        } catch (HttpError e) {
+            sendError(ex, e.status, e.getMessage());
+        } catch (IllegalArgumentException e) {
+            sendError(ex, 400, e.getMessage());
+        } catch (IOException | RuntimeException e) {
+            // the details are for the log, not the client
+            LOG.log(Level.WARNING, ex.getRequestMethod() + " " + ex.getRequestURI() + " failed", e);
+            sendError(ex, 500, "Internal server error");
+        } finally {
+            if (!streaming)
+                ex.close();
+        }
+    }
+
+    private void joinQueue(HttpExchange ex, Show show) throws IOException {
+        if (admission == null)
+            throw new HttpError(404, "There is no waiting room; book directly.");
+        AdmissionControl.Ticket t = admission.join(show);
+        if (t == null) {
+            ex.getResponseHeaders().set("Retry-After", "60");
+            throw new HttpError(503, show.soldSeats() >= show.capacity ? "This show is sold out."
+                    : "Too many customers are waiting for this show. Please try again later.");
+        }
+        send(ex, 201, JSON, ticketJson(t));
+    }
+
+    private void queueTicket(HttpExchange ex, String method, String id) throws IOException {
+        if (admission == null)
+            throw new HttpError(404, "There is no waiting room; book directly.");
+        AdmissionControl.Ticket t = admission.find(id);
+        if (method.equals("DELETE")) {
+            if (t != null)
+                admission.leave(t.id);
+            send(ex, 204, null, null);
+            return;
+        }
+        requireMethod(method, "GET");
+        t = t == null ? null : admission.status(t.id);
+        if (t == null)
+            throw new HttpError(404, "Ticket " + id + " is no longer in line. Please join again.");
+        send(ex, 200, JSON, ticketJson(t));
+    }
+
+    private static String ticketJson(AdmissionControl.Ticket t) {
+        StringBuilder sb = new StringBuilder(128);
+        sb.append("{\"ticket\":");
+        Json.string(sb, t.token);
+        sb.append(",\"show\":").append(t.show.id);
+        sb.append(",\"admitted\":").append(t.state == AdmissionControl.State.ADMITTED);
+        sb.append(",\"position\":").append(t.position);
+        sb.append(",\"estimatedWaitMillis\":").append(t.etaMillis);
+        return sb.append('}').toString();
+    }
+
+    /**
+     * With a waiting room, fails unless the request's Admission-Ticket header
+     * names a ticket admitted for {@code show}. Checked before the body is
+     * read, so a customer who skipped the line costs a header lookup.
+     *
+     * @return the ticket's id, or 0 without a waiting room
+     */
+    private long requireAdmitted(HttpExchange ex, Show show) {
+        if (admission == null)
+            return 0;
+        String header = ex.getRequestHeaders().getFirst("Admission-Ticket");
+        if (header != null) {
+            for (String token : header.split(",")) {
+                AdmissionControl.Ticket t = admission.find(token.trim());
+                if (t != null && admission.admitted(t.id, show))
+                    return t.id;
+            }
+        }
+        throw new HttpError(429, "Please join the queue for show " + show.id + " first: POST /shows/" + show.id
+                + "/queue");
+    }
+
+    private void placeHold(HttpExchange ex, Show show) throws IOException {
+        Map<String, Object> body = Json.parseObject(readBody(ex));
+        SeatHold hold;
+        if (body.containsKey("count")) {
+            int count = (int) Json.getLong(body, "count", 0);
+            if (count <= 0)
+                throw new HttpError(400, "count must be positive");
+            hold = holds.holdBestAvailable(show, count);
+        } else {
+            int[] seats = Json.getIntArray(body, "seats");
+            if (seats.length == 0)
+                throw new HttpError(400, "Please select seats to hold.");
+            hold = holds.hold(show, seats);
+        }
+        if (hold == null)
+            throw new HttpError(409, "Those seats are not available.");
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"holdId\":");
+        Json.string(sb, hold.token);
+        sb.append(",\"show\":").append(show.id).append(",\"seats\":");
+        seatListJson(sb, show, hold.seats);
+        sb.append(",\"expiresAt\":");
+        Json.string(sb, Instant.ofEpochMilli(hold.expiresAtMillis).toString());
+        send(ex, 201, JSON, sb.append('}').toString());
+    }
+
+    private void book(HttpExchange ex, Show show) throws IOException {
+        Map<String, Object> body = Json.parseObject(readBody(ex));
+        // the header, as payment APIs take it, or the body for clients that can't set headers
+        String key = ex.getRequestHeaders().getFirst("Idempotency-Key");
+        if (key == null)
+            key = Json.getString(body, "idempotencyKey");
+        SeatHold hold = null;
+        if (body.containsKey("holdId")) {
+            hold = holds.find(Json.getString(body, "holdId"));
+            // a retry finds its hold already converted; the engine answers it from the key
+            if (hold == null && key == null)
+                throw new HttpError(409, "Your hold on these seats has expired. Please select them again.");
+        }
+        BookingRequest request = new BookingRequest(show.musical, show, Json.getIntArray(body, "seats"),
+                (int) Json.getLong(body, "adults", 0), (int) Json.getLong(body, "seniors", 0),
+                (int) Json.getLong(body, "students", 0), hold, key);
+        Order order;
+        try {
+            order = engine.submit(request).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HttpError(503, "Interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof BookingException) {
+                BookingException be = (BookingException) e.getCause();
+                int status = be.reason == BookingException.Reason.VALIDATION ? 400
+                        : be.reason == BookingException.Reason.SEAT_UNAVAILABLE ? 409 : 500;
+                throw new HttpError(status, be.getMessage());
+            }
+            throw new IOException("Booking failed", e.getCause());
+        }
+        StringBuilder sb = new StringBuilder(256);
+        orderJson(sb, order, show);
+        send(ex, 201, JSON, sb.toString());
+    }
+
+    private void bookCart(HttpExchange ex) throws IOException {
+        Object items = Json.parseObject(readBody(ex)).get("items");
+        if (!(items instanceof List))
+            throw new HttpError(400, "\"items\" must be an array of bookings");
+        List<BookingRequest> requests = new ArrayList<>();
+        List<Long> tickets = new ArrayList<>();
+        for (Object o : (List<?>) items) {
+            if (!(o instanceof Map))
+                throw new HttpError(400, "\"items\" must be an array of bookings");
+            @SuppressWarnings("unchecked")
+            Map<String, Object> item = (Map<String, Object>) o;
+            Show show = show(String.valueOf(Json.getLong(item, "show", 0)));
+            long ticket = requireAdmitted(ex, show);
+            if (ticket > 0)
+                tickets.add(ticket);
+            SeatHold hold = null;
+            if (item.containsKey("holdId")) {
+                hold = holds.find(Json.getString(item, "holdId"));
+                if (hold == null)
+                    throw new HttpError(409, "Your hold on seats for show " + show.id
+                            + " has expired. Please select them again.");
+            }
+            requests.add(new BookingRequest(show.musical, show, Json.getIntArray(item, "seats"),
+                    (int) Json.getLong(item, "adults", 0), (int) Json.getLong(item, "seniors", 0),
+                    (int) Json.getLong(item, "students", 0), hold));
+        }
+        CartOrder cart;
+        try {
+            cart = engine.submitCart(requests).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HttpError(503, "Interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof BookingException) {
+                BookingException be = (BookingException) e.getCause();
+                int status = be.reason == BookingException.Reason.VALIDATION ? 400
+                        : be.reason == BookingException.Reason.SEAT_UNAVAILABLE ? 409 : 500;
+                throw new HttpError(status, be.getMessage());
+            }
+            throw new IOException("Booking failed", e.getCause());
+        }
+        for (long ticket : tickets)
+            admission.leave(ticket);
+        StringBuilder sb = new StringBuilder(256 * cart.parts.size());
+        sb.append("{\"orderId\":");
+        Json.string(sb, cart.id);
+        sb.append(",\"parts\":[");
+        for (int i = 0; i < cart.parts.size(); i++) {
+            if (i > 0)
+                sb.append(',');
+            orderJson(sb, cart.parts.get(i), cart.shows.get(i));
+        }
+        sb.append("],\"total\":").append(cart.total).append('}');
+        send(ex, 201, JSON, sb.toString());
+    }
+
+    private static void orderJson(StringBuilder sb, Order order, Show show) {
+        sb.append("{\"orderId\":");
+        Json.string(sb, order.id);
+        sb.append(",\"musical\":");
+        Json.string(sb, order.musicalName);
+        sb.append(",\"show\":").append(show.id);
+        sb.append(",\"date\":\"").append(order.showDate).append("\",\"time\":\"").append(order.showTime).append('"');
+        sb.append(",\"tickets\":[");
+        int k = 0;
+        for (Map.Entry<Integer, String> e : order.seatType.entrySet()) {
+            if (k > 0)
+                sb.append(',');
+            sb.append("{\"seat\":").append(e.getKey()).append(",\"label\":");
+            Json.string(sb, show.venue.seatLabel(e.getKey()));
+            sb.append(",\"type\":\"").append(e.getValue()).append("\",\"price\":").append(order.prices[k++])
+                    .append('}');
+        }
+        sb.append("],\"total\":").append(order.total).append('}');
+    }
+
+    private void refund(HttpExchange ex, Show show) throws IOException {
+        Map<String, Object> body = Json.parseObject(readBody(ex));
+        String orderId = Json.getString(body, "orderId");
+        int[] seats = Json.getIntArray(body, "seats");
+        if (orderId == null)
+            throw new HttpError(400, "orderId is required");
+        OrderBook.Entry order = engine.orderBook().find(orderId);
+        if (order == null || order.show != show)
+            throw new HttpError(404, "No order " + orderId + " for show " + show.id);
+        int[] released;
+        try {
+            released = engine.refund(orderId, seats).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HttpError(503, "Interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof BookingException) {
+                BookingException be = (BookingException) e.getCause();
+                throw new HttpError(be.reason == BookingException.Reason.VALIDATION ? 409 : 500, be.getMessage());
+            }
+            throw new IOException("Refund failed", e.getCause());
+        }
+        StringBuilder sb = new StringBuilder(64 + 32 * released.length);
+        sb.append("{\"orderId\":");
+        Json.string(sb, orderId);
+        sb.append(",\"show\":").append(show.id).append(",\"released\":");
+        seatListJson(sb, show, released);
+        sb.append(",\"available\":").append(show.availableSeats());
+        send(ex, 200, JSON, sb.append('}').toString());
+    }
+
+    private void refundOrder(HttpExchange ex, String orderId) throws IOException {
+        OrderBook.Entry order = engine.orderBook().find(orderId);
+        if (order == null)
+            throw new HttpError(404, "No order " + orderId);
+        int[] released;
+        try {
+            released = engine.refundOrder(orderId).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HttpError(503, "Interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof BookingException) {
+                BookingException be = (BookingException) e.getCause();
+                throw new HttpError(be.reason == BookingException.Reason.VALIDATION ? 409 : 500, be.getMessage());
+            }
+            throw new IOException("Refund failed", e.getCause());
+        }
+        StringBuilder sb = new StringBuilder(64 + 32 * released.length);
+        sb.append("{\"orderId\":");
+        Json.string(sb, orderId);
+        sb.append(",\"show\":").append(order.show.id).append(",\"released\":");
+        seatListJson(sb, order.show, released);
+        sb.append(",\"available\":").append(order.show.availableSeats());
+        send(ex, 200, JSON, sb.append('}').toString());
+    }
+
+    /** An order from the {@link OrderBook}: {@link #orderJson}'s fields plus a refunded flag per ticket. */
+    private static void bookedJson(StringBuilder sb, OrderBook.Entry order) {
+        Show show = order.show;
+        sb.append("{\"orderId\":\"").append(OrderIds.format(order.id)).append("\",\"musical\":");
+        Json.string(sb, show.musical.name);
+        sb.append(",\"show\":").append(show.id);
+        sb.append(",\"date\":\"").append(show.date).append("\",\"time\":\"").append(show.time).append('"');
+        sb.append(",\"tickets\":[");
+        for (int i = 0; i < order.seats.length; i++) {
+            if (i > 0)
+                sb.append(',');
+            sb.append("{\"seat\":").append(order.seats[i]).append(",\"label\":");
+            Json.string(sb, show.venue.seatLabel(order.seats[i]));
+            sb.append(",\"type\":\"").append(order.types[i].label).append("\",\"price\":").append(order.prices[i])
+                    .append(",\"refunded\":").append(order.refunded[i]).append('}');
+        }
+        sb.append("],\"total\":").append(order.total).append('}');
+    }
+
+    /**
+     * Server-sent events for one show: a "snapshot" of every sold and held
+     * seat, then a "seats" event whenever seats change, carrying only the
+     * seats whose state differs from the last event. Changes arriving within
+     * {@link #STREAM_COALESCE_MILLIS} of each other go out as one event.
+     *
+     * The stream holds no thread while idle: it is registered and this
+     * returns. The ticker looks over every stream each
+     * {@link #STREAM_COALESCE_MILLIS} and hands the changed ones (and ones due a
+     * keep-alive) to a small writer pool, at most one write per stream at a
+     * time, so a client that stops reading stalls only its own stream.
+     */
+    private void openStream(HttpExchange ex, Show show) throws IOException {
+        if (openStreams.incrementAndGet() > maxStreams) {
+            openStreams.decrementAndGet();
+            ex.getResponseHeaders().set("Retry-After", "30");
+            throw new HttpError(503, "Too many open seat streams; please try again shortly.");
+        }
+        ex.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+        ex.getResponseHeaders().set("Cache-Control", "no-cache");
+        try {
+            ex.sendResponseHeaders(200, 0);
+        } catch (IOException e) {
+            openStreams.decrementAndGet();
+            throw e;
+        }
+        SeatStream st = new SeatStream(ex, show);
+        show.subscribe(st.listener);
+        streams.add(st);
+        streamWriters.execute(() -> writeStream(st, true));
+    }
+
+    private void tickStreams() {
+        long keepAliveNanos = TimeUnit.SECONDS.toNanos(STREAM_KEEPALIVE_SECONDS);
+        long now = System.nanoTime();
+        for (SeatStream st : streams) {
+            if ((st.changed.get() || now - st.lastWriteNanos > keepAliveNanos) && st.writing.compareAndSet(false, true))
+                streamWriters.execute(() -> writeStream(st, false));
+        }
+    }
+
+    private void writeStream(SeatStream st, boolean first) {
+        try {
+            OutputStream out = st.ex.getResponseBody();
+            if (first) {
+                writeEvent(out, "snapshot", seatDeltaJson(st.show, st.taken, st.sold, true));
+                st.lastWriteNanos = System.nanoTime();
+            } else {
+                // reset before reading, so a change made while we read triggers the next event
+                st.changed.set(false);
+                String delta = seatDeltaJson(st.show, st.taken, st.sold, false);
+                if (delta != null) {
+                    writeEvent(out, "seats", delta);
+                    st.lastWriteNanos = System.nanoTime();
+                } else if (System.nanoTime() - st.lastWriteNanos > TimeUnit.SECONDS.toNanos(STREAM_KEEPALIVE_SECONDS)) {
+                    // also how a client that went away is noticed
+                    out.write(": keep-alive\n\n".getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                    st.lastWriteNanos = System.nanoTime();
+                }
+            }
+            st.writing.set(false);
+        } catch (IOException | RuntimeException e) {
+            // client disconnected
+            closeStream(st);
+        }
+    }
+
+    private void closeStream(SeatStream st) {
+        if (!streams.remove(st))
+            return;
+        st.show.unsubscribe(st.listener);
+        openStreams.decrementAndGet();
+        st.ex.close();
+    }
+
+    private static void writeEvent(OutputStream out, String event, String data) throws IOException {
+        out.write(("event: " + event + "\ndata: " + data + "\n\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    /**
+     * The seats whose state changed since {@code taken}/{@code sold} were
+     * filled in, grouped by new state, as JSON; null if none did. Updates the
+     * arrays to the state reported. With {@code always}, an empty change is
+     * reported too.
+     */
+    private static String seatDeltaJson(Show s, long[] taken, long[] sold, boolean always) {
+        StringBuilder soldNow = new StringBuilder();
+        StringBuilder heldNow = new StringBuilder();
+        StringBuilder freeNow = new StringBuilder();
+        for (int w = 0; w < taken.length; w++) {
+            long t = s.takenWord(w);
+            long so = s.soldWord(w) & t;
+            long diff = (t ^ taken[w]) | (so ^ sold[w]);
+            taken[w] = t;
+            sold[w] = so;
+            while (diff != 0) {
+                long bit = diff & -diff;
+                diff &= diff - 1;
+                int seat = (w << 6) + Long.numberOfTrailingZeros(bit) + 1;
+                StringBuilder to = (so & bit) != 0 ? soldNow : (t & bit) != 0 ? heldNow : freeNow;
+                if (to.length() > 0)
+                    to.append(',');
+                to.append(seat);
+            }
+        }
+        if (!always && soldNow.length() == 0 && heldNow.length() == 0 && freeNow.length() == 0)
+            return null;
+        return "{\"show\":" + s.id + ",\"available\":" + s.availableSeats() + ",\"sold\":[" + soldNow
+                + "],\"held\":[" + heldNow + "],\"free\":[" + freeNow + "]}";
+    }
+
+    private void quote(HttpExchange ex, Show show) throws IOException {
+        Map<String, Object> body = Json.parseObject(readBody(ex));
+        int[] seats = Json.getIntArray(body, "seats");
+        int adults = (int) Json.getLong(body, "adults", 0);
+        int seniors = (int) Json.getLong(body, "seniors", 0);
+        int students = (int) Json.getLong(body, "students", 0);
+        if (adults < 0 || seniors < 0 || students < 0 || adults + seniors + students != seats.length)
+            throw new HttpError(400, "Number of ticket types must equal number of seats selected.");
+        for (int seat : seats)
+            if (seat < 1 || seat > show.capacity)
+                throw new HttpError(400, "No seat " + seat + " at this show.");
+        int[] prices = pricing.prices(show, seats, adults, seniors);
+        StringBuilder sb = new StringBuilder(64 + 16 * seats.length);
+        sb.append("{\"show\":").append(show.id).append(",\"prices\":[");
+        int total = 0;
+        for (int k = 0; k < prices.length; k++) {
+            if (k > 0)
+                sb.append(',');
+            sb.append(prices[k]);
+            total += prices[k];
+        }
+        sb.append("],\"total\":").append(total).append('}');
+        send(ex, 200, JSON, sb.toString());
+    }
+
+    /** Tables are immutable, so each one is rendered once and reused until the show changes step. */
+    private static String pricesJson(PriceTable t) {
+        String json = t.json;
+        if (json != null)
+            return json;
+        StringBuilder sb = new StringBuilder(128);
+        sb.append("{\"show\":").append(t.show.id).append(",\"surchargePercent\":")
+                .append(Pricing.SURCHARGE_PERCENT[t.step]).append(",\"sections\":[");
+        List<String> sections = t.show.venue.sections();
+        for (int i = 0; i < sections.size(); i++) {
+            if (i > 0)
+                sb.append(',');
+            sb.append("{\"section\":");
+            Json.string(sb, sections.get(i));
+            for (TicketType type : TicketType.ALL)
+                sb.append(",\"").append(type.label).append("\":").append(t.price(type, sections.get(i)));
+            sb.append('}');
+        }
+        t.json = json = sb.append("]}").toString();
+        return json;
+    }
+
+    private void musicalJson(StringBuilder sb, int index) {
+        Musical m = musicals.get(index);
+        sb.append("{\"id\":").append(index).append(",\"name\":");
+        Json.string(sb, m.name);
+        sb.append(",\"description\":");
+        Json.string(sb, m.description);
+        sb.append(",\"shows\":[");
+        for (int i = 0; i < m.shows.size(); i++) {
+            if (i > 0)
+                sb.append(',');
+            showJson(sb, m.shows.get(i));
+        }
+        sb.append("]}");
+    }
+
+    private void showJson(StringBuilder sb, Show s) {
+        sb.append("{\"id\":").append(s.id).append(",\"musical\":");
+        Json.string(sb, s.musical.name);
+        sb.append(",\"date\":\"").append(s.date).append("\",\"time\":\"").append(s.time).append("\",\"venue\":");
+        Json.string(sb, s.venue.name);
+        sb.append(",\"capacity\":").append(s.capacity).append(",\"available\":").append(s.summary().available)
+                .append('}');
+    }
+
+    private static String seatsJson(Show s) {
+        StringBuilder sb = new StringBuilder(s.capacity + 64 * s.venue.rows.size());
+        sb.append("{\"show\":").append(s.id).append(",\"available\":").append(s.availableSeats())
+                .append(",\"rows\":[");
+        for (int r = 0; r < s.venue.rows.size(); r++) {
+            Venue.Row row = s.venue.rows.get(r);
+            if (r > 0)
+                sb.append(',');
+            sb.append("{\"section\":");
+            Json.string(sb, row.section);
+            sb.append(",\"row\":");
+            Json.string(sb, row.label);
+            sb.append(",\"firstSeat\":").append(row.firstSeat).append(",\"state\":\"");
+            for (int seat = row.firstSeat; seat < row.firstSeat + row.seats; seat++)
+                sb.append(s.isBooked(seat) ? 'x' : s.isAvailable(seat) ? '.' : 'h');
+            sb.append("\"}");
+        }
+        return sb.append("]}").toString();
+    }
+
+    private static void seatListJson(StringBuilder sb, Show s, int[] seats) {
+        sb.append('[');
+        for (int i = 0; i < seats.length; i++) {
+            if (i > 0)
+                sb.append(',');
+            sb.append("{\"seat\":").append(seats[i]).append(",\"label\":");
+            Json.string(sb, s.venue.seatLabel(seats[i]));
+            sb.append('}');
+        }
+        sb.append(']');
+    }
+
+    /**
+     * {@code from} (ISO date, default today) and {@code days} (default 7) pick the
+     * range; {@code matinee=true} keeps afternoon performances only and
+     * {@code minFree=n} shows with at least n seats left.
+     */
+    private List<Show> findShows(Map<String, String> query) {
+        LocalDate from;
+        int days;
+        try {
+            from = query.containsKey("from") ? LocalDate.parse(query.get("from")) : LocalDate.now();
+            days = query.containsKey("days") ? Integer.parseInt(query.get("days")) : 7;
+        } catch (DateTimeException | NumberFormatException e) {
+            throw new HttpError(400, "from must be yyyy-mm-dd and days a number");
+        }
+        if (days < 1 || days > 3660)
+            throw new HttpError(400, "days must be between 1 and 3660");
+        int minFree = query.containsKey("minFree") ? parseId(query.get("minFree")) : 0;
+        if (minFree < 0)
+            throw new HttpError(400, "minFree must be a number");
+        if (Boolean.parseBoolean(query.get("matinee"))) {
+            List<Show> out = new ArrayList<>();
+            for (Show s : catalog.matinees(from, from.plusDays(days - 1)))
+                if (minFree == 0 || s.availableSeats() >= minFree)
+                    out.add(s);
+            return out;
+        }
+        LocalDateTime start = from.atStartOfDay();
+        LocalDateTime end = from.plusDays(days).atStartOfDay();
+        return minFree > 0 ? catalog.withFreeSeats(start, end, minFree) : catalog.between(start, end);
+    }
+
+    private static Map<String, String> query(String raw) {
+        Map<String, String> out = new HashMap<>();
+        if (raw == null)
+            return out;
+        for (String pair : raw.split("&")) {
+            int eq = pair.indexOf('=');
+            String k = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), StandardCharsets.UTF_8);
+            out.put(k, eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+        }
+        return out;
+    }
+
+    private Show show(String id) {
+        Show s = catalog.show(parseId(id));
+        if (s == null)
+            throw new HttpError(404, "No such show: " + id);
+        return s;
+    }
+
+    private static int parseId(String s) {
+        try {
+            return Integer.parseInt(s);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void requireMethod(String actual, String expected) {
+        if (!actual.equals(expected))
+            throw new HttpError(405, "Use " + expected);
+    }
+
+    private static String readBody(HttpExchange ex) throws IOException {
+        try (InputStream in = ex.getRequestBody()) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static void sendError(HttpExchange ex, int status, String message) throws IOException {
+        StringBuilder sb = new StringBuilder("{\"error\":");
+        Json.string(sb, message == null ? "" : message);
+        send(ex, status, JSON, sb.append('}').toString());
+    }
+
+    private static void send(HttpExchange ex, int status, String contentType, String body) throws IOException {
+        if (body == null) {
+            ex.sendResponseHeaders(status, -1);
+            return;
+        }
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        ex.getResponseHeaders().set("Content-Type", contentType);
+        ex.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = ex.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /** A request that ends with a given status and a JSON {"error": ...} body. */
+    static class HttpError extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+
+        HttpError(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+}
+
+/**
+ * Just enough JSON for the booking API: request bodies parse to
+ * {@code Map}/{@code List}/{@code String}/{@code Long}/{@code Double}/{@code Boolean}/null;
+ * responses are built directly into a StringBuilder.
+ */
+final class Json {
+    private final String text;
+    private int pos;
+
+    private Json(String text) {
+        this.text = text;
+    }
+
+    /** Parses a JSON object; an empty body counts as {}. */
+    @SuppressWarnings("unchecked")
+    static Map<String, Object> parseObject(String text) {
+        if (text.trim().isEmpty())
+            return new HashMap<>();
+        Object v = parse(text);
+        if (!(v instanceof Map))
+            throw new IllegalArgumentException("Expected a JSON object");
+        return (Map<String, Object>) v;
+    }
+
+    static Object parse(String text) {
+        Json p = new Json(text);
+        Object v = p.value();
+        p.skipSpace();
+        if (p.pos != text.length())
+            throw p.error("Unexpected trailing input");
+        return v;
+    }
+
+    static long getLong(Map<String, Object> obj, String key, long dflt) {
+        Object v = obj.get(key);
+        if (v == null)
+            return dflt;
+        if (!(v instanceof Long))
+            throw new IllegalArgumentException("\"" + key + "\" must be an integer");
+        return (Long) v;
+    }
+
+    static String getString(Map<String, Object> obj, String key) {
+        Object v = obj.get(key);
+        if (v != null && !(v instanceof String))
+            throw new IllegalArgumentException("\"" + key + "\" must be a string");
+        return (String) v;
+    }
+
+    static int[] getIntArray(Map<String, Object> obj, String key) {
+        Object v = obj.get(key);
+        if (v == null)
+            return new int[0];
+        if (!(v instanceof List))
+            throw new IllegalArgumentException("\"" + key + "\" must be an array of integers");
+        List<?> list = (List<?>) v;
+        int[] out = new int[list.size()];
+        for (int i = 0; i < out.length; i++) {
+            if (!(list.get(i) instanceof Long))
+                throw new IllegalArgumentException("\"" + key + "\" must be an array of integers");
+            out[i] = (int) (long) (Long) list.get(i);
+        }
+        return out;
+    }
+
+    static void string(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20)
+                        sb.append(String.format("\\u%04x", (int) c));
+                    else
+                        sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+
+    private Object value() {
+        skipSpace();
+        if (pos >= text.length())
+            throw error("Unexpected end of input");
+        char c = text.charAt(pos);
+        switch (c) {
+            case '{':
+                return object();
+            case '[':
+                return array();
+            case '"':
+                return string();
+            case 't':
+                return literal("true", Boolean.TRUE);
+            case 'f':
+                return literal("false", Boolean.FALSE);
+            case 'n':
+                return literal("null", null);
+            default:
+                return number();
+        }
+    }
+
+    private Map<String, Object> object() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        pos++;
+        skipSpace();
+        if (peek('}'))
+            return map;
+        do {
+            skipSpace();
+            if (pos >= text.length() || text.charAt(pos) != '"')
+                throw error("Expected a string key");
+            String key = string();
+            skipSpace();
+            expect(':');
+            map.put(key, value());
+            skipSpace();
+        } while (peek(','));
+        expect('}');
+        return map;
+    }
+
+    private List<Object> array() {
+        List<Object> list = new ArrayList<>();
+        pos++;
+        skipSpace();
+        if (peek(']'))
+            return list;
+        do {
+            list.add(value());
+            skipSpace();
+        } while (peek(','));
+        expect(']');
+        return list;
+    }
+
+    private String string() {
+        StringBuilder sb = new StringBuilder();
+        pos++;
+        while (pos < text.length()) {
+            char c = text.charAt(pos++);
+            if (c == '"')
+                return sb.toString();
+            if (c != '\\') {
+                sb.append(c);
+                continue;
+            }
+            if (pos >= text.length())
+                break;
+            char e = text.charAt(pos++);
+            switch (e) {
+                case 'b':
+                    sb.append('\b');
+                    break;
+                case 'f':
+                    sb.append('\f');
+                    break;
+                case 'n':
+                    sb.append('\n');
+                    break;
+                case 'r':
+                    sb.append('\r');
+                    break;
+                case 't':
+                    sb.append('\t');
+                    break;
+                case 'u':
+                    if (pos + 4 > text.length())
+                        throw error("Bad \\u escape");
+                    try {
+                        sb.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+                    } catch (NumberFormatException ex) {
+                        throw error("Bad \\u escape");
+                    }
+                    pos += 4;
+                    break;
+                default:
+                    sb.append(e);
+            }
+        }
+        throw error("Unterminated string");
+    }
+
+    private Object number() {
+        int start = pos;
+        while (pos < text.length() && "+-0123456789.eE".indexOf(text.charAt(pos)) >= 0)
+            pos++;
+        String n = text.substring(start, pos);
+        try {
+            if (n.indexOf('.') < 0 && n.indexOf('e') < 0 && n.indexOf('E') < 0)
+                return Long.parseLong(n);
+            return Double.parseDouble(n);
+        } catch (NumberFormatException ex) {
+            throw error("Bad value");
+        }
+    }
+
+    private Object literal(String word, Object value) {
+        if (!text.startsWith(word, pos))
+            throw error("Bad value");
+        pos += word.length();
+        return value;
+    }
+
+    private boolean peek(char c) {
+        if (pos < text.length() && text.charAt(pos) == c) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(char c) {
+        if (!peek(c))
+            throw error("Expected '" + c + "'");
+    }
+
+    private void skipSpace() {
+        while (pos < text.length() && Character.isWhitespace(text.charAt(pos)))
+            pos++;
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException("Malformed JSON at " + pos + ": " + message);
+    }
+}
+
+/**
+ * Writes receipts on a background thread fed by a bounded queue, so a slow disk
+ * never stalls the booking dialog. The writer takes whatever orders are queued
+ * (waiting up to {@code groupCommitMillis} for more to arrive), appends them all
+ * to the {@link ReceiptStore} and then fsyncs them together before completing
+ * their futures. When the queue is full {@link #submit} blocks the caller until
+ * there is room.
+ */
+class ReceiptWriter implements Closeable {
+    static final int MAX_BATCH = 64;
+
+    private final ReceiptStore store;
+    private final BlockingQueue<Pending> queue;
+    private final long groupCommitNanos;
+    private final boolean fsync;
+    private final Thread thread;
+    private volatile boolean closed;
+
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong totalLatencyNanos = new AtomicLong();
+    private final LongAccumulator maxLatencyNanos = new LongAccumulator(Math::max, 0);
+    /** Submit-to-durable time per receipt, the old saveReceipt step. */
+    final LatencyHistogram latency = new LatencyHistogram();
+
+    // one submit: a single order, or a run of them from submitAll
+    private static final class Pending {
+        final List<Order> orders;
+        final long enqueuedAt = System.nanoTime();
+        final String[] locations;
+
+        Pending(List<Order> orders) {
+            this.orders = orders;
+            this.locations = new String[orders.size()];
+        }
+    }
+
+    /**
+     * @param queueCapacity     submits (single orders or runs) that may wait before submitters block
+     * @param groupCommitMillis how long to wait for more orders to share a flush; 0 flushes what is queued
+     * @param fsync             force receipts to disk before reporting them written
+     */
+    public ReceiptWriter(ReceiptStore store, int queueCapacity, int groupCommitMillis, boolean fsync) {
+        this.store = store;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.groupCommitNanos = TimeUnit.MILLISECONDS.toNanos(groupCommitMillis);
+        this.fsync = fsync;
+        this.thread = new Thread(this::run, "receipt-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Queues the order's receipt and returns {@code order.receipt}, completed with its store location. */
+    public CompletableFuture<String> submit(Order order) {
+        submitAll(Collections.singletonList(order));
+        return order.receipt;
+    }
+
+    /**
+     * Queues the receipts of several orders as one entry, so they are written
+     * in the same batch however many other submitters are waiting. Receipts
+     * queued as the writer closes are either written by it or failed, never
+     * left pending.
+     */
+    public void submitAll(List<Order> orders) {
+        if (orders.isEmpty())
+            return;
+        if (closed) {
+            fail(orders, new IOException("Receipt writer is closed"));
+            return;
+        }
+        try {
+            Pending p = new Pending(new ArrayList<>(orders));
+            while (!queue.offer(p, 100, TimeUnit.MILLISECONDS)) {
+                if (!thread.isAlive()) {
+                    fail(orders, new IOException("Receipt writer is closed"));
+                    return;
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            fail(orders, new IOException("Interrupted while queueing receipt"));
+            return;
+        }
+        // the writer drains the queue before it exits; if it already has, this entry is ours to fail
+        if (closed && !thread.isAlive())
+            failQueued();
+    }
+
+    public int queueDepth() {
+        return queue.size();
+    }
+
+    public long receiptsWritten() {
+        return written.get();
+    }
+
+    /** Mean time from submit to the receipt being on disk. */
+    public long averageLatencyMicros() {
+        long n = written.get();
+        return n == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalLatencyNanos.get() / n);
+    }
+
+    public long maxLatencyMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(maxLatencyNanos.get());
+    }
+
+    /** Stops accepting receipts and waits for the queued ones to be written. */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            thread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        if (!thread.isAlive())
+            failQueued();
+    }
+
+    private void failQueued() {
+        for (Pending p; (p = queue.poll()) != null;)
+            fail(p.orders, new IOException("Receipt writer is closed"));
+    }
+
+    private static void fail(List<Order> orders, IOException ex) {
+        for (Order o : orders)
+            o.receipt.completeExceptionally(ex);
+    }
+
+    private void run() {
+        List<Pending> batch = new ArrayList<>(MAX_BATCH);
+        while (!closed || !queue.isEmpty()) {
+            try {
+                Pending first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null)
+                    continue;
+                batch.add(first);
+                long deadline = System.nanoTime() + groupCommitNanos;
+                while (batch.size() < MAX_BATCH) {
+                    long wait = deadline - System.nanoTime();
+                    Pending next = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null)
+                        break;
+                    batch.add(next);
+                }
+            } catch (InterruptedException ex) {
+                // only close() stops the writer; keep draining
+            }
+            if (!batch.isEmpty()) {
+                writeBatch(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void writeBatch(List<Pending> batch) {
+        for (Pending p : batch) {
+            for (int i = 0; i < p.orders.size(); i++) {
+                Order o = p.orders.get(i);
+                try {
+                    p.locations[i] = store.append(o, o.prices);
+                } catch (IOException ex) {
+                    o.receipt.completeExceptionally(ex);
+                }
+            }
+        }
+        // one group commit for the whole batch
+        try {
+            if (fsync)
+                store.sync();
+        } catch (IOException ex) {
+            for (Pending p : batch)
+                for (Order o : p.orders)
+                    o.receipt.completeExceptionally(ex);
+            return;
+        }
+        for (Pending p : batch) {
+            long latency = System.nanoTime() - p.enqueuedAt;
+            for (int i = 0; i < p.orders.size(); i++) {
+                if (p.locations[i] == null)
+                    continue;
+                totalLatencyNanos.addAndGet(latency);
+                maxLatencyNanos.accumulate(latency);
+                this.latency.record(latency);
+                written.incrementAndGet();
+                p.orders.get(i).receipt.complete(p.locations[i]);
+            }
+        }
+    }
+}
+
+/**
+ * Time-ordered 64-bit order ids: milliseconds since the epoch in the high bits,
+ * a sequence in the low 20 bits. Ids from one process are strictly increasing
+ * and sort by creation time; no SecureRandom is involved.
+ */
+final class OrderIds {
+    private static final int SEQ_BITS = 20;
+    private static final AtomicLong LAST = new AtomicLong();
+
+    private OrderIds() {
+    }
+
+    static long nextLong() {
+        while (true) {
+            long last = LAST.get();
+            long next = Math.max(last + 1, System.currentTimeMillis() << SEQ_BITS);
+            if (LAST.compareAndSet(last, next))
+                return next;
+        }
+    }
+
+    static String next() {
+        return format(nextLong());
+    }
+
+    /** Fixed-width lowercase hex, so string order matches id order. */
+    static String format(long id) {
+        String hex = Long.toHexString(id);
+        return "0000000000000000".substring(hex.length()) + hex;
+    }
+
+    /** Parses an id made by {@link #format}; returns 0 for anything else (e.g. legacy UUID ids). */
+    static long parse(String id) {
+        if (id == null || id.length() != 16)
+            return 0;
+        try {
+            return Long.parseUnsignedLong(id, 16);
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+}
+
+/**
+ * Unguessable 128-bit tokens from SecureRandom, as 32 hex digits, for anything
+ * a client hands back to prove it is the one the server gave it to.
+ */
+final class Tokens {
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private Tokens() {
+    }
+
+    static String next() {
+        byte[] bytes = new byte[16];
+        RANDOM.nextBytes(bytes);
+        StringBuilder sb = new StringBuilder(32);
+        for (byte b : bytes)
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return sb.toString();
+    }
+}
+
+/** Open-addressing long -> long hash map; key 0 is reserved for empty slots. */
+final class LongIndex {
+    private long[] keys;
+    private long[] values;
+    private int size;
+
+    LongIndex(int expected) {
+        int cap = Integer.highestOneBit(Math.max(16, expected * 2 - 1)) << 1;
+        keys = new long[cap];
+        values = new long[cap];
+    }
+
+    int size() {
+        return size;
+    }
+
+    /** @return the value for {@code key}, or -1 if absent */
+    long get(long key) {
+        int mask = keys.length - 1;
+        for (int i = mix(key) & mask;; i = (i + 1) & mask) {
+            long k = keys[i];
+            if (k == key)
+                return values[i];
+            if (k == 0)
+                return -1;
+        }
+    }
+
+    void put(long key, long value) {
+        if (key == 0)
+            throw new IllegalArgumentException("key 0 is reserved");
+        if ((size + 1) * 2 > keys.length)
+            rehash(keys.length << 1);
+        int mask = keys.length - 1;
+        for (int i = mix(key) & mask;; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                values[i] = value;
+                return;
+            }
+            if (keys[i] == 0) {
+                keys[i] = key;
+                values[i] = value;
+                size++;
+                return;
+            }
+        }
+    }
+
+    private void rehash(int cap) {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        keys = new long[cap];
+        values = new long[cap];
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++)
+            if (oldKeys[i] != 0)
+                put(oldKeys[i], oldValues[i]);
+    }
+
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
+
+/**
+ * Every order sold, kept in memory as parallel primitive arrays instead of
+ * {@link Order} objects, for lookups and refunds by order id and by show. A
+ * row per order holds its 64-bit id, its show (interned to a small code), its
+ * first ticket and the row of the same show's previous order; a ticket is one
+ * long packing seat, ticket type, price and whether it was refunded. That is
+ * about 32 bytes an order plus 8 a ticket, where an Order with its map, boxed
+ * seats, strings and dates costs a few hundred a seat, and since the arrays
+ * hold no references the collector has next to nothing to trace.
+ *
+ * The id index is open addressing over row numbers, probing against the id
+ * column, so a slot costs 4 bytes rather than a key and a value.
+ */
+final class OrderBook {
+    // ticket: seat in bits 0-31, type ordinal in 32-33, refunded in 34, price in 35-63
+    private static final int TYPE_SHIFT = 32;
+    private static final long REFUNDED = 1L << 34;
+    private static final int PRICE_SHIFT = 35;
+
+    private long[] ids = new long[1024];
+    private int[] showCodes = new int[1024];
+    private int[] firstTicket = new int[1024];
+    // the show's previous order's row, or -1
+    private int[] previous = new int[1024];
+    private int rows;
+    private long[] tickets = new long[4096];
+    private int ticketCount;
+    // row + 1 per slot, 0 for empty
+    private int[] slots = new int[2048];
+    private final Map<Show, Integer> codes = new HashMap<>();
+    private Show[] shows = new Show[16];
+    // the show's newest order's row, or -1
+    private int[] newest = new int[16];
+
+    /** One order as read back from the book. */
+    static final class Entry {
+        final long id;
+        final Show show;
+        final int[] seats;
+        final TicketType[] types;
+        final int[] prices;
+        final boolean[] refunded;
+        final int total;
+
+        Entry(long id, Show show, int[] seats, TicketType[] types, int[] prices, boolean[] refunded) {
+            this.id = id;
+            this.show = show;
+            this.seats = seats;
+            this.types = types;
+            this.prices = prices;
+            this.refunded = refunded;
+            int sum = 0;
+            for (int p : prices)
+                sum += p;
+            this.total = sum;
+        }
+
+        /** Seats of this order still sold to it. */
+        int[] openSeats() {
+            int n = 0;
+            for (boolean r : refunded)
+                if (!r)
+                    n++;
+            int[] open = new int[n];
+            for (int i = 0, k = 0; i < seats.length; i++)
+                if (!refunded[i])
+                    open[k++] = seats[i];
+            return open;
+        }
+    }
+
+    /** Records a confirmed order of {@code show}. */
+    void add(Show show, Order order) {
+        int n = order.seatType.size();
+        int[] seats = new int[n];
+        TicketType[] types = new TicketType[n];
+        int k = 0;
+        for (Map.Entry<Integer, String> e : order.seatType.entrySet()) {
+            seats[k] = e.getKey();
+            types[k++] = TicketType.of(e.getValue());
+        }
+        add(OrderIds.parse(order.id), show, seats, types, order.prices);
+    }
+
+    synchronized void add(long id, Show show, int[] seats, TicketType[] types, int[] prices) {
+        if (id == 0)
+            throw new IllegalArgumentException("Order id 0 is reserved");
+        if (slot(id) >= 0)
+            throw new IllegalArgumentException("Order " + OrderIds.format(id) + " is already booked");
+        if (rows == ids.length) {
+            int cap = rows << 1;
+            ids = Arrays.copyOf(ids, cap);
+            showCodes = Arrays.copyOf(showCodes, cap);
+            firstTicket = Arrays.copyOf(firstTicket, cap);
+            previous = Arrays.copyOf(previous, cap);
+        }
+        if (ticketCount + seats.length > tickets.length)
+            tickets = Arrays.copyOf(tickets, Math.max(tickets.length << 1, ticketCount + seats.length));
+        int code = code(show);
+        int row = rows++;
+        ids[row] = id;
+        showCodes[row] = code;
+        firstTicket[row] = ticketCount;
+        previous[row] = newest[code];
+        newest[code] = row;
+        for (int i = 0; i < seats.length; i++)
+            tickets[ticketCount++] = (seats[i] & 0xFFFFFFFFL) | ((long) types[i].ordinal() << TYPE_SHIFT)
+                    | ((long) prices[i] << PRICE_SHIFT);
+        if (rows * 2 > slots.length)
+            rehash(slots.length << 1);
+        insert(row);
+    }
+
+    /** The order with this id, or null. */
+    Entry find(String orderId) {
+        return find(OrderIds.parse(orderId));
+    }
+
+    synchronized Entry find(long id) {
+        int s = id == 0 ? -1 : slot(id);
+        return s < 0 ? null : entry(slots[s] - 1);
+    }
+
+    /** Up to {@code limit} of the show's orders, newest first. */
+    synchronized List<Entry> ofShow(Show show, int limit) {
+        Integer code = codes.get(show);
+        List<Entry> out = new ArrayList<>();
+        for (int row = code == null ? -1 : newest[code]; row >= 0 && out.size() < limit; row = previous[row])
+            out.add(entry(row));
+        return out;
+    }
+
+    /** Marks the tickets now holding these sold seats of {@code show} refunded. */
+    synchronized void refunded(Show show, int[] seats) {
+        Integer code = codes.get(show);
+        if (code == null)
+            return;
+        BitSet wanted = new BitSet();
+        for (int seat : seats)
+            wanted.set(seat);
+        // only the newest ticket for a seat can still be live, so walk newest first
+        for (int row = newest[code]; row >= 0 && !wanted.isEmpty(); row = previous[row]) {
+            for (int t = firstTicket[row], end = end(row); t < end; t++) {
+                int seat = (int) tickets[t];
+                if ((tickets[t] & REFUNDED) == 0 && wanted.get(seat)) {
+                    tickets[t] |= REFUNDED;
+                    wanted.clear(seat);
+                }
+            }
+        }
+    }
+
+    /**
+     * Fills the book from every receipt in {@code store}, before any sales.
+     * Refunds aren't in the receipts, so a ticket counts as refunded when its
+     * seat was sold again later or isn't sold now. Orders for shows no longer
+     * in the catalog are skipped.
+     *
+     * @return orders loaded
+     */
+    synchronized int load(ReceiptStore store, Catalog catalog) throws IOException {
+        Map<String, Show> byStart = new HashMap<>();
+        for (Show s : catalog.allShows())
+            byStart.put(s.musical.name + '@' + s.startsAt(), s);
+        int[] loaded = new int[1];
+        store.forEach(r -> {
+            Show s = byStart.get(r.musicalName + '@' + LocalDateTime.of(r.showDate, r.showTime));
+            if (s == null || slot(r.orderId) >= 0)
+                return;
+            TicketType[] types = new TicketType[r.types.length];
+            for (int i = 0; i < types.length; i++)
+                types[i] = TicketType.of(r.types[i]);
+            add(r.orderId, s, r.seats, types, r.prices);
+            loaded[0]++;
+        });
+        for (int code = 0; code < codes.size(); code++) {
+            Show s = shows[code];
+            BitSet live = new BitSet(s.capacity + 1);
+            for (int row = newest[code]; row >= 0; row = previous[row]) {
+                for (int t = firstTicket[row], end = end(row); t < end; t++) {
+                    int seat = (int) tickets[t];
+                    if (live.get(seat) || !s.isBooked(seat))
+                        tickets[t] |= REFUNDED;
+                    else
+                        live.set(seat);
+                }
+            }
+        }
+        return loaded[0];
+    }
+
+    synchronized int orders() {
+        return rows;
+    }
+
+    synchronized int tickets() {
+        return ticketCount;
+    }
+
+    /** Heap taken by the arrays, allocated capacity included. */
+    synchronized long bytes() {
+        return 8L * ids.length + 4L * (showCodes.length + firstTicket.length + previous.length) + 8L * tickets.length
+                + 4L * slots.length + 12L * shows.length;
+    }
+
+    private Entry entry(int row) {
+        int from = firstTicket[row];
+        int n = end(row) - from;
+        int[] seats = new int[n];
+        TicketType[] types = new TicketType[n];
+        int[] prices = new int[n];
+        boolean[] refunded = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            long t = tickets[from + i];
+            seats[i] = (int) t;
+            types[i] = TicketType.ALL[(int) (t >>> TYPE_SHIFT) & 3];
+            prices[i] = (int) (t >>> PRICE_SHIFT);
+            refunded[i] = (t & REFUNDED) != 0;
+        }
+        return new Entry(ids[row], shows[showCodes[row]], seats, types, prices, refunded);
+    }
+
+    private int end(int row) {
+        return row + 1 < rows ? firstTicket[row + 1] : ticketCount;
+    }
+
+    private int code(Show show) {
+        Integer code = codes.get(show);
+        if (code != null)
+            return code;
+        int c = codes.size();
+        if (c == shows.length) {
+            shows = Arrays.copyOf(shows, c << 1);
+            newest = Arrays.copyOf(newest, c << 1);
+        }
+        shows[c] = show;
+        newest[c] = -1;
+        codes.put(show, c);
+        return c;
+    }
+
+    /** The slot holding {@code id}, or -1. */
+    private int slot(long id) {
+        int mask = slots.length - 1;
+        for (int i = mix(id) & mask;; i = (i + 1) & mask) {
+            int row = slots[i] - 1;
+            if (row < 0)
+                return -1;
+            if (ids[row] == id)
+                return i;
+        }
+    }
+
+    private void insert(int row) {
+        int mask = slots.length - 1;
+        int i = mix(ids[row]) & mask;
+        while (slots[i] != 0)
+            i = (i + 1) & mask;
+        slots[i] = row + 1;
+    }
+
+    private void rehash(int cap) {
+        slots = new int[cap];
+        for (int row = 0; row < rows; row++)
+            insert(row);
+    }
+
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
+
+/**
+ * Receipt records appended to rolling segment files instead of one text file per
+ * order. Layout under the receipts directory:
+ * - segment-NNNNNN.dat: records of [len:int][body][crc:int], body being
+ * [orderId:long][musical:utf][epochDay:long][secondOfDay:int][seats:short]
+ * then per seat [seat:int][type:utf][price:int], then [total:int], and for a
+ * show of a multi-show cart [cartId:long][parts:short][partId:long]*
+ * - orders.idx: fixed 20-byte entries [orderId:long][segment:int][offset:long];
+ * a cart's id is indexed too, at its first part
+ *
+ * The index is loaded into memory on open, so a lookup by order id is one hash
+ * probe plus one positional read. Index entries are written after their record;
+ * on open, records in the last segment that the index missed are re-indexed and a
+ * torn tail is cut off. The plain-text receipt is rendered from the record on demand.
+ */
+class ReceiptStore implements Closeable {
+    static final long DEFAULT_SEGMENT_BYTES = 64L << 20;
+    private static final int INDEX_ENTRY = 20;
+    private static final String NL = System.lineSeparator();
+
+    private final Path dir;
+    private final long segmentBytes;
+    private final LongIndex index = new LongIndex(1024);
+    private final CRC32 crc = new CRC32();
+    private final ByteArrayOutputStream scratch = new ByteArrayOutputStream(512);
+    private FileChannel indexChannel;
+    private FileChannel active;
+    private int activeSegment;
+    private boolean dirty;
+
+    /** A receipt as stored: one entry per seat in booking order. */
+    static final class Record {
+        final long orderId;
+        final String musicalName;
+        final LocalDate showDate;
+        final LocalTime showTime;
+        final int[] seats;
+        final String[] types;
+        final int[] prices;
+        final int total;
+        /** The cart this order is one show of, and the ids of all its shows' orders; 0 and empty if none. */
+        final long cartId;
+        final long[] cartParts;
+
+        Record(long orderId, String musicalName, LocalDate showDate, LocalTime showTime, int[] seats,
+                String[] types, int[] prices, int total) {
+            this(orderId, musicalName, showDate, showTime, seats, types, prices, total, 0, new long[0]);
+        }
+
+        Record(long orderId, String musicalName, LocalDate showDate, LocalTime showTime, int[] seats,
+                String[] types, int[] prices, int total, long cartId, long[] cartParts) {
+            this.orderId = orderId;
+            this.musicalName = musicalName;
+            this.showDate = showDate;
+            this.showTime = showTime;
+            this.seats = seats;
+            this.types = types;
+            this.prices = prices;
+            this.total = total;
+            this.cartId = cartId;
+            this.cartParts = cartParts;
+        }
+    }
+
+    private ReceiptStore(Path dir, long segmentBytes) {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+    }
+
+    public static ReceiptStore open(Path dir) throws IOException {
+        return open(dir, DEFAULT_SEGMENT_BYTES);
+    }
+
+    public static ReceiptStore open(Path dir, long segmentBytes) throws IOException {
+        Files.createDirectories(dir);
+        ReceiptStore store = new ReceiptStore(dir, segmentBytes);
+        store.recover();
+        return store;
+    }
+
+    /**
+     * Appends the order's receipt to the active segment and indexes it.
+     *
+     * @param prices price charged per seat, in {@code order.seatType} order
+     * @return where the record was written, as "segment-file@offset"
+     */
+    public synchronized String append(Order order, int[] prices) throws IOException {
+        long id = OrderIds.parse(order.id);
+        if (id == 0)
+            throw new IOException("Order id " + order.id + " is not a store id");
+        scratch.reset();
+        DataOutputStream out = new DataOutputStream(scratch);
+        out.writeInt(0); // length, patched below
+        out.writeLong(id);
+        out.writeUTF(order.musicalName);
+        out.writeLong(order.showDate.toEpochDay());
+        out.writeInt(order.showTime.toSecondOfDay());
+        out.writeShort(order.seatType.size());
+        int k = 0;
+        for (Map.Entry<Integer, String> e : order.seatType.entrySet()) {
+            out.writeInt(e.getKey());
+            out.writeUTF(e.getValue());
+            out.writeInt(prices[k++]);
+        }
+        out.writeInt(order.total);
+        CartOrder cart = order.cart;
+        if (cart != null) {
+            out.writeLong(OrderIds.parse(cart.id));
+            out.writeShort(cart.parts.size());
+            for (Order part : cart.parts)
+                out.writeLong(OrderIds.parse(part.id));
+        }
+        out.writeInt(0); // crc, patched below
+        byte[] bytes = scratch.toByteArray();
+        int body = bytes.length - 8;
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        buf.putInt(0, body);
+        crc.reset();
+        crc.update(bytes, 4, body);
+        buf.putInt(bytes.length - 4, (int) crc.getValue());
+
+        if (active.size() > 0 && active.size() + bytes.length > segmentBytes)
+            roll();
+        long offset = active.size();
+        writeFully(active, buf, offset);
+
+        index(id, activeSegment, offset);
+        // a cart is found through its first show's record
+        if (cart != null && cart.parts.get(0) == order)
+            index(OrderIds.parse(cart.id), activeSegment, offset);
+        dirty = true;
+        return segmentName(activeSegment) + "@" + offset;
+    }
+
+    private void index(long id, int segment, long offset) throws IOException {
+        ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY);
+        entry.putLong(id).putInt(segment).putLong(offset).flip();
+        writeFully(indexChannel, entry, indexChannel.size());
+        index.put(id, pack(segment, offset));
+    }
+
+    /** Forces everything appended so far to disk (the group commit). */
+    public synchronized void sync() throws IOException {
+        if (!dirty)
+            return;
+        active.force(false);
+        indexChannel.force(false);
+        dirty = false;
+    }
+
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /** Hands every stored record to {@code action}, oldest segment first and in append order. */
+    public synchronized void forEach(Consumer<Record> action) throws IOException {
+        CRC32 check = new CRC32();
+        byte[] body = new byte[512];
+        for (int segment = 1; segment <= activeSegment; segment++) {
+            Path file = dir.resolve(segmentName(segment));
+            if (!Files.exists(file))
+                continue;
+            long left = Files.size(file);
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+                while (left >= 8) {
+                    int len = in.readInt();
+                    if (len <= 0 || len + 8L > left)
+                        break;
+                    if (body.length < len + 4)
+                        body = new byte[len + 4];
+                    in.readFully(body, 0, len + 4);
+                    check.reset();
+                    check.update(body, 0, len);
+                    if (ByteBuffer.wrap(body).getInt(len) != (int) check.getValue())
+                        break;
+                    action.accept(decode(body, len));
+                    left -= 8 + len;
+                }
+            }
+        }
+    }
+
+    /** Point lookup by order id; null if the store has no such order. A cart id finds its first show's record. */
+    public synchronized Record find(String orderId) throws IOException {
+        return find(OrderIds.parse(orderId));
+    }
+
+    private Record find(long id) throws IOException {
+        long loc = id == 0 ? -1 : index.get(id);
+        if (loc < 0)
+            return null;
+        int segment = (int) (loc >>> 40);
+        long offset = loc & ((1L << 40) - 1);
+        if (segment == activeSegment)
+            return read(active, offset);
+        try (FileChannel ch = FileChannel.open(dir.resolve(segmentName(segment)), StandardOpenOption.READ)) {
+            return read(ch, offset);
+        }
+    }
+
+    /**
+     * The plain-text receipt for an order, as the old one-file-per-order writer
+     * produced it; for a cart id, one receipt listing every show in the cart.
+     */
+    public String renderReceipt(String orderId) throws IOException {
+        long id = OrderIds.parse(orderId);
+        List<Record> parts = new ArrayList<>();
+        synchronized (this) {
+            Record r = find(id);
+            if (r == null)
+                return null;
+            if (r.cartId != id || r.orderId == id)
+                return render(r);
+            for (long part : r.cartParts) {
+                Record p = part == r.orderId ? r : find(part);
+                if (p == null)
+                    throw new IOException("Cart " + orderId + " is missing order " + OrderIds.format(part));
+                parts.add(p);
+            }
+        }
+        return renderCart(id, parts);
+    }
+
+    static String renderCart(long cartId, List<Record> parts) {
+        StringBuilder w = new StringBuilder(256 + 160 * parts.size());
+        w.append("London Musical Tickets - Receipt").append(NL);
+        w.append("Order ID: ").append(OrderIds.format(cartId)).append(NL);
+        int total = 0;
+        for (Record r : parts) {
+            w.append("========================================").append(NL);
+            w.append("Musical: ").append(r.musicalName).append(NL);
+            w.append("Show: ").append(r.showDate).append(' ').append(r.showTime).append(NL);
+            w.append("Part: ").append(OrderIds.format(r.orderId)).append(NL);
+            w.append("----------------------------------------").append(NL);
+            w.append(String.format("%-8s %-10s %-8s", "Seat", "Type", "Price")).append(NL);
+            for (int i = 0; i < r.seats.length; i++)
+                w.append(String.format("%-8d %-10s $%d", r.seats[i], r.types[i], r.prices[i])).append(NL);
+            w.append("Subtotal: $").append(r.total).append(NL);
+            total += r.total;
+        }
+        w.append("========================================").append(NL);
+        w.append("Total: $").append(total).append(NL);
+        w.append("Thank you for your purchase!").append(NL);
+        return w.toString();
+    }
+
+    static String render(Record r) {
+        StringBuilder w = new StringBuilder(256 + 32 * r.seats.length);
+        w.append("London Musical Tickets - Receipt").append(NL);
+        w.append("Order ID: ").append(OrderIds.format(r.orderId)).append(NL);
+        w.append("Musical: ").append(r.musicalName).append(NL);
+        w.append("Show: ").append(r.showDate).append(' ').append(r.showTime).append(NL);
+        w.append("----------------------------------------").append(NL);
+        w.append(String.format("%-8s %-10s %-8s", "Seat", "Type", "Price")).append(NL);
+        w.append("----------------------------------------").append(NL);
+        for (int i = 0; i < r.seats.length; i++)
+            w.append(String.format("%-8d %-10s $%d", r.seats[i], r.types[i], r.prices[i])).append(NL);
+        w.append("----------------------------------------").append(NL);
+        w.append("Total: $").append(r.total).append(NL);
+        w.append("Thank you for your purchase!").append(NL);
+        return w.toString();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (active == null)
+            return;
+        sync();
+        active.close();
+        indexChannel.close();
+        active = null;
+    }
+
+    static String segmentName(int segment) {
+        return String.format("segment-%06d.dat", segment);
+    }
+
+    private static long pack(int segment, long offset) {
+        return ((long) segment << 40) | offset;
+    }
+
+    private void recover() throws IOException {
+        int last = 0;
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "segment-*.dat")) {
+            for (Path p : ds) {
+                String n = p.getFileName().toString();
+                last = Math.max(last, Integer.parseInt(n.substring(8, n.length() - 4)));
+            }
+        }
+        activeSegment = Math.max(1, last);
+        active = FileChannel.open(dir.resolve(segmentName(activeSegment)), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        indexChannel = FileChannel.open(dir.resolve("orders.idx"), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+
+        // load the index, ignoring a partial last entry
+        long indexSize = indexChannel.size() / INDEX_ENTRY * INDEX_ENTRY;
+        long indexedEnd = 0;
+        if (indexSize > 0) {
+            MappedByteBuffer map = indexChannel.map(FileChannel.MapMode.READ_ONLY, 0, indexSize);
+            while (map.hasRemaining()) {
+                long id = map.getLong();
+                int segment = map.getInt();
+                long offset = map.getLong();
+                index.put(id, pack(segment, offset));
+                if (segment == activeSegment)
+                    indexedEnd = Math.max(indexedEnd, offset);
+            }
+        }
+        indexChannel.truncate(indexSize);
+
+        // re-index records the index never heard about, then drop any torn tail
+        long pos = indexedEnd;
+        long size = active.size();
+        ByteBuffer len = ByteBuffer.allocate(4);
+        while (pos + 4 <= size) {
+            len.clear();
+            active.read(len, pos);
+            int body = len.getInt(0);
+            if (body <= 0 || pos + 8 + body > size)
+                break;
+            ByteBuffer rec = ByteBuffer.allocate(body + 4);
+            readFully(active, rec, pos + 4);
+            crc.reset();
+            crc.update(rec.array(), 0, body);
+            if (rec.getInt(body) != (int) crc.getValue())
+                break;
+            long id = rec.getLong(0);
+            if (index.get(id) < 0) {
+                index(id, activeSegment, pos);
+                Record r = decode(rec.array(), body);
+                if (r.cartParts.length > 0 && r.cartParts[0] == id && index.get(r.cartId) < 0)
+                    index(r.cartId, activeSegment, pos);
+            }
+            pos += 8 + body;
+        }
+        if (pos < size)
+            active.truncate(pos);
+    }
+
+    private void roll() throws IOException {
+        active.force(false);
+        active.close();
+        activeSegment++;
+        active = FileChannel.open(dir.resolve(segmentName(activeSegment)), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private static Record read(FileChannel ch, long offset) throws IOException {
+        ByteBuffer len = ByteBuffer.allocate(4);
+        readFully(ch, len, offset);
+        ByteBuffer buf = ByteBuffer.allocate(len.getInt(0));
+        readFully(ch, buf, offset + 4);
+        return decode(buf.array(), buf.capacity());
+    }
+
+    private static Record decode(byte[] body, int length) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body, 0, length));
+        long id = in.readLong();
+        String musical = in.readUTF();
+        LocalDate date = LocalDate.ofEpochDay(in.readLong());
+        LocalTime time = LocalTime.ofSecondOfDay(in.readInt());
+        int n = in.readUnsignedShort();
+        int[] seats = new int[n];
+        String[] types = new String[n];
+        int[] prices = new int[n];
+        for (int i = 0; i < n; i++) {
+            seats[i] = in.readInt();
+            types[i] = in.readUTF();
+            prices[i] = in.readInt();
+        }
+        int total = in.readInt();
+        if (in.available() == 0)
+            return new Record(id, musical, date, time, seats, types, prices, total);
+        long cartId = in.readLong();
+        long[] parts = new long[in.readUnsignedShort()];
+        for (int i = 0; i < parts.length; i++)
+            parts[i] = in.readLong();
+        return new Record(id, musical, date, time, seats, types, prices, total, cartId, parts);
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining())
+            position += ch.write(buf, position);
+    }
+
+    private static void readFully(FileChannel ch, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = ch.read(buf, position);
+            if (n < 0)
+                throw new EOFException("Receipt record runs past end of segment");
+            position += n;
+        }
+        buf.flip();
+    }
+}
+
+/**
+ * End-of-day sales report over everything in receipts/: the {@link ReceiptStore}
+ * segments, memory-mapped and cut into chunks at record boundaries, plus any
+ * receipt_*.txt files the old one-file-per-order writer left behind. Chunks and
+ * files are parsed in parallel straight from their bytes into per-task tallies,
+ * which are merged at the end; a receipt never becomes a String. Revenue, seats
+ * and ticket-type mix come out per musical, per show and per sales day (the day
+ * the order was placed, from its time-ordered id or the old file's name).
+ *
+ * With a checkpoint, the totals and how far each segment was read are saved
+ * after the run, and the next run only reads receipts appended since.
+ */
+class SalesReport {
+    private static final int CHUNK_BYTES = 4 << 20;
+    private static final int LEGACY_PER_TASK = 256;
+    // tally columns: orders, seats, revenue, then seats per ticket type and an "other" type
+    private static final int ORDERS = 0;
+    private static final int SEATS = 1;
+    private static final int REVENUE = 2;
+    private static final int TYPES = 3;
+    private static final int OTHER = TYPES + TicketType.ALL.length;
+    static final int COLS = OTHER + 1;
+    private static final byte[][] TYPE_LABELS = new byte[TicketType.ALL.length][];
+    static {
+        for (int t = 0; t < TYPE_LABELS.length; t++)
+            TYPE_LABELS[t] = TicketType.ALL[t].label.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private final Path receipts;
+    private final ZoneId zone;
+    // merged totals per musical, show and sales day
+    private final TreeMap<Key, long[]> totals = new TreeMap<>();
+    // bytes of each segment already counted
+    private final Map<String, Long> segmentEnds = new TreeMap<>();
+    // old text receipts sort by name in time order; everything up to this one is counted
+    private String legacyAfter = "";
+    private long skipped;
+
+    SalesReport(Path receipts, ZoneId zone) {
+        this.receipts = receipts;
+        this.zone = zone;
+    }
+
+    /** One row of the finest grain the report keeps. */
+    static final class Key implements Comparable<Key> {
+        final String musical;
+        final LocalDate showDate;
+        final LocalTime showTime;
+        final LocalDate saleDay;
+
+        Key(String musical, LocalDate showDate, LocalTime showTime, LocalDate saleDay) {
+            this.musical = musical;
+            this.showDate = showDate;
+            this.showTime = showTime;
+            this.saleDay = saleDay;
+        }
+
+        @Override
+        public int compareTo(Key o) {
+            int c = musical.compareTo(o.musical);
+            if (c == 0)
+                c = showDate.compareTo(o.showDate);
+            if (c == 0)
+                c = showTime.compareTo(o.showTime);
+            return c != 0 ? c : saleDay.compareTo(o.saleDay);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && compareTo((Key) o) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(musical, showDate, showTime, saleDay);
+        }
+    }
+
+    /**
+     * Reads every receipt not yet counted and adds it to the totals.
+     *
+     * @return receipts read by this call
+     */
+    long update() throws IOException {
+        List<Callable<Tally>> tasks = new ArrayList<>();
+        List<String> chunkSegments = new ArrayList<>();
+        Map<String, Long> walkedTo = new TreeMap<>();
+        List<Path> segments = new ArrayList<>();
+        List<Path> legacy = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(receipts)) {
+            for (Path p : ds) {
+                String name = p.getFileName().toString();
+                if (name.startsWith("segment-") && name.endsWith(".dat"))
+                    segments.add(p);
+                else if (name.startsWith("receipt_") && name.endsWith(".txt") && name.compareTo(legacyAfter) > 0)
+                    legacy.add(p);
+            }
+        }
+        Collections.sort(segments);
+        Collections.sort(legacy);
+
+        for (Path p : segments) {
+            String name = p.getFileName().toString();
+            long from = segmentEnds.getOrDefault(name, 0L);
+            MappedByteBuffer map;
+            try (FileChannel ch = FileChannel.open(p, StandardOpenOption.READ)) {
+                long size = ch.size();
+                if (size < from)
+                    throw new IOException(name + " is shorter than the checkpoint says; run a full report");
+                if (size == from)
+                    continue;
+                // the mapping stays valid after the channel closes
+                map = ch.map(FileChannel.MapMode.READ_ONLY, from, size - from);
+            }
+            // cut at record boundaries; a record still being appended ends the walk
+            int pos = 0;
+            int chunkStart = 0;
+            while (pos + 4 <= map.limit()) {
+                int body = map.getInt(pos);
+                if (body <= 0 || pos + 8L + body > map.limit())
+                    break;
+                pos += 8 + body;
+                if (pos - chunkStart >= CHUNK_BYTES) {
+                    tasks.add(chunkTask(map, chunkStart, pos, from));
+                    chunkSegments.add(name);
+                    chunkStart = pos;
+                }
+            }
+            if (pos > chunkStart) {
+                tasks.add(chunkTask(map, chunkStart, pos, from));
+                chunkSegments.add(name);
+            }
+            walkedTo.put(name, from + pos);
+        }
+        int segmentTasks = tasks.size();
+        for (int i = 0; i < legacy.size(); i += LEGACY_PER_TASK) {
+            List<Path> batch = legacy.subList(i, Math.min(legacy.size(), i + LEGACY_PER_TASK));
+            tasks.add(() -> {
+                Tally t = new Tally(zone);
+                ByteBuffer buf = ByteBuffer.allocate(4096);
+                for (Path p : batch)
+                    buf = t.addLegacy(p, buf);
+                return t;
+            });
+        }
+
+        List<Tally> tallies = new ArrayList<>(tasks.size());
+        try {
+            for (Future<Tally> f : ForkJoinPool.commonPool().invokeAll(tasks))
+                tallies.add(f.get());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Report interrupted");
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+
+        // a record failing its checksum ends its segment for this run: later chunks of it don't count
+        long read = 0;
+        Set<String> broken = new HashSet<>();
+        for (int i = 0; i < tallies.size(); i++) {
+            Tally t = tallies.get(i);
+            if (i < segmentTasks) {
+                String name = chunkSegments.get(i);
+                if (broken.contains(name))
+                    continue;
+                if (t.badAt >= 0) {
+                    broken.add(name);
+                    walkedTo.put(name, t.badAt);
+                    System.err.println("Receipt record at " + name + "@" + t.badAt + " is damaged; stopping there");
+                }
+            }
+            read += t.receipts;
+            skipped += t.skipped;
+            t.mergeInto(totals);
+        }
+        segmentEnds.putAll(walkedTo);
+        if (!legacy.isEmpty())
+            legacyAfter = legacy.get(legacy.size() - 1).getFileName().toString();
+        return read;
+    }
+
+    private Callable<Tally> chunkTask(MappedByteBuffer map, int start, int end, long base) {
+        return () -> {
+            Tally t = new Tally(zone);
+            t.addRecords(map, start, end, base);
+            return t;
+        };
+    }
+
+    /** Old text receipts that could not be parsed and were left out. */
+    long skipped() {
+        return skipped;
+    }
+
+    /** Per-task counts, keyed by musical, show and sales day packed into a long. */
+    private static final class Tally {
+        final ZoneId zone;
+        final List<byte[]> nameBytes = new ArrayList<>();
+        final List<String> names = new ArrayList<>();
+        int lastName = -1;
+        final LongIndex rows = new LongIndex(64);
+        long[] keys = new long[64];
+        long[] counts = new long[64 * COLS];
+        int size;
+        long dayStart;
+        long dayEnd;
+        long day;
+        final CRC32 crc = new CRC32();
+        long receipts;
+        long skipped;
+        // absolute segment offset of the first damaged record, or -1
+        long badAt = -1;
+
+        Tally(ZoneId zone) {
+            this.zone = zone;
+        }
+
+        /** Segment records in [start, end) of {@code map}, which starts at segment offset {@code base}. */
+        void addRecords(MappedByteBuffer map, int start, int end, long base) {
+            ByteBuffer view = map.duplicate();
+            int pos = start;
+            while (pos < end) {
+                int body = map.getInt(pos);
+                view.limit(pos + 4 + body).position(pos + 4);
+                crc.reset();
+                crc.update(view);
+                if (map.getInt(pos + 4 + body) != (int) crc.getValue()) {
+                    badAt = base + pos;
+                    return;
+                }
+                int p = pos + 4;
+                long orderId = map.getLong(p);
+                int nameLen = map.getShort(p + 8) & 0xFFFF;
+                int musical = musical(map, p + 10, nameLen);
+                p += 10 + nameLen;
+                long showDay = map.getLong(p);
+                int minute = map.getInt(p + 8) / 60;
+                int seats = map.getShort(p + 12) & 0xFFFF;
+                p += 14;
+                int row = row(musical, showDay, minute, saleDay(orderId >>> 20));
+                for (int i = 0; i < seats; i++) {
+                    int typeLen = map.getShort(p + 4) & 0xFFFF;
+                    counts[row * COLS + typeColumn(map, p + 6, typeLen)]++;
+                    p += 6 + typeLen + 4;
+                }
+                counts[row * COLS + ORDERS]++;
+                counts[row * COLS + SEATS] += seats;
+                counts[row * COLS + REVENUE] += map.getInt(p);
+                receipts++;
+                pos += 8 + body;
+            }
+        }
+
+        /**
+         * One receipt_yyyyMMdd_HHmmss_id.txt file, read into {@code buf} (grown if
+         * needed, and returned for the next file) and parsed line by line.
+         */
+        ByteBuffer addLegacy(Path file, ByteBuffer buf) throws IOException {
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = ch.size();
+                if (size > buf.capacity())
+                    buf = ByteBuffer.allocate((int) Math.min(Integer.MAX_VALUE - 8, Long.highestOneBit(size) << 1));
+                buf.clear();
+                while (buf.position() < size)
+                    if (ch.read(buf) < 0)
+                        break;
+                buf.flip();
+            }
+            String name = file.getFileName().toString();
+            long saleDay;
+            try {
+                saleDay = LocalDate.parse(name.substring(8, 16), DateTimeFormatter.BASIC_ISO_DATE).toEpochDay();
+            } catch (RuntimeException ex) {
+                skipped++;
+                return buf;
+            }
+
+            int musical = -1;
+            long showDay = -1;
+            int minute = -1;
+            int total = -1;
+            int dashes = 0;
+            long[] types = new long[COLS];
+            int seats = 0;
+            int end = buf.limit();
+            for (int at = 0; at < end;) {
+                int eol = at;
+                while (eol < end && buf.get(eol) != '\n')
+                    eol++;
+                int lineEnd = eol > at && buf.get(eol - 1) == '\r' ? eol - 1 : eol;
+                if (startsWith(buf, at, lineEnd, "Musical: ")) {
+                    musical = musical(buf, at + 9, lineEnd - at - 9);
+                } else if (startsWith(buf, at, lineEnd, "Show: ") && lineEnd - at >= 22) {
+                    // Show: yyyy-MM-dd HH:mm
+                    int y = digits(buf, at + 6, 4), mo = digits(buf, at + 11, 2), d = digits(buf, at + 14, 2);
+                    int h = digits(buf, at + 17, 2), mi = digits(buf, at + 20, 2);
+                    try {
+                        showDay = LocalDate.of(y, mo, d).toEpochDay();
+                        minute = LocalTime.of(h, mi).toSecondOfDay() / 60;
+                    } catch (DateTimeException ex) {
+                        showDay = -1;
+                    }
+                } else if (startsWith(buf, at, lineEnd, "Total: $")) {
+                    total = digits(buf, at + 8, lineEnd - at - 8);
+                } else if (startsWith(buf, at, lineEnd, "-----")) {
+                    dashes++;
+                } else if (dashes == 2 && lineEnd > at) {
+                    // "%-8d %-10s $%d": seat, type, price
+                    int t = at;
+                    while (t < lineEnd && buf.get(t) != ' ')
+                        t++;
+                    while (t < lineEnd && buf.get(t) == ' ')
+                        t++;
+                    int typeEnd = t;
+                    while (typeEnd < lineEnd && buf.get(typeEnd) != ' ')
+                        typeEnd++;
+                    types[typeColumn(buf, t, typeEnd - t)]++;
+                    seats++;
+                }
+                at = eol + 1;
+            }
+            if (musical < 0 || showDay < 0 || total < 0) {
+                skipped++;
+                return buf;
+            }
+            int row = row(musical, showDay, minute, saleDay);
+            for (int c = TYPES; c < COLS; c++)
+                counts[row * COLS + c] += types[c];
+            counts[row * COLS + ORDERS]++;
+            counts[row * COLS + SEATS] += seats;
+            counts[row * COLS + REVENUE] += total;
+            receipts++;
+            return buf;
+        }
+
+        // names repeat from record to record, so compare bytes and decode each one once
+        private int musical(ByteBuffer buf, int at, int len) {
+            if (lastName >= 0 && sameBytes(nameBytes.get(lastName), buf, at, len))
+                return lastName;
+            for (int i = 0; i < nameBytes.size(); i++) {
+                if (sameBytes(nameBytes.get(i), buf, at, len))
+                    return lastName = i;
+            }
+            byte[] bytes = new byte[len];
+            for (int i = 0; i < len; i++)
+                bytes[i] = buf.get(at + i);
+            nameBytes.add(bytes);
+            names.add(new String(bytes, StandardCharsets.UTF_8));
+            return lastName = nameBytes.size() - 1;
+        }
+
+        private long saleDay(long millis) {
+            if (millis < dayStart || millis >= dayEnd) {
+                LocalDate d = Instant.ofEpochMilli(millis).atZone(zone).toLocalDate();
+                day = d.toEpochDay();
+                dayStart = d.atStartOfDay(zone).toInstant().toEpochMilli();
+                dayEnd = d.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli();
+            }
+            return day;
+        }
+
+        // [musical:12][showDay:18][minute:11][saleDay:18] under a set top bit, so no key is 0
+        private int row(int musical, long showDay, int minute, long saleDay) {
+            long key = Long.MIN_VALUE | (long) musical << 47 | (showDay & 0x3FFFF) << 29
+                    | (long) (minute & 0x7FF) << 18 | (saleDay & 0x3FFFF);
+            long row = rows.get(key);
+            if (row >= 0)
+                return (int) row;
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                counts = Arrays.copyOf(counts, size * 2 * COLS);
+            }
+            keys[size] = key;
+            rows.put(key, size);
+            return size++;
+        }
+
+        void mergeInto(Map<Key, long[]> totals) {
+            for (int r = 0; r < size; r++) {
+                long key = keys[r];
+                Key k = new Key(names.get((int) (key >>> 47 & 0xFFF)), LocalDate.ofEpochDay(key >>> 29 & 0x3FFFF),
+                        LocalTime.ofSecondOfDay((key >>> 18 & 0x7FF) * 60), LocalDate.ofEpochDay(key & 0x3FFFF));
+                long[] sum = totals.computeIfAbsent(k, x -> new long[COLS]);
+                for (int c = 0; c < COLS; c++)
+                    sum[c] += counts[r * COLS + c];
+            }
+        }
+
+        private static boolean sameBytes(byte[] bytes, ByteBuffer buf, int at, int len) {
+            if (bytes.length != len)
+                return false;
+            for (int i = 0; i < len; i++)
+                if (bytes[i] != buf.get(at + i))
+                    return false;
+            return true;
+        }
+
+        private static int typeColumn(ByteBuffer buf, int at, int len) {
+            for (int t = 0; t < TYPE_LABELS.length; t++)
+                if (sameBytes(TYPE_LABELS[t], buf, at, len))
+                    return TYPES + t;
+            return OTHER;
+        }
+
+        private static boolean startsWith(ByteBuffer buf, int at, int end, String prefix) {
+            if (end - at < prefix.length())
+                return false;
+            for (int i = 0; i < prefix.length(); i++)
+                if (buf.get(at + i) != prefix.charAt(i))
+                    return false;
+            return true;
+        }
+
+        // non-negative decimal in [at, at + len), or -1
+        private static int digits(ByteBuffer buf, int at, int len) {
+            if (len <= 0 || len > 9)
+                return -1;
+            int v = 0;
+            for (int i = at; i < at + len; i++) {
+                int d = buf.get(i) - '0';
+                if (d < 0 || d > 9)
+                    return -1;
+                v = v * 10 + d;
+            }
+            return v;
+        }
+    }
+
+    /** Loads totals and read positions saved by {@link #saveCheckpoint}; a missing file means start from scratch. */
+    @SuppressWarnings("unchecked")
+    void loadCheckpoint(Path file) throws IOException {
+        if (!Files.exists(file))
+            return;
+        try {
+            Map<String, Object> cp = Json.parseObject(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+            if (Json.getLong(cp, "version", 0) != 1)
+                throw new IOException(file + " is not a sales report checkpoint");
+            for (Map.Entry<String, Object> e : ((Map<String, Object>) cp.get("segments")).entrySet())
+                segmentEnds.put(e.getKey(), (Long) e.getValue());
+            legacyAfter = (String) cp.get("legacyAfter");
+            for (Object o : (List<Object>) cp.get("rows")) {
+                List<Object> row = (List<Object>) o;
+                Key k = new Key((String) row.get(0), LocalDate.parse((String) row.get(1)),
+                        LocalTime.parse((String) row.get(2)), LocalDate.parse((String) row.get(3)));
+                long[] sum = totals.computeIfAbsent(k, x -> new long[COLS]);
+                for (int c = 0; c < COLS; c++)
+                    sum[c] += (Long) row.get(4 + c);
+            }
+        } catch (RuntimeException ex) {
+            throw new IOException(file + " is damaged: " + ex.getMessage(), ex);
+        }
+    }
+
+    /** Saves the totals and read positions, replacing {@code file} atomically. */
+    void saveCheckpoint(Path file) throws IOException {
+        StringBuilder sb = new StringBuilder("{\"version\":1,\"legacyAfter\":");
+        Json.string(sb, legacyAfter);
+        sb.append(",\"segments\":{");
+        String sep = "";
+        for (Map.Entry<String, Long> e : segmentEnds.entrySet()) {
+            sb.append(sep);
+            Json.string(sb, e.getKey());
+            sb.append(':').append(e.getValue());
+            sep = ",";
+        }
+        sb.append("},\"rows\":[");
+        sep = "";
+        for (Map.Entry<Key, long[]> e : totals.entrySet()) {
+            Key k = e.getKey();
+            sb.append(sep).append('[');
+            Json.string(sb, k.musical);
+            sb.append(",\"").append(k.showDate).append("\",\"").append(k.showTime).append("\",\"").append(k.saleDay)
+                    .append('"');
+            for (long v : e.getValue())
+                sb.append(',').append(v);
+            sb.append(']');
+            sep = ",\n";
+        }
+        sb.append("]}\n");
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        if (file.getParent() != null)
+            Files.createDirectories(file.getParent());
+        Files.write(tmp, sb.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Writes the report as JSON if {@code out} ends in .json, otherwise as CSV. */
+    void write(Path out) throws IOException {
+        TreeMap<String, long[]> byMusical = new TreeMap<>();
+        LinkedHashMap<Key, long[]> byShow = new LinkedHashMap<>();
+        TreeMap<LocalDate, long[]> byDay = new TreeMap<>();
+        long[] all = new long[COLS];
+        // totals are sorted by musical, then show, so each show's rows are adjacent
+        for (Map.Entry<Key, long[]> e : totals.entrySet()) {
+            Key k = e.getKey();
+            add(byMusical.computeIfAbsent(k.musical, x -> new long[COLS]), e.getValue());
+            add(byShow.computeIfAbsent(new Key(k.musical, k.showDate, k.showTime, LocalDate.MIN),
+                    x -> new long[COLS]), e.getValue());
+            add(byDay.computeIfAbsent(k.saleDay, x -> new long[COLS]), e.getValue());
+            add(all, e.getValue());
+        }
+        try (BufferedWriter w = Files.newBufferedWriter(out, StandardCharsets.UTF_8)) {
+            if (out.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".json"))
+                writeJson(w, byMusical, byShow, byDay, all);
+            else
+                writeCsv(w, byMusical, byShow, byDay, all);
+        }
+    }
+
+    private static void writeCsv(Writer w, Map<String, long[]> byMusical, Map<Key, long[]> byShow,
+            Map<LocalDate, long[]> byDay, long[] all) throws IOException {
+        StringBuilder sb = new StringBuilder("level,musical,show_date,show_time,day,orders,seats,revenue");
+        for (TicketType t : TicketType.ALL)
+            sb.append(',').append(t.label.toLowerCase(Locale.ROOT));
+        w.write(sb.append(",other\n").toString());
+        w.write(csvRow("total", "", "", "", "", all));
+        for (Map.Entry<String, long[]> e : byMusical.entrySet())
+            w.write(csvRow("musical", e.getKey(), "", "", "", e.getValue()));
+        for (Map.Entry<Key, long[]> e : byShow.entrySet()) {
+            Key k = e.getKey();
+            w.write(csvRow("show", k.musical, k.showDate.toString(), k.showTime.toString(), "", e.getValue()));
+        }
+        for (Map.Entry<LocalDate, long[]> e : byDay.entrySet())
+            w.write(csvRow("day", "", "", "", e.getKey().toString(), e.getValue()));
+    }
+
+    private static String csvRow(String level, String musical, String date, String time, String day, long[] v) {
+        StringBuilder sb = new StringBuilder(level).append(',');
+        if (musical.indexOf(',') >= 0 || musical.indexOf('"') >= 0)
+            sb.append('"').append(musical.replace("\"", "\"\"")).append('"');
+        else
+            sb.append(musical);
+        sb.append(',').append(date).append(',').append(time).append(',').append(day);
+        for (long x : v)
+            sb.append(',').append(x);
+        return sb.append('\n').toString();
+    }
+
+    private static void writeJson(Writer w, Map<String, long[]> byMusical, Map<Key, long[]> byShow,
+            Map<LocalDate, long[]> byDay, long[] all) throws IOException {
+        StringBuilder sb = new StringBuilder("{\"total\":");
+        jsonCounts(sb, all);
+        sb.append(",\n\"musicals\":[");
+        String sep = "";
+        for (Map.Entry<String, long[]> e : byMusical.entrySet()) {
+            sb.append(sep).append("{\"musical\":");
+            Json.string(sb, e.getKey());
+            sb.append(',');
+            jsonFields(sb, e.getValue());
+            sb.append('}');
+            sep = ",\n";
+        }
+        sb.append("],\n\"shows\":[");
+        sep = "";
+        for (Map.Entry<Key, long[]> e : byShow.entrySet()) {
+            Key k = e.getKey();
+            sb.append(sep).append("{\"musical\":");
+            Json.string(sb, k.musical);
+            sb.append(",\"date\":\"").append(k.showDate).append("\",\"time\":\"").append(k.showTime).append("\",");
+            jsonFields(sb, e.getValue());
+            sb.append('}');
+            sep = ",\n";
+        }
+        sb.append("],\n\"days\":[");
+        sep = "";
+        for (Map.Entry<LocalDate, long[]> e : byDay.entrySet()) {
+            sb.append(sep).append("{\"day\":\"").append(e.getKey()).append("\",");
+            jsonFields(sb, e.getValue());
+            sb.append('}');
+            sep = ",\n";
+        }
+        w.write(sb.append("]}\n").toString());
+    }
+
+    private static void jsonCounts(StringBuilder sb, long[] v) {
+        sb.append('{');
+        jsonFields(sb, v);
+        sb.append('}');
+    }
+
+    private static void jsonFields(StringBuilder sb, long[] v) {
+        sb.append("\"orders\":").append(v[ORDERS]).append(",\"seats\":").append(v[SEATS]).append(",\"revenue\":")
+                .append(v[REVENUE]).append(",\"types\":{");
+        for (int t = 0; t < TicketType.ALL.length; t++)
+            sb.append('"').append(TicketType.ALL[t].label).append("\":").append(v[TYPES + t]).append(',');
+        sb.append("\"Other\":").append(v[OTHER]).append("}");
+    }
+
+    private static void add(long[] into, long[] v) {
+        for (int c = 0; c < COLS; c++)
+            into[c] += v[c];
+    }
+}
+
+/**
+ * Append-only binary write-ahead log of seat bookings with snapshot checkpoints.
+ *
+ * Layout under the data directory:
+ * - journal.log: records of [len:int][seq:long][type:byte][show][count:short][seat:int...][crc:int]
+ * - snapshot.bin: [magic:int][version:int][lastSeq:long][shows:int] then per show
+ * [show][words:int][word:long...], followed by a crc of everything before it.
+ *
+ * A [show] is [id:int][musical:int][epochDay:int][secondOfDay:int][capacity:int],
+ * the musical being its name's hash. Show ids are only creation order, so the
+ * same id can be another performance on a later launch; seats are restored only
+ * onto a show that matches in every field, and anything else is skipped and
+ * counted in {@link #skipped()}. Skipped seats are still kept: they go into
+ * every later snapshot under their own [show], so when the catalog or venue
+ * they belong to comes back they are restored rather than sold again.
+ *
+ * Every append is forced to disk before the booking is acknowledged. After
+ * {@code checkpointEvery} records a snapshot of all seat bitmaps is written
+ * (tmp file + atomic rename) and the journal is truncated. The snapshot is of
+ * what the journal has recorded, kept beside the live seats, not of the live
+ * seats themselves: a checkpoint can fall between a sale changing the seats
+ * and its record being written, and must neither lose nor invent it. On open the snapshot
+ * is loaded and only records newer than it are replayed; a torn or corrupt tail
+ * from a crash mid-write is cut off.
+ */
+class BookingJournal implements Closeable {
+    static final int SNAPSHOT_MAGIC = 0x4C4D5353; // "LMSS"
+    // version 1 named shows by id alone, so its seats can't be placed and are skipped
+    static final int SNAPSHOT_VERSION = 2;
+    // types 1-3 were these records naming the show by id alone; replay skips them
+    static final byte TYPE_BOOK = 4;
+    static final byte TYPE_RELEASE = 5;
+    // sales of several shows in one record: [shows:short] then per show [show][seats:short][seat:int]*
+    static final byte TYPE_CART = 6;
+    static final int DEFAULT_CHECKPOINT_EVERY = 1000;
+    // bytes in a [show]
+    static final int SHOW_BYTES = 20;
+
+    private final Path journalFile;
+    private final Path snapshotFile;
+    private final Map<Integer, Show> shows;
+    private final int checkpointEvery;
+    private final FileChannel channel;
+    private final CRC32 crc = new CRC32();
+    // per show id, the sold seats as of the last record written; what checkpoints save
+    private final Map<Integer, long[]> recorded = new HashMap<>();
+    // sold seats of performances matching no show here, by their [show] bytes; saved beside recorded
+    private final Map<ByteBuffer, long[]> unplaced = new HashMap<>();
+    private long nextSeq;
+    private int sinceCheckpoint;
+    private int skipped;
+
+    private BookingJournal(Path dir, Map<Integer, Show> shows, int checkpointEvery) throws IOException {
+        this.journalFile = dir.resolve("journal.log");
+        this.snapshotFile = dir.resolve("snapshot.bin");
+        this.shows = shows;
+        this.checkpointEvery = checkpointEvery;
+        for (Show s : shows.values())
+            recorded.put(s.id, new long[s.seatWordCount()]);
+        this.channel = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+    }
+
+    public static BookingJournal open(Path dir, Map<Integer, Show> shows) throws IOException {
+        return open(dir, shows, DEFAULT_CHECKPOINT_EVERY);
+    }
+
+    /** Opens (or creates) the journal in {@code dir} and restores every known show's seats from it. */
+    public static BookingJournal open(Path dir, Map<Integer, Show> shows, int checkpointEvery) throws IOException {
+        Files.createDirectories(dir);
+        BookingJournal j = new BookingJournal(dir, shows, checkpointEvery);
+        long snapshotSeq = j.loadSnapshot();
+        long lastSeq = j.replay(snapshotSeq);
+        j.nextSeq = Math.max(snapshotSeq, lastSeq) + 1;
+        return j;
+    }
+
+    /** Snapshot entries and journal records (or cart parts) found on open that matched no show here. */
+    public int skipped() {
+        return skipped;
+    }
+
+    /** Durably records that {@code seats} of {@code show} were sold. */
+    public void appendBooking(Show show, int[] seats) throws IOException {
+        appendBookings(show, Collections.singletonList(seats));
+    }
+
+    /**
+     * Durably records several sales of {@code show}, one record each, with a
+     * single write and sync. Either all of them are in the journal or none.
+     */
+    public void appendBookings(Show show, List<int[]> sales) throws IOException {
+        append(TYPE_BOOK, show, sales);
+    }
+
+    /** Durably records that sold {@code seats} of {@code show} were put back on sale (a refund). */
+    public void appendRelease(Show show, int[] seats) throws IOException {
+        append(TYPE_RELEASE, show, Collections.singletonList(seats));
+    }
+
+    /**
+     * Durably records the sale of {@code seats.get(i)} of {@code shows.get(i)}
+     * for every i as a single record, so a crash keeps all of them or none.
+     */
+    public synchronized void appendCart(List<Show> shows, List<int[]> seats) throws IOException {
+        int body = 8 + 1 + 2;
+        for (int[] s : seats)
+            body += SHOW_BYTES + 2 + 4 * s.length;
+        ByteBuffer buf = ByteBuffer.allocate(4 + body + 4);
+        buf.putInt(body);
+        buf.putLong(nextSeq);
+        buf.put(TYPE_CART);
+        buf.putShort((short) shows.size());
+        for (int i = 0; i < shows.size(); i++) {
+            putShow(buf, shows.get(i));
+            buf.putShort((short) seats.get(i).length);
+            for (int seat : seats.get(i))
+                buf.putInt(seat);
+        }
+        crc.reset();
+        crc.update(buf.array(), 4, body);
+        buf.putInt((int) crc.getValue());
+        buf.flip();
+        write(buf);
+        for (int i = 0; i < shows.size(); i++)
+            record(shows.get(i), seats.get(i), true);
+        written(1);
+    }
+
+    private synchronized void append(byte type, Show show, List<int[]> records) throws IOException {
+        int size = 0;
+        for (int[] seats : records)
+            size += 4 + 8 + 1 + SHOW_BYTES + 2 + 4 * seats.length + 4;
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        long seq = nextSeq;
+        for (int[] seats : records) {
+            int start = buf.position();
+            int body = 8 + 1 + SHOW_BYTES + 2 + 4 * seats.length;
+            buf.putInt(body);
+            buf.putLong(seq++);
+            buf.put(type);
+            putShow(buf, show);
+            buf.putShort((short) seats.length);
+            for (int seat : seats)
+                buf.putInt(seat);
+            crc.reset();
+            crc.update(buf.array(), start + 4, body);
+            buf.putInt((int) crc.getValue());
+        }
+        buf.flip();
+        write(buf);
+        for (int[] seats : records)
+            record(show, seats, type == TYPE_BOOK);
+        written(records.size());
+    }
+
+    // caller holds the lock
+    private void write(ByteBuffer buf) throws IOException {
+        long end = channel.size();
+        try {
+            while (buf.hasRemaining())
+                end += channel.write(buf, end);
+            channel.force(false);
+        } catch (IOException ex) {
+            // don't leave half a record for the next append to follow
+            channel.truncate(end - buf.position());
+            throw ex;
+        }
+    }
+
+    // caller holds the lock, has written {@code records} records numbered from nextSeq and recorded their seats
+    private void written(int records) throws IOException {
+        nextSeq += records;
+        sinceCheckpoint += records;
+        if (sinceCheckpoint >= checkpointEvery)
+            checkpoint();
+    }
+
+    // caller holds the lock, or is still opening
+    private void record(Show show, int[] seats, boolean sold) {
+        long[] words = recorded.get(show.id);
+        if (words != null)
+            mark(words, seats, sold);
+    }
+
+    private static void mark(long[] words, int[] seats, boolean sold) {
+        for (int seatId : seats) {
+            int bit = seatId - 1;
+            if (seatId < 1 || (bit >>> 6) >= words.length)
+                continue;
+            if (sold)
+                words[bit >>> 6] |= 1L << bit;
+            else
+                words[bit >>> 6] &= ~(1L << bit);
+        }
+    }
+
+    // still opening: the kept seats of the unmatched [show] at {@code at}, sized by its capacity
+    private long[] unplaced(ByteBuffer buf, int at) {
+        byte[] key = new byte[SHOW_BYTES];
+        buf.get(at, key);
+        int capacity = Math.max(0, buf.getInt(at + 16));
+        return unplaced.computeIfAbsent(ByteBuffer.wrap(key), k -> new long[(capacity + 63) >>> 6]);
+    }
+
+    /** Writes a snapshot of every show's journaled seats and compacts the journal into it. */
+    public synchronized void checkpoint() throws IOException {
+        long lastSeq = nextSeq - 1;
+        List<Show> all = new ArrayList<>(shows.values());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(SNAPSHOT_MAGIC);
+        out.writeInt(SNAPSHOT_VERSION);
+        out.writeLong(lastSeq);
+        out.writeInt(all.size() + unplaced.size());
+        for (Map.Entry<ByteBuffer, long[]> e : unplaced.entrySet()) {
+            out.write(e.getKey().array());
+            out.writeInt(e.getValue().length);
+            for (long w : e.getValue())
+                out.writeLong(w);
+        }
+        for (Show s : all) {
+            long[] words = recorded.get(s.id);
+            out.writeInt(s.id);
+            out.writeInt(musicalHash(s));
+            out.writeInt((int) s.date.toEpochDay());
+            out.writeInt(s.time.toSecondOfDay());
+            out.writeInt(s.capacity);
+            out.writeInt(words.length);
+            for (long w : words)
+                out.writeLong(w);
+        }
+        crc.reset();
+        crc.update(bytes.toByteArray());
+        out.writeInt((int) crc.getValue());
+        out.flush();
+
+        Path tmp = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buf = ByteBuffer.wrap(bytes.toByteArray());
+            while (buf.hasRemaining())
+                ch.write(buf);
+            ch.force(true);
+        }
+        Files.move(tmp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        // every record so far is covered by the snapshot (replay skips seq <= lastSeq if we die here)
+        channel.truncate(0);
+        channel.force(true);
+        sinceCheckpoint = 0;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (!channel.isOpen())
+            return;
+        if (sinceCheckpoint > 0)
+            checkpoint();
+        channel.close();
+    }
+
+    private long loadSnapshot() throws IOException {
+        if (!Files.exists(snapshotFile))
+            return 0;
+        byte[] data = Files.readAllBytes(snapshotFile);
+        if (data.length < 24)
+            throw new IOException("Snapshot " + snapshotFile + " is truncated");
+        crc.reset();
+        crc.update(data, 0, data.length - 4);
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        if (buf.getInt(data.length - 4) != (int) crc.getValue())
+            throw new IOException("Snapshot " + snapshotFile + " failed its checksum");
+        if (buf.getInt() != SNAPSHOT_MAGIC)
+            throw new IOException("Snapshot " + snapshotFile + " has an unknown format");
+        int version = buf.getInt();
+        if (version != 1 && version != SNAPSHOT_VERSION)
+            throw new IOException("Snapshot " + snapshotFile + " has an unknown format");
+        long lastSeq = buf.getLong();
+        int count = buf.getInt();
+        for (int i = 0; i < count; i++) {
+            int at = buf.position();
+            Show s = version == 1 ? null : show(buf, at);
+            if (version != 1)
+                buf.position(at + SHOW_BYTES);
+            long[] words = new long[buf.getInt()];
+            for (int w = 0; w < words.length; w++)
+                words[w] = buf.getLong();
+            if (s != null) {
+                s.restoreSoldWords(words);
+                long[] into = recorded.get(s.id);
+                for (int w = 0; w < into.length && w < words.length; w++)
+                    into[w] |= words[w];
+            } else {
+                skipped++;
+                if (version != 1) {
+                    long[] into = unplaced(buf, at);
+                    for (int w = 0; w < into.length && w < words.length; w++)
+                        into[w] |= words[w];
+                }
+            }
+        }
+        return lastSeq;
+    }
+
+    /** Applies records newer than {@code afterSeq}; returns the last sequence number seen. */
+    private long replay(long afterSeq) throws IOException {
+        long size = channel.size();
+        if (size == 0)
+            return afterSeq;
+        MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        long lastSeq = afterSeq;
+        int pos = 0;
+        while (pos + 4 <= size) {
+            int body = map.getInt(pos);
+            if (body < 11 || pos + 4L + body + 4 > size)
+                break;
+            crc.reset();
+            ByteBuffer slice = map.duplicate();
+            slice.position(pos + 4).limit(pos + 4 + body);
+            crc.update(slice);
+            if (map.getInt(pos + 4 + body) != (int) crc.getValue())
+                break;
+            long seq = map.getLong(pos + 4);
+            byte type = map.get(pos + 12);
+            if (seq > afterSeq && type == TYPE_CART) {
+                int at = pos + 15;
+                for (int n = map.getShort(pos + 13); n > 0; n--) {
+                    Show s = show(map, at);
+                    int[] seats = new int[map.getShort(at + SHOW_BYTES)];
+                    for (int i = 0; i < seats.length; i++)
+                        seats[i] = map.getInt(at + SHOW_BYTES + 2 + 4 * i);
+                    if (s == null) {
+                        skipped++;
+                        mark(unplaced(map, at), seats, true);
+                    } else {
+                        for (int seat : seats)
+                            s.bookSeat(seat);
+                        record(s, seats, true);
+                    }
+                    at += SHOW_BYTES + 2 + 4 * seats.length;
+                }
+            } else if (seq > afterSeq && (type == TYPE_BOOK || type == TYPE_RELEASE)) {
+                Show s = show(map, pos + 13);
+                int[] seats = new int[map.getShort(pos + 13 + SHOW_BYTES)];
+                for (int i = 0; i < seats.length; i++)
+                    seats[i] = map.getInt(pos + 15 + SHOW_BYTES + 4 * i);
+                if (s == null) {
+                    skipped++;
+                    mark(unplaced(map, pos + 13), seats, type == TYPE_BOOK);
+                } else {
+                    if (type == TYPE_BOOK)
+                        for (int seat : seats)
+                            s.bookSeat(seat);
+                    else
+                        s.releaseAll(seats);
+                    record(s, seats, type == TYPE_BOOK);
+                }
+            } else if (seq > afterSeq) {
+                // an older record type that names its show by id alone
+                skipped++;
+            }
+            lastSeq = Math.max(lastSeq, seq);
+            pos += 4 + body + 4;
+            sinceCheckpoint++;
+        }
+        if (pos < size) {
+            // torn write from a crash: drop it so new records follow a valid one
+            channel.truncate(pos);
+            channel.force(true);
+        }
+        return lastSeq;
+    }
+
+    private static void putShow(ByteBuffer buf, Show s) {
+        buf.putInt(s.id);
+        buf.putInt(musicalHash(s));
+        buf.putInt((int) s.date.toEpochDay());
+        buf.putInt(s.time.toSecondOfDay());
+        buf.putInt(s.capacity);
+    }
+
+    /** The show a [show] at {@code at} names, or null if no show here matches it in every field. */
+    private Show show(ByteBuffer buf, int at) {
+        Show s = shows.get(buf.getInt(at));
+        if (s == null || buf.getInt(at + 4) != musicalHash(s) || buf.getInt(at + 8) != s.date.toEpochDay()
+                || buf.getInt(at + 12) != s.time.toSecondOfDay() || buf.getInt(at + 16) != s.capacity)
+            return null;
+        return s;
+    }
+
+    static int musicalHash(Show s) {
+        return s.musical == null ? 0 : s.musical.name.hashCode();
+    }
+}
+
+/**
+ * Latency histogram in the style of HdrHistogram: values below 128 get their
+ * own bucket, larger ones are bucketed by their top seven bits, so any
+ * recorded value is reported within 1/64 (about 1.6%) of itself. Recording
+ * is a single atomic add on a fixed array, safe from any number of threads.
+ */
+final class LatencyHistogram {
+    private static final int SUB_BITS = 6;
+    private static final int SUB = 1 << SUB_BITS;
+    // covers up to 2^47 ns, about 39 hours
+    private static final int BUCKETS = (47 - SUB_BITS + 1) * SUB + SUB;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public void record(long nanos) {
+        long v = Math.max(0, nanos);
+        counts.incrementAndGet(Math.min(BUCKETS - 1, index(v)));
+        total.increment();
+        max.accumulate(v);
+    }
+
+    public long count() {
+        return total.sum();
+    }
+
+    public long maxNanos() {
+        return max.get();
+    }
+
+    /** Upper bound of the bucket holding the {@code p}-th quantile (0..1), in nanoseconds. */
+    public long percentileNanos(double p) {
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            n += counts.get(i);
+        if (n == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(p * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank)
+                return Math.min(upperBound(i), max.get());
+        }
+        return max.get();
+    }
+
+    public long percentileMicros(double p) {
+        return TimeUnit.NANOSECONDS.toMicros(percentileNanos(p));
+    }
+
+    static int index(long v) {
+        if (v < 2 * SUB)
+            return (int) v;
+        int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+        return shift * SUB + (int) (v >>> shift);
+    }
+
+    static long upperBound(int index) {
+        if (index < 2 * SUB)
+            return index;
+        int shift = index / SUB - 1;
+        long mantissa = index - (long) shift * SUB;
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
+
+/** What the booking path counts: confirm latency, plus conflicts and rejections per show. */
+class BookingMetrics {
+    /** From a request being submitted to the engine until its seats are sold and journaled. */
+    final LatencyHistogram confirmToBooked = new LatencyHistogram();
+    private final ConcurrentHashMap<Integer, ShowCounters> perShow = new ConcurrentHashMap<>();
+    private final LongAdder conflicts = new LongAdder();
+    private final LongAdder validationRejections = new LongAdder();
+    private final LongAdder refundedSeats = new LongAdder();
+    private final LongAdder carts = new LongAdder();
+    private final LongAdder cartConflicts = new LongAdder();
+    private final LongAdder idempotentReplays = new LongAdder();
+    private final LongAdder idempotentMisses = new LongAdder();
+
+    static final class ShowCounters {
+        final LongAdder orders = new LongAdder();
+        final LongAdder refundedSeats = new LongAdder();
+        final LongAdder conflicts = new LongAdder();
+        final LongAdder validationRejections = new LongAdder();
+    }
+
+    void booked(Show show, long nanos) {
+        confirmToBooked.record(nanos);
+        counters(show).orders.increment();
+    }
+
+    void rejected(Show show, BookingException.Reason reason) {
+        if (reason == BookingException.Reason.SEAT_UNAVAILABLE) {
+            conflicts.increment();
+            counters(show).conflicts.increment();
+        } else if (reason == BookingException.Reason.VALIDATION) {
+            validationRejections.increment();
+            counters(show).validationRejections.increment();
+        }
+    }
+
+    void refunded(Show show, int seats) {
+        refundedSeats.add(seats);
+        counters(show).refundedSeats.add(seats);
+    }
+
+    /** A multi-show cart booked; its shows are counted through {@link #booked} too. */
+    void cartBooked() {
+        carts.increment();
+    }
+
+    void cartRejected(BookingException.Reason reason) {
+        if (reason == BookingException.Reason.SEAT_UNAVAILABLE) {
+            conflicts.increment();
+            cartConflicts.increment();
+        } else if (reason == BookingException.Reason.VALIDATION) {
+            validationRejections.increment();
+        }
+    }
+
+    /** A keyed request answered from the idempotency cache. */
+    void idempotentReplay() {
+        idempotentReplays.increment();
+    }
+
+    /** A keyed request seen for the first time. */
+    void idempotentMiss() {
+        idempotentMisses.increment();
+    }
+
+    ShowCounters counters(Show show) {
+        return perShow.computeIfAbsent(show.id, k -> new ShowCounters());
+    }
+
+    long conflicts() {
+        return conflicts.sum();
+    }
+
+    long validationRejections() {
+        return validationRejections.sum();
+    }
+
+    long refundedSeats() {
+        return refundedSeats.sum();
+    }
+
+    long carts() {
+        return carts.sum();
+    }
+
+    long cartConflicts() {
+        return cartConflicts.sum();
+    }
+
+    long idempotentReplays() {
+        return idempotentReplays.sum();
+    }
+
+    /** Share of keyed requests that were retries answered from the cache. */
+    double idempotentHitPercent() {
+        long hits = idempotentReplays.sum();
+        long all = hits + idempotentMisses.sum();
+        return all == 0 ? 0.0 : 100.0 * hits / all;
+    }
+}
+
+/**
+ * A read-only MBean whose attributes are suppliers, so metrics can be exposed
+ * over JMX without an interface per bean (standard MBean interfaces must be
+ * public, which nothing in this file is).
+ */
+class MetricsBean implements DynamicMBean {
+    private final String description;
+    private final Map<String, Supplier<?>> values = new LinkedHashMap<>();
+    private final List<MBeanAttributeInfo> infos = new ArrayList<>();
+
+    MetricsBean(String description) {
+        this.description = description;
+    }
+
+    MetricsBean add(String name, Class<?> type, String description, Supplier<?> value) {
+        values.put(name, value);
+        infos.add(new MBeanAttributeInfo(name, type.getName(), description, true, false, false));
+        return this;
+    }
+
+    /** Count, p50, p99, p99.9 and max of a histogram, as {@code <prefix>Count}, {@code <prefix>P50Micros} and so on. */
+    MetricsBean addHistogram(String prefix, String what, LatencyHistogram h) {
+        add(prefix + "Count", Long.class, what + ": samples", h::count);
+        add(prefix + "P50Micros", Long.class, what + ": median, us", () -> h.percentileMicros(0.50));
+        add(prefix + "P99Micros", Long.class, what + ": 99th percentile, us", () -> h.percentileMicros(0.99));
+        add(prefix + "P999Micros", Long.class, what + ": 99.9th percentile, us", () -> h.percentileMicros(0.999));
+        add(prefix + "MaxMicros", Long.class, what + ": max, us", () -> TimeUnit.NANOSECONDS.toMicros(h.maxNanos()));
+        return this;
+    }
+
+    /** Registers with the platform MBean server; failures are reported, not fatal. */
+    MetricsBean register(String objectName) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(objectName);
+            if (server.isRegistered(name))
+                server.unregisterMBean(name);
+            server.registerMBean(this, name);
+        } catch (JMException ex) {
+            System.err.println("Cannot register MBean " + objectName + ": " + ex.getMessage());
+        }
+        return this;
+    }
+
+    /** Current attribute values as one JSON object, for the periodic metrics file. */
+    String toJson() {
+        StringBuilder sb = new StringBuilder("{");
+        for (Map.Entry<String, Supplier<?>> e : values.entrySet()) {
+            if (sb.length() > 1)
+                sb.append(',');
+            Json.string(sb, e.getKey());
+            sb.append(':');
+            Object v = e.getValue().get();
+            if (v instanceof Number || v instanceof Boolean) {
+                sb.append(v);
+            } else if (v instanceof String[]) {
+                sb.append('[');
+                String[] items = (String[]) v;
+                for (int i = 0; i < items.length; i++) {
+                    if (i > 0)
+                        sb.append(',');
+                    Json.string(sb, items[i]);
+                }
+                sb.append(']');
+            } else {
+                Json.string(sb, String.valueOf(v));
+            }
+        }
+        return sb.append('}').toString();
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Supplier<?> s = values.get(attribute);
+        if (s == null)
+            throw new AttributeNotFoundException(attribute);
+        return s.get();
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String a : attributes) {
+            Supplier<?> s = values.get(a);
+            if (s != null)
+                list.add(new Attribute(a, s.get()));
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        return new MBeanInfo(getClass().getName(), description, infos.toArray(new MBeanAttributeInfo[0]), null,
+                null, null);
+    }
+}
+
+/**
+ * Event queue that times every event the EDT dispatches and, from a watchdog
+ * thread, captures the EDT's stack whenever one event has been running longer
+ * than the threshold, while it is still stuck. While a modal dialog pumps
+ * events from inside a handler, the handler that opened it counts as idle.
+ */
+class EdtWatchdog extends EventQueue {
+    private static final int KEEP = 16;
+
+    private final long thresholdNanos;
+    /** How long each event took to dispatch, excluding events that opened a modal loop. */
+    final LatencyHistogram dispatch = new LatencyHistogram();
+    private final AtomicLong stalls = new AtomicLong();
+    private final ArrayDeque<String> recent = new ArrayDeque<>();
+    // written by the EDT, read by the watchdog
+    private volatile Thread edt;
+    private volatile long busySince;
+    private volatile long dispatchSeq;
+    private volatile AWTEvent current;
+    // EDT only; counts nested dispatches too
+    private long dispatched;
+
+    private EdtWatchdog(long thresholdMillis) {
+        this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+    }
+
+    /** Pushes the watchdog onto the system event queue and starts watching. */
+    static EdtWatchdog install(long thresholdMillis) {
+        EdtWatchdog q = new EdtWatchdog(thresholdMillis);
+        Toolkit.getDefaultToolkit().getSystemEventQueue().push(q);
+        Thread t = new Thread(q::watch, "edt-watchdog");
+        t.setDaemon(true);
+        t.start();
+        return q;
+    }
+
+    public long stalls() {
+        return stalls.get();
+    }
+
+    /** The most recent stall reports, newest last. */
+    public synchronized String[] recentStalls() {
+        return recent.toArray(new String[0]);
+    }
+
+    @Override
+    protected void dispatchEvent(AWTEvent event) {
+        long start = System.nanoTime();
+        long nestedBefore = ++dispatched;
+        edt = Thread.currentThread();
+        current = event;
+        dispatchSeq++;
+        busySince = start;
+        try {
+            super.dispatchEvent(event);
+        } finally {
+            // anything dispatched in between came from a modal loop this event started
+            if (dispatched == nestedBefore)
+                dispatch.record(System.nanoTime() - start);
+            busySince = 0;
+            current = null;
+        }
+    }
+
+    private void watch() {
+        long reportedSeq = -1;
+        long pollMillis = Math.max(10, TimeUnit.NANOSECONDS.toMillis(thresholdNanos) / 4);
+        while (true) {
+            try {
+                Thread.sleep(pollMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long seq = dispatchSeq;
+            long since = busySince;
+            AWTEvent event = current;
+            Thread thread = edt;
+            if (since == 0 || seq == reportedSeq || thread == null || System.nanoTime() - since < thresholdNanos)
+                continue;
+            StackTraceElement[] stack = thread.getStackTrace();
+            if (dispatchSeq != seq)
+                continue; // finished while we looked
+            reportedSeq = seq;
+            report(event, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - since), stack);
+        }
+    }
+
+    private void report(AWTEvent event, long blockedMillis, StackTraceElement[] stack) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(LocalDateTime.now().withNano(0)).append(" EDT blocked ").append(blockedMillis).append(" ms in ")
+                .append(describe(event));
+        for (StackTraceElement f : stack)
+            sb.append(System.lineSeparator()).append("\tat ").append(f);
+        String text = sb.toString();
+        stalls.incrementAndGet();
+        synchronized (this) {
+            if (recent.size() == KEEP)
+                recent.removeFirst();
+            recent.addLast(text);
+        }
+        System.err.println(text);
+    }
+
+    private static String describe(AWTEvent event) {
+        if (event == null)
+            return "an event";
+        String s = event.getClass().getSimpleName() + " on " + event.getSource().getClass().getSimpleName();
+        if (event instanceof ActionEvent)
+            s += " \"" + ((ActionEvent) event).getActionCommand() + "\"";
+        return s;
     }
 }